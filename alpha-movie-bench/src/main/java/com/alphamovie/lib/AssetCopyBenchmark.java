@@ -0,0 +1,110 @@
+package com.alphamovie.lib;
+
+import com.alphamovie.lib.utils.AssetFileCache;
+import com.alphamovie.lib.utils.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy behind {@code Utils.copyAssetFileToPath}, and the one behind
+ * {@code AssetStore.getFile}, with a local file standing in for the asset.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssetCopyBenchmark {
+    private static final String FILENAME = "asset.mp4";
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private File mSourceFile;
+    private File mDesDir;
+    private String mDesPath;
+    private AssetFileCache mCache;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        mSourceFile = File.createTempFile("alpha-movie-asset", ".mp4");
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        OutputStream out = new FileOutputStream(mSourceFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        mDesDir = new File(mSourceFile.getParentFile(), mSourceFile.getName() + ".out");
+        mDesPath = mDesDir.getAbsolutePath() + File.separator;
+        mCache = new AssetFileCache(new File(mDesDir, "cache"), Long.MAX_VALUE);
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteTarget() {
+        new File(mDesDir, FILENAME).delete();
+        mCache.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        new File(mDesDir, FILENAME).delete();
+        mCache.clear();
+        mCache.getDirectory().delete();
+        mDesDir.delete();
+        mSourceFile.delete();
+    }
+
+    @Benchmark
+    public void copyAssetFileToPath() throws IOException {
+        InputStream in = new FileInputStream(mSourceFile);
+        try {
+            FileUtils.copyToPath(in, FILENAME, mDesPath);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A cold {@code AssetStore.getFile} of an uncompressed asset: transferTo from the APK
+     * range, plus the checksum pass.
+     */
+    @Benchmark
+    public File materialize() throws IOException {
+        return mCache.get(FILENAME, size, new AssetFileCache.Source() {
+            @Override
+            public void writeTo(FileChannel channel) throws IOException {
+                FileInputStream in = new FileInputStream(mSourceFile);
+                try {
+                    in.getChannel().transferTo(0, size, channel);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,63 @@
+package com.alphamovie.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording per-frame timings, which runs on the decoder and render threads for
+ * every frame.  Run with {@code -prof gc} to confirm nothing is allocated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameMetricsBenchmark {
+    private FrameMetricsRecorder mRecorder;
+
+    @Setup
+    public void setUp() {
+        mRecorder = new FrameMetricsRecorder();
+        for (long i = 0; i < 100000; i++) {
+            mRecorder.recordDuration(FrameMetrics.STAGE_FRAME, 16000000L + (i % 4000000L));
+        }
+    }
+
+    /**
+     * All stages of one frame, as recorded by a single overlay.
+     */
+    @Benchmark
+    public void recordFrame() {
+        mRecorder.recordDuration(FrameMetrics.STAGE_DECODE, 8000000L);
+        mRecorder.recordDuration(FrameMetrics.STAGE_TEXTURE_UPDATE, 120000L);
+        mRecorder.recordDuration(FrameMetrics.STAGE_DRAW, 900000L);
+        mRecorder.recordDuration(FrameMetrics.STAGE_SWAP, 300000L);
+        mRecorder.recordDuration(FrameMetrics.STAGE_FRAME, 16600000L);
+    }
+
+    /**
+     * Decoder and render threads recording into the same recorder.
+     */
+    @Benchmark
+    @Threads(4)
+    public void recordFrameContended() {
+        mRecorder.recordDuration(FrameMetrics.STAGE_FRAME, 16600000L);
+    }
+
+    @Benchmark
+    public long snapshotP99() {
+        return mRecorder.snapshot(FrameMetrics.STAGE_FRAME).getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,164 @@
+package com.alphamovie.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the frame scheduling helpers: {@link InputPrefetch}, {@link LoopTimeline},
+ * {@link PlaybackRate}, {@link SampleDependency}, {@link SeekIndex}, {@link FrameSynchronizer}
+ * and {@link VsyncTiming} on the decoder side and {@link FrameGate} on the render side, driven with
+ * synthetic timestamps for three streams.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameSchedulingBenchmark {
+    private static final int STREAM_COUNT = 3;
+    private static final long FRAME_DURATION_USEC = 33333;
+    private static final int LOOP_FRAMES = 60;
+    private static final long VSYNC_PERIOD_NANOS = 16666667;
+    private static final float FAST_FORWARD_RATE = 4f;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int INDEX_SAMPLES = 18000;
+    private static final int GOP_SIZE = 30;
+
+    private FrameSynchronizer mSynchronizer;
+    private FrameGate mGate;
+    private InputPrefetch mPrefetch;
+    private LoopTimeline mLoopTimeline;
+    private long mSamplePtsUsec;
+    private long mPtsUsec;
+    private long mVsyncNanos;
+    private long mPeriodNanos;
+    private ByteBuffer mSample;
+    private SeekIndex mSeekIndex;
+    private long mSeekUsec;
+
+    @Setup
+    public void setUp() {
+        mSynchronizer = new FrameSynchronizer(STREAM_COUNT);
+        mGate = new FrameGate(STREAM_COUNT);
+        mPrefetch = new InputPrefetch();
+        mLoopTimeline = new LoopTimeline(LOOP_FRAMES * FRAME_DURATION_USEC);
+        mSamplePtsUsec = 0;
+        mPtsUsec = 0;
+        mVsyncNanos = 0;
+        mPeriodNanos = VSYNC_PERIOD_NANOS;
+        // An H.264 B frame as MediaExtractor hands it out: SEI, then a non-reference slice.
+        mSample = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+        mSample.put(new byte[]{0, 0, 0, 1, 0x06, 0x05, 0x10});
+        mSample.position(32);
+        mSample.put(new byte[]{0, 0, 0, 1, 0x01, (byte) 0x9e});
+        mSample.clear();
+        // Ten minutes at 30 fps, a key frame every second.
+        long[] samplePtsUsec = new long[INDEX_SAMPLES];
+        long[] syncPtsUsec = new long[INDEX_SAMPLES / GOP_SIZE];
+        for (int i = 0; i < INDEX_SAMPLES; i++) {
+            samplePtsUsec[i] = i * FRAME_DURATION_USEC;
+            if (i % GOP_SIZE == 0) {
+                syncPtsUsec[i / GOP_SIZE] = samplePtsUsec[i];
+            }
+        }
+        mSeekIndex = new SeekIndex(samplePtsUsec, INDEX_SAMPLES, syncPtsUsec, syncPtsUsec.length);
+        mSeekUsec = 0;
+    }
+
+    /**
+     * One matched frame: every stream offers the same PTS.
+     */
+    @Benchmark
+    public int synchronizeFrame() {
+        int result = 0;
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            result += mSynchronizer.offer(stream, mPtsUsec, mPtsUsec);
+        }
+        mPtsUsec += FRAME_DURATION_USEC;
+        return result;
+    }
+
+    /**
+     * One decode loop iteration in steady state: fill the window, then take a frame out.
+     */
+    @Benchmark
+    public int prefetchFrame() {
+        int count = mPrefetch.inputsToQueue(false);
+        for (int i = 0; i < count; i++) {
+            mPrefetch.onInputQueued();
+        }
+        mPrefetch.onOutputDequeued();
+        return count;
+    }
+
+    /**
+     * One sample of a seamlessly looping 60 frame sticker: rewrite its PTS on input and find
+     * its pass on output.
+     */
+    @Benchmark
+    public int loopSample() {
+        long ptsUsec = mLoopTimeline.onSample(mSamplePtsUsec);
+        mSamplePtsUsec += FRAME_DURATION_USEC;
+        if (mSamplePtsUsec == LOOP_FRAMES * FRAME_DURATION_USEC) {
+            mSamplePtsUsec = 0;
+            mLoopTimeline.onEndOfInput();
+        }
+        return mLoopTimeline.passOf(ptsUsec);
+    }
+
+    /**
+     * One 30 fps frame on a 60 Hz display: fold two vsyncs into the period estimate and pick
+     * the frame's target vsync.
+     */
+    @Benchmark
+    public long vsyncFrame() {
+        for (int i = 0; i < 2; i++) {
+            mPeriodNanos = VsyncTiming.refinePeriodNanos(mPeriodNanos, VSYNC_PERIOD_NANOS);
+            mVsyncNanos += VSYNC_PERIOD_NANOS;
+        }
+        mPtsUsec += FRAME_DURATION_USEC;
+        return VsyncTiming.targetVsyncNanos(mPtsUsec * 1000, mVsyncNanos, mPeriodNanos);
+    }
+
+    /**
+     * One sample at 4x: decide whether it is shown, and if not whether it can go undecoded.
+     */
+    @Benchmark
+    public boolean rateSample() {
+        mSamplePtsUsec += FRAME_DURATION_USEC;
+        return PlaybackRate.isShown(mSamplePtsUsec, FRAME_DURATION_USEC, FAST_FORWARD_RATE)
+                || !SampleDependency.isDisposable(mSample, SAMPLE_SIZE, SampleDependency.MIME_AVC);
+    }
+
+    /**
+     * Planning one exact seek: the frame at a position and the key frame to decode it from.
+     */
+    @Benchmark
+    public long seekLookup() {
+        mSeekUsec = (mSeekUsec + 7777777) % (INDEX_SAMPLES * FRAME_DURATION_USEC);
+        return mSeekIndex.syncSampleFor(mSeekIndex.frameAt(mSeekUsec));
+    }
+
+    /**
+     * One latched set: every stream signals a frame, then the render thread consumes them.
+     */
+    @Benchmark
+    public int gateFrame() {
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            mGate.onFrameAvailable(stream);
+        }
+        return mGate.consume();
+    }
+}
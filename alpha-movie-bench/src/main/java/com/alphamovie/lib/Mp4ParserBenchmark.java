@@ -0,0 +1,57 @@
+package com.alphamovie.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probing the sample videos with {@link Mp4Parser}, uncached.  {@code ball.mp4} has its
+ * {@code moov} box before the media data, the others after it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Mp4ParserBenchmark {
+    private static final File ASSETS_DIR = new File("../example/src/main/assets");
+
+    @Param({"ball.mp4", "color1.mp4"})
+    public String asset;
+
+    private FileInputStream mIn;
+    private long mLength;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        File file = new File(ASSETS_DIR, asset);
+        mIn = new FileInputStream(file);
+        mLength = file.length();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    @Benchmark
+    public Mp4Metadata parse() throws IOException {
+        return new Mp4Parser(mIn.getChannel(), 0, mLength).parse();
+    }
+}
@@ -0,0 +1,52 @@
+package com.alphamovie.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of queueing player commands with {@link PlayerCommandQueue}: a burst of start/pause
+ * toggles, as from a user hammering a play button, coalesces to a single command before the
+ * player sees it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerCommandBenchmark {
+    private static final int BURST = 16;
+
+    private PlayerCommandQueue mQueue;
+
+    @Setup
+    public void setUp() {
+        mQueue = new PlayerCommandQueue();
+    }
+
+    /**
+     * One burst of toggles plus a seek, then the drain.
+     */
+    @Benchmark
+    public int toggleBurst() {
+        for (int i = 0; i < BURST; i++) {
+            mQueue.offer(i % 2 == 0 ? PlayerCommandQueue.START : PlayerCommandQueue.PAUSE, 0);
+        }
+        mQueue.offer(PlayerCommandQueue.SEEK, 1500);
+        int executed = 0;
+        while (mQueue.poll() != PlayerCommandQueue.NONE) {
+            executed++;
+        }
+        return executed;
+    }
+}
@@ -0,0 +1,127 @@
+package com.alphamovie.lib;
+
+import com.alphamovie.lib.utils.ProgramBinary;
+import com.alphamovie.lib.utils.ProgramBinaryStore;
+import com.alphamovie.lib.utils.ProgramCache;
+import com.alphamovie.lib.utils.ProgramCompiler;
+import com.alphamovie.lib.utils.ProgramKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host-side cost of the program binary cache: reading and verifying a stored binary, which
+ * replaces the shader compile on a warm start, and saving one after a compile.  The GL side
+ * is a fake {@link ProgramCompiler}, so this measures the file format and I/O only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramBinaryCacheBenchmark {
+    // Typical size of a driver's binary for the composite program.
+    private static final int BINARY_SIZE = 16 * 1024;
+    private static final String RENDERER_ID = "Adreno (TM) 540 / OpenGL ES 3.2 V@331.0";
+
+    private File mDir;
+    private ProgramBinaryStore mStore;
+    private FakeCompiler mCompiler;
+    private ProgramKey mKey;
+    private ProgramBinary mBinary;
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = File.createTempFile("programs", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("Could not create " + mDir);
+        }
+        mStore = new ProgramBinaryStore(mDir);
+        byte[] data = new byte[BINARY_SIZE];
+        new Random(0).nextBytes(data);
+        mBinary = new ProgramBinary(1, data);
+        mCompiler = new FakeCompiler(mBinary);
+        mKey = new ProgramKey(ShaderSource.VERTEX, ShaderSource.COMPOSITE_FRAGMENT);
+        mStore.save(mKey, RENDERER_ID, mBinary);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStore.clear();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public ProgramBinary loadBinary() {
+        return mStore.load(mKey, RENDERER_ID);
+    }
+
+    @Benchmark
+    public boolean saveBinary() {
+        return mStore.save(mKey, RENDERER_ID, mBinary);
+    }
+
+    /**
+     * What a renderer pays on a warm start: a new context's cache misses and loads the binary.
+     */
+    @Benchmark
+    public int acquireFromStore() {
+        ProgramCache cache = new ProgramCache(mCompiler, mStore);
+        int program = cache.acquire(ShaderSource.VERTEX, ShaderSource.COMPOSITE_FRAGMENT);
+        cache.release(program);
+        return program;
+    }
+
+    private static class FakeCompiler implements ProgramCompiler {
+        private final ProgramBinary mBinary;
+        private int mNextProgram = 1;
+
+        FakeCompiler(ProgramBinary binary) {
+            mBinary = binary;
+        }
+
+        @Override
+        public int compile(String vertexSource, String fragmentSource) {
+            return mNextProgram++;
+        }
+
+        @Override
+        public boolean supportsBinaries() {
+            return true;
+        }
+
+        @Override
+        public String getRendererId() {
+            return RENDERER_ID;
+        }
+
+        @Override
+        public ProgramBinary getBinary(int program) {
+            return mBinary;
+        }
+
+        @Override
+        public int loadBinary(ProgramBinary binary) {
+            return binary.getData().length == BINARY_SIZE ? mNextProgram++ : 0;
+        }
+
+        @Override
+        public void deleteProgram(int program) {
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.alphamovie.lib;
+
+import com.alphamovie.lib.utils.CountingGlApi;
+import com.alphamovie.lib.utils.GlApi;
+import com.alphamovie.lib.utils.QuadRenderState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host-side cost of the per-frame draw path, with GL calls going to a no-op {@link GlApi}.
+ * {@code drawFrame} is a renderer with its own context; {@code drawSharedContext} is two
+ * overlays taking turns on one context, which re-binds state on every draw.  Each benchmark
+ * returns the GL calls made per frame, as counted by {@link CountingGlApi}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderStateBenchmark {
+    private static final String[] SAMPLER_NAMES = {"sTexture", "sTextureBg", "sTextureAlpha"};
+
+    private final float[] mSTMatrix = new float[16];
+    private CountingGlApi mGl;
+    private QuadRenderState mState;
+    private QuadRenderState mOtherState;
+
+    @Setup
+    public void setup() {
+        mGl = new CountingGlApi(new NoOpGlApi());
+        mState = new QuadRenderState(mGl, 1, GlApi.GL_TEXTURE_EXTERNAL_OES, new int[]{1, 2, 3},
+                SAMPLER_NAMES);
+        mOtherState = new QuadRenderState(mGl, 2, GlApi.GL_TEXTURE_EXTERNAL_OES, new int[]{4, 5, 6},
+                SAMPLER_NAMES);
+    }
+
+    @Benchmark
+    public int drawFrame() {
+        mGl.resetCallCount();
+        mState.draw(mSTMatrix);
+        return mGl.getCallCount();
+    }
+
+    @Benchmark
+    public int drawSharedContext() {
+        mGl.resetCallCount();
+        mState.draw(mSTMatrix);
+        mOtherState.draw(mSTMatrix);
+        return mGl.getCallCount() / 2;
+    }
+
+    /**
+     * Accepts every call; locations are small positive numbers so setup succeeds.
+     */
+    private static class NoOpGlApi implements GlApi {
+        private int mNextName = 1;
+
+        @Override
+        public int getAttribLocation(int program, String name) {
+            return mNextName++;
+        }
+
+        @Override
+        public int getUniformLocation(int program, String name) {
+            return mNextName++;
+        }
+
+        @Override
+        public void useProgram(int program) {
+        }
+
+        @Override
+        public int genBuffer() {
+            return mNextName++;
+        }
+
+        @Override
+        public void deleteBuffer(int buffer) {
+        }
+
+        @Override
+        public void bindBuffer(int target, int buffer) {
+        }
+
+        @Override
+        public void bufferData(int target, FloatBuffer data, int usage) {
+        }
+
+        @Override
+        public void vertexAttribPointer(int index, int size, int strideBytes, int offsetBytes) {
+        }
+
+        @Override
+        public void enableVertexAttribArray(int index) {
+        }
+
+        @Override
+        public void activeTexture(int unit) {
+        }
+
+        @Override
+        public void bindTexture(int target, int texture) {
+        }
+
+        @Override
+        public void bindFramebuffer(int framebuffer) {
+        }
+
+        @Override
+        public void viewport(int x, int y, int width, int height) {
+        }
+
+        @Override
+        public void uniform1i(int location, int value) {
+        }
+
+        @Override
+        public void uniform1f(int location, float x) {
+        }
+
+        @Override
+        public void uniform3f(int location, float x, float y, float z) {
+        }
+
+        @Override
+        public void uniform4fv(int location, float[] value) {
+        }
+
+        @Override
+        public void uniformMatrix4fv(int location, float[] value) {
+        }
+
+        @Override
+        public void enable(int cap) {
+        }
+
+        @Override
+        public void disable(int cap) {
+        }
+
+        @Override
+        public void blendFunc(int sfactor, int dfactor) {
+        }
+
+        @Override
+        public void clearColor(float red, float green, float blue, float alpha) {
+        }
+
+        @Override
+        public void clear(int mask) {
+        }
+
+        @Override
+        public void drawArrays(int mode, int first, int count) {
+        }
+
+        @Override
+        public int getError() {
+            return GL_NO_ERROR;
+        }
+
+        @Override
+        public boolean hasFenceSync() {
+            return true;
+        }
+
+        @Override
+        public long fenceSync() {
+            return mNextName++;
+        }
+
+        @Override
+        public void clientWaitSync(long sync, long timeoutNanos) {
+        }
+
+        @Override
+        public void deleteSync(long sync) {
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.alphamovie.lib;
+
+import com.alphamovie.lib.utils.ProgramKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Program cache lookups.  With the shader parameters moved into uniforms the composite source
+ * is a constant, and what's left per surface creation is building the {@link ProgramKey} and
+ * finding it in the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShaderSourceBenchmark {
+    private final HashMap<ProgramKey, Integer> mPrograms = new HashMap<ProgramKey, Integer>();
+
+    @Setup
+    public void setup() {
+        mPrograms.put(new ProgramKey(ShaderSource.VERTEX, ShaderSource.COMPOSITE_FRAGMENT), 1);
+        mPrograms.put(new ProgramKey(ShaderSource.VERTEX, ShaderSource.PACKED_FRAGMENT), 2);
+    }
+
+    @Benchmark
+    public long hashCompositeSource() {
+        return ProgramKey.sourceHash(ShaderSource.VERTEX, ShaderSource.COMPOSITE_FRAGMENT);
+    }
+
+    @Benchmark
+    public Integer lookUpCompositeProgram() {
+        return mPrograms.get(new ProgramKey(ShaderSource.VERTEX, ShaderSource.COMPOSITE_FRAGMENT));
+    }
+}
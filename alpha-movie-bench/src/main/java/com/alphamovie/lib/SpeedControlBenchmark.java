@@ -0,0 +1,110 @@
+package com.alphamovie.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pacing arithmetic of {@link SpeedControlCallback#preRender}, without the sleep.
+ * <p>
+ * Replays one loop of a 30fps clip, including the loop reset, and sums the sleep each frame
+ * would have asked for against a clock that runs at the same rate.  {@link #catchUpOneLoop}
+ * replays it against a decoder that periodically stalls, so late frames go through the drop
+ * and re-anchor decisions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeedControlBenchmark {
+    private static final int FRAME_COUNT = 300;
+    private static final long FRAME_DURATION_USEC = FramePacing.ONE_MILLION / 30;
+
+    private long[] mPresentationTimesUsec;
+    // Decode time of each frame, with occasional stalls of several frames.
+    private long[] mDecodeTimesUsec;
+
+    @Setup
+    public void setUp() {
+        mPresentationTimesUsec = new long[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mPresentationTimesUsec[i] = i * FRAME_DURATION_USEC;
+        }
+        Random random = new Random(0);
+        mDecodeTimesUsec = new long[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mDecodeTimesUsec[i] = random.nextInt(20) == 0
+                    ? (2 + random.nextInt(4)) * FRAME_DURATION_USEC
+                    : random.nextInt((int) FRAME_DURATION_USEC / 2);
+        }
+    }
+
+    @Benchmark
+    public long paceOneLoop() {
+        long prevPresentUsec = mPresentationTimesUsec[0];
+        long prevMonoUsec = 1000000L;
+        long nowUsec = prevMonoUsec;
+        long totalSleepUsec = 0;
+        for (int i = 1; i < FRAME_COUNT; i++) {
+            long frameDelta = FramePacing.frameDeltaUsec(mPresentationTimesUsec[i], prevPresentUsec, 0);
+            frameDelta = FramePacing.clampFrameDeltaUsec(frameDelta);
+            long desiredUsec = prevMonoUsec + frameDelta;
+            totalSleepUsec += FramePacing.sleepTimeUsec(desiredUsec, nowUsec);
+            nowUsec += FRAME_DURATION_USEC - 250;
+            prevMonoUsec += frameDelta;
+            prevPresentUsec += frameDelta;
+        }
+        // Loop reset: PTS jumps back to 0.
+        long frameDelta = FramePacing.frameDeltaUsec(mPresentationTimesUsec[0],
+                mPresentationTimesUsec[0] - FRAME_DURATION_USEC, 0);
+        totalSleepUsec += FramePacing.sleepTimeUsec(prevMonoUsec + frameDelta, nowUsec);
+        return totalSleepUsec;
+    }
+
+    /**
+     * @return the number of frames dropped, so the work can't be optimized away.
+     */
+    @Benchmark
+    public int catchUpOneLoop() {
+        long prevPresentUsec = mPresentationTimesUsec[0];
+        long prevMonoUsec = 1000000L;
+        long nowUsec = prevMonoUsec;
+        int consecutiveDrops = 0;
+        int dropped = 0;
+        for (int i = 1; i < FRAME_COUNT; i++) {
+            nowUsec += mDecodeTimesUsec[i];
+            long frameDelta = FramePacing.frameDeltaUsec(mPresentationTimesUsec[i], prevPresentUsec, 0);
+            frameDelta = FramePacing.clampFrameDeltaUsec(frameDelta);
+            long desiredUsec = prevMonoUsec + frameDelta;
+            int decision = FramePacing.pace(desiredUsec, nowUsec, frameDelta, consecutiveDrops, 3,
+                    FramePacing.CATCH_UP_DROP);
+            if (decision == FramePacing.PACE_DROP) {
+                consecutiveDrops++;
+                dropped++;
+                prevMonoUsec += frameDelta;
+            } else {
+                consecutiveDrops = 0;
+                if (decision == FramePacing.PACE_RENDER_REANCHOR) {
+                    prevMonoUsec = nowUsec;
+                } else {
+                    nowUsec = Math.max(nowUsec, desiredUsec);
+                    prevMonoUsec += frameDelta;
+                }
+            }
+            prevPresentUsec += frameDelta;
+        }
+        return dropped;
+    }
+}
@@ -17,24 +17,62 @@
 package com.alphamovie.lib;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.opengl.GLSurfaceView;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Surface;
 
+import com.alphamovie.lib.utils.ShaderCache;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 @SuppressLint("ViewConstructor")
 public class AlphaMovieView extends GLSurfaceView {
 
     private static final int GL_CONTEXT_VERSION = 2;
 
+    private static final VideoSource.Factory DEFAULT_VIDEO_SOURCE_FACTORY = new VideoSource.Factory() {
+        @Override
+        public VideoSource create(File file, Surface outputSurface, MoviePlayer.FrameCallback frameCallback)
+                throws IOException {
+            return new MoviePlayer(file, outputSurface, frameCallback);
+        }
+    };
+
+    // Gives the pooled decoders and players back when the app is short of memory.
+    private static final ComponentCallbacks2 POOL_TRIMMER = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            DecoderPool.trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            DecoderPool.trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+    // Copies the streams of asset variants to files, off the main thread.
+    private static ExecutorService variantLoader;
+    // Main thread only.
+    private static boolean isPoolTrimmerRegistered;
+    private static int attachedViewCount;
+
     private static final int NOT_DEFINED = -1;
     private static final int NOT_DEFINED_COLOR = 0;
 
@@ -48,160 +86,140 @@ public class AlphaMovieView extends GLSurfaceView {
     private boolean isSurfaceCreated;
     private boolean isDataSourceSet;
 
-    private MoviePlayerBlob mMoviePlayerBlob;
-    private MoviePlayerBlob mMoviePlayerBlobBg;
-    private MoviePlayerBlob mMoviePlayerBlobAlpha;
-
-    public class MoviePlayerBlob {
-        private MediaPlayer mMediaPlayer;
-        private PlayerState mState = PlayerState.NOT_PREPARED;
-        private PlayMovieThread mMovieThread;
-        private String mMoviePath;
-        private Surface mMovieSurface;
-        private OnVideoStartedListener onVideoStartedListener;
-        private OnVideoEndedListener onVideoEndedListener;
-
-        public MoviePlayerBlob(MediaPlayer mMediaPlayer) {
-            this.mMediaPlayer = mMediaPlayer;
-            mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mp) {
-                    mState = PlayerState.PAUSED;
-                    if (onVideoEndedListener != null) {
-                        onVideoEndedListener.onVideoEnded();
-                    }
-                }
-            });
-        }
-
-        private void prepareAsync(final MediaPlayer.OnPreparedListener onPreparedListener) {
-            if (mMediaPlayer != null && mState == PlayerState.NOT_PREPARED
-                    || mState == PlayerState.STOPPED) {
-                mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                    @Override
-                    public void onPrepared(MediaPlayer mp) {
-                        mState = PlayerState.PREPARED;
-                        onPreparedListener.onPrepared(mp);
-                    }
-                });
-                mMediaPlayer.prepareAsync();
-            }
-        }
-
-        public void start() {
-            new Thread(new Runnable() {
+    private MediaPlayerBlob mMoviePlayerBlob;
+    private MediaPlayerBlob mMoviePlayerBlobBg;
+    private MediaPlayerBlob mMoviePlayerBlobAlpha;
+    private MediaPlayerGroup playerGroup;
+
+    private boolean isFrameSyncMode;
+    private boolean autoStart = true;
+    private float playbackRate = PlaybackRate.NORMAL;
+    // Where the next movie threads start, or -1 for the beginning.
+    private long startPositionUsec = -1;
+    private String moviePath;
+    private String movieBgPath;
+    private String movieAlphaPath;
+    private Surface movieSurface;
+    private Surface movieBgSurface;
+    private Surface movieAlphaSurface;
+    private PlayMovieThread mMovieThread;
+    private PlayMovieThread mMovieBgThread;
+    private PlayMovieThread mMovieAlphaThread;
+    // Set while pause() holds the decode threads on their frame.
+    private boolean isMoviePaused;
+    // Paces the three decode threads together, so they drop the same frames.
+    private SpeedControlCallback movieThreadPacing;
+    private FrameSynchronizer frameSynchronizer = new FrameSynchronizer(3);
+    private FrameMetrics frameMetrics;
+    private VideoSource.Factory videoSourceFactory = DEFAULT_VIDEO_SOURCE_FACTORY;
+
+    private boolean frameCacheEnabled;
+    // Metadata of the setVideoFromFiles streams, which sizes the frame cache.
+    private Mp4Metadata frameSyncMetadata;
+    // The frame cache being captured or replayed, or null.
+    private FrameRing frameRing;
+    private boolean isReplaying;
+    private boolean isReplayPaused;
+    // Set once the cache of the current source was evicted or failed, so it isn't made again.
+    private boolean frameCacheGaveUp;
+    private final FrameCacheBudget.Owner frameCacheOwner = new FrameCacheBudget.Owner() {
+        @Override
+        public void onEvicted() {
+            post(new Runnable() {
                 @Override
                 public void run() {
-                    if (mMediaPlayer != null) {
-                        switch (mState) {
-                            case PREPARED:
-                            case STARTED:
-                                mMediaPlayer.start();
-                                mState = PlayerState.STARTED;
-                                if (onVideoStartedListener != null) {
-                                    onVideoStartedListener.onVideoStarted();
-                                }
-                                break;
-                            case PAUSED:
-                                mMediaPlayer.start();
-                                mState = PlayerState.STARTED;
-                                break;
-                            case STOPPED:
-                                prepareAsync(new MediaPlayer.OnPreparedListener() {
-                                    @Override
-                                    public void onPrepared(MediaPlayer mp) {
-                                        mMediaPlayer.start();
-                                        mState = PlayerState.STARTED;
-                                        if (onVideoStartedListener != null) {
-                                            onVideoStartedListener.onVideoStarted();
-                                        }
-                                    }
-                                });
-                                break;
-                        }
-                    }
+                    frameCacheGaveUp = true;
+                    leaveFrameCache();
                 }
-            }).start();
-
-        }
-
-        public void pause() {
-            if (mMediaPlayer != null && mState == PlayerState.STARTED) {
-                mMediaPlayer.pause();
-                mState = PlayerState.PAUSED;
-            }
-        }
-
-        public void stop() {
-            if (mMediaPlayer != null && (mState == PlayerState.STARTED || mState == PlayerState.PAUSED)) {
-                mMediaPlayer.stop();
-                mState = PlayerState.STOPPED;
-            }
-        }
-
-        public void reset() {
-            if (mMediaPlayer != null && (mState == PlayerState.STARTED || mState == PlayerState.PAUSED ||
-                    mState == PlayerState.STOPPED)) {
-                mMediaPlayer.reset();
-                mState = PlayerState.NOT_PREPARED;
-            }
-        }
-
-        public void release() {
-            if (mMediaPlayer != null) {
-                mMediaPlayer.release();
-                mState = PlayerState.RELEASE;
-            }
+            });
         }
-
-        public PlayerState getState() {
-            return mState;
+    };
+    private final Runnable replayTick = new Runnable() {
+        @Override
+        public void run() {
+            requestRender();
         }
-
-        public void seekTo(int msec) {
-            mMediaPlayer.seekTo(msec);
+    };
+    private final Runnable releaseFrameCacheEvent = new Runnable() {
+        @Override
+        public void run() {
+            renderer.releaseFrameCache();
         }
-
-        public void setLooping(boolean looping) {
-            mMediaPlayer.setLooping(looping);
+    };
+    private final Runnable pauseReplayEvent = new Runnable() {
+        @Override
+        public void run() {
+            renderer.pauseReplay();
         }
-
-        public int getCurrentPosition() {
-            return mMediaPlayer.getCurrentPosition();
+    };
+    private final Runnable resumeReplayEvent = new Runnable() {
+        @Override
+        public void run() {
+            renderer.resumeReplay();
         }
-
-        public void setScreenOnWhilePlaying(boolean screenOn) {
-            mMediaPlayer.setScreenOnWhilePlaying(screenOn);
+    };
+
+    // The manifest of setVideoFromAssetVariants and the variant playing, or null.
+    private VariantManifest variantManifest;
+    private VariantManifest.Variant currentVariant;
+    // The variant for a new view size, played from the next loop boundary.
+    private VariantManifest.Variant pendingVariant;
+    // The variant whose files are being copied, or null.
+    private VariantManifest.Variant loadingVariant;
+    // Bumped by reset(), so variants loaded for an earlier source are ignored.
+    private int variantGeneration;
+    // The pending variant, pre-rolled on the renderer's standby surfaces, or null.
+    private VariantStreams standbyStreams;
+    // Set while the threads of the variant played before a switch finish; until then the
+    // renderer's standby surfaces are theirs.
+    private volatile boolean isRetiringMovieThreads;
+    private final Runnable switchVariantEvent = new Runnable() {
+        @Override
+        public void run() {
+            switchVariant();
         }
-
-        public void setOnErrorListener(MediaPlayer.OnErrorListener onErrorListener) {
-            mMediaPlayer.setOnErrorListener(onErrorListener);
+    };
+    private final Runnable prepareStandbyEvent = new Runnable() {
+        @Override
+        public void run() {
+            prepareStandby();
         }
-
-        public void setOnVideoStartedListener(OnVideoStartedListener onVideoStartedListener) {
-            this.onVideoStartedListener = onVideoStartedListener;
+    };
+    private final Runnable prepareStandbySurfacesEvent = new Runnable() {
+        @Override
+        public void run() {
+            renderer.prepareStandbySurfaces();
         }
-
-        public void setOnVideoEndedListener(OnVideoEndedListener onVideoEndedListener) {
-            this.onVideoEndedListener = onVideoEndedListener;
+    };
+    private final Runnable swapStandbySurfacesEvent = new Runnable() {
+        @Override
+        public void run() {
+            renderer.swapStandbySurfaces();
         }
-
-        public void setOnSeekCompleteListener(MediaPlayer.OnSeekCompleteListener onSeekCompleteListener) {
-            mMediaPlayer.setOnSeekCompleteListener(onSeekCompleteListener);
+    };
+    private final Runnable releaseStandbySurfacesEvent = new Runnable() {
+        @Override
+        public void run() {
+            renderer.releaseStandbySurfaces();
         }
-
-        public MediaPlayer getMediaPlayer() {
-            return mMediaPlayer;
+    };
+    // Reports the loop boundaries of the color stream.
+    private final VideoSource.FrameListener loopListener = new VideoSource.FrameListener() {
+        @Override
+        public void onFrameRendered(long presentationTimeUsec) {
         }
 
-        public void setMediaPlayer(MediaPlayer mMediaPlayer) {
-            this.mMediaPlayer = mMediaPlayer;
+        @Override
+        public void onFrameDropped(long presentationTimeUsec) {
         }
 
-        public void setState(PlayerState mState) {
-            this.mState = mState;
+        @Override
+        public void onEndOfStream(boolean looping) {
+            if (looping) {
+                post(switchVariantEvent);
+            }
         }
-    }
+    };
 
     public AlphaMovieView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -215,14 +233,25 @@ public class AlphaMovieView extends GLSurfaceView {
         setEGLContextClientVersion(GL_CONTEXT_VERSION);
         setEGLConfigChooser(8, 8, 8, 8, 16, 0);
 
-        initMediaPlayer();
-
         renderer = new VideoRenderer();
+        renderer.setProgramBinaryStore(ShaderCache.getBinaryStore(getContext()));
 
         obtainRendererOptions(attrs);
 
+        initMediaPlayer();
+
         this.addOnSurfacePrepareListener();
         setRenderer(renderer);
+        // Draw when the decoders deliver, not at display rate: a 30fps video on a 120Hz
+        // panel is drawn 30 times a second, and nothing is drawn while playback is paused.
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+        renderer.setOnFrameReadyListener(new VideoRenderer.OnFrameReadyListener() {
+            @Override
+            public void onFrameReady() {
+                requestRender();
+            }
+        });
+        addOnFrameCacheListener();
 
         bringToFront();
         setPreserveEGLContextOnPause(true);
@@ -230,16 +259,89 @@ public class AlphaMovieView extends GLSurfaceView {
     }
 
     private void initMediaPlayer() {
-        MediaPlayer mediaPlayer = new MediaPlayer();
+        MediaPlayer mediaPlayer = MediaPlayerPool.getInstance().acquire();
 //        setScreenOnWhilePlaying(true);
 //        setLooping(true);
 
-        MediaPlayer mediaPlayerBg = new MediaPlayer();
-        MediaPlayer mediaPlayerAlpha = new MediaPlayer();
+        mMoviePlayerBlob = new MediaPlayerBlob(mediaPlayer);
+        playerGroup = new MediaPlayerGroup();
+
+        if (!isPacked()) {
+            initSeparateStreamPlayers();
+        } else {
+            updatePlayerGroup();
+        }
+    }
+
+    private void initSeparateStreamPlayers() {
+        if (mMoviePlayerBlobBg == null) {
+            mMoviePlayerBlobBg = new MediaPlayerBlob(MediaPlayerPool.getInstance().acquire());
+        }
+        if (mMoviePlayerBlobAlpha == null) {
+            mMoviePlayerBlobAlpha = new MediaPlayerBlob(MediaPlayerPool.getInstance().acquire());
+        }
+        updatePlayerGroup();
+    }
+
+    /**
+     * A packed video needs a single decoder, so the background and alpha players are
+     * released instead of being kept around idle.
+     */
+    private void releaseSeparateStreamPlayers() {
+        if (mMoviePlayerBlobBg != null) {
+            mMoviePlayerBlobBg.release();
+            mMoviePlayerBlobBg = null;
+        }
+        if (mMoviePlayerBlobAlpha != null) {
+            mMoviePlayerBlobAlpha.release();
+            mMoviePlayerBlobAlpha = null;
+        }
+        updatePlayerGroup();
+    }
+
+    /**
+     * After {@link #release()} the players are back in {@link MediaPlayerPool}; takes new ones
+     * from it, e.g. when a RecyclerView attaches the view again.
+     */
+    private void reacquirePlayers() {
+        if (mMoviePlayerBlob.getState() != PlayerState.RELEASE) {
+            return;
+        }
+        mMoviePlayerBlob = new MediaPlayerBlob(MediaPlayerPool.getInstance().acquire());
+        mMoviePlayerBlobBg = null;
+        mMoviePlayerBlobAlpha = null;
+        if (!isPacked()) {
+            initSeparateStreamPlayers();
+        } else {
+            updatePlayerGroup();
+        }
+        if (!isFrameSyncMode) {
+            attachMediaPlayerSurfaces();
+        }
+    }
+
+    private void updatePlayerGroup() {
+        if (mMoviePlayerBlobAlpha != null) {
+            playerGroup.setMembers(mMoviePlayerBlob, mMoviePlayerBlobBg, mMoviePlayerBlobAlpha);
+        } else {
+            playerGroup.setMembers(mMoviePlayerBlob);
+        }
+    }
 
-        mMoviePlayerBlob = new MoviePlayerBlob(mediaPlayer);
-        mMoviePlayerBlobBg = new MoviePlayerBlob(mediaPlayerBg);
-        mMoviePlayerBlobAlpha = new MoviePlayerBlob(mediaPlayerAlpha);
+    private boolean isPacked() {
+        return renderer.getPackedLayout().isPacked();
+    }
+
+    private void setPackedLayout(PackedLayout packedLayout) {
+        if (isSurfaceCreated && renderer.getSurfaceLayout() != packedLayout) {
+            throw new IllegalStateException("Packed layout must be set before the surface is created");
+        }
+        renderer.setPackedLayout(packedLayout);
+        if (packedLayout.isPacked()) {
+            releaseSeparateStreamPlayers();
+        } else {
+            initSeparateStreamPlayers();
+        }
     }
 
     private void obtainRendererOptions(AttributeSet attrs) {
@@ -257,6 +359,14 @@ public class AlphaMovieView extends GLSurfaceView {
             if (accuracy != NOT_DEFINED) {
                 renderer.setAccuracy(accuracy);
             }
+            int packedLayout = arr.getInt(R.styleable.AlphaMovieView_packedLayout, NOT_DEFINED);
+            if (packedLayout != NOT_DEFINED) {
+                renderer.setPackedLayout(PackedLayout.fromAttribute(packedLayout));
+            }
+            int blendMode = arr.getInt(R.styleable.AlphaMovieView_blendMode, NOT_DEFINED);
+            if (blendMode != NOT_DEFINED) {
+                renderer.setBlendMode(BlendMode.fromAttribute(blendMode));
+            }
             arr.recycle();
         }
     }
@@ -267,112 +377,326 @@ public class AlphaMovieView extends GLSurfaceView {
                 @Override
                 public void surfacePrepared(Surface surface, Surface bgSurface, Surface alphaSurface) {
                     isSurfaceCreated = true;
-                    mMoviePlayerBlob.getMediaPlayer().setSurface(surface);
-                    surface.release();
-
-                    mMoviePlayerBlobBg.getMediaPlayer().setSurface(bgSurface);
-                    bgSurface.release();
+                    releaseSurfaces();
+                    movieSurface = surface;
+                    movieBgSurface = bgSurface;
+                    movieAlphaSurface = alphaSurface;
 
-                    mMoviePlayerBlobAlpha.getMediaPlayer().setSurface(alphaSurface);
-                    alphaSurface.release();
-
-//                    movieSurface = surface;
-//                    movieBgSurface = bgSurface;
+                    if (!isFrameSyncMode) {
+                        attachMediaPlayerSurfaces();
+                    }
 
                     if (isDataSourceSet) {
                         prepareAndStartMediaPlayer();
                     }
+                    // A standby set of a lost context went with it.
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            dropStandby();
+                            prepareStandby();
+                        }
+                    });
+                }
+            });
+            renderer.setOnStandbySurfacePrepareListener(new VideoRenderer.OnSurfacePrepareListener() {
+                @Override
+                public void surfacePrepared(final Surface surface, final Surface bgSurface,
+                        final Surface alphaSurface) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startStandbyThreads(surface, bgSurface, alphaSurface);
+                        }
+                    });
                 }
             });
         }
     }
 
-    private void prepareAndStartMediaPlayer() {
-        mMoviePlayerBlob.prepareAsync(new MediaPlayer.OnPreparedListener() {
+    private void addOnFrameCacheListener() {
+        renderer.setOnFrameCacheListener(new VideoRenderer.OnFrameCacheListener() {
             @Override
-            public void onPrepared(MediaPlayer mp) {
-                mMoviePlayerBlob.start();
+            public void onFrameCacheComplete(final FrameRing ring) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ring != frameRing) {
+                            return;
+                        }
+                        isReplaying = true;
+                        if (isReplayPaused) {
+                            // Paused while the last frame was being captured.
+                            queueEvent(pauseReplayEvent);
+                        }
+                        stopMovieThreads();
+                    }
+                });
+            }
+
+            @Override
+            public void onFrameCacheDropped(final FrameRing ring) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ring == frameRing) {
+                            frameCacheGaveUp = true;
+                            leaveFrameCache();
+                        }
+                    }
+                });
             }
-        });
 
-        mMoviePlayerBlobBg.prepareAsync(new MediaPlayer.OnPreparedListener() {
             @Override
-            public void onPrepared(MediaPlayer mp) {
-                mMoviePlayerBlobBg.start();
+            public void onReplayFrameDrawn(long nanosUntilNextFrame) {
+                FrameCacheBudget.getInstance().touch(frameCacheOwner);
+                removeCallbacks(replayTick);
+                postDelayed(replayTick, (nanosUntilNextFrame + 999999L) / 1000000L);
             }
         });
+    }
 
-        mMoviePlayerBlobAlpha.prepareAsync(new MediaPlayer.OnPreparedListener() {
+    /**
+     * Starts capturing a frame cache if it's enabled and the current playback allows one.
+     * Frames are kept at the size they are shown, or at the video size if that is smaller,
+     * so a view showing a large video small doesn't pay for pixels it never draws.
+     */
+    private void maybeStartFrameCache() {
+        Mp4Metadata metadata = frameSyncMetadata;
+        if (!frameCacheEnabled || frameCacheGaveUp || frameRing != null || metadata == null
+                || playbackRate != PlaybackRate.NORMAL
+                || metadata.getSampleCount() <= 0 || metadata.getDurationUsec() <= 0
+                || getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        final int width = Math.min(metadata.getWidth(), getWidth());
+        final int height = Math.min(metadata.getHeight(), getHeight());
+        long bytes = FrameCache.bytesFor(width, height, metadata.getSampleCount());
+        if (!FrameCacheBudget.getInstance().reserve(frameCacheOwner, bytes)) {
+            Log.d(TAG, "frame cache of " + bytes + " bytes doesn't fit the budget");
+            frameCacheGaveUp = true;
+            return;
+        }
+        final FrameRing ring = new FrameRing(metadata.getSampleCount(),
+                metadata.getDurationUsec() * 1000L);
+        frameRing = ring;
+        isReplaying = false;
+        queueEvent(new Runnable() {
             @Override
-            public void onPrepared(MediaPlayer mp) {
-                mMoviePlayerBlobAlpha.start();
+            public void run() {
+                renderer.startFrameCache(width, height, ring);
             }
         });
+    }
 
-//        final long[] moviePTS = {-1};
-//        final long[] movieBgPTS = {-1};
-//        final Object mStopLock = new Object();
-//
-//
-//        mMovieThread = new PlayMovieThread(new File(moviePath), movieSurface, new MoviePlayer.FrameCallback() {
-//            @Override
-//            public void preRender(long presentationTimeUsec) {
-//                Log.d(TAG, "mMovieThread preRender presentationTimeUsec : " + presentationTimeUsec);
-//                synchronized (mStopLock) {
-//                    if (movieBgPTS[0] == moviePTS[0]) {
-//                        moviePTS[0] = presentationTimeUsec;
-//                        try {
-//                            mStopLock.wait();
-//                        } catch (InterruptedException ie) {
-//                            // discard
-//                        }
-//                    } else {
-//                        moviePTS[0] = presentationTimeUsec;
-//                        mStopLock.notifyAll();
-//                    }
-//                }
-//            }
-//
-//            @Override
-//            public void postRender() {
-//
-//            }
-//
-//            @Override
-//            public void loopReset() {
-//
-//            }
-//        });
-//        mMovieBgThread = new PlayMovieThread(new File(movieBgPath), movieBgSurface, new MoviePlayer.FrameCallback() {
-//            @Override
-//            public void preRender(long presentationTimeUsec) {
-//                Log.d(TAG, "mMovieBgThread == preRender presentationTimeUsec : " + presentationTimeUsec);
-//                synchronized (mStopLock) {
-//                    if (movieBgPTS[0] == moviePTS[0]) {
-//                        movieBgPTS[0] = presentationTimeUsec;
-//                        try {
-//                            mStopLock.wait();
-//                        } catch (InterruptedException ie) {
-//                            // discard
-//                        }
-//                    } else {
-//                        movieBgPTS[0] = presentationTimeUsec;
-//                        mStopLock.notifyAll();
-//                    }
-//                }
-//            }
-//
-//            @Override
-//            public void postRender() {
-//
-//            }
-//
-//            @Override
-//            public void loopReset() {
-//
-//            }
-//        });
+    /**
+     * Deletes the frame cache, if any.  If it was replaying the decoders are stopped, so the
+     * caller has to start them for playback to go on.
+     *
+     * @return true if the cache was replaying.
+     */
+    private boolean dropFrameCache() {
+        if (frameRing == null) {
+            return false;
+        }
+        boolean wasReplaying = isReplaying;
+        FrameCacheBudget.getInstance().release(frameCacheOwner);
+        frameRing = null;
+        isReplaying = false;
+        removeCallbacks(replayTick);
+        queueEvent(releaseFrameCacheEvent);
+        return wasReplaying;
+    }
+
+    /**
+     * Deletes the frame cache and goes back to decoding, from the start, unless playback is
+     * paused.
+     */
+    private void leaveFrameCache() {
+        if (dropFrameCache() && !isReplayPaused) {
+            startMovieThreads(true);
+        }
+    }
+
+    /**
+     * Replaces the frame cache with a new capture, e.g. because the composite changed.
+     */
+    private void restartFrameCache() {
+        leaveFrameCache();
+        if (mMovieThread != null) {
+            maybeStartFrameCache();
+        }
+    }
+
+    /**
+     * Hands the surfaces to the MediaPlayers.  The view keeps its own references, so the
+     * surfaces can be moved to the MediaCodec path without being recreated.
+     */
+    private void attachMediaPlayerSurfaces() {
+        if (movieSurface != null) {
+            mMoviePlayerBlob.getMediaPlayer().setSurface(movieSurface);
+        }
+        if (isPacked()) {
+            return;
+        }
+        if (movieBgSurface != null) {
+            mMoviePlayerBlobBg.getMediaPlayer().setSurface(movieBgSurface);
+        }
+        if (movieAlphaSurface != null) {
+            mMoviePlayerBlobAlpha.getMediaPlayer().setSurface(movieAlphaSurface);
+        }
+    }
+
+    /**
+     * A surface can only be connected to one producer, so the MediaPlayers have to let go of
+     * it before a MediaCodec decoder can use it.
+     */
+    private void detachMediaPlayerSurfaces() {
+        mMoviePlayerBlob.getMediaPlayer().setSurface(null);
+        if (!isPacked()) {
+            mMoviePlayerBlobBg.getMediaPlayer().setSurface(null);
+            mMoviePlayerBlobAlpha.getMediaPlayer().setSurface(null);
+        }
+    }
 
+    private void releaseSurfaces() {
+        if (movieSurface != null) {
+            movieSurface.release();
+            movieSurface = null;
+        }
+        if (movieBgSurface != null) {
+            movieBgSurface.release();
+            movieBgSurface = null;
+        }
+        if (movieAlphaSurface != null) {
+            movieAlphaSurface.release();
+            movieAlphaSurface = null;
+        }
+    }
+
+    private void setFrameSyncMode(boolean frameSyncMode) {
+        if (isFrameSyncMode == frameSyncMode) {
+            return;
+        }
+        isFrameSyncMode = frameSyncMode;
+        renderer.setFrameSyncEnabled(frameSyncMode);
+        if (frameSyncMode) {
+            detachMediaPlayerSurfaces();
+        } else {
+            stopMovieThreads();
+            attachMediaPlayerSurfaces();
+        }
+    }
+
+    /**
+     * Starts the decode threads.  Each one pre-rolls its decoder until the first frame is on
+     * the surface; with {@code startPlayback} false they then wait for {@link #start()}.
+     */
+    private void startMovieThreads(boolean startPlayback) {
+        if (mMovieThread != null || movieSurface == null) {
+            return;
+        }
+        frameSynchronizer.reset();
+        movieThreadPacing = new VsyncScheduler();
+        movieThreadPacing.setFrameMetrics(frameMetrics);
+        mMovieThread = new PlayMovieThread(new File(moviePath), movieSurface,
+                frameSynchronizer, VideoRenderer.STREAM_COLOR, movieThreadPacing, frameMetrics,
+                videoSourceFactory, loopListener);
+        mMovieBgThread = new PlayMovieThread(new File(movieBgPath), movieBgSurface,
+                frameSynchronizer, VideoRenderer.STREAM_BG, movieThreadPacing, frameMetrics,
+                videoSourceFactory, null);
+        mMovieAlphaThread = new PlayMovieThread(new File(movieAlphaPath), movieAlphaSurface,
+                frameSynchronizer, VideoRenderer.STREAM_ALPHA, movieThreadPacing, frameMetrics,
+                videoSourceFactory, null);
+        setPlaybackRateOfMovieThreads(playbackRate);
+        if (startPositionUsec >= 0) {
+            seekMovieThreads(startPositionUsec);
+            startPositionUsec = -1;
+        }
+        if (startPlayback) {
+            startPlaybackOfMovieThreads();
+        }
+        maybeStartFrameCache();
+    }
+
+    private void seekMovieThreads(long positionUsec) {
+        mMovieThread.seekTo(positionUsec);
+        mMovieBgThread.seekTo(positionUsec);
+        mMovieAlphaThread.seekTo(positionUsec);
+    }
+
+    private void setPlaybackRateOfMovieThreads(float rate) {
+        VariantStreams standby = standbyStreams;
+        if (standby != null && standby.thread != null) {
+            standby.thread.setPlaybackRate(rate);
+            standby.bgThread.setPlaybackRate(rate);
+            standby.alphaThread.setPlaybackRate(rate);
+        }
+        if (mMovieThread == null) {
+            return;
+        }
+        mMovieThread.setPlaybackRate(rate);
+        mMovieBgThread.setPlaybackRate(rate);
+        mMovieAlphaThread.setPlaybackRate(rate);
+    }
+
+    private void startPlaybackOfMovieThreads() {
+        if (isMoviePaused) {
+            // Time the next frame from when it arrives, not from the frame before the pause.
+            movieThreadPacing.reanchor();
+            isMoviePaused = false;
+        }
+        mMovieThread.startPlayback();
+        mMovieBgThread.startPlayback();
+        mMovieAlphaThread.startPlayback();
+    }
+
+    /**
+     * Holds the decode threads on the frame on screen.  Their decoders stay open, so
+     * {@link #start()} carries on from there without waiting for anything.
+     */
+    private void pauseMovieThreads() {
+        if (mMovieThread == null) {
+            return;
+        }
+        isMoviePaused = true;
+        mMovieThread.pausePlayback();
+        mMovieBgThread.pausePlayback();
+        mMovieAlphaThread.pausePlayback();
+    }
+
+    private void stopMovieThreads() {
+        isMoviePaused = false;
+        if (mMovieThread == null) {
+            return;
+        }
+        mMovieThread.requestStop();
+        mMovieBgThread.requestStop();
+        mMovieAlphaThread.requestStop();
+        joinQuietly(mMovieThread);
+        joinQuietly(mMovieBgThread);
+        joinQuietly(mMovieAlphaThread);
+        mMovieThread = null;
+        mMovieBgThread = null;
+        mMovieAlphaThread = null;
+        movieThreadPacing = null;
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void prepareAndStartMediaPlayer() {
+        if (isFrameSyncMode) {
+            startMovieThreads(autoStart);
+            return;
+        }
+
+        playerGroup.prepare(true);
     }
 
     private void calculateVideoAspectRatio(int videoWidth, int videoHeight) {
@@ -402,11 +726,13 @@ public class AlphaMovieView extends GLSurfaceView {
                 MeasureSpec.makeMeasureSpec(heightSize, heightMode));
     }
 
-    private void onDataSourceSet(MediaMetadataRetriever retriever) {
-        int videoWidth = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int videoHeight = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+    private void onDataSourceSet(Mp4Metadata metadata) {
+        int videoWidth = metadata.getWidth();
+        int videoHeight = metadata.getHeight();
 
-        calculateVideoAspectRatio(videoWidth, videoHeight);
+        PackedLayout packedLayout = renderer.getPackedLayout();
+        calculateVideoAspectRatio(packedLayout.getContentWidth(videoWidth),
+                packedLayout.getContentHeight(videoHeight));
         isDataSourceSet = true;
 
         if (isSurfaceCreated) {
@@ -414,8 +740,33 @@ public class AlphaMovieView extends GLSurfaceView {
         }
     }
 
+    /**
+     * Plays a single video whose frames carry both the color picture and the alpha mask,
+     * arranged as described by {@code packedLayout}.  Only one decoder is used.
+     * <p>
+     * Must be called before the view's surface is created if the layout differs from the
+     * one set in xml.
+     */
+    public void setPackedVideoFromAssets(String assetsFileName, PackedLayout packedLayout) {
+        reset();
+        setFrameSyncMode(false);
+        setPackedLayout(packedLayout);
+
+        try {
+            AssetFileDescriptor assetFileDescriptor = getContext().getAssets().openFd(assetsFileName);
+            mMoviePlayerBlob.getMediaPlayer().setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+
+            onDataSourceSet(Utils.readAssetMetadata(assetFileDescriptor, assetsFileName));
+
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
     public void setVideoFromAssets(String assetsFileName, String assetsFileNameBg, String assetsFileNameAlpha) {
         reset();
+        setFrameSyncMode(false);
+        setPackedLayout(PackedLayout.NONE);
 
         try {
             AssetFileDescriptor assetFileDescriptor = getContext().getAssets().openFd(assetsFileName);
@@ -424,66 +775,661 @@ public class AlphaMovieView extends GLSurfaceView {
             AssetFileDescriptor assetFileDescriptorBg = getContext().getAssets().openFd(assetsFileNameBg);
             mMoviePlayerBlobBg.getMediaPlayer().setDataSource(assetFileDescriptorBg.getFileDescriptor(), assetFileDescriptorBg.getStartOffset(), assetFileDescriptorBg.getLength());
 
-            MediaMetadataRetriever retrieverBg = new MediaMetadataRetriever();
-            retrieverBg.setDataSource(assetFileDescriptorBg.getFileDescriptor(), assetFileDescriptorBg.getStartOffset(), assetFileDescriptorBg.getLength());
-
             AssetFileDescriptor assetFileDescriptorAlpha = getContext().getAssets().openFd(assetsFileNameAlpha);
             mMoviePlayerBlobAlpha.getMediaPlayer().setDataSource(assetFileDescriptorAlpha.getFileDescriptor(), assetFileDescriptorAlpha.getStartOffset(), assetFileDescriptorAlpha.getLength());
 
-            onDataSourceSet(retrieverBg);
+            onDataSourceSet(Utils.readAssetMetadata(assetFileDescriptorBg, assetsFileNameBg));
 
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
         }
+    }
 
-//        moviePath = getContext().getFilesDir().getAbsolutePath() + File.separator + assetsFileName;
-//        movieBgPath = getContext().getFilesDir().getAbsolutePath() + File.separator + assetsFileNameBg;
-//        isDataSourceSet = true;
-//
-//        if (isSurfaceCreated) {
-//            prepareAndStartMediaPlayer();
-//        }
+    /**
+     * Plays color, background and alpha videos from local files with frame-accurate sync.
+     * <p>
+     * Each stream is decoded with its own MediaCodec, and a {@link FrameSynchronizer} keeps
+     * the decoders presenting frames with the same timestamp, so the mask never drifts from
+     * the picture.  The renderer only latches a new frame once all three streams delivered
+     * one.  Playback loops seamlessly: the decoders are never drained, so there
+     * is no hitch at the loop point.
+     */
+    public void setVideoFromFiles(String moviePath, String movieBgPath, String movieAlphaPath) {
+        reset();
+        setPackedLayout(PackedLayout.NONE);
+        setFrameSyncMode(true);
+
+        this.moviePath = moviePath;
+        this.movieBgPath = movieBgPath;
+        this.movieAlphaPath = movieAlphaPath;
+
+        try {
+            frameSyncMetadata = Mp4Metadata.read(new File(movieBgPath));
+            onDataSourceSet(frameSyncMetadata);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@link #setVideoFromFiles} for streams already probed, e.g. on a loader thread.
+     */
+    private void setVideoFromFiles(VariantStreams streams) {
+        reset();
+        setPackedLayout(PackedLayout.NONE);
+        setFrameSyncMode(true);
+
+        moviePath = streams.movie.getPath();
+        movieBgPath = streams.movieBg.getPath();
+        movieAlphaPath = streams.movieAlpha.getPath();
+        frameSyncMetadata = streams.metadata;
+        onDataSourceSet(frameSyncMetadata);
+    }
+
+    /**
+     * Plays the overlay described by a {@link VariantManifest} in assets, in the variant that
+     * fits the view: the smallest one that covers its size in pixels.  The streams are played
+     * as with {@link #setVideoFromFiles}, from the copies {@link AssetStore} makes of them.
+     * <p>
+     * Until the view is laid out it is measured with the aspect ratio of the variants, and
+     * playback starts with its first layout, once the streams of its variant are copied.  When
+     * the view is resized, the variant for the new size is copied and its decoders show their
+     * first frames on standby surfaces while the current one plays, and the two are swapped
+     * at the next loop boundary after that.
+     */
+    public void setVideoFromAssetVariants(String manifestAssetName) {
+        reset();
+
+        VariantManifest manifest;
+        try {
+            InputStream in = getContext().getAssets().open(manifestAssetName);
+            try {
+                manifest = VariantManifest.read(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return;
+        }
+        variantManifest = manifest;
+        if (getWidth() > 0 && getHeight() > 0) {
+            pendingVariant = manifest.select(getWidth(), getHeight());
+            loadVariant(pendingVariant);
+        } else {
+            VariantManifest.Variant largest = manifest.getLargest();
+            calculateVideoAspectRatio(largest.getWidth(), largest.getHeight());
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (frameCacheEnabled && mMovieThread != null) {
+            // The cache is sized for the view, or wasn't started before the first layout.
+            restartFrameCache();
+        }
+        if (variantManifest == null || w <= 0 || h <= 0) {
+            return;
+        }
+        VariantManifest.Variant variant = variantManifest.select(w, h);
+        if (variant == currentVariant) {
+            pendingVariant = null;
+            return;
+        }
+        pendingVariant = variant;
+        if (currentVariant == null) {
+            // Not in the middle of layout: setting the source requests another.
+            post(switchVariantEvent);
+        } else {
+            // Ready ahead, so the switch at the loop boundary doesn't wait for anything.
+            prepareStandby();
+        }
+    }
+
+    private void switchVariant() {
+        VariantManifest.Variant variant = pendingVariant;
+        if (variant == null) {
+            return;
+        }
+        if (currentVariant == null) {
+            loadVariant(variant);
+            return;
+        }
+        if (mMovieThread == null || isMoviePaused) {
+            // Paused or replaying the frame cache since the loop boundary; wait for the next.
+            return;
+        }
+        VariantStreams standby = standbyStreams;
+        if (standby == null || standby.variant != variant || standby.thread == null
+                || !renderer.isStandbyReady()) {
+            // Not pre-rolled yet; switch at a later loop boundary.
+            return;
+        }
+        swapToStandby(standby);
+    }
+
+    /**
+     * Copies the streams of {@code variant} to files and probes them on the loader thread,
+     * then goes on with {@link #onVariantLoaded} on the main thread.
+     */
+    private void loadVariant(final VariantManifest.Variant variant) {
+        if (variant == loadingVariant) {
+            return;
+        }
+        loadingVariant = variant;
+        final int generation = variantGeneration;
+        final AssetStore assetStore = AssetStore.get(getContext());
+        getVariantLoader().execute(new Runnable() {
+            @Override
+            public void run() {
+                VariantStreams loaded = null;
+                try {
+                    File movieBg = assetStore.getFile(variant.getBackground());
+                    loaded = new VariantStreams(variant, assetStore.getFile(variant.getColor()),
+                            movieBg, assetStore.getFile(variant.getAlpha()),
+                            Mp4Metadata.read(movieBg));
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+                final VariantStreams streams = loaded;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != variantGeneration) {
+                            return;
+                        }
+                        if (loadingVariant == variant) {
+                            loadingVariant = null;
+                        }
+                        if (streams != null) {
+                            onVariantLoaded(streams);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getVariantLoader() {
+        if (variantLoader == null) {
+            variantLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "VariantLoader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return variantLoader;
+    }
+
+    private void onVariantLoaded(VariantStreams streams) {
+        if (streams.variant != pendingVariant) {
+            // The view was resized again meanwhile.
+            return;
+        }
+        if (currentVariant == null) {
+            // setVideoFromFiles resets the view, which forgets the manifest.
+            VariantManifest manifest = variantManifest;
+            setVideoFromFiles(streams);
+            variantManifest = manifest;
+            currentVariant = streams.variant;
+            return;
+        }
+        if (standbyStreams != null || isRetiringMovieThreads || !isFrameSyncMode
+                || !isSurfaceCreated) {
+            return;
+        }
+        standbyStreams = streams;
+        queueEvent(prepareStandbySurfacesEvent);
+    }
+
+    /**
+     * Gets the pending variant ready to be swapped in: copied, and its first frames shown on
+     * the renderer's standby surfaces.
+     */
+    private void prepareStandby() {
+        VariantManifest.Variant variant = pendingVariant;
+        if (variant == null || currentVariant == null || isRetiringMovieThreads) {
+            return;
+        }
+        if (standbyStreams != null) {
+            if (standbyStreams.variant == variant) {
+                return;
+            }
+            dropStandby();
+        }
+        loadVariant(variant);
+    }
+
+    /**
+     * Starts the decode threads of the standby variant on the standby surfaces.  They hold on
+     * their first frame until the swap.
+     */
+    private void startStandbyThreads(Surface surface, Surface bgSurface, Surface alphaSurface) {
+        VariantStreams standby = standbyStreams;
+        if (standby == null || standby.thread != null) {
+            // Dropped meanwhile.
+            surface.release();
+            bgSurface.release();
+            alphaSurface.release();
+            return;
+        }
+        standby.surface = surface;
+        standby.bgSurface = bgSurface;
+        standby.alphaSurface = alphaSurface;
+        standby.pacing = new VsyncScheduler();
+        standby.pacing.setFrameMetrics(frameMetrics);
+        standby.thread = new PlayMovieThread(standby.movie, surface, standby.synchronizer,
+                VideoRenderer.STREAM_COLOR, standby.pacing, frameMetrics, videoSourceFactory,
+                loopListener);
+        standby.bgThread = new PlayMovieThread(standby.movieBg, bgSurface, standby.synchronizer,
+                VideoRenderer.STREAM_BG, standby.pacing, frameMetrics, videoSourceFactory, null);
+        standby.alphaThread = new PlayMovieThread(standby.movieAlpha, alphaSurface,
+                standby.synchronizer, VideoRenderer.STREAM_ALPHA, standby.pacing, frameMetrics,
+                videoSourceFactory, null);
+        standby.thread.setPlaybackRate(playbackRate);
+        standby.bgThread.setPlaybackRate(playbackRate);
+        standby.alphaThread.setPlaybackRate(playbackRate);
+    }
+
+    /**
+     * Plays the pre-rolled standby variant from its first frame, in place of the current one.
+     * Called at a loop boundary, so the picture goes on from the start of the loop.
+     */
+    private void swapToStandby(VariantStreams standby) {
+        // It was captured from the other variant.
+        dropFrameCache();
+        frameCacheGaveUp = false;
+
+        PlayMovieThread[] retiredThreads = {mMovieThread, mMovieBgThread, mMovieAlphaThread};
+        Surface[] retiredSurfaces = {movieSurface, movieBgSurface, movieAlphaSurface};
+        for (PlayMovieThread thread : retiredThreads) {
+            thread.requestStop();
+        }
+
+        mMovieThread = standby.thread;
+        mMovieBgThread = standby.bgThread;
+        mMovieAlphaThread = standby.alphaThread;
+        movieSurface = standby.surface;
+        movieBgSurface = standby.bgSurface;
+        movieAlphaSurface = standby.alphaSurface;
+        frameSynchronizer = standby.synchronizer;
+        movieThreadPacing = standby.pacing;
+        moviePath = standby.movie.getPath();
+        movieBgPath = standby.movieBg.getPath();
+        movieAlphaPath = standby.movieAlpha.getPath();
+        frameSyncMetadata = standby.metadata;
+        currentVariant = standby.variant;
+        pendingVariant = null;
+        standbyStreams = null;
+
+        queueEvent(swapStandbySurfacesEvent);
+        startPlaybackOfMovieThreads();
+        retireMovieThreads(retiredThreads, retiredSurfaces);
+        maybeStartFrameCache();
+    }
+
+    /**
+     * Waits for the threads of the variant swapped out to finish, off the main thread, then
+     * releases their surfaces, which are the renderer's standby set now.
+     */
+    private void retireMovieThreads(final PlayMovieThread[] threads, final Surface[] surfaces) {
+        isRetiringMovieThreads = true;
+        Thread retirer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (PlayMovieThread thread : threads) {
+                    joinQuietly(thread);
+                }
+                for (Surface surface : surfaces) {
+                    surface.release();
+                }
+                queueEvent(releaseStandbySurfacesEvent);
+                isRetiringMovieThreads = false;
+                // The view may have been resized again meanwhile.
+                post(prepareStandbyEvent);
+            }
+        }, "RetireMovieThreads");
+        retirer.setDaemon(true);
+        retirer.start();
+    }
+
+    /**
+     * Stops the decode threads of the standby variant, if any, and deletes its surfaces.
+     */
+    private void dropStandby() {
+        VariantStreams standby = standbyStreams;
+        if (standby == null) {
+            return;
+        }
+        standbyStreams = null;
+        if (standby.thread != null) {
+            standby.thread.requestStop();
+            standby.bgThread.requestStop();
+            standby.alphaThread.requestStop();
+            joinQuietly(standby.thread);
+            joinQuietly(standby.bgThread);
+            joinQuietly(standby.alphaThread);
+            standby.surface.release();
+            standby.bgSurface.release();
+            standby.alphaSurface.release();
+        }
+        queueEvent(releaseStandbySurfacesEvent);
+    }
+
+    /**
+     * Reports per-frame timings of this view to {@code frameMetrics}, or stops reporting if
+     * null.  Decode latency, dropped and late frames are only available with
+     * {@link #setVideoFromFiles}, where the view runs its own decoders; the new value is
+     * picked up the next time playback starts.
+     */
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        this.frameMetrics = frameMetrics;
+        renderer.setFrameMetrics(frameMetrics);
+    }
+
+    /**
+     * With auto start off, {@link #setVideoFromFiles} only prepares playback: the decoders
+     * are set up and fed until the first frame is shown, then wait.  {@link #start()} then
+     * shows motion on the next frame, without the decoder startup lag.  On by default.
+     */
+    public void setAutoStart(boolean autoStart) {
+        this.autoStart = autoStart;
+    }
+
+    /**
+     * Keeps one loop of {@link #setVideoFromFiles} playback on the GPU, for short looping
+     * clips such as stickers.  While the first loop plays, each composited frame is also
+     * drawn into a texture; once a whole loop is captured the decoders are released and the
+     * loop is replayed from the textures, with no decoding at all.  Off by default.
+     * <p>
+     * A cache takes width x height x 4 bytes per frame and is only made at normal playback
+     * rate, if it fits the {@link FrameCacheBudget} shared by all views; views that have used
+     * theirs least recently give it up first.  Seeking, changing the rate or the composite
+     * parameters, and eviction drop the cache; playback goes on with the decoders, which start
+     * over from the beginning unless seeking.
+     */
+    public void setFrameCacheEnabled(boolean frameCacheEnabled) {
+        if (this.frameCacheEnabled == frameCacheEnabled) {
+            return;
+        }
+        this.frameCacheEnabled = frameCacheEnabled;
+        restartFrameCache();
+    }
+
+    public boolean isFrameCacheEnabled() {
+        return frameCacheEnabled;
+    }
+
+    /**
+     * Plays {@link #setVideoFromFiles} videos at {@code rate} times the normal speed, from
+     * 0.25 (slow motion) to 4 (fast forward).  Above normal speed the decoders skip frames
+     * that wouldn't be shown, so fast forward doesn't cost extra decoding; color and alpha
+     * skip the same frames and stay matched.  Takes effect immediately, also during playback.
+     *
+     * @throws IllegalArgumentException if the rate is out of range.
+     */
+    public void setPlaybackRate(float rate) {
+        float previousRate = playbackRate;
+        playbackRate = PlaybackRate.check(rate);
+        setPlaybackRateOfMovieThreads(rate);
+        if (playbackRate != previousRate) {
+            restartFrameCache();
+        }
+    }
+
+    public float getPlaybackRate() {
+        return playbackRate;
+    }
+
+    /**
+     * Moves playback to {@code msec}.  With {@link #setVideoFromFiles} the seek is exact: all
+     * streams land on the frame shown at that time, decoding forward from the key frame before
+     * it without rendering.  With auto start off, the frame is shown while playback holds, so
+     * an overlay timeline can be scrubbed.  If playback isn't running, it starts there next
+     * time.  Other sources are seeked by {@code MediaPlayer}, to a nearby key frame; a
+     * playing video pauses until every stream got there.
+     */
+    public void seekTo(int msec) {
+        if (isFrameSyncMode) {
+            long positionUsec = Math.max(msec, 0) * 1000L;
+            if (isReplaying) {
+                startPositionUsec = positionUsec;
+                leaveFrameCache();
+            } else if (mMovieThread != null) {
+                seekMovieThreads(positionUsec);
+                restartFrameCache();
+            } else {
+                startPositionUsec = positionUsec;
+            }
+            return;
+        }
+        playerGroup.seekTo(msec);
+    }
+
+    /**
+     * Listens to the players of {@link #setVideoFromAssets} and
+     * {@link #setPackedVideoFromAssets}: when all streams are prepared, when they aren't
+     * within the timeout, and how far apart their first frames were after a start.
+     */
+    public void setPlayerGroupListener(MediaPlayerGroup.Listener listener) {
+        playerGroup.setListener(listener);
+    }
+
+    /**
+     * Sets how {@link #setVideoFromFiles} decodes its streams, e.g. to tune buffering or to
+     * listen to frame events.  Null restores the default {@link MoviePlayer}.  The new
+     * factory is used the next time playback starts.
+     */
+    public void setVideoSourceFactory(VideoSource.Factory videoSourceFactory) {
+        this.videoSourceFactory = videoSourceFactory != null
+                ? videoSourceFactory : DEFAULT_VIDEO_SOURCE_FACTORY;
+    }
+
+    /**
+     * Sets the color keyed out in {@link BlendMode#CHROMA_KEY} mode.  Like the other shader
+     * parameters it is a uniform, so it can change during playback without a shader rebuild.
+     */
+    public void setAlphaColor(int color) {
+        renderer.setAlphaColor(color);
+        restartFrameCache();
+        requestRender();
+    }
+
+    /**
+     * Sets how close to the key color a pixel has to be to become transparent, from 0 to 1.
+     */
+    public void setAccuracy(double accuracy) {
+        renderer.setAccuracy(accuracy);
+        restartFrameCache();
+        requestRender();
+    }
+
+    public double getAccuracy() {
+        return renderer.getAccuracy();
+    }
+
+    public void setBlendMode(BlendMode blendMode) {
+        renderer.setBlendMode(blendMode);
+        restartFrameCache();
+        requestRender();
+    }
+
+    /**
+     * Compiles the built-in shaders in the background and caches their binaries, so the first
+     * view shows video without waiting for the shader compiler.  Call early, e.g. from
+     * {@code Application.onCreate()}.  Custom shaders are compiled and cached on first use.
+     *
+     * @return the warm-up thread.
+     */
+    public static Thread warmUpShaders(Context context) {
+        return ShaderCache.warmUp(context,
+                new String[]{ShaderSource.VERTEX, ShaderSource.COMPOSITE_FRAGMENT},
+                new String[]{ShaderSource.PACKED_VERTEX, ShaderSource.PACKED_FRAGMENT},
+                new String[]{ShaderSource.VERTEX, ShaderSource.OVERLAY_FRAGMENT});
+    }
+
+    /**
+     * The streams of a variant copied to files, and once its standby surfaces exist, the
+     * decode threads pre-rolling them there.  Main thread only.
+     */
+    private static final class VariantStreams {
+        final VariantManifest.Variant variant;
+        final File movie;
+        final File movieBg;
+        final File movieAlpha;
+        final Mp4Metadata metadata;
+        final FrameSynchronizer synchronizer = new FrameSynchronizer(3);
+        SpeedControlCallback pacing;
+        Surface surface;
+        Surface bgSurface;
+        Surface alphaSurface;
+        PlayMovieThread thread;
+        PlayMovieThread bgThread;
+        PlayMovieThread alphaThread;
+
+        VariantStreams(VariantManifest.Variant variant, File movie, File movieBg, File movieAlpha,
+                Mp4Metadata metadata) {
+            this.variant = variant;
+            this.movie = movie;
+            this.movieBg = movieBg;
+            this.movieAlpha = movieAlpha;
+            this.metadata = metadata;
+        }
     }
 
     private static class PlayMovieThread extends Thread {
         private final File mFile;
         private final Surface mSurface;
-        private final MoviePlayer.FrameCallback mCallback;
-        private MoviePlayer mMoviePlayer;
+        private final FrameSynchronizer mFrameSynchronizer;
+        private final int mStream;
+        private final FrameMetrics mFrameMetrics;
+        private final VideoSource.Factory mVideoSourceFactory;
+        private final VideoSource.FrameListener mFrameListener;
+        private final SpeedControlCallback mCallback;
+        private volatile VideoSource mVideoSource;
+        private volatile boolean mStopRequested;
+        private volatile boolean mStartRequested;
+        private volatile float mPlaybackRate = PlaybackRate.NORMAL;
+        private volatile long mSeekPositionUsec = -1;
 
         /**
          * Creates thread and starts execution.
          * <p>
-         * The object takes ownership of the Surface, and will access it from the new thread.
-         * When playback completes, the Surface will be released.
+         * The Surface stays owned by the view; the thread only renders into it.
+         *
+         * @param callback Paces the stream; shared by the threads of a group.
+         * @param frameListener Receives the frame events of the stream, or null.
          */
-        public PlayMovieThread(File file, Surface surface, MoviePlayer.FrameCallback callback) {
+        public PlayMovieThread(File file, Surface surface, FrameSynchronizer frameSynchronizer,
+                int stream, SpeedControlCallback callback, FrameMetrics frameMetrics,
+                VideoSource.Factory videoSourceFactory, VideoSource.FrameListener frameListener) {
             mFile = file;
             mSurface = surface;
+            mFrameSynchronizer = frameSynchronizer;
+            mStream = stream;
             mCallback = callback;
+            mFrameMetrics = frameMetrics;
+            mVideoSourceFactory = videoSourceFactory;
+            mFrameListener = frameListener;
 
             start();
         }
 
         /**
-         * Asks MoviePlayer to halt playback.  Returns without waiting for playback to halt.
+         * Asks the video source to halt playback.  Returns without waiting for playback to halt.
          * <p>
          * Call from UI thread.
          */
         public void requestStop() {
-            mMoviePlayer.requestStop();
+            mStopRequested = true;
+            VideoSource videoSource = mVideoSource;
+            if (videoSource != null) {
+                videoSource.requestStop();
+            }
+        }
+
+        /**
+         * Call from UI thread.
+         */
+        public void seekTo(long positionUsec) {
+            mSeekPositionUsec = positionUsec;
+            VideoSource videoSource = mVideoSource;
+            if (videoSource != null) {
+                videoSource.seekTo(positionUsec);
+            }
+        }
+
+        /**
+         * Call from UI thread.
+         */
+        public void setPlaybackRate(float rate) {
+            mPlaybackRate = rate;
+            VideoSource videoSource = mVideoSource;
+            if (videoSource != null) {
+                videoSource.setPlaybackRate(rate);
+            }
+        }
+
+        /**
+         * Lets playback continue past the pre-rolled first frame, or past the frame it was
+         * paused on.
+         * <p>
+         * Call from UI thread.
+         */
+        public void startPlayback() {
+            mStartRequested = true;
+            VideoSource videoSource = mVideoSource;
+            if (videoSource != null) {
+                videoSource.start();
+            }
+        }
+
+        /**
+         * Holds playback on the frame on screen until {@link #startPlayback}.
+         * <p>
+         * Call from UI thread.
+         */
+        public void pausePlayback() {
+            mStartRequested = false;
+            VideoSource videoSource = mVideoSource;
+            if (videoSource != null) {
+                videoSource.pause();
+            }
         }
 
         @Override
         public void run() {
             try {
-                mMoviePlayer = new MoviePlayer(mFile, mSurface, mCallback);
-                mMoviePlayer.setLoopMode(true);
-                mMoviePlayer.play();
+                VideoSource videoSource = mVideoSourceFactory.create(mFile, mSurface, mCallback);
+                videoSource.setLoopMode(true);
+                videoSource.setSeamlessLoop(true);
+                videoSource.setFrameSynchronizer(mFrameSynchronizer, mStream);
+                videoSource.setFrameMetrics(mFrameMetrics);
+                if (mFrameListener != null) {
+                    videoSource.setFrameListener(mFrameListener);
+                }
+                mVideoSource = videoSource;
+                videoSource.setPlaybackRate(mPlaybackRate);
+                if (mSeekPositionUsec >= 0) {
+                    videoSource.seekTo(mSeekPositionUsec);
+                }
+                if (mStopRequested) {
+                    videoSource.requestStop();
+                }
+                videoSource.prepare();
+                if (mStartRequested) {
+                    videoSource.start();
+                }
+                videoSource.play();
             } catch (IOException ioe) {
                 Log.e(TAG, "movie playback failed", ioe);
+                // Don't let the other streams wait for one that never started.
+                mFrameSynchronizer.finish(mStream);
             } finally {
-                mSurface.release();
                 Log.d(TAG, "PlayMovieThread stopping");
             }
         }
@@ -575,40 +1521,89 @@ public class AlphaMovieView extends GLSurfaceView {
         pause();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        // Before the GL thread starts and prepares the surfaces.
+        reacquirePlayers();
+        super.onAttachedToWindow();
+        if (!isPoolTrimmerRegistered) {
+            getContext().getApplicationContext().registerComponentCallbacks(POOL_TRIMMER);
+            isPoolTrimmerRegistered = true;
+        }
+        attachedViewCount++;
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         release();
+        if (--attachedViewCount == 0) {
+            // No overlay left to rebind, e.g. the screen was closed.
+            DecoderPool.getInstance().clear();
+            MediaPlayerPool.getInstance().clear();
+        }
     }
 
     public void start() {
-        mMoviePlayerBlob.start();
-        mMoviePlayerBlobBg.start();
-        mMoviePlayerBlobAlpha.start();
+        if (isFrameSyncMode) {
+            isReplayPaused = false;
+            if (isReplaying) {
+                queueEvent(resumeReplayEvent);
+                requestRender();
+            } else if (mMovieThread != null) {
+                startPlaybackOfMovieThreads();
+            } else if (isSurfaceCreated && isDataSourceSet) {
+                startMovieThreads(true);
+            }
+            return;
+        }
+        playerGroup.start();
     }
 
     public void pause() {
-        mMoviePlayerBlob.pause();
-        mMoviePlayerBlobBg.pause();
-        mMoviePlayerBlobAlpha.pause();
+        if (frameRing != null) {
+            isReplayPaused = true;
+            removeCallbacks(replayTick);
+            queueEvent(pauseReplayEvent);
+        }
+        pauseMovieThreads();
+        playerGroup.pause();
     }
 
     public void stop() {
-        mMoviePlayerBlob.stop();
-        mMoviePlayerBlobBg.stop();
-        mMoviePlayerBlobAlpha.stop();
+        dropFrameCache();
+        dropStandby();
+        stopMovieThreads();
+        playerGroup.stop();
     }
 
     public void release() {
-        mMoviePlayerBlob.release();
-        mMoviePlayerBlobBg.release();
-        mMoviePlayerBlobAlpha.release();
+        dropFrameCache();
+        dropStandby();
+        stopMovieThreads();
+        playerGroup.release();
+        releaseSurfaces();
+        if (!isFrameSyncMode) {
+            // The players go back to the pool without their data source.
+            isDataSourceSet = false;
+        }
     }
 
     public void reset() {
-        mMoviePlayerBlob.reset();
-        mMoviePlayerBlobBg.reset();
-        mMoviePlayerBlobAlpha.reset();
+        reacquirePlayers();
+        removeCallbacks(switchVariantEvent);
+        variantManifest = null;
+        currentVariant = null;
+        pendingVariant = null;
+        loadingVariant = null;
+        variantGeneration++;
+        dropStandby();
+        dropFrameCache();
+        frameCacheGaveUp = false;
+        frameSyncMetadata = null;
+        stopMovieThreads();
+        startPositionUsec = -1;
+        playerGroup.reset();
     }
 
     public interface OnVideoStartedListener {
@@ -618,8 +1613,4 @@ public class AlphaMovieView extends GLSurfaceView {
     public interface OnVideoEndedListener {
         void onVideoEnded();
     }
-
-    private enum PlayerState {
-        NOT_PREPARED, PREPARED, STARTED, PAUSED, STOPPED, RELEASE
-    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import com.alphamovie.lib.utils.AssetFileCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Access to video assets without copying them where possible.
+ * <p>
+ * Assets stored uncompressed in the APK (the build leaves {@code .mp4} files uncompressed by
+ * default) can be played straight from their range of the APK: {@link #openRange} returns
+ * that range, which {@code MediaPlayer} and {@link Mp4Metadata} read directly.  Decoders that
+ * need a path get one from {@link #getFile}, which copies the asset once into an
+ * {@link AssetFileCache} in the app's cache directory: with {@code FileChannel.transferTo}
+ * from the APK range when the asset is uncompressed, and through the asset stream when not.
+ * Copies are keyed by asset name and APK modification time, so an app update replaces them.
+ */
+public final class AssetStore {
+    private static final String DIRECTORY = "alpha-movie-assets";
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static AssetStore sInstance;
+
+    private final AssetManager mAssets;
+    private final AssetFileCache mCache;
+    private final String mApkVersion;
+
+    private AssetStore(Context context, long maxBytes) {
+        Context appContext = context.getApplicationContext();
+        mAssets = appContext.getAssets();
+        mCache = new AssetFileCache(new File(appContext.getCacheDir(), DIRECTORY), maxBytes);
+        mApkVersion = Long.toString(new File(appContext.getApplicationInfo().sourceDir).lastModified());
+    }
+
+    /**
+     * Returns the store of the app, keeping up to {@link #DEFAULT_MAX_BYTES} of copies.
+     */
+    public static synchronized AssetStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AssetStore(context, DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens the range of the APK holding {@code assetName}, or returns null if the asset is
+     * compressed.  The caller closes the descriptor.
+     *
+     * @throws IOException if there is no such asset.
+     */
+    public AssetFileDescriptor openRange(String assetName) throws IOException {
+        try {
+            return mAssets.openFd(assetName);
+        } catch (FileNotFoundException e) {
+            // openFd fails the same way for compressed and for missing assets.
+            InputStream in = mAssets.open(assetName);
+            in.close();
+            return null;
+        }
+    }
+
+    /**
+     * Returns a file with the content of {@code assetName}, copying it on first use.  Call
+     * off the main thread: the first call per asset and process reads the whole file.
+     *
+     * @throws IOException if there is no such asset or it can't be copied.
+     */
+    public File getFile(final String assetName) throws IOException {
+        String contentKey = assetName + ':' + mApkVersion;
+        final AssetFileDescriptor range = openRange(assetName);
+        if (range == null) {
+            return mCache.get(contentKey, -1, new AssetFileCache.Source() {
+                @Override
+                public void writeTo(FileChannel channel) throws IOException {
+                    InputStream in = mAssets.open(assetName, AssetManager.ACCESS_STREAMING);
+                    try {
+                        transferFrom(Channels.newChannel(in), channel);
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+        }
+        try {
+            return mCache.get(contentKey, range.getLength(), new AssetFileCache.Source() {
+                @Override
+                public void writeTo(FileChannel channel) throws IOException {
+                    // Not closed: that would close the range's descriptor, closed below.
+                    FileChannel apk = new FileInputStream(range.getFileDescriptor()).getChannel();
+                    transferTo(apk, range.getStartOffset(), range.getLength(), channel);
+                }
+            });
+        } finally {
+            range.close();
+        }
+    }
+
+    public AssetFileCache getCache() {
+        return mCache;
+    }
+
+    private static void transferTo(FileChannel source, long offset, long length, FileChannel target)
+            throws IOException {
+        long done = 0;
+        while (done < length) {
+            long transferred = source.transferTo(offset + done, length - done, target);
+            if (transferred <= 0) {
+                throw new IOException("Asset ended after " + done + " of " + length + " bytes");
+            }
+            done += transferred;
+        }
+    }
+
+    private static void transferFrom(ReadableByteChannel source, FileChannel target)
+            throws IOException {
+        long position = 0;
+        long transferred;
+        // transferFrom stops at the end of the source, or returns 0 for a source that is
+        // momentarily empty; asset streams never are.
+        while ((transferred = target.transferFrom(source, position, Integer.MAX_VALUE)) > 0) {
+            position += transferred;
+        }
+    }
+}
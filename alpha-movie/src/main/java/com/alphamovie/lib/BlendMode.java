@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Selects how the composite shader computes the opacity of the color video.
+ * <p>
+ * The mode is a shader uniform, so switching it at runtime doesn't rebuild the program.
+ */
+public enum BlendMode {
+    /** Opacity comes from the green channel of the alpha video (or the packed mask half). */
+    ALPHA_MASK(0f),
+
+    /**
+     * Pixels close to the key color are transparent, see {@code alphaColor} and
+     * {@code accuracy}.  The alpha video is ignored.
+     */
+    CHROMA_KEY(1f);
+
+    private final float uniformValue;
+
+    BlendMode(float uniformValue) {
+        this.uniformValue = uniformValue;
+    }
+
+    /**
+     * Returns the value of the {@code uBlendMode} shader uniform for this mode.
+     */
+    public float getUniformValue() {
+        return uniformValue;
+    }
+
+    /**
+     * Maps the {@code blendMode} xml attribute value to a mode.
+     */
+    static BlendMode fromAttribute(int value) {
+        BlendMode[] modes = values();
+        if (value < 0 || value >= modes.length) {
+            return ALPHA_MASK;
+        }
+        return modes[value];
+    }
+}
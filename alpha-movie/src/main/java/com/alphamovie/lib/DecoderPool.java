@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Video decoders shared by all overlays in the process.
+ * <p>
+ * Creating a {@code MediaCodec} allocates a hardware instance and its buffers, which costs
+ * tens of milliseconds, and a list or carousel of overlays would pay that for every stream
+ * of every item scrolled into view.  A decoder given back with {@link #recycle} is stopped,
+ * not released, and kept under its mime type and size; the next {@link #lease} of a stream
+ * with the same ones configures it again for its own surface and starts it.
+ * <p>
+ * Idle decoders are limited to {@link #setMaxIdle}.  Idle plus leased ones, together with the
+ * players of {@link MediaPlayerPool}, each of which may hold a decoder, are limited to the
+ * device's decoder instance limit (see {@link #getMaxDecoderInstances}), so idle instances
+ * never keep a new decoder from being created.  {@link #trimMemory} releases idle ones when
+ * the app is short of memory.
+ * <p>
+ * May be called from any thread.
+ */
+public final class DecoderPool {
+    private static final String TAG = "DecoderPool";
+
+    /** Idle decoders kept by default: enough to rebind an overlay without holding on to many. */
+    public static final int DEFAULT_MAX_IDLE = 2;
+    // Where the device's limit can't be known (before API 23).
+    private static final int DEFAULT_MAX_INSTANCES = 16;
+    private static final String LIMIT_MIME = "video/avc";
+
+    private static DecoderPool sInstance;
+    private static InstanceBudget sBudget;
+
+    // Both pools synchronize on it.
+    private final InstanceBudget mBudget;
+    // Guarded by mBudget.
+    private final InstancePool<MediaCodec> mPool;
+    private final Map<MediaCodec, String> mLeased = new IdentityHashMap<MediaCodec, String>();
+
+    private DecoderPool() {
+        mBudget = getInstanceBudget();
+        mPool = new InstancePool<MediaCodec>(DEFAULT_MAX_IDLE, mBudget);
+    }
+
+    public static synchronized DecoderPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new DecoderPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the decoder instance limit shared with {@link MediaPlayerPool}.
+     */
+    static synchronized InstanceBudget getInstanceBudget() {
+        if (sBudget == null) {
+            int maxInstances = getMaxDecoderInstances(LIMIT_MIME);
+            sBudget = new InstanceBudget(maxInstances > 0 ? maxInstances : DEFAULT_MAX_INSTANCES);
+        }
+        return sBudget;
+    }
+
+    /**
+     * Releases the idle decoders and players of both pools if {@code level}, as passed to
+     * {@code ComponentCallbacks2.onTrimMemory}, says the app should give up memory.  Views
+     * call it for their app; call it from other callbacks as needed.
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            getInstance().clear();
+            MediaPlayerPool.getInstance().clear();
+        }
+    }
+
+    /**
+     * Sets how many stopped decoders are kept for reuse.  0 releases every decoder as soon
+     * as it is recycled.
+     *
+     * @throws IllegalArgumentException if {@code maxIdle} is negative.
+     */
+    public void setMaxIdle(int maxIdle) {
+        List<Object> evicted = new ArrayList<Object>();
+        synchronized (mBudget) {
+            mPool.setMaxIdle(maxIdle, evicted);
+        }
+        releaseAll(evicted);
+    }
+
+    public int getMaxIdle() {
+        synchronized (mBudget) {
+            return mPool.getMaxIdle();
+        }
+    }
+
+    /**
+     * Releases every idle decoder, e.g. when the app is trimming memory.
+     */
+    public void clear() {
+        List<Object> evicted = new ArrayList<Object>();
+        synchronized (mBudget) {
+            mPool.clear(evicted);
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Returns a started decoder for {@code format}, rendering to {@code surface}: an idle one
+     * of the same mime type and size if there is one, otherwise a new one.
+     *
+     * @throws IOException if a decoder can't be created.
+     */
+    MediaCodec lease(MediaFormat format, Surface surface) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        String key = keyOf(format);
+        List<Object> evicted = new ArrayList<Object>();
+        MediaCodec codec;
+        synchronized (mBudget) {
+            codec = mPool.acquire(key, evicted);
+        }
+        releaseAll(evicted);
+        if (codec != null) {
+            try {
+                codec.configure(format, surface, null, 0);
+                codec.start();
+                return leased(codec, key);
+            } catch (RuntimeException re) {
+                // E.g. the codec died while idle; a new one takes its place.
+                Log.w(TAG, "can't reuse decoder for " + key, re);
+                codec.release();
+                codec = null;
+            }
+        }
+        try {
+            codec = MediaCodec.createDecoderByType(mime);
+            codec.configure(format, surface, null, 0);
+            codec.start();
+        } catch (IOException ioe) {
+            discard();
+            throw ioe;
+        } catch (RuntimeException re) {
+            if (codec != null) {
+                codec.release();
+            }
+            discard();
+            throw re;
+        }
+        return leased(codec, key);
+    }
+
+    /**
+     * Gives back a decoder from {@link #lease}.  It is stopped and kept for reuse, or released
+     * if the pool is full or it can't be stopped.
+     */
+    void recycle(MediaCodec codec) {
+        String key;
+        synchronized (mBudget) {
+            key = mLeased.remove(codec);
+        }
+        if (key == null) {
+            // Not ours.
+            codec.release();
+            return;
+        }
+        try {
+            codec.stop();
+        } catch (RuntimeException re) {
+            Log.w(TAG, "can't stop decoder for " + key, re);
+            codec.release();
+            discard();
+            return;
+        }
+        List<Object> evicted = new ArrayList<Object>();
+        synchronized (mBudget) {
+            mPool.recycle(key, codec, evicted);
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Returns the most instances of a decoder for {@code mime} the device supports at once,
+     * or 0 if it can't tell.
+     */
+    static int getMaxDecoderInstances(String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 0;
+        }
+        return queryMaxInstances(mime);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int queryMaxInstances(String mime) {
+        int max = 0;
+        try {
+            for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                if (info.isEncoder()) {
+                    continue;
+                }
+                for (String type : info.getSupportedTypes()) {
+                    if (type.equalsIgnoreCase(mime)) {
+                        max = Math.max(max,
+                                info.getCapabilitiesForType(type).getMaxSupportedInstances());
+                    }
+                }
+            }
+        } catch (RuntimeException re) {
+            Log.w(TAG, "can't query decoder limits", re);
+        }
+        return max;
+    }
+
+    private static String keyOf(MediaFormat format) {
+        return format.getString(MediaFormat.KEY_MIME) + ' '
+                + format.getInteger(MediaFormat.KEY_WIDTH) + 'x'
+                + format.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    private MediaCodec leased(MediaCodec codec, String key) {
+        synchronized (mBudget) {
+            mLeased.put(codec, key);
+        }
+        return codec;
+    }
+
+    private void discard() {
+        synchronized (mBudget) {
+            mPool.discard();
+        }
+    }
+
+    /**
+     * Releases instances evicted from either pool of the budget.
+     */
+    static void releaseAll(List<Object> instances) {
+        for (Object instance : instances) {
+            if (instance instanceof MediaCodec) {
+                ((MediaCodec) instance).release();
+            } else {
+                ((MediaPlayer) instance).release();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.alphamovie.lib.utils.GlApi;
+import com.alphamovie.lib.utils.QuadRenderState;
+
+/**
+ * One loop of composited frames kept in textures, so a short looping clip can be replayed
+ * without decoding it again.
+ * <p>
+ * While capturing, each new frame is composited into the next slot, a texture the size given
+ * to the constructor, and then copied to the window, scaling it if the sizes differ.  Once {@link FrameRing} has a whole loop the slots are
+ * shown in turn instead.  The copy doesn't blend, so the window gets exactly what the
+ * composite wrote, and a replayed frame looks like a decoded one.
+ * <p>
+ * Slots are allocated as they are first captured.  Create, use and release on the GL thread.
+ */
+final class FrameCache {
+    private static final String TAG = "FrameCache";
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final String[] COPY_SAMPLER_NAMES = {"sTexture"};
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1,
+    };
+
+    private final GlApi mGl;
+    private final FrameRing mRing;
+    private final int mWidth;
+    private final int mHeight;
+    // 0 until the slot is first captured.
+    private final int[] mTextures;
+    private final int[] mFramebuffers;
+    private final QuadRenderState mCopyState;
+    private boolean mReplaying;
+
+    /**
+     * @param copyProgram program built from {@link ShaderSource#VERTEX} and
+     *     {@link ShaderSource#COPY_FRAGMENT}.
+     */
+    FrameCache(GlApi gl, int copyProgram, int width, int height, FrameRing ring) {
+        mGl = gl;
+        mRing = ring;
+        mWidth = width;
+        mHeight = height;
+        mTextures = new int[ring.getCapacity()];
+        mFramebuffers = new int[ring.getCapacity()];
+        mCopyState = new QuadRenderState(gl, copyProgram, GlApi.GL_TEXTURE_2D, new int[]{0},
+                COPY_SAMPLER_NAMES);
+        mCopyState.setBlendEnabled(false);
+    }
+
+    /**
+     * Returns the memory a cache of {@code frameCount} frames of the given size takes.
+     */
+    static long bytesFor(int width, int height, int frameCount) {
+        return (long) width * height * BYTES_PER_PIXEL * frameCount;
+    }
+
+    FrameRing getRing() {
+        return mRing;
+    }
+
+    boolean isReplaying() {
+        return mReplaying;
+    }
+
+    /**
+     * Draws the frame just latched into its slot with {@code composite}, then shows the slot
+     * in the window, whose size is {@code viewportWidth} by {@code viewportHeight}.  Once the
+     * loop is complete, replay starts with the frame after this one.
+     *
+     * @param timestampNanos the frame's {@code SurfaceTexture} timestamp.
+     * @return false if the slot couldn't be allocated, e.g. because GPU memory ran out; the
+     *     frame isn't drawn then.
+     */
+    boolean capture(QuadRenderState composite, float[] stMatrix, long timestampNanos,
+            int viewportWidth, int viewportHeight) {
+        int slot = mRing.offer(timestampNanos);
+        if (mTextures[slot] == 0 && !allocate(slot)) {
+            return false;
+        }
+        mGl.bindFramebuffer(mFramebuffers[slot]);
+        mGl.viewport(0, 0, mWidth, mHeight);
+        composite.draw(stMatrix);
+        mGl.bindFramebuffer(0);
+        mGl.viewport(0, 0, viewportWidth, viewportHeight);
+        copy(slot);
+        if (mRing.isComplete()) {
+            mReplaying = true;
+            mRing.startReplay(System.nanoTime());
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the frames captured so far, e.g. because the composite changed.  The slots are
+     * kept for the next capture.
+     */
+    void restartCapture() {
+        mReplaying = false;
+        mRing.restartCapture();
+    }
+
+    /**
+     * Shows the slot due at {@code nowNanos}.
+     *
+     * @return how long until the next slot is due, or 0 if replay is paused.
+     */
+    long drawReplay(long nowNanos) {
+        copy(mRing.slotAt(nowNanos));
+        return mRing.isReplayPaused() ? 0 : mRing.nanosUntilNextSlot(nowNanos);
+    }
+
+    void pauseReplay() {
+        mRing.pauseReplay(System.nanoTime());
+    }
+
+    void resumeReplay() {
+        mRing.resumeReplay(System.nanoTime());
+    }
+
+    /**
+     * Deletes the slots and the copy state.
+     */
+    void release() {
+        for (int i = 0; i < mTextures.length; i++) {
+            if (mTextures[i] != 0) {
+                GLES20.glDeleteFramebuffers(1, mFramebuffers, i);
+                GLES20.glDeleteTextures(1, mTextures, i);
+                mTextures[i] = 0;
+                mFramebuffers[i] = 0;
+            }
+        }
+        mCopyState.release();
+    }
+
+    private void copy(int slot) {
+        mCopyState.setTexture(0, mTextures[slot]);
+        mCopyState.draw(IDENTITY);
+    }
+
+    private boolean allocate(int slot) {
+        GLES20.glGenTextures(1, mTextures, slot);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[slot]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+        GLES20.glGenFramebuffers(1, mFramebuffers, slot);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffers[slot]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextures[slot], 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        int error = GLES20.glGetError();
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE || error != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "Can't allocate slot " + slot + ": status " + status + ", glError " + error);
+            GLES20.glDeleteFramebuffers(1, mFramebuffers, slot);
+            GLES20.glDeleteTextures(1, mTextures, slot);
+            mTextures[slot] = 0;
+            mFramebuffers[slot] = 0;
+            return false;
+        }
+        return true;
+    }
+}
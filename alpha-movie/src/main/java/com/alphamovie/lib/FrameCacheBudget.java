@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory budget shared by the frame caches of all views in the process (see
+ * {@link AlphaMovieView#setFrameCacheEnabled}).
+ * <p>
+ * A cache reserves its full size before it captures the first frame.  If the reservation
+ * doesn't fit, the least recently used caches of other views are evicted until it does; a
+ * cache bigger than the whole budget isn't made, and its view keeps decoding.  Evicted caches
+ * are told through {@link Owner#onEvicted()} and free their textures on their own GL thread,
+ * so for a moment the memory in use can exceed what is reserved here.
+ * <p>
+ * Safe for concurrent use.  This class has no Android dependencies.
+ */
+public final class FrameCacheBudget {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final FrameCacheBudget sInstance = new FrameCacheBudget(DEFAULT_MAX_BYTES);
+
+    interface Owner {
+        /**
+         * The reservation was taken back to make room for another cache.  Called on the thread
+         * that made room, without locks held.
+         */
+        void onEvicted();
+    }
+
+    // Access ordered: the first entry is the least recently used.
+    private final LinkedHashMap<Owner, Long> mReservations =
+            new LinkedHashMap<Owner, Long>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mUsedBytes;
+
+    FrameCacheBudget(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    public static FrameCacheBudget getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets how much memory the frame caches of all views may use together.  Shrinking the
+     * budget evicts caches until they fit.
+     *
+     * @throws IllegalArgumentException if {@code maxBytes} is negative.
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Budget must not be negative: " + maxBytes);
+        }
+        List<Owner> evicted;
+        synchronized (this) {
+            mMaxBytes = maxBytes;
+            evicted = evict(0, null);
+        }
+        notifyEvicted(evicted);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the memory reserved by the caches that exist right now.
+     */
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * Reserves {@code bytes} for {@code owner}, replacing its previous reservation, and
+     * evicts other caches as needed.
+     *
+     * @return false if the budget is too small, in which case nothing is reserved or evicted.
+     */
+    boolean reserve(Owner owner, long bytes) {
+        List<Owner> evicted;
+        synchronized (this) {
+            release(owner);
+            if (bytes > mMaxBytes) {
+                return false;
+            }
+            evicted = evict(bytes, owner);
+            mReservations.put(owner, bytes);
+            mUsedBytes += bytes;
+        }
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    /**
+     * Marks the cache of {@code owner} as used, so it is evicted after the others.
+     */
+    synchronized void touch(Owner owner) {
+        mReservations.get(owner);
+    }
+
+    synchronized void release(Owner owner) {
+        Long bytes = mReservations.remove(owner);
+        if (bytes != null) {
+            mUsedBytes -= bytes;
+        }
+    }
+
+    // Called with the lock held.
+    private List<Owner> evict(long needed, Owner keep) {
+        List<Owner> evicted = null;
+        Iterator<Map.Entry<Owner, Long>> it = mReservations.entrySet().iterator();
+        while (mUsedBytes + needed > mMaxBytes && it.hasNext()) {
+            Map.Entry<Owner, Long> entry = it.next();
+            if (entry.getKey() == keep) {
+                continue;
+            }
+            it.remove();
+            mUsedBytes -= entry.getValue();
+            if (evicted == null) {
+                evicted = new ArrayList<Owner>();
+            }
+            evicted.add(entry.getKey());
+        }
+        return evicted;
+    }
+
+    private static void notifyEvicted(List<Owner> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        for (Owner owner : evicted) {
+            owner.onEvicted();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Tracks which SurfaceTextures have a new frame waiting to be latched.
+ * <p>
+ * {@link #onFrameAvailable} is called from the frame-available listeners (arbitrary thread),
+ * and the GL thread calls {@link #consume} to find out which textures to update.  The gate is
+ * ready once every stream has a new frame, which is the point where a compositor can latch a
+ * matched set.  If one stream delivers a second frame before the others caught up, the gate
+ * opens anyway so a stalled stream doesn't freeze the picture.
+ */
+public class FrameGate {
+    private final int mRequiredMask;
+    private int mPendingMask;
+    private boolean mOverrun;
+
+    public FrameGate(int streamCount) {
+        if (streamCount < 1 || streamCount > 31) {
+            throw new IllegalArgumentException("Unsupported stream count: " + streamCount);
+        }
+        mRequiredMask = (1 << streamCount) - 1;
+    }
+
+    /**
+     * Records a new frame for a stream.
+     *
+     * @return true if the gate became (or already was) ready.
+     */
+    public synchronized boolean onFrameAvailable(int stream) {
+        int bit = 1 << stream;
+        if ((mPendingMask & bit) != 0) {
+            mOverrun = true;
+        }
+        mPendingMask |= bit;
+        return isReadyLocked();
+    }
+
+    /**
+     * Returns true if every stream has a new frame, or one of them is a frame ahead.
+     */
+    public synchronized boolean isReady() {
+        return isReadyLocked();
+    }
+
+    /**
+     * Returns true if at least one stream has a new frame.
+     */
+    public synchronized boolean hasPending() {
+        return mPendingMask != 0;
+    }
+
+    /**
+     * Clears the gate and returns the bit mask of streams that had a new frame.
+     */
+    public synchronized int consume() {
+        int pending = mPendingMask;
+        mPendingMask = 0;
+        mOverrun = false;
+        return pending;
+    }
+
+    public synchronized void reset() {
+        mPendingMask = 0;
+        mOverrun = false;
+    }
+
+    public static boolean isSet(int mask, int stream) {
+        return (mask & (1 << stream)) != 0;
+    }
+
+    private boolean isReadyLocked() {
+        return mPendingMask == mRequiredMask || mOverrun;
+    }
+}
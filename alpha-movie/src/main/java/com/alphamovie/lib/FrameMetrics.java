@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Receives per-frame timings from the playback pipeline.
+ * <p>
+ * Methods are called on the decoder and render threads for every frame, so implementations
+ * must be thread safe, must not block and should not allocate.  {@link FrameMetricsRecorder}
+ * is a ready-made implementation backed by histograms.
+ */
+public interface FrameMetrics {
+    /** Time from queueing a sample into the decoder to releasing its output buffer. */
+    int STAGE_DECODE = 0;
+
+    /** Time spent in SurfaceTexture.updateTexImage(), summed over all streams of a frame. */
+    int STAGE_TEXTURE_UPDATE = 1;
+
+    /** Time spent issuing GL commands for a frame, up to and including the draw call. */
+    int STAGE_DRAW = 2;
+
+    /** Time spent in eglSwapBuffers().  Not reported where the view swaps by itself. */
+    int STAGE_SWAP = 3;
+
+    /** Time between the starts of two consecutive frames on the render thread. */
+    int STAGE_FRAME = 4;
+
+    int STAGE_COUNT = 5;
+
+    /**
+     * Records the duration of one pipeline stage for one frame.
+     *
+     * @param stage One of the STAGE_ constants.
+     */
+    void recordDuration(int stage, long durationNanos);
+
+    /**
+     * Records a decoded frame that was released without being rendered.
+     */
+    void recordDroppedFrame();
+
+    /**
+     * Records a frame that was released later than the pacing target allowed.
+     */
+    void recordLateFrame(long latenessNanos);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link FrameMetrics} that keeps one {@link FrameTimeHistogram} per stage plus dropped and
+ * late frame counters.  Use one recorder per overlay to get per-overlay percentiles, e.g.
+ * <pre>
+ * long p99FrameNanos = recorder.snapshot(FrameMetrics.STAGE_FRAME).getValueAtPercentile(99);
+ * </pre>
+ */
+public class FrameMetricsRecorder implements FrameMetrics {
+    private final FrameTimeHistogram[] mHistograms = new FrameTimeHistogram[STAGE_COUNT];
+    private final FrameTimeHistogram mLateness = new FrameTimeHistogram();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+
+    public FrameMetricsRecorder() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new FrameTimeHistogram();
+        }
+    }
+
+    @Override
+    public void recordDuration(int stage, long durationNanos) {
+        mHistograms[stage].record(durationNanos);
+    }
+
+    @Override
+    public void recordDroppedFrame() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    @Override
+    public void recordLateFrame(long latenessNanos) {
+        mLateness.record(latenessNanos);
+    }
+
+    public FrameTimeHistogram.Snapshot snapshot(int stage) {
+        return mHistograms[stage].snapshot();
+    }
+
+    /**
+     * Returns how late the late frames were.  Its total count is the number of late frames.
+     */
+    public FrameTimeHistogram.Snapshot snapshotLateness() {
+        return mLateness.snapshot();
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    public long getLateFrameCount() {
+        return mLateness.getTotalCount();
+    }
+
+    /**
+     * Clears all histograms and counters, e.g. at the start of a reporting interval.
+     */
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i].reset();
+        }
+        mLateness.reset();
+        mDroppedFrames.set(0);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Frame pacing arithmetic used by {@link SpeedControlCallback}.
+ * <p>
+ * Kept free of Android dependencies so it can be exercised on a plain JVM.
+ */
+final class FramePacing {
+    static final long ONE_MILLION = 1000000L;
+
+    /** Deltas above this are assumed to be broken timestamps. */
+    static final long MAX_FRAME_DELTA_USEC = 10 * ONE_MILLION;
+
+    /** What a broken delta is capped to. */
+    static final long CAPPED_FRAME_DELTA_USEC = 5 * ONE_MILLION;
+
+    /** Don't bother sleeping when this close to the target; we'd likely overshoot. */
+    static final long SLEEP_SLACK_USEC = 100;
+
+    /** Longest single sleep, so the thread stays responsive to stop requests. */
+    static final long MAX_SLEEP_USEC = 500000;
+
+    /** Late frames are dropped until the clock is caught up, or the drop limit is hit. */
+    static final int CATCH_UP_DROP = 0;
+
+    /** Late frames are rendered, and the clock moves to now so the lag doesn't build up. */
+    static final int CATCH_UP_REANCHOR = 1;
+
+    /** {@link #pace} result: wait for the frame's time, then render it. */
+    static final int PACE_RENDER = 0;
+
+    /** {@link #pace} result: release the frame without rendering it. */
+    static final int PACE_DROP = 1;
+
+    /** {@link #pace} result: render now and re-anchor the clock to now. */
+    static final int PACE_RENDER_REANCHOR = 2;
+
+    private FramePacing() {
+    }
+
+    /**
+     * Returns the time between the previous frame and this one, either from the PTS or from
+     * a fixed frame duration if one is set (non-zero).
+     */
+    static long frameDeltaUsec(long presentationTimeUsec, long prevPresentUsec,
+            long fixedFrameDurationUsec) {
+        if (fixedFrameDurationUsec != 0) {
+            return fixedFrameDurationUsec;
+        }
+        return presentationTimeUsec - prevPresentUsec;
+    }
+
+    /**
+     * Maps backwards deltas to 0 and caps absurdly long ones.
+     */
+    static long clampFrameDeltaUsec(long frameDeltaUsec) {
+        if (frameDeltaUsec < 0) {
+            return 0;
+        } else if (frameDeltaUsec > MAX_FRAME_DELTA_USEC) {
+            return CAPPED_FRAME_DELTA_USEC;
+        }
+        return frameDeltaUsec;
+    }
+
+    /**
+     * Decides what to do with a frame that should be shown at {@code desiredUsec}.
+     * <p>
+     * A frame is late once the next one is due as well, i.e. it is more than a frame duration
+     * past its time.  Such frames are dropped under {@link #CATCH_UP_DROP} as long as fewer
+     * than {@code maxConsecutiveDrops} were dropped in a row; otherwise, and under
+     * {@link #CATCH_UP_REANCHOR}, they are rendered and the clock is re-anchored.  The limit
+     * keeps something on screen when the decoder can't keep up at all.
+     * <p>
+     * A pure function of its arguments, so it can be driven with arbitrary timestamps.
+     */
+    static int pace(long desiredUsec, long nowUsec, long frameDeltaUsec, int consecutiveDrops,
+            int maxConsecutiveDrops, int catchUpStrategy) {
+        if (nowUsec - desiredUsec <= Math.max(frameDeltaUsec, 0)) {
+            return PACE_RENDER;
+        }
+        if (catchUpStrategy == CATCH_UP_DROP && consecutiveDrops < maxConsecutiveDrops) {
+            return PACE_DROP;
+        }
+        return PACE_RENDER_REANCHOR;
+    }
+
+    /**
+     * Returns how long to sleep before the next check, or 0 if the frame is due.
+     */
+    static long sleepTimeUsec(long desiredUsec, long nowUsec) {
+        if (nowUsec >= desiredUsec - SLEEP_SLACK_USEC) {
+            return 0;
+        }
+        return Math.min(desiredUsec - nowUsec, MAX_SLEEP_USEC);
+    }
+}
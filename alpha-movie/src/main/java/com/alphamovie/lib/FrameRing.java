@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Slot bookkeeping of a {@link FrameCache}: which slot a captured frame goes into, when a
+ * full loop has been captured, and which slot to show during replay.
+ * <p>
+ * A seamless loop repeats every {@code frameCount} frames, so any run of that many
+ * consecutive frames is one whole loop, whichever frame it starts with.  Capture therefore
+ * starts with whatever frame comes first and only has to make sure no frame is missing: a
+ * frame whose timestamp doesn't follow the previous one within one and a half frame durations
+ * means one was dropped or overwritten, and capture starts over with it.
+ * <p>
+ * Replay shows the slots for equal durations, one loop duration per cycle, going on from the
+ * last slot captured to slot 0, which holds the frame after it.
+ * <p>
+ * Not thread safe.  This class has no Android dependencies.
+ */
+final class FrameRing {
+    private final int mCapacity;
+    private final long mLoopDurationNanos;
+    private final long mMaxFrameIntervalNanos;
+
+    private int mCaptured;
+    private long mLastTimestampNanos;
+
+    private long mReplayStartNanos;
+    // Replay position while paused, or -1.
+    private long mPausedElapsedNanos = -1;
+
+    /**
+     * @param frameCount frames per loop.
+     * @param loopDurationNanos duration of one loop.
+     * @throws IllegalArgumentException if either is not positive.
+     */
+    FrameRing(int frameCount, long loopDurationNanos) {
+        if (frameCount <= 0 || loopDurationNanos <= 0) {
+            throw new IllegalArgumentException("Invalid loop: " + frameCount + " frames in "
+                    + loopDurationNanos + "ns");
+        }
+        mCapacity = frameCount;
+        mLoopDurationNanos = loopDurationNanos;
+        mMaxFrameIntervalNanos = loopDurationNanos * 3 / (2L * frameCount);
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the slot the frame with {@code timestampNanos} is captured into.  Must not be
+     * called once {@link #isComplete()}.
+     */
+    int offer(long timestampNanos) {
+        if (mCaptured > 0) {
+            long interval = timestampNanos - mLastTimestampNanos;
+            if (interval <= 0 || interval > mMaxFrameIntervalNanos) {
+                mCaptured = 0;
+            }
+        }
+        mLastTimestampNanos = timestampNanos;
+        return mCaptured++;
+    }
+
+    /**
+     * Forgets the frames captured so far, e.g. because playback jumped.
+     */
+    void restartCapture() {
+        mCaptured = 0;
+    }
+
+    boolean isComplete() {
+        return mCaptured == mCapacity;
+    }
+
+    /**
+     * Starts replay right after capture: the last slot is on screen at {@code nowNanos}, and
+     * slot 0 follows one frame duration later.
+     */
+    void startReplay(long nowNanos) {
+        mReplayStartNanos = nowNanos + mLoopDurationNanos / mCapacity;
+        mPausedElapsedNanos = -1;
+    }
+
+    void pauseReplay(long nowNanos) {
+        if (mPausedElapsedNanos < 0) {
+            mPausedElapsedNanos = elapsed(nowNanos);
+        }
+    }
+
+    void resumeReplay(long nowNanos) {
+        if (mPausedElapsedNanos >= 0) {
+            mReplayStartNanos = nowNanos - mPausedElapsedNanos;
+            mPausedElapsedNanos = -1;
+        }
+    }
+
+    boolean isReplayPaused() {
+        return mPausedElapsedNanos >= 0;
+    }
+
+    /**
+     * Returns the slot to show at {@code nowNanos}.
+     */
+    int slotAt(long nowNanos) {
+        return (int) (elapsed(nowNanos) * mCapacity / mLoopDurationNanos);
+    }
+
+    /**
+     * Returns how long the slot shown at {@code nowNanos} stays on screen, at least 1.
+     */
+    long nanosUntilNextSlot(long nowNanos) {
+        long elapsed = elapsed(nowNanos);
+        long slot = elapsed * mCapacity / mLoopDurationNanos;
+        // First instant of the next slot, rounded up so it really is in the next slot.
+        long next = ((slot + 1) * mLoopDurationNanos + mCapacity - 1) / mCapacity;
+        return Math.max(next - elapsed, 1);
+    }
+
+    // Position in the current cycle, from 0 to one loop duration.
+    private long elapsed(long nowNanos) {
+        long elapsed = mPausedElapsedNanos >= 0 ? mPausedElapsedNanos : nowNanos - mReplayStartNanos;
+        return ((elapsed % mLoopDurationNanos) + mLoopDurationNanos) % mLoopDurationNanos;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Keeps several decoded streams (color, background, alpha) presenting the same frame.
+ * <p>
+ * Each decoder thread calls {@link #offer} with the presentation time of the frame it is
+ * about to release, and gets back one of:
+ * <ul>
+ * <li>{@link #RENDER} - release the frame to its surface.</li>
+ * <li>{@link #DROP} - the other streams are already past this frame; release it without
+ *     rendering so this stream catches up.</li>
+ * <li>{@link #HOLD} - this stream is a frame ahead of the group; keep the buffer and offer
+ *     it again later.  The decoder thread is never blocked here; {@link #awaitChange} can be
+ *     used to wait a bounded amount of time before retrying.</li>
+ * </ul>
+ * A stream is never allowed to run more than one frame ahead of the slowest stream, so a
+ * compositor that latches all streams together always sees frames with the same PTS.  A
+ * stream that holds longer than the hold limit is let through, so a stalled peer can't
+ * freeze the others.
+ * <p>
+ * When a stream's PTS goes backwards (loop or seek) it moves to a new epoch, and frames of
+ * the previous epoch that are still in flight on other streams are dropped.
+ * <p>
+ * This class has no Android dependencies.  All times are supplied by the caller so it can
+ * be driven by synthetic timestamps.
+ */
+public class FrameSynchronizer {
+    public static final int RENDER = 0;
+    public static final int DROP = 1;
+    public static final int HOLD = 2;
+
+    /** Frames within this distance are considered to be the same frame. */
+    public static final long DEFAULT_TOLERANCE_USEC = 5000;
+
+    /** How long a stream may wait for its peers before it is let through anyway. */
+    public static final long DEFAULT_MAX_HOLD_USEC = 100000;
+
+    private static final long NO_HOLD = -1;
+
+    private final int mStreamCount;
+    private final long mToleranceUsec;
+    private final long mMaxHoldUsec;
+
+    private final boolean[] mActive;
+    private final boolean[] mStarted;
+    private final int[] mEpoch;
+    private final long[] mPresentedPtsUsec;
+    private final long[] mHoldStartUsec;
+    private final long[] mLoopDurationUsec;
+
+    private long mRenderedFrames;
+    private long mDroppedFrames;
+    private long mForcedFrames;
+
+    public FrameSynchronizer(int streamCount) {
+        this(streamCount, DEFAULT_TOLERANCE_USEC, DEFAULT_MAX_HOLD_USEC);
+    }
+
+    public FrameSynchronizer(int streamCount, long toleranceUsec, long maxHoldUsec) {
+        if (streamCount < 1) {
+            throw new IllegalArgumentException("streamCount must be positive: " + streamCount);
+        }
+        mStreamCount = streamCount;
+        mToleranceUsec = toleranceUsec;
+        mMaxHoldUsec = maxHoldUsec;
+
+        mActive = new boolean[streamCount];
+        mStarted = new boolean[streamCount];
+        mEpoch = new int[streamCount];
+        mPresentedPtsUsec = new long[streamCount];
+        mHoldStartUsec = new long[streamCount];
+        mLoopDurationUsec = new long[streamCount];
+        reset();
+    }
+
+    public int getStreamCount() {
+        return mStreamCount;
+    }
+
+    /**
+     * Forgets all presented frames, e.g. before a seek.  Every stream becomes active again.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < mStreamCount; i++) {
+            mActive[i] = true;
+            mStarted[i] = false;
+            mEpoch[i] = 0;
+            mPresentedPtsUsec[i] = 0;
+            mHoldStartUsec[i] = NO_HOLD;
+            mLoopDurationUsec[i] = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records how long one loop of a stream is.  Streams of different lengths must still
+     * wrap by the same amount, or their timestamps drift apart by the difference every loop;
+     * see {@link #getLoopDurationUsec()}.
+     */
+    public synchronized void setLoopDurationUsec(int stream, long loopDurationUsec) {
+        mLoopDurationUsec[stream] = loopDurationUsec;
+    }
+
+    /**
+     * Returns the loop duration of the group, the longest one recorded, or 0 if none was.
+     */
+    public synchronized long getLoopDurationUsec() {
+        long loopDurationUsec = 0;
+        for (int i = 0; i < mStreamCount; i++) {
+            loopDurationUsec = Math.max(loopDurationUsec, mLoopDurationUsec[i]);
+        }
+        return loopDurationUsec;
+    }
+
+    /**
+     * Removes a stream from the group, e.g. when it reached the end of a non-looping movie
+     * or its decoder stopped.  The remaining streams no longer wait for it.
+     */
+    public synchronized void finish(int stream) {
+        mActive[stream] = false;
+        mHoldStartUsec[stream] = NO_HOLD;
+        notifyAll();
+    }
+
+    /**
+     * Restarts the hold limit of a stream, e.g. when playback pauses while it holds a frame,
+     * so the frame isn't let through right after resuming.
+     */
+    public synchronized void clearHold(int stream) {
+        mHoldStartUsec[stream] = NO_HOLD;
+    }
+
+    /**
+     * Decides what to do with the next decoded frame of a stream.
+     *
+     * @param stream Stream index, 0 .. streamCount-1.
+     * @param presentationTimeUsec PTS of the frame about to be released.
+     * @param nowUsec Current monotonic time, used for the hold limit.
+     * @return {@link #RENDER}, {@link #DROP} or {@link #HOLD}.
+     */
+    public synchronized int offer(int stream, long presentationTimeUsec, long nowUsec) {
+        if (!mActive[stream]) {
+            // Rejoining after finish(), e.g. playback was restarted.
+            mActive[stream] = true;
+            mStarted[stream] = false;
+        }
+
+        int epoch = mEpoch[stream];
+        if (mStarted[stream] && presentationTimeUsec < mPresentedPtsUsec[stream] - mToleranceUsec) {
+            epoch++;
+        }
+
+        for (int i = 0; i < mStreamCount; i++) {
+            if (i == stream || !mActive[i] || !mStarted[i]) {
+                continue;
+            }
+            if (compare(mEpoch[i], mPresentedPtsUsec[i], epoch, presentationTimeUsec) > 0) {
+                // A peer already presented a later frame; this one can never be matched.
+                mHoldStartUsec[stream] = NO_HOLD;
+                mDroppedFrames++;
+                return DROP;
+            }
+        }
+
+        if (mStarted[stream] && isAheadOfGroup(stream)) {
+            if (mHoldStartUsec[stream] == NO_HOLD) {
+                mHoldStartUsec[stream] = nowUsec;
+                return HOLD;
+            }
+            if (nowUsec - mHoldStartUsec[stream] < mMaxHoldUsec) {
+                return HOLD;
+            }
+            mForcedFrames++;
+        }
+
+        mStarted[stream] = true;
+        mEpoch[stream] = epoch;
+        mPresentedPtsUsec[stream] = presentationTimeUsec;
+        mHoldStartUsec[stream] = NO_HOLD;
+        mRenderedFrames++;
+        notifyAll();
+        return RENDER;
+    }
+
+    /**
+     * Returns true if every active stream has presented a frame and all of them carry the
+     * same PTS, i.e. the latched set can be composited.
+     */
+    public synchronized boolean isMatched() {
+        int reference = -1;
+        for (int i = 0; i < mStreamCount; i++) {
+            if (!mActive[i]) {
+                continue;
+            }
+            if (!mStarted[i]) {
+                return false;
+            }
+            if (reference < 0) {
+                reference = i;
+            } else if (compare(mEpoch[i], mPresentedPtsUsec[i],
+                    mEpoch[reference], mPresentedPtsUsec[reference]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until some stream presents a frame or the group changes, or until the timeout
+     * expires.  Lets a holding decoder thread retry without spinning.
+     *
+     * @throws InterruptedException if the thread is interrupted; it should stop decoding,
+     *     since waiting again would return right away.
+     */
+    public synchronized void awaitChange(long timeoutMsec) throws InterruptedException {
+        wait(timeoutMsec);
+    }
+
+    public synchronized long getPresentedPtsUsec(int stream) {
+        return mPresentedPtsUsec[stream];
+    }
+
+    public synchronized long getRenderedFrameCount() {
+        return mRenderedFrames;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns the number of frames let through because a peer stalled past the hold limit.
+     */
+    public synchronized long getForcedFrameCount() {
+        return mForcedFrames;
+    }
+
+    /**
+     * True if the stream's presented frame is later than the presented frame of any other
+     * active stream, or if a peer hasn't presented anything yet.
+     */
+    private boolean isAheadOfGroup(int stream) {
+        for (int i = 0; i < mStreamCount; i++) {
+            if (i == stream || !mActive[i]) {
+                continue;
+            }
+            if (!mStarted[i]) {
+                return true;
+            }
+            if (compare(mEpoch[stream], mPresentedPtsUsec[stream],
+                    mEpoch[i], mPresentedPtsUsec[i]) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int compare(int epochA, long ptsA, int epochB, long ptsB) {
+        if (epochA != epochB) {
+            return epochA < epochB ? -1 : 1;
+        }
+        long delta = ptsA - ptsB;
+        if (delta > mToleranceUsec) {
+            return 1;
+        } else if (delta < -mToleranceUsec) {
+            return -1;
+        }
+        return 0;
+    }
+}
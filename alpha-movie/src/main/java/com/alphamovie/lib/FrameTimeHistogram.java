@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with log-linear buckets, in the style of
+ * HdrHistogram.
+ * <p>
+ * Values below 64ns get a bucket each; above that every power of two is split into 32
+ * buckets, so any recorded value is reported within about 3% of its true value.  Values
+ * above ~68s are counted in the last bucket.  {@link #record} is wait-free apart from the
+ * max update and never allocates, so it can be called on every frame from any thread.
+ */
+public class FrameTimeHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int MAX_VALUE_BITS = 36;
+
+    static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    static final int BUCKET_COUNT = SUB_BUCKET_COUNT
+            + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalValue = new AtomicLong();
+    private final AtomicLong mMaxValue = new AtomicLong();
+
+    public void record(long valueNanos) {
+        if (valueNanos < 0) {
+            valueNanos = 0;
+        }
+        mCounts.incrementAndGet(indexOf(valueNanos));
+        mTotalCount.incrementAndGet();
+        mTotalValue.addAndGet(valueNanos);
+        long max = mMaxValue.get();
+        while (valueNanos > max && !mMaxValue.compareAndSet(max, valueNanos)) {
+            max = mMaxValue.get();
+        }
+    }
+
+    /**
+     * Copies the current counts.  Frames recorded concurrently may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long totalCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            totalCount += counts[i];
+        }
+        return new Snapshot(counts, totalCount, mTotalValue.get(), mMaxValue.get());
+    }
+
+    /**
+     * Clears all counts, e.g. after a snapshot was reported.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalValue.set(0);
+        mMaxValue.set(0);
+    }
+
+    public long getTotalCount() {
+        return mTotalCount.get();
+    }
+
+    static int indexOf(long value) {
+        if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift so the top SUB_BUCKET_BITS bits remain; they select the bucket within the
+        // power of two.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /**
+     * Returns the highest value that falls into the bucket.
+     */
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mTotalCount;
+        private final long mTotalValue;
+        private final long mMaxValue;
+
+        Snapshot(long[] counts, long totalCount, long totalValue, long maxValue) {
+            mCounts = counts;
+            mTotalCount = totalCount;
+            mTotalValue = totalValue;
+            mMaxValue = maxValue;
+        }
+
+        public long getTotalCount() {
+            return mTotalCount;
+        }
+
+        public long getMaxValue() {
+            return mMaxValue;
+        }
+
+        public double getMean() {
+            return mTotalCount == 0 ? 0 : (double) mTotalValue / mTotalCount;
+        }
+
+        /**
+         * Returns the value below which the given percentage of recorded values fall, e.g.
+         * {@code getValueAtPercentile(99)} for p99.  Reported as the upper end of its bucket,
+         * but never above the maximum recorded value.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mTotalCount == 0) {
+                return 0;
+            }
+            double clamped = Math.min(Math.max(percentile, 0), 100);
+            long countAtPercentile = Math.max(1, (long) Math.ceil(clamped / 100 * mTotalCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= countAtPercentile) {
+                    return Math.min(highestValueAt(i), mMaxValue);
+                }
+            }
+            return mMaxValue;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Decides how much input {@link MoviePlayer} feeds the decoder per loop iteration.
+ * <p>
+ * Samples queued but not yet come out as frames are "in flight".  The window is kept filled
+ * up to the prefetch depth, so the decoder has enough input to start and to ride out a slow
+ * frame.  Once it is full, input is held back and the loop waits on output instead, which
+ * keeps the decoder from buffering more than needed.  Decoders don't have to return a frame
+ * for every sample, so an output timeout with a full window lets one more sample through
+ * rather than waiting forever.
+ * <p>
+ * Kept free of Android dependencies so it can be exercised on a plain JVM.
+ */
+final class InputPrefetch {
+    static final int DEFAULT_DEPTH = 4;
+
+    private int mDepth = DEFAULT_DEPTH;
+    private int mInFlight;
+
+    void setDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Prefetch depth must be positive: " + depth);
+        }
+        mDepth = depth;
+    }
+
+    int getDepth() {
+        return mDepth;
+    }
+
+    int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Returns how many samples to try to queue now.
+     *
+     * @param outputTimedOut whether the last wait for output timed out.
+     */
+    int inputsToQueue(boolean outputTimedOut) {
+        if (mInFlight < mDepth) {
+            return mDepth - mInFlight;
+        }
+        return outputTimedOut ? 1 : 0;
+    }
+
+    void onInputQueued() {
+        mInFlight++;
+    }
+
+    void onOutputDequeued() {
+        if (mInFlight > 0) {
+            mInFlight--;
+        }
+    }
+
+    /**
+     * Forgets the samples in flight, e.g. after the decoder was flushed.
+     */
+    void reset() {
+        mInFlight = 0;
+    }
+}
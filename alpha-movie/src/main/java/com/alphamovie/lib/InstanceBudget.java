@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instance limit shared by several {@link InstancePool}s whose instances compete for the same
+ * hardware, such as {@code MediaCodec} decoders and the decoders inside {@code MediaPlayer}s.
+ * <p>
+ * Leased plus idle instances of all the pools never exceed {@code maxInstances}.  When a pool
+ * needs room, idle instances are evicted from that pool first, then from the others in the
+ * order they were added.
+ * <p>
+ * Not thread safe; the owners of the pools synchronize on the budget.  This class has no
+ * Android dependencies.
+ */
+final class InstanceBudget {
+    private final List<InstancePool<?>> mPools = new ArrayList<InstancePool<?>>();
+    private final int mMaxInstances;
+
+    /**
+     * @throws IllegalArgumentException if {@code maxInstances} is less than 1.
+     */
+    InstanceBudget(int maxInstances) {
+        if (maxInstances < 1) {
+            throw new IllegalArgumentException("Invalid instance limit: " + maxInstances);
+        }
+        mMaxInstances = maxInstances;
+    }
+
+    int getMaxInstances() {
+        return mMaxInstances;
+    }
+
+    /**
+     * Returns the leased plus idle instances of all the pools.
+     */
+    int instanceCount() {
+        int count = 0;
+        for (InstancePool<?> pool : mPools) {
+            count += pool.leasedCount() + pool.idleCount();
+        }
+        return count;
+    }
+
+    void add(InstancePool<?> pool) {
+        mPools.add(pool);
+    }
+
+    /**
+     * Evicts idle instances until the pools are within the limit, starting with
+     * {@code first}.
+     *
+     * @param evicted receives the instances to destroy.
+     */
+    void trim(InstancePool<?> first, List<Object> evicted) {
+        int excess = instanceCount() - mMaxInstances;
+        while (excess > 0 && first.evictIdle(evicted)) {
+            excess--;
+        }
+        for (InstancePool<?> pool : mPools) {
+            while (excess > 0 && pool.evictIdle(evicted)) {
+                excess--;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bookkeeping of a pool of reusable instances, such as decoders, each under a key that says
+ * which requests it can serve.
+ * <p>
+ * The owner leases an instance with {@link #acquire} (creating one if the pool has none for
+ * the key) and hands it back with {@link #recycle}.  At most {@code maxIdle} instances are kept
+ * idle, and leased plus idle instances of all the pools sharing an {@link InstanceBudget}
+ * never exceed its limit, the number the hardware supports; idle instances are evicted least
+ * recently recycled first to stay within both.  Evicted instances, possibly of another pool of
+ * the budget, are added to a list for the owner to destroy, outside its lock.
+ * <p>
+ * Not thread safe; the owner synchronizes on the budget.  This class has no Android
+ * dependencies.
+ */
+final class InstancePool<T> {
+    // Idle instances and their keys, least recently recycled first.
+    private final LinkedHashMap<T, String> mIdle = new LinkedHashMap<T, String>();
+    private final InstanceBudget mBudget;
+    private int mLeased;
+    private int mMaxIdle;
+
+    InstancePool(int maxIdle, InstanceBudget budget) {
+        checkMaxIdle(maxIdle);
+        mMaxIdle = maxIdle;
+        mBudget = budget;
+        budget.add(this);
+    }
+
+    /**
+     * Changes the idle limit, evicting idle instances to meet it.
+     *
+     * @throws IllegalArgumentException if {@code maxIdle} is negative.
+     */
+    void setMaxIdle(int maxIdle, List<Object> evicted) {
+        checkMaxIdle(maxIdle);
+        mMaxIdle = maxIdle;
+        trim(evicted);
+    }
+
+    private static void checkMaxIdle(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Invalid idle limit: " + maxIdle);
+        }
+    }
+
+    /**
+     * Leases the most recently recycled idle instance under {@code key}.  If there is none,
+     * the caller creates one, counted as leased already, and idle instances of other keys
+     * are evicted to make room for it.
+     *
+     * @param evicted receives the instances to destroy.
+     * @return the instance, or null if the caller has to create one.
+     */
+    T acquire(String key, List<Object> evicted) {
+        T match = null;
+        for (Map.Entry<T, String> entry : mIdle.entrySet()) {
+            if (entry.getValue().equals(key)) {
+                match = entry.getKey();
+            }
+        }
+        mLeased++;
+        if (match != null) {
+            mIdle.remove(match);
+        } else {
+            trim(evicted);
+        }
+        return match;
+    }
+
+    /**
+     * Returns a leased instance to the pool under {@code key}.
+     *
+     * @param evicted receives the instances to destroy, possibly including this one.
+     */
+    void recycle(String key, T instance, List<Object> evicted) {
+        mLeased--;
+        mIdle.put(instance, key);
+        trim(evicted);
+    }
+
+    /**
+     * Counts a leased instance as gone, e.g. because it broke and was destroyed.
+     */
+    void discard() {
+        mLeased--;
+    }
+
+    /**
+     * Evicts every idle instance.
+     */
+    void clear(List<Object> evicted) {
+        evicted.addAll(mIdle.keySet());
+        mIdle.clear();
+    }
+
+    /**
+     * Evicts the least recently recycled idle instance.
+     *
+     * @return false if there was none.
+     */
+    boolean evictIdle(List<Object> evicted) {
+        Iterator<T> it = mIdle.keySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        evicted.add(it.next());
+        it.remove();
+        return true;
+    }
+
+    int getMaxIdle() {
+        return mMaxIdle;
+    }
+
+    int idleCount() {
+        return mIdle.size();
+    }
+
+    int leasedCount() {
+        return mLeased;
+    }
+
+    private void trim(List<Object> evicted) {
+        while (mIdle.size() > mMaxIdle) {
+            evictIdle(evicted);
+        }
+        mBudget.trim(this, evicted);
+    }
+}
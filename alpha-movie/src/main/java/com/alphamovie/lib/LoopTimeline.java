@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Presentation times for seamless looping.
+ * <p>
+ * Instead of draining and flushing the decoder at the end of the file, {@link MoviePlayer}
+ * rewinds the extractor and keeps queueing samples.  Each pass is shifted by one loop
+ * duration, so the decoder and everything downstream see a single stream with increasing
+ * timestamps and the first frame of a pass follows the last frame of the previous one after
+ * exactly one frame duration.
+ * <p>
+ * The loop duration is the track duration if the container gives one that covers the samples
+ * (for MP4 that is the sum of the sample durations, which is frame-exact even at variable frame
+ * rate), otherwise the span of the first pass plus one average frame.
+ * <p>
+ * Kept free of Android dependencies so it can be exercised on a plain JVM.
+ */
+final class LoopTimeline {
+    private final long mTrackDurationUsec;
+
+    // First pass statistics; samples arrive in decode order, so track min and max.
+    private long mFirstPtsUsec = Long.MAX_VALUE;
+    private long mLastPtsUsec = Long.MIN_VALUE;
+    private int mSampleCount;
+
+    private long mLoopDurationUsec;
+    private long mOffsetUsec;
+
+    /**
+     * @param trackDurationUsec duration from the container, or 0 if unknown.
+     */
+    LoopTimeline(long trackDurationUsec) {
+        mTrackDurationUsec = trackDurationUsec;
+    }
+
+    /**
+     * Maps the PTS of a sample read from the file to the PTS to queue it with.
+     */
+    long onSample(long samplePtsUsec) {
+        if (mLoopDurationUsec == 0) {
+            mFirstPtsUsec = Math.min(mFirstPtsUsec, samplePtsUsec);
+            mLastPtsUsec = Math.max(mLastPtsUsec, samplePtsUsec);
+            mSampleCount++;
+        }
+        return samplePtsUsec + mOffsetUsec;
+    }
+
+    /**
+     * Supplies the first pass up front, e.g. from a {@link SeekIndex}, so the loop duration is
+     * known before the first pass was read.  Samples read after this are not counted, which
+     * keeps the duration right when playback seeks during the first pass.
+     */
+    void setFirstPass(long firstPtsUsec, long lastPtsUsec, int sampleCount) {
+        if (mLoopDurationUsec != 0) {
+            return;
+        }
+        mFirstPtsUsec = firstPtsUsec;
+        mLastPtsUsec = lastPtsUsec;
+        mSampleCount = sampleCount;
+        mLoopDurationUsec = Math.max(computeLoopDuration(), 0);
+    }
+
+    /**
+     * Loops by at least {@code loopDurationUsec}, e.g. the longest loop of a group of streams
+     * that must wrap by the same amount to stay on one timeline.  Call before the offset
+     * next advances.  Ignored if not positive.
+     */
+    void setLoopDurationUsec(long loopDurationUsec) {
+        if (loopDurationUsec > mLoopDurationUsec) {
+            mLoopDurationUsec = loopDurationUsec;
+        }
+    }
+
+    /**
+     * Called when the extractor ran out of samples.  Advances the offset by one loop.
+     *
+     * @return false if the stream is too short to loop this way; the caller should end the
+     *     stream instead.
+     */
+    boolean onEndOfInput() {
+        if (mLoopDurationUsec == 0) {
+            mLoopDurationUsec = computeLoopDuration();
+            if (mLoopDurationUsec <= 0) {
+                mLoopDurationUsec = 0;
+                return false;
+            }
+        }
+        mOffsetUsec += mLoopDurationUsec;
+        return true;
+    }
+
+    /**
+     * Returns the loop duration, or 0 before the end of the first pass.
+     */
+    long getLoopDurationUsec() {
+        return mLoopDurationUsec;
+    }
+
+    long getOffsetUsec() {
+        return mOffsetUsec;
+    }
+
+    /**
+     * Returns which pass a rewritten PTS belongs to, starting at 0.
+     */
+    int passOf(long ptsUsec) {
+        if (mLoopDurationUsec == 0 || ptsUsec < mFirstPtsUsec) {
+            return 0;
+        }
+        return (int) ((ptsUsec - mFirstPtsUsec) / mLoopDurationUsec);
+    }
+
+    void reset() {
+        mFirstPtsUsec = Long.MAX_VALUE;
+        mLastPtsUsec = Long.MIN_VALUE;
+        mSampleCount = 0;
+        mLoopDurationUsec = 0;
+        mOffsetUsec = 0;
+    }
+
+    private long computeLoopDuration() {
+        if (mSampleCount < 2) {
+            // A single frame has no frame duration to go by.
+            return mSampleCount == 1 ? mTrackDurationUsec : 0;
+        }
+        long span = mLastPtsUsec - mFirstPtsUsec;
+        if (mTrackDurationUsec > span) {
+            return mTrackDurationUsec;
+        }
+        return span + span / (mSampleCount - 1);
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Command engine of one {@code MediaPlayer}.
+ * <p>
+ * Start, pause, stop, seek and prepare are queued (see {@link PlayerCommandQueue}, which also
+ * drops commands that later ones make redundant) and run one at a time, in order, on a thread
+ * pool shared by all players, so issuing a command never creates a thread.  Every
+ * {@code MediaPlayer} call and every state change happens under one lock, following the
+ * {@link PlayerState} machine; commands that aren't valid in the current state are ignored.
+ * {@code MediaPlayer} callbacks are queued as commands too.
+ * <p>
+ * A start or pause can be given a deadline on the {@link System#nanoTime()} clock (see
+ * {@link #startAt}); the pool thread waits for it without holding the lock, so that
+ * {@link MediaPlayerGroup} can start several players at the same instant.
+ * <p>
+ * {@link #reset()} and {@link #release()} run right away on the calling thread, after the
+ * command in progress, and drop whatever is pending, so a data source can be set as soon as
+ * they return.  A released player goes back to {@link MediaPlayerPool} for the next view.
+ * <p>
+ * Commands may be issued from any thread.  As with {@code MediaPlayer} itself, the listeners
+ * are called on the main thread, never with the lock held.
+ */
+final class MediaPlayerController {
+    private static final String TAG = "MediaPlayerController";
+
+    interface Listener {
+        void onStarted();
+
+        void onCompleted();
+    }
+
+    private static ExecutorService sExecutor;
+
+    private final MediaPlayer mMediaPlayer;
+    private final Object mLock = new Object();
+    private final Executor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Guarded by mLock.
+    private final PlayerCommandQueue mQueue = new PlayerCommandQueue();
+    private Listener mListener;
+    private MediaPlayer.OnPreparedListener mOnPreparedListener;
+    private boolean mStartWhenPrepared;
+    // A stop issued while preparing, applied once the player is prepared.
+    private boolean mStopWhenPrepared;
+    private int mSeekWhenPreparedMsec = -1;
+    // Deadline of the next start or pause, 0 for right away.
+    private long mCommandAtNanos;
+    // Bumped by reset() and release(), so a command taken before either is dropped.
+    private int mGeneration;
+
+    private volatile PlayerState mState = PlayerState.NOT_PREPARED;
+
+    MediaPlayerController(MediaPlayer mediaPlayer) {
+        mMediaPlayer = mediaPlayer;
+        mExecutor = getExecutor();
+        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                post(PlayerCommandQueue.PREPARED, 0);
+            }
+        });
+        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                post(PlayerCommandQueue.COMPLETED, 0);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PlayerCommands-" + (++mCount));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @throws IllegalStateException if the controller was released: the player may belong
+     *     to another view by now.
+     */
+    MediaPlayer getMediaPlayer() {
+        if (mState == PlayerState.RELEASE) {
+            throw new IllegalStateException("Player was released");
+        }
+        return mMediaPlayer;
+    }
+
+    PlayerState getState() {
+        return mState;
+    }
+
+    void setListener(Listener listener) {
+        synchronized (mLock) {
+            mListener = listener;
+        }
+    }
+
+    /**
+     * Prepares the player, if it isn't prepared or preparing already.
+     * {@code onPreparedListener} is called once it is.
+     */
+    void prepareAsync(MediaPlayer.OnPreparedListener onPreparedListener) {
+        synchronized (mLock) {
+            mOnPreparedListener = onPreparedListener;
+            post(PlayerCommandQueue.PREPARE, 0);
+        }
+    }
+
+    /**
+     * Starts or resumes playback.  A stopped player is prepared again first, and a player
+     * that is still preparing starts when it is ready.
+     */
+    void start() {
+        startAt(0);
+    }
+
+    /**
+     * Starts playback, like {@link #start()}, but not before {@code atNanos} on the
+     * {@link System#nanoTime()} clock.
+     */
+    void startAt(long atNanos) {
+        synchronized (mLock) {
+            mCommandAtNanos = atNanos;
+            post(PlayerCommandQueue.START, 0);
+        }
+    }
+
+    void pause() {
+        pauseAt(0);
+    }
+
+    /**
+     * Pauses playback, like {@link #pause()}, but not before {@code atNanos} on the
+     * {@link System#nanoTime()} clock.
+     */
+    void pauseAt(long atNanos) {
+        synchronized (mLock) {
+            mCommandAtNanos = atNanos;
+            post(PlayerCommandQueue.PAUSE, 0);
+        }
+    }
+
+    void stop() {
+        post(PlayerCommandQueue.STOP, 0);
+    }
+
+    void seekTo(int msec) {
+        post(PlayerCommandQueue.SEEK, msec);
+    }
+
+    void reset() {
+        synchronized (mLock) {
+            mQueue.clear();
+            mGeneration++;
+            mStartWhenPrepared = false;
+            mStopWhenPrepared = false;
+            mSeekWhenPreparedMsec = -1;
+            if (mState != PlayerState.NOT_PREPARED && mState != PlayerState.RELEASE) {
+                mMediaPlayer.reset();
+                mState = PlayerState.NOT_PREPARED;
+            }
+        }
+    }
+
+    void release() {
+        synchronized (mLock) {
+            mQueue.clear();
+            mGeneration++;
+            if (mState != PlayerState.RELEASE) {
+                MediaPlayerPool.getInstance().recycle(mMediaPlayer);
+                mState = PlayerState.RELEASE;
+            }
+        }
+    }
+
+    private void post(int command, int arg) {
+        synchronized (mLock) {
+            if (mState == PlayerState.RELEASE) {
+                return;
+            }
+            if (mQueue.offer(command, arg)) {
+                mExecutor.execute(mDrain);
+            }
+        }
+    }
+
+    // runs on a pool thread
+    private void drain() {
+        while (true) {
+            long entry;
+            long atNanos = 0;
+            int generation;
+            synchronized (mLock) {
+                entry = mQueue.poll();
+                if (entry == PlayerCommandQueue.NONE) {
+                    return;
+                }
+                int command = PlayerCommandQueue.commandOf(entry);
+                if (command == PlayerCommandQueue.START || command == PlayerCommandQueue.PAUSE) {
+                    atNanos = mCommandAtNanos;
+                    mCommandAtNanos = 0;
+                }
+                generation = mGeneration;
+            }
+            if (atNanos != 0) {
+                sleepUntil(atNanos);
+            }
+            synchronized (mLock) {
+                if (generation != mGeneration) {
+                    continue;
+                }
+                try {
+                    execute(PlayerCommandQueue.commandOf(entry), PlayerCommandQueue.argOf(entry));
+                } catch (IllegalStateException ise) {
+                    // The player disagrees with our state; leave it for reset() to sort out.
+                    Log.e(TAG, "command " + PlayerCommandQueue.commandOf(entry) + " failed in "
+                            + mState, ise);
+                }
+            }
+        }
+    }
+
+    private static void sleepUntil(long atNanos) {
+        long waitNanos = atNanos - System.nanoTime();
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // runs on a pool thread, with mLock held
+    private void execute(int command, int arg) {
+        PlayerState state = mState;
+        switch (command) {
+            case PlayerCommandQueue.PREPARE:
+                if (state.canPrepare()) {
+                    mMediaPlayer.prepareAsync();
+                    mState = PlayerState.PREPARING;
+                } else if (state == PlayerState.PREPARING) {
+                    mStopWhenPrepared = false;
+                }
+                break;
+            case PlayerCommandQueue.PREPARED:
+                if (state == PlayerState.PREPARING && mStopWhenPrepared) {
+                    // Stopped while preparing: the preparation is no longer wanted.
+                    mStopWhenPrepared = false;
+                    mSeekWhenPreparedMsec = -1;
+                    mMediaPlayer.stop();
+                    mState = PlayerState.STOPPED;
+                } else if (state == PlayerState.PREPARING) {
+                    mState = PlayerState.PREPARED;
+                    if (mSeekWhenPreparedMsec >= 0) {
+                        mMediaPlayer.seekTo(mSeekWhenPreparedMsec);
+                        mSeekWhenPreparedMsec = -1;
+                    }
+                    final MediaPlayer.OnPreparedListener onPreparedListener = mOnPreparedListener;
+                    if (onPreparedListener != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onPreparedListener.onPrepared(mMediaPlayer);
+                            }
+                        });
+                    }
+                    if (mStartWhenPrepared) {
+                        mStartWhenPrepared = false;
+                        doStart();
+                    }
+                }
+                break;
+            case PlayerCommandQueue.START:
+                if (state.canStart()) {
+                    doStart();
+                } else if (state == PlayerState.PREPARING) {
+                    mStartWhenPrepared = true;
+                    mStopWhenPrepared = false;
+                } else if (state == PlayerState.STOPPED) {
+                    mStartWhenPrepared = true;
+                    mMediaPlayer.prepareAsync();
+                    mState = PlayerState.PREPARING;
+                }
+                break;
+            case PlayerCommandQueue.PAUSE:
+                if (state == PlayerState.STARTED) {
+                    mMediaPlayer.pause();
+                    mState = PlayerState.PAUSED;
+                } else if (state == PlayerState.PREPARING) {
+                    mStartWhenPrepared = false;
+                }
+                break;
+            case PlayerCommandQueue.STOP:
+                if (state.isPrepared()) {
+                    mMediaPlayer.stop();
+                    mState = PlayerState.STOPPED;
+                } else if (state == PlayerState.PREPARING) {
+                    mStartWhenPrepared = false;
+                    mStopWhenPrepared = true;
+                }
+                break;
+            case PlayerCommandQueue.SEEK:
+                if (state.isPrepared()) {
+                    mMediaPlayer.seekTo(arg);
+                } else if (state == PlayerState.PREPARING) {
+                    mSeekWhenPreparedMsec = arg;
+                }
+                break;
+            case PlayerCommandQueue.COMPLETED:
+                if (state == PlayerState.STARTED) {
+                    mState = PlayerState.COMPLETED;
+                }
+                final Listener listener = mListener;
+                if (listener != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onCompleted();
+                        }
+                    });
+                }
+                break;
+        }
+    }
+
+    private void doStart() {
+        mMediaPlayer.start();
+        mState = PlayerState.STARTED;
+        final Listener listener = mListener;
+        if (listener != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onStarted();
+                }
+            });
+        }
+    }
+}
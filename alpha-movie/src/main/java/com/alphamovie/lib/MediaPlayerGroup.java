@@ -0,0 +1,442 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the players of the streams of one video (color, background and alpha, or a single
+ * packed one) as a unit.
+ * <p>
+ * {@link #prepare} prepares every member and waits until all of them are ready, up to a
+ * timeout, before any of them starts.  Starts and pauses are scheduled for one instant on a
+ * shared clock, a little ahead so that every player's command thread is there in time, and
+ * a seek pauses the group, seeks every member and only resumes once all of them finished
+ * seeking.  So no stream runs ahead of the others, which would show the mask of one frame
+ * over the picture of another.
+ * <p>
+ * After each group start, the spread between the first frames the members render is logged
+ * and reported to the {@link Listener}.  As that is only known for the first start after a
+ * prepare, the spread between the members' playback positions is also reported shortly after
+ * every start and after every seek, when drift would show.
+ * <p>
+ * May be called from any thread.  The group runs on the main thread, which is where
+ * {@code MediaPlayer} delivers its callbacks to it; calls from other threads, such as the GL
+ * thread once the surfaces exist, are posted there and take effect in order.
+ */
+public final class MediaPlayerGroup {
+    private static final String TAG = "MediaPlayerGroup";
+
+    public static final long DEFAULT_PREPARE_TIMEOUT_MS = 5000;
+
+    /** How far ahead a group start or pause is scheduled. */
+    private static final long COMMAND_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /** How long after a group start the positions of the members are compared. */
+    private static final long POSITION_SKEW_DELAY_MS = 200;
+
+    public interface Listener {
+        /**
+         * Every member is prepared.
+         */
+        void onGroupPrepared();
+
+        /**
+         * Not every member was prepared within the timeout; the group won't start by itself.
+         */
+        void onGroupPrepareTimedOut();
+
+        /**
+         * Every member rendered its first frame after a group start, {@code skewNanos} apart
+         * between the earliest and the latest one.
+         */
+        void onFirstFrameSkew(long skewNanos);
+
+        /**
+         * The playback positions of the members were {@code skewMs} apart between the
+         * earliest and the latest one, shortly after a group start or right after a group
+         * seek.
+         */
+        void onPositionSkew(long skewMs);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPrepareTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onPrepareTimedOut();
+        }
+    };
+    private final Runnable mMeasurePositionSkew = new Runnable() {
+        @Override
+        public void run() {
+            measurePositionSkew();
+        }
+    };
+
+    private MediaPlayerBlob[] mMembers = new MediaPlayerBlob[0];
+    private StreamGroup mStreams;
+    private Listener mListener;
+    private long mPrepareTimeoutMs = DEFAULT_PREPARE_TIMEOUT_MS;
+
+    private boolean mPreparing;
+    private boolean mStartWhenPrepared;
+    private boolean mPlaying;
+    private boolean mResumeAfterSeek;
+
+    /**
+     * Replaces the members of the group; their state is taken as not prepared.  The group
+     * takes over their info and seek-complete listeners.
+     */
+    public void setMembers(final MediaPlayerBlob... members) {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                setMembers(members);
+            }
+        })) {
+            return;
+        }
+        cancelPending();
+        mMembers = members.clone();
+        mStreams = members.length > 0 ? new StreamGroup(members.length) : null;
+        for (int i = 0; i < members.length; i++) {
+            final int stream = i;
+            MediaPlayer mediaPlayer = members[i].getMediaPlayer();
+            mediaPlayer.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+                @Override
+                public boolean onInfo(MediaPlayer mp, int what, int extra) {
+                    if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+                        onFirstFrame(stream);
+                    }
+                    return false;
+                }
+            });
+            mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+                @Override
+                public void onSeekComplete(MediaPlayer mp) {
+                    onMemberSeekComplete(stream);
+                }
+            });
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets how long {@link #prepare} waits for every member to be ready.
+     */
+    public void setPrepareTimeoutMs(long prepareTimeoutMs) {
+        if (prepareTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Prepare timeout must be positive: "
+                    + prepareTimeoutMs);
+        }
+        mPrepareTimeoutMs = prepareTimeoutMs;
+    }
+
+    /**
+     * Prepares every member that isn't prepared yet.
+     *
+     * @param startWhenPrepared Start the group as soon as every member is ready.
+     */
+    public void prepare(final boolean startWhenPrepared) {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                prepare(startWhenPrepared);
+            }
+        })) {
+            return;
+        }
+        if (mStreams == null) {
+            return;
+        }
+        mStartWhenPrepared = startWhenPrepared;
+        if (mStreams.isPrepared()) {
+            onGroupPrepared();
+            return;
+        }
+        mPreparing = true;
+        mHandler.removeCallbacks(mPrepareTimeout);
+        mHandler.postDelayed(mPrepareTimeout, mPrepareTimeoutMs);
+        for (int i = 0; i < mMembers.length; i++) {
+            final int stream = i;
+            if (mMembers[i].getState().isPrepared()) {
+                onMemberPrepared(stream);
+                continue;
+            }
+            mMembers[i].prepareAsync(new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mp) {
+                    onMemberPrepared(stream);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts or resumes every member at the same time.  If the group is still preparing or
+     * seeking, it starts once that is done.  Stopped members, all or only some of them, are
+     * prepared again first.
+     */
+    public void start() {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        })) {
+            return;
+        }
+        if (mStreams == null) {
+            return;
+        }
+        if (mStreams.isSeeking()) {
+            mResumeAfterSeek = true;
+        } else if (mStreams.isPrepared()) {
+            startTogether();
+        } else if (!mPreparing && hasStoppedMember()) {
+            // Prepares the stopped members; the others count as prepared right away.
+            prepare(true);
+        } else {
+            mStartWhenPrepared = true;
+        }
+    }
+
+    /**
+     * Pauses every member at the same time.
+     */
+    public void pause() {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                pause();
+            }
+        })) {
+            return;
+        }
+        mStartWhenPrepared = false;
+        mResumeAfterSeek = false;
+        if (!mPlaying) {
+            return;
+        }
+        mPlaying = false;
+        long atNanos = System.nanoTime() + COMMAND_LEAD_NANOS;
+        for (MediaPlayerBlob member : mMembers) {
+            member.pauseAt(atNanos);
+        }
+    }
+
+    /**
+     * Moves every member to {@code msec}.  A playing group is paused first and resumes once
+     * every member finished seeking.
+     */
+    public void seekTo(final int msec) {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                seekTo(msec);
+            }
+        })) {
+            return;
+        }
+        if (mStreams != null && mStreams.isPrepared()) {
+            boolean resume = mPlaying || mResumeAfterSeek;
+            pause();
+            mResumeAfterSeek = resume;
+            mStreams.beginSeek();
+        }
+        for (MediaPlayerBlob member : mMembers) {
+            member.seekTo(msec);
+        }
+    }
+
+    public void stop() {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        })) {
+            return;
+        }
+        cancelPending();
+        for (MediaPlayerBlob member : mMembers) {
+            member.stop();
+        }
+    }
+
+    public void reset() {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+            }
+        })) {
+            return;
+        }
+        cancelPending();
+        for (MediaPlayerBlob member : mMembers) {
+            member.reset();
+        }
+    }
+
+    public void release() {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        })) {
+            return;
+        }
+        cancelPending();
+        for (MediaPlayerBlob member : mMembers) {
+            member.release();
+        }
+    }
+
+    /**
+     * Returns the spread between the first frames of the members after the last group start,
+     * or -1 if not every member rendered one yet.
+     */
+    public long getFirstFrameSkewNanos() {
+        return mStreams != null ? mStreams.getFirstFrameSkewNanos() : StreamGroup.NO_SKEW;
+    }
+
+    /**
+     * Posts {@code command} to the main thread if this isn't it.
+     *
+     * @return true if it was posted; the caller returns then.
+     */
+    private boolean postToMainThread(Runnable command) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            return false;
+        }
+        mHandler.post(command);
+        return true;
+    }
+
+    private void cancelPending() {
+        mHandler.removeCallbacks(mPrepareTimeout);
+        mHandler.removeCallbacks(mMeasurePositionSkew);
+        mPreparing = false;
+        mStartWhenPrepared = false;
+        mPlaying = false;
+        mResumeAfterSeek = false;
+        if (mStreams != null) {
+            mStreams.clearPrepared();
+        }
+    }
+
+    private boolean hasStoppedMember() {
+        for (MediaPlayerBlob member : mMembers) {
+            if (member.getState() == PlayerState.STOPPED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startTogether() {
+        mStartWhenPrepared = false;
+        mPlaying = true;
+        mStreams.armFirstFrames();
+        long atNanos = System.nanoTime() + COMMAND_LEAD_NANOS;
+        for (MediaPlayerBlob member : mMembers) {
+            member.startAt(atNanos);
+        }
+        mHandler.removeCallbacks(mMeasurePositionSkew);
+        mHandler.postDelayed(mMeasurePositionSkew,
+                TimeUnit.NANOSECONDS.toMillis(COMMAND_LEAD_NANOS) + POSITION_SKEW_DELAY_MS);
+    }
+
+    private void onMemberPrepared(int stream) {
+        if (!mPreparing || !mStreams.markPrepared(stream)) {
+            return;
+        }
+        onGroupPrepared();
+    }
+
+    private void onGroupPrepared() {
+        mPreparing = false;
+        mHandler.removeCallbacks(mPrepareTimeout);
+        if (mListener != null) {
+            mListener.onGroupPrepared();
+        }
+        if (mStartWhenPrepared) {
+            startTogether();
+        }
+    }
+
+    private void onPrepareTimedOut() {
+        if (!mPreparing) {
+            return;
+        }
+        Log.w(TAG, "Streams not prepared within " + mPrepareTimeoutMs + " ms");
+        mStartWhenPrepared = false;
+        if (mListener != null) {
+            mListener.onGroupPrepareTimedOut();
+        }
+    }
+
+    private void onMemberSeekComplete(int stream) {
+        if (!mStreams.markSeekComplete(stream)) {
+            return;
+        }
+        measurePositionSkew();
+        if (mResumeAfterSeek) {
+            mResumeAfterSeek = false;
+            startTogether();
+        }
+    }
+
+    private void measurePositionSkew() {
+        long[] positionsMs = new long[mMembers.length];
+        for (int i = 0; i < mMembers.length; i++) {
+            if (!mMembers[i].getState().isPrepared()) {
+                // Stopped or reset meanwhile; there is no position to compare.
+                return;
+            }
+            positionsMs[i] = mMembers[i].getCurrentPosition();
+        }
+        long skewMs = StreamGroup.spread(positionsMs);
+        Log.i(TAG, "Positions of " + mMembers.length + " streams " + skewMs + " ms apart");
+        if (mListener != null) {
+            mListener.onPositionSkew(skewMs);
+        }
+    }
+
+    private void onFirstFrame(int stream) {
+        if (!mStreams.markFirstFrame(stream, System.nanoTime())) {
+            return;
+        }
+        long skewNanos = mStreams.getFirstFrameSkewNanos();
+        Log.i(TAG, "First frames of " + mMembers.length + " streams "
+                + TimeUnit.NANOSECONDS.toMicros(skewNanos) + " us apart");
+        if (mListener != null) {
+            mListener.onFirstFrameSkew(skewNanos);
+        }
+    }
+}
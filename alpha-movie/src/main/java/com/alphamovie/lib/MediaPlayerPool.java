@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@code MediaPlayer}s shared by all overlays in the process.
+ * <p>
+ * Each view plays its streams with up to three players, and would otherwise create them
+ * when it is inflated and release them when it is detached, so a list of overlays creates
+ * and tears down players for every item scrolled past.  A player given back with
+ * {@link #recycle} is reset instead, which frees its decoder but keeps the player, and the
+ * next {@link #acquire} takes it instead of creating one.  At most {@link #setMaxIdle} players
+ * are kept.
+ * <p>
+ * A player in use may hold a decoder, so players count against the same instance limit as
+ * the decoders of {@link DecoderPool}, and idle ones are released when a new decoder or
+ * player needs room.
+ * <p>
+ * May be called from any thread.
+ */
+public final class MediaPlayerPool {
+    private static final String TAG = "MediaPlayerPool";
+
+    /** Idle players kept by default: enough to rebind an overlay without holding on to many. */
+    public static final int DEFAULT_MAX_IDLE = 2;
+    // All players serve the same requests.
+    private static final String KEY = "MediaPlayer";
+
+    private static MediaPlayerPool sInstance;
+
+    // Both pools synchronize on it.
+    private final InstanceBudget mBudget;
+    // Guarded by mBudget.
+    private final InstancePool<MediaPlayer> mPool;
+
+    private MediaPlayerPool() {
+        mBudget = DecoderPool.getInstanceBudget();
+        mPool = new InstancePool<MediaPlayer>(DEFAULT_MAX_IDLE, mBudget);
+    }
+
+    public static synchronized MediaPlayerPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new MediaPlayerPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets how many reset players are kept for reuse.  0 releases every player as soon as it
+     * is recycled.
+     *
+     * @throws IllegalArgumentException if {@code maxIdle} is negative.
+     */
+    public void setMaxIdle(int maxIdle) {
+        List<Object> evicted = new ArrayList<Object>();
+        synchronized (mBudget) {
+            mPool.setMaxIdle(maxIdle, evicted);
+        }
+        DecoderPool.releaseAll(evicted);
+    }
+
+    public int getMaxIdle() {
+        synchronized (mBudget) {
+            return mPool.getMaxIdle();
+        }
+    }
+
+    /**
+     * Releases every idle player, e.g. when the app is trimming memory.
+     */
+    public void clear() {
+        List<Object> evicted = new ArrayList<Object>();
+        synchronized (mBudget) {
+            mPool.clear(evicted);
+        }
+        DecoderPool.releaseAll(evicted);
+    }
+
+    /**
+     * Returns a player in the idle state, with no listeners or surface: the most recently
+     * recycled one, or a new one.
+     */
+    public MediaPlayer acquire() {
+        List<Object> evicted = new ArrayList<Object>();
+        MediaPlayer mediaPlayer;
+        synchronized (mBudget) {
+            mediaPlayer = mPool.acquire(KEY, evicted);
+        }
+        DecoderPool.releaseAll(evicted);
+        return mediaPlayer != null ? mediaPlayer : new MediaPlayer();
+    }
+
+    /**
+     * Gives back a player from {@link #acquire}.  It is reset and kept for reuse, or released
+     * if the pool is full or it can't be reset.
+     */
+    public void recycle(MediaPlayer mediaPlayer) {
+        try {
+            mediaPlayer.setOnPreparedListener(null);
+            mediaPlayer.setOnCompletionListener(null);
+            mediaPlayer.setOnErrorListener(null);
+            mediaPlayer.setOnInfoListener(null);
+            mediaPlayer.setOnSeekCompleteListener(null);
+            mediaPlayer.setOnVideoSizeChangedListener(null);
+            mediaPlayer.setOnBufferingUpdateListener(null);
+            mediaPlayer.setSurface((Surface) null);
+            mediaPlayer.reset();
+        } catch (RuntimeException re) {
+            Log.w(TAG, "can't reset player", re);
+            mediaPlayer.release();
+            synchronized (mBudget) {
+                mPool.discard();
+            }
+            return;
+        }
+        List<Object> evicted = new ArrayList<Object>();
+        synchronized (mBudget) {
+            mPool.recycle(KEY, mediaPlayer, evicted);
+        }
+        DecoderPool.releaseAll(evicted);
+    }
+}
@@ -16,9 +16,11 @@
 
 package com.alphamovie.lib;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -28,17 +30,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 
 /**
  * Plays the video track from a movie file to a Surface.
  * <p>
- * TODO: needs more advanced shuttle controls (pause/resume, skip)
+ * The MediaCodec implementation of {@link VideoSource}.
  */
-public class MoviePlayer {
+public class MoviePlayer implements VideoSource {
     private static final String TAG = "MoviePlayer";
     private static final boolean VERBOSE = false;
 
+    private static final long DEFAULT_OUTPUT_TIMEOUT_USEC = 10000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+
     // Declare this here to reduce allocations.
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
@@ -49,8 +55,49 @@ public class MoviePlayer {
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
+    private boolean mSeamlessLoop;
     private int mVideoWidth;
     private int mVideoHeight;
+    private FrameSynchronizer mFrameSynchronizer;
+    private int mSyncStream;
+    private FrameMetrics mFrameMetrics;
+    private FrameListener mFrameListener;
+    private final InputPrefetch mPrefetch = new InputPrefetch();
+    private long mOutputTimeoutUsec = DEFAULT_OUTPUT_TIMEOUT_USEC;
+    private volatile float mPlaybackRate = PlaybackRate.NORMAL;
+    // Set by seekTo(), taken by the decode thread.  NO_PTS when there is none.
+    private volatile long mPendingSeekUsec = NO_PTS;
+
+    // Codec state, kept from prepare() until play() returns.  Decode thread only.
+    private MediaExtractor mExtractor;
+    private MediaCodec mDecoder;
+    private int mTrackIndex;
+    private String mMime;
+    private long mFrameDurationUsec;
+    private LoopTimeline mLoopTimeline;
+    private SeekIndex mSeekIndex;
+    // Rewritten PTS of the frame a seek is decoding up to, or NO_PTS.
+    private long mSeekTargetUsec = NO_PTS;
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    private int mOutputPass;
+    private long mFirstInputTimeNsec;
+
+    private final Object mStartLock = new Object();
+    // Set by prepare() and pause(), cleared by start().  Written under mStartLock; read
+    // without it by the decode loop.
+    private volatile boolean mHoldUntilStart;
+    // Output buffer kept back while the synchronizer waits for the other streams, or while
+    // paused.  mBufferInfo still describes it, since no other output is dequeued meanwhile.
+    private int mHeldDecoderStatus = -1;
+
+    // Queue time of recent input samples, keyed by PTS, for decode latency.  Preallocated
+    // so nothing is allocated per frame.
+    private static final int INPUT_TIME_SLOTS = 32;
+    private static final long NO_PTS = Long.MIN_VALUE;
+    private final long[] mInputPtsUsec = new long[INPUT_TIME_SLOTS];
+    private final long[] mInputTimeNsec = new long[INPUT_TIME_SLOTS];
+    private int mNextInputSlot;
 
 
     /**
@@ -69,10 +116,14 @@ public class MoviePlayer {
      */
     public interface FrameCallback {
         /**
-         * Called immediately before the frame is rendered.
+         * Called before the frame is rendered, and before the {@link FrameSynchronizer} sees
+         * it, so a dropped frame is never reported to the other streams as presented.  Called
+         * once per frame, also when the frame is then held for the other streams.
          * @param presentationTimeUsec The desired presentation time, in microseconds.
+         * @return false to release the frame without rendering it, e.g. because it is too
+         *     late to be worth showing.
          */
-        void preRender(long presentationTimeUsec);
+        boolean preRender(long presentationTimeUsec);
 
         /**
          * Called immediately after the frame render call returns.  The frame may not have
@@ -88,6 +139,19 @@ public class MoviePlayer {
         void loopReset();
     }
 
+    /**
+     * A FrameCallback that also chooses when each frame is shown.
+     */
+    public interface TimedFrameCallback extends FrameCallback {
+        /**
+         * Returns when the frame at {@code presentationTimeUsec}, accepted by
+         * {@link #preRender}, should be displayed, in the {@code System.nanoTime()} timebase,
+         * or 0 to display it as soon as possible.  Used on API 21 and later, where the time
+         * is passed to {@code MediaCodec.releaseOutputBuffer(int, long)}.
+         */
+        long getRenderTimeNanos(long presentationTimeUsec);
+    }
+
 
     /**
      * Constructs a MoviePlayer.
@@ -103,6 +167,19 @@ public class MoviePlayer {
         mOutputSurface = outputSurface;
         mFrameCallback = frameCallback;
 
+        // The size usually comes from the metadata cache, filled by whoever probed the file
+        // before (the view, or an OverlayPrefetcher), which spares opening an extractor here.
+        try {
+            Mp4Metadata metadata = Mp4Metadata.read(sourceFile);
+            if (metadata.getWidth() > 0 && metadata.getHeight() > 0) {
+                mVideoWidth = metadata.getWidth();
+                mVideoHeight = metadata.getHeight();
+                return;
+            }
+        } catch (IOException ioe) {
+            // Not an MP4 file; let the extractor have a go.
+        }
+
         // Pop the file open and pull out the video characteristics.
         // TODO: consider leaving the extractor open.  Should be able to just seek back to
         //       the start after each iteration of play.  Need to rearrange the API a bit --
@@ -133,6 +210,7 @@ public class MoviePlayer {
     /**
      * Returns the width, in pixels, of the video.
      */
+    @Override
     public int getVideoWidth() {
         return mVideoWidth;
     }
@@ -140,6 +218,7 @@ public class MoviePlayer {
     /**
      * Returns the height, in pixels, of the video.
      */
+    @Override
     public int getVideoHeight() {
         return mVideoHeight;
     }
@@ -147,29 +226,208 @@ public class MoviePlayer {
     /**
      * Sets the loop mode.  If true, playback will loop forever.
      */
+    @Override
     public void setLoopMode(boolean loopMode) {
         mLoop = loopMode;
     }
 
+    /**
+     * Loops without draining the decoder: at the end of the file the extractor rewinds and
+     * samples keep being queued, with timestamps shifted by one loop duration per pass (see
+     * {@link LoopTimeline}).  There is no flush, no startup lag and no guessed gap at the
+     * loop point.  Only has an effect with loop mode on.
+     */
+    @Override
+    public void setSeamlessLoop(boolean seamlessLoop) {
+        mSeamlessLoop = seamlessLoop;
+    }
+
+    /**
+     * Sets how many samples may be in the decoder at once.  Defaults to 4; many decoders want
+     * several frames of input before producing output.
+     */
+    @Override
+    public void setInputPrefetchDepth(int depth) {
+        mPrefetch.setDepth(depth);
+    }
+
+    /**
+     * Sets how long each wait for decoder output may block.  Defaults to 10ms.
+     */
+    @Override
+    public void setOutputTimeoutUsec(long timeoutUsec) {
+        mOutputTimeoutUsec = timeoutUsec;
+    }
+
+    /**
+     * Plays at {@code rate} times the normal speed, from 0.25 to 4.  Above normal speed,
+     * frames beyond the source frame rate are not shown (see {@link PlaybackRate#isShown});
+     * those that no other frame refers to are not even decoded.  The frame callback is given
+     * the rate too if it is a {@link SpeedControlCallback}.  Streams played together skip the
+     * same frames, so they stay matched.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    @Override
+    public void setPlaybackRate(float rate) {
+        mPlaybackRate = PlaybackRate.check(rate);
+        if (mFrameCallback instanceof SpeedControlCallback) {
+            ((SpeedControlCallback) mFrameCallback).setPlaybackRate(rate);
+        }
+    }
+
+    @Override
+    public float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * Seeks to the frame on screen at {@code positionUsec}, exactly.  The extractor goes to
+     * the sync sample at or before that frame (see {@link SeekIndex}, built on the first seek
+     * and cached per file), and the frames up to it are decoded without being rendered;
+     * those that no other frame refers to are not decoded at all.  A player held before
+     * {@link #start()} shows the frame and keeps holding, so this can be used to scrub.
+     * <p>
+     * Called from arbitrary thread.  The seek is done on the decode thread; a request that
+     * hasn't been picked up yet is replaced by a newer one.
+     */
+    @Override
+    public void seekTo(long positionUsec) {
+        synchronized (mStartLock) {
+            mPendingSeekUsec = Math.max(positionUsec, 0);
+            mStartLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setFrameListener(FrameListener frameListener) {
+        mFrameListener = frameListener;
+    }
+
+    /**
+     * Ties this player to other players through a shared synchronizer, so that frames with
+     * the same presentation time are released together.  Must be called before play().
+     *
+     * @param synchronizer The synchronizer shared by every stream of the group.
+     * @param stream Index of this player's stream within the group.
+     */
+    @Override
+    public void setFrameSynchronizer(FrameSynchronizer synchronizer, int stream) {
+        mFrameSynchronizer = synchronizer;
+        mSyncStream = stream;
+    }
+
+    /**
+     * Reports decode latency and frames dropped by the synchronizer or the frame callback.
+     * Must be called before play().
+     */
+    @Override
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
      * Called from arbitrary thread.
      */
+    @Override
     public void requestStop() {
         mIsStopRequested = true;
+        synchronized (mStartLock) {
+            mStartLock.notifyAll();
+        }
+    }
+
+    /**
+     * Warm start: configures the decoder and feeds it until the first frame comes out, which
+     * is rendered to the surface.  Playback then holds until {@link #start()}, so the first
+     * frame is on screen and the startup lag of the decoder is paid before the user asks for
+     * motion.  Call on the decode thread, then call {@link #play()} on it.
+     */
+    @Override
+    public void prepare() throws IOException {
+        if (mDecoder != null) {
+            return;
+        }
+        synchronized (mStartLock) {
+            mHoldUntilStart = true;
+        }
+        boolean prepared = false;
+        try {
+            openDecoder();
+            doExtract(mFrameCallback, true);
+            prepared = true;
+        } finally {
+            if (!prepared) {
+                releaseDecoder();
+            }
+        }
+    }
+
+    /**
+     * Lets a prepared player continue past its first frame.  Without {@link #prepare()},
+     * playback starts right away and this does nothing.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    @Override
+    public void start() {
+        synchronized (mStartLock) {
+            mHoldUntilStart = false;
+            mStartLock.notifyAll();
+        }
+    }
+
+    /**
+     * Makes {@link #play()} hold on the frame on screen until {@link #start()}.  The decoder
+     * and its queued frames are kept, so playback carries on where it stopped.  Seeks are
+     * still shown while paused.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    @Override
+    public void pause() {
+        synchronized (mStartLock) {
+            mHoldUntilStart = true;
+            mStartLock.notifyAll();
+        }
     }
 
     /**
      * Decodes the video stream, sending frames to the surface.
      * <p>
      * Does not return until video playback is complete, or we get a "stop" signal from
-     * frameCallback.
+     * frameCallback.  If the player was prepared, waits for {@link #start()} first.
      */
+    @Override
     public void play() throws IOException {
-        MediaExtractor extractor = null;
-        MediaCodec decoder = null;
+        try {
+            if (mDecoder == null) {
+                openDecoder();
+            }
+            while (awaitStart()) {
+                if (isHeld()) {
+                    // Seek while held: show the frame, then go on holding.
+                    doExtract(mFrameCallback, true);
+                } else {
+                    doExtract(mFrameCallback, false);
+                    if (!isHeld()) {
+                        break;
+                    }
+                    // Paused: hold until start(), a seek or a stop.
+                }
+            }
+        } finally {
+            if (mFrameSynchronizer != null) {
+                // Don't leave the other streams waiting for us.
+                mFrameSynchronizer.finish(mSyncStream);
+            }
+            releaseDecoder();
+        }
+    }
 
+    private void openDecoder() throws IOException {
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
         // file exists so we can throw a better one if it's not there.
         if (!mSourceFile.canRead()) {
@@ -177,37 +435,188 @@ public class MoviePlayer {
         }
 
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mSourceFile.toString());
+            mTrackIndex = selectTrack(mExtractor);
+            if (mTrackIndex < 0) {
                 throw new RuntimeException("No video track found in " + mSourceFile);
             }
-            extractor.selectTrack(trackIndex);
+            mExtractor.selectTrack(mTrackIndex);
 
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            MediaFormat format = mExtractor.getTrackFormat(mTrackIndex);
 
-            // Create a MediaCodec decoder, and configure it with the MediaFormat from the
+            // Get a MediaCodec decoder, and configure it with the MediaFormat from the
             // extractor.  It's very important to use the format from the extractor because
             // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
             String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            mMime = mime;
+            mFrameDurationUsec = 1000000L / getFrameRate(format);
+            mDecoder = DecoderPool.getInstance().lease(format, mOutputSurface);
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
-        } finally {
-            // release everything we grabbed
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
+            long durationUsec = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+            mLoopTimeline = mLoop && mSeamlessLoop ? new LoopTimeline(durationUsec) : null;
+            if (mLoopTimeline != null && mFrameSynchronizer != null) {
+                // Known up front, so every stream of the group can wrap by the longest loop.
+                SeekIndex index = getSeekIndex();
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                mLoopTimeline.setFirstPass(index.getFirstPtsUsec(), index.getLastPtsUsec(),
+                        index.getSampleCount());
+                mFrameSynchronizer.setLoopDurationUsec(mSyncStream,
+                        mLoopTimeline.getLoopDurationUsec());
             }
-            if (extractor != null) {
-                extractor.release();
-                extractor = null;
+            if (mFrameCallback instanceof SpeedControlCallback) {
+                ((SpeedControlCallback) mFrameCallback).setFrameDurationUsec(mFrameDurationUsec);
+            }
+        } catch (IOException ioe) {
+            releaseDecoder();
+            throw ioe;
+        } catch (RuntimeException re) {
+            releaseDecoder();
+            throw re;
+        }
+
+        mInputDone = false;
+        mOutputDone = false;
+        mOutputPass = 0;
+        mHeldDecoderStatus = -1;
+        mSeekTargetUsec = NO_PTS;
+        mFirstInputTimeNsec = -1;
+        clearInputTimes();
+        mPrefetch.reset();
+    }
+
+    private void releaseDecoder() {
+        // release everything we grabbed
+        if (mDecoder != null) {
+            // Stopped and kept for the next stream of this format.
+            DecoderPool.getInstance().recycle(mDecoder);
+            mDecoder = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+
+    /**
+     * Waits until a prepared player is started, or is asked to seek.
+     *
+     * @return false if a stop was requested instead.
+     */
+    private boolean awaitStart() {
+        synchronized (mStartLock) {
+            while (mHoldUntilStart && !mIsStopRequested && mPendingSeekUsec == NO_PTS) {
+                try {
+                    mStartLock.wait();
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+            }
+        }
+        return !mIsStopRequested;
+    }
+
+    private boolean isHeld() {
+        synchronized (mStartLock) {
+            return mHoldUntilStart;
+        }
+    }
+
+    /**
+     * Flushes the decoder and moves the extractor to the sync sample before the frame at
+     * {@code positionUsec}.  Output before that frame is then released without rendering.
+     */
+    private void applySeek(long positionUsec) {
+        SeekIndex index = getSeekIndex();
+        long framePtsUsec = index.frameAt(positionUsec);
+        mDecoder.flush();
+        mExtractor.seekTo(index.syncSampleFor(framePtsUsec), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        if (mLoopTimeline != null) {
+            mLoopTimeline.setFirstPass(index.getFirstPtsUsec(), index.getLastPtsUsec(),
+                    index.getSampleCount());
+            mSeekTargetUsec = framePtsUsec + mLoopTimeline.getOffsetUsec();
+            mOutputPass = mLoopTimeline.passOf(mSeekTargetUsec);
+        } else {
+            mSeekTargetUsec = framePtsUsec;
+        }
+        if (VERBOSE) Log.d(TAG, "seek to " + positionUsec + ", frame " + framePtsUsec);
+        mInputDone = false;
+        mOutputDone = false;
+        clearInputTimes();
+        mPrefetch.reset();
+        if (mFrameCallback != null) {
+            // Pace the target frame as if it followed the last one.
+            mFrameCallback.loopReset();
+        }
+    }
+
+    private SeekIndex getSeekIndex() {
+        if (mSeekIndex == null) {
+            mSeekIndex = loadSeekIndex(mSourceFile, mExtractor);
+        }
+        return mSeekIndex;
+    }
+
+    /**
+     * Returns the seek index of {@code file} from the cache, building it with
+     * {@code extractor}, which has the video track selected, if it isn't cached.  The
+     * extractor may be left anywhere.
+     */
+    static SeekIndex loadSeekIndex(File file, MediaExtractor extractor) {
+        String key = file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+        SeekIndex index = SeekIndex.getCached(key);
+        if (index == null) {
+            index = buildSeekIndex(extractor);
+            SeekIndex.putCached(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Scans the samples of the selected track.  Leaves the extractor at the end.
+     */
+    private static SeekIndex buildSeekIndex(MediaExtractor extractor) {
+        long[] samplePtsUsec = new long[256];
+        long[] syncPtsUsec = new long[16];
+        int sampleCount = 0;
+        int syncCount = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long ptsUsec;
+        while ((ptsUsec = extractor.getSampleTime()) >= 0) {
+            if (sampleCount == samplePtsUsec.length) {
+                samplePtsUsec = Arrays.copyOf(samplePtsUsec, sampleCount * 2);
+            }
+            samplePtsUsec[sampleCount++] = ptsUsec;
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (syncCount == syncPtsUsec.length) {
+                    syncPtsUsec = Arrays.copyOf(syncPtsUsec, syncCount * 2);
+                }
+                syncPtsUsec[syncCount++] = ptsUsec;
+            }
+            extractor.advance();
+        }
+        return new SeekIndex(samplePtsUsec, sampleCount, syncPtsUsec, syncCount);
+    }
+
+    /**
+     * Returns the nominal frame rate of a track, or {@link #DEFAULT_FRAME_RATE} if the
+     * container doesn't say.
+     */
+    private static int getFrameRate(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            int frameRate;
+            try {
+                frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+            } catch (ClassCastException cce) {
+                // Some extractors store it as a float.
+                frameRate = Math.round(format.getFloat(MediaFormat.KEY_FRAME_RATE));
+            }
+            if (frameRate > 0) {
+                return frameRate;
             }
         }
+        return DEFAULT_FRAME_RATE;
     }
 
     /**
@@ -215,7 +624,7 @@ public class MoviePlayer {
      *
      * @return the track index, or -1 if no video track is found.
      */
-    private static int selectTrack(MediaExtractor extractor) {
+    static int selectTrack(MediaExtractor extractor) {
         // Select the first video track we find, ignore the rest.
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -233,10 +642,11 @@ public class MoviePlayer {
     }
 
     /**
-     * Work loop.  We execute here until we run out of video or are told to stop.
+     * Work loop.  We execute here until we run out of video or are told to stop.  With
+     * {@code preRoll}, returns as soon as the first frame was rendered instead; the state of
+     * the loop is kept in fields so the next call carries on from there.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-                           FrameCallback frameCallback) {
+    private void doExtract(FrameCallback frameCallback, boolean preRoll) {
         // We need to strike a balance between providing input and reading output that
         // operates efficiently without delays on the output side.
         //
@@ -287,67 +697,146 @@ public class MoviePlayer {
         // is substantial.  On one device, the "clever" approach caused significantly greater
         // and more highly variable startup latency.
         //
-        // The code below takes a very simple-minded approach that works, but carries a risk
-        // of occasionally running out of output.  A more sophisticated approach might
-        // detect an output timeout and use that as a signal to try to enqueue several input
-        // buffers on the next iteration.
+        // The code below keeps up to a fixed number of samples in flight (see InputPrefetch).
+        // Only the first input buffer of an iteration is waited for, and only when the
+        // decoder holds nothing; the rest are taken if immediately available.  With the
+        // window full, input is held back and we block on output instead, until an output
+        // timeout suggests the decoder wants more input after all.
         //
         // If you want to experiment, set the VERBOSE flag to true and watch the behavior
         // in logcat.  Use "logcat -v threadtime" to see sub-second timing.
 
         final int TIMEOUT_USEC = 10000;
+        final long outputTimeoutUsec = mOutputTimeoutUsec;
+        final InputPrefetch prefetch = mPrefetch;
+        final FrameListener frameListener = mFrameListener;
+        boolean outputTimedOut = false;
+        final int SYNC_HOLD_WAIT_MSEC = 5;
+        final MediaExtractor extractor = mExtractor;
+        final MediaCodec decoder = mDecoder;
+        final int trackIndex = mTrackIndex;
+        final LoopTimeline loopTimeline = mLoopTimeline;
+        final String mime = mMime;
+        final long frameDurationUsec = mFrameDurationUsec;
         ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
         int inputChunk = 0;
-        long firstInputTimeNsec = -1;
+        final FrameMetrics frameMetrics = mFrameMetrics;
 
-        boolean outputDone = false;
-        boolean inputDone = false;
-        while (!outputDone) {
+        boolean outputDone = mOutputDone;
+        while (!outputDone || mPendingSeekUsec != NO_PTS) {
             if (VERBOSE) Log.d(TAG, "loop");
             if (mIsStopRequested) {
                 Log.d(TAG, "Stop requested");
                 return;
             }
+            if (!preRoll && mHoldUntilStart) {
+                // Paused.  A held buffer stays held; its hold limit starts over on resume.
+                if (mHeldDecoderStatus >= 0 && mFrameSynchronizer != null) {
+                    mFrameSynchronizer.clearHold(mSyncStream);
+                }
+                return;
+            }
+
+            long seekUsec = mPendingSeekUsec != NO_PTS ? takePendingSeek() : NO_PTS;
+            if (seekUsec != NO_PTS) {
+                applySeek(seekUsec);
+                // The flush returned every buffer to the codec.
+                mHeldDecoderStatus = -1;
+                outputTimedOut = false;
+                outputDone = false;
+            }
 
             // Feed more data to the decoder.
-            if (!inputDone) {
-                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (inputBufIndex >= 0) {
-                    if (firstInputTimeNsec == -1) {
-                        firstInputTimeNsec = System.nanoTime();
-                    }
-                    ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
+            int inputCount = mInputDone ? 0 : prefetch.inputsToQueue(outputTimedOut);
+            for (int i = 0; i < inputCount && !mInputDone; i++) {
+                long inputTimeoutUsec = prefetch.getInFlight() == 0 ? TIMEOUT_USEC : 0;
+                int inputBufIndex = decoder.dequeueInputBuffer(inputTimeoutUsec);
+                if (inputBufIndex < 0) {
+                    if (VERBOSE) Log.d(TAG, "input buffer not available");
+                    break;
+                }
+                if (mFirstInputTimeNsec == -1) {
+                    mFirstInputTimeNsec = System.nanoTime();
+                }
+                ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
+                int chunkSize;
+                long presentationTimeUs = 0;
+                while (true) {
                     // Read the sample data into the ByteBuffer.  This neither respects nor
                     // updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
-                    if (chunkSize < 0) {
-                        // End of stream -- send empty frame with EOS flag set.
-                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        inputDone = true;
-                        if (VERBOSE) Log.d(TAG, "sent input EOS");
-                    } else {
-                        if (extractor.getSampleTrackIndex() != trackIndex) {
-                            Log.w(TAG, "WEIRD: got sample from track " +
-                                    extractor.getSampleTrackIndex() + ", expected " + trackIndex);
-                        }
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
-                                presentationTimeUs, 0 /*flags*/);
+                    chunkSize = extractor.readSampleData(inputBuf, 0);
+                    if (chunkSize < 0 && loopTimeline != null && mFrameSynchronizer != null) {
+                        // Wrap by the loop of the group, not our own, to stay aligned.
+                        loopTimeline.setLoopDurationUsec(mFrameSynchronizer.getLoopDurationUsec());
+                    }
+                    if (chunkSize < 0 && loopTimeline != null && loopTimeline.onEndOfInput()) {
+                        // Seamless loop: carry on with the first sample, one loop later.
                         if (VERBOSE) {
-                            Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
-                                    chunkSize);
+                            Log.d(TAG, "input wrapped, offset " + loopTimeline.getOffsetUsec());
                         }
-                        inputChunk++;
-                        extractor.advance();
+                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                        chunkSize = extractor.readSampleData(inputBuf, 0);
+                    }
+                    if (chunkSize < 0) {
+                        break;
+                    }
+                    presentationTimeUs = extractor.getSampleTime();
+                    if (loopTimeline != null) {
+                        presentationTimeUs = loopTimeline.onSample(presentationTimeUs);
                     }
+                    boolean shown = PlaybackRate.isShown(presentationTimeUs, frameDurationUsec,
+                            mPlaybackRate)
+                            && (mSeekTargetUsec == NO_PTS || presentationTimeUs >= mSeekTargetUsec);
+                    if (shown || !SampleDependency.isDisposable(inputBuf, chunkSize, mime)) {
+                        break;
+                    }
+                    // Fast playback or a seek won't show this frame, and no other frame
+                    // refers to it, so it doesn't need decoding at all.
+                    if (VERBOSE) Log.d(TAG, "skipped sample " + presentationTimeUs);
+                    extractor.advance();
+                }
+                if (chunkSize < 0) {
+                    // End of stream -- send empty frame with EOS flag set.
+                    decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                    if (VERBOSE) Log.d(TAG, "sent input EOS");
                 } else {
-                    if (VERBOSE) Log.d(TAG, "input buffer not available");
+                    if (extractor.getSampleTrackIndex() != trackIndex) {
+                        Log.w(TAG, "WEIRD: got sample from track " +
+                                extractor.getSampleTrackIndex() + ", expected " + trackIndex);
+                    }
+                    decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                            presentationTimeUs, 0 /*flags*/);
+                    if (frameMetrics != null) {
+                        rememberInputTime(presentationTimeUs, System.nanoTime());
+                    }
+                    if (VERBOSE) {
+                        Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
+                                chunkSize);
+                    }
+                    inputChunk++;
+                    extractor.advance();
                 }
+                // The EOS buffer comes out flagged, so it counts as in flight too.
+                prefetch.onInputQueued();
             }
 
             if (!outputDone) {
-                int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                int decoderStatus;
+                // A held buffer was paced before it was offered to the synchronizer.
+                boolean paced = false;
+                if (mHeldDecoderStatus >= 0) {
+                    decoderStatus = mHeldDecoderStatus;
+                    mHeldDecoderStatus = -1;
+                    paced = true;
+                } else {
+                    decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, outputTimeoutUsec);
+                    if (decoderStatus >= 0) {
+                        prefetch.onOutputDequeued();
+                    }
+                }
+                outputTimedOut = decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER;
                 if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     if (VERBOSE) Log.d(TAG, "no output from decoder available");
@@ -362,12 +851,12 @@ public class MoviePlayer {
                             "unexpected result from decoder.dequeueOutputBuffer: " +
                                     decoderStatus);
                 } else { // decoderStatus >= 0
-                    if (firstInputTimeNsec != 0) {
+                    if (mFirstInputTimeNsec != 0) {
                         // Log the delay from the first buffer of input to the first buffer
                         // of output.
                         long nowNsec = System.nanoTime();
-                        Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
-                        firstInputTimeNsec = 0;
+                        Log.d(TAG, "startup lag " + ((nowNsec-mFirstInputTimeNsec) / 1000000.0) + " ms");
+                        mFirstInputTimeNsec = 0;
                     }
                     boolean doLoop = false;
                     if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
@@ -378,28 +867,123 @@ public class MoviePlayer {
                             doLoop = true;
                         } else {
                             outputDone = true;
+                            mOutputDone = true;
+                        }
+                        if (frameListener != null) {
+                            frameListener.onEndOfStream(mLoop);
                         }
                     }
 
                     boolean doRender = (mBufferInfo.size != 0);
 
+                    if (doRender && loopTimeline != null) {
+                        int pass = loopTimeline.passOf(mBufferInfo.presentationTimeUs);
+                        if (pass > mOutputPass) {
+                            // The decoder never saw an EOS, so report the loop point here.
+                            mOutputPass = pass;
+                            if (frameListener != null) {
+                                frameListener.onEndOfStream(true);
+                            }
+                        }
+                    }
+
+                    boolean decodeOnly = false;
+                    if (doRender && mSeekTargetUsec != NO_PTS) {
+                        if (mBufferInfo.presentationTimeUs < mSeekTargetUsec) {
+                            // Decoded on the way to the seek target, never shown.
+                            decodeOnly = true;
+                            doRender = false;
+                        } else {
+                            mSeekTargetUsec = NO_PTS;
+                        }
+                    }
+
+                    if (preRoll && doRender) {
+                        // The first frame goes straight to the surface: it's shown while
+                        // we wait for start(), and pacing begins with the next one.
+                        decoder.releaseOutputBuffer(decoderStatus, true);
+                        if (frameListener != null) {
+                            frameListener.onFrameRendered(mBufferInfo.presentationTimeUs);
+                        }
+                        return;
+                    }
+
+                    if (doRender && !PlaybackRate.isShown(mBufferInfo.presentationTimeUs,
+                            frameDurationUsec, mPlaybackRate)) {
+                        // Fast playback: a frame the callback would have to drop anyway.
+                        // Skip it here, before the other streams wait for it.
+                        doRender = false;
+                    }
+
                     // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                     // to SurfaceTexture to convert to a texture.  We can't control when it
                     // appears on-screen, but we can manage the pace at which we release
-                    // the buffers.
-                    if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
+                    // the buffers.  The callback decides before the synchronizer sees the
+                    // frame, and a group shares the callback, so every stream drops the
+                    // same frames.
+                    if (doRender && !paced && frameCallback != null) {
+                        doRender = frameCallback.preRender(mBufferInfo.presentationTimeUs);
+                        if (!doRender && frameMetrics != null) {
+                            frameMetrics.recordDroppedFrame();
+                        }
+                    }
+
+                    if (doRender && mFrameSynchronizer != null) {
+                        int decision = mFrameSynchronizer.offer(mSyncStream,
+                                mBufferInfo.presentationTimeUs, System.nanoTime() / 1000);
+                        if (decision == FrameSynchronizer.HOLD) {
+                            // We're a frame ahead of the other streams.  Keep the buffer,
+                            // give the codec more input, and try again shortly.
+                            mHeldDecoderStatus = decoderStatus;
+                            try {
+                                mFrameSynchronizer.awaitChange(SYNC_HOLD_WAIT_MSEC);
+                            } catch (InterruptedException ie) {
+                                // Taken as a stop request, as in awaitStart().
+                                mIsStopRequested = true;
+                            }
+                            continue;
+                        } else if (decision == FrameSynchronizer.DROP) {
+                            if (VERBOSE) Log.d(TAG, "sync drop " + mBufferInfo.presentationTimeUs);
+                            doRender = false;
+                            if (frameMetrics != null) {
+                                frameMetrics.recordDroppedFrame();
+                            }
+                        }
+                    }
+
+                    if (doRender && frameCallback instanceof TimedFrameCallback
+                            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                        releaseOutputBufferAt(decoder, decoderStatus,
+                                ((TimedFrameCallback) frameCallback).getRenderTimeNanos(
+                                        mBufferInfo.presentationTimeUs));
+                    } else {
+                        decoder.releaseOutputBuffer(decoderStatus, doRender);
                     }
-                    decoder.releaseOutputBuffer(decoderStatus, doRender);
                     if (doRender && frameCallback != null) {
                         frameCallback.postRender();
                     }
+                    if (frameListener != null && mBufferInfo.size != 0 && !decodeOnly) {
+                        if (doRender) {
+                            frameListener.onFrameRendered(mBufferInfo.presentationTimeUs);
+                        } else {
+                            frameListener.onFrameDropped(mBufferInfo.presentationTimeUs);
+                        }
+                    }
+                    if (frameMetrics != null && mBufferInfo.size != 0) {
+                        long inputTimeNsec = takeInputTime(mBufferInfo.presentationTimeUs);
+                        if (inputTimeNsec != 0) {
+                            frameMetrics.recordDuration(FrameMetrics.STAGE_DECODE,
+                                    System.nanoTime() - inputTimeNsec);
+                        }
+                    }
 
                     if (doLoop) {
                         Log.d(TAG, "Reached EOS, looping");
                         extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                        inputDone = false;
+                        mInputDone = false;
                         decoder.flush();    // reset decoder state
+                        clearInputTimes();
+                        prefetch.reset();
                         frameCallback.loopReset();
                     }
                 }
@@ -407,6 +991,52 @@ public class MoviePlayer {
         }
     }
 
+    /**
+     * Renders an output buffer, asking for it to be displayed at {@code renderTimeNanos}
+     * rather than as soon as possible, unless the time is 0.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void releaseOutputBufferAt(MediaCodec decoder, int index,
+            long renderTimeNanos) {
+        if (renderTimeNanos == 0) {
+            decoder.releaseOutputBuffer(index, true);
+        } else {
+            decoder.releaseOutputBuffer(index, renderTimeNanos);
+        }
+    }
+
+    private long takePendingSeek() {
+        synchronized (mStartLock) {
+            long seekUsec = mPendingSeekUsec;
+            mPendingSeekUsec = NO_PTS;
+            return seekUsec;
+        }
+    }
+
+    private void clearInputTimes() {
+        Arrays.fill(mInputPtsUsec, NO_PTS);
+        mNextInputSlot = 0;
+    }
+
+    private void rememberInputTime(long presentationTimeUsec, long nowNsec) {
+        mInputPtsUsec[mNextInputSlot] = presentationTimeUsec;
+        mInputTimeNsec[mNextInputSlot] = nowNsec;
+        mNextInputSlot = (mNextInputSlot + 1) % INPUT_TIME_SLOTS;
+    }
+
+    /**
+     * Returns when the sample with the given PTS was queued, or 0 if it is not known.
+     */
+    private long takeInputTime(long presentationTimeUsec) {
+        for (int i = 0; i < INPUT_TIME_SLOTS; i++) {
+            if (mInputPtsUsec[i] == presentationTimeUsec) {
+                mInputPtsUsec[i] = NO_PTS;
+                return mInputTimeNsec[i];
+            }
+        }
+        return 0;
+    }
+
     /**
      * Thread helper for video playback.
      * <p>
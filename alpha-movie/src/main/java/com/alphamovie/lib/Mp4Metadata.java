@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the player needs to know about the video track of an MP4 file before decoding it:
+ * dimensions, duration, frame rate, sync samples and codec configuration.
+ * <p>
+ * Read with {@link Mp4Parser}, which only touches the {@code moov} box, so probing a file is
+ * a few small reads instead of a {@code MediaMetadataRetriever} session.  Results are kept in
+ * a small process-wide cache keyed by the caller, e.g. by asset name.
+ * <p>
+ * This class has no Android dependencies.
+ */
+public final class Mp4Metadata {
+    private static final int MAX_CACHED = 32;
+
+    private static final Map<String, Mp4Metadata> sCache =
+            new LinkedHashMap<String, Mp4Metadata>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Mp4Metadata> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            };
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotationDegrees;
+    private final long mDurationUsec;
+    private final int mSampleCount;
+    // 1-based sample numbers, or null if every sample is a sync sample.
+    private final int[] mSyncSamples;
+    private final String mCodecType;
+    private final byte[] mCodecConfig;
+
+    Mp4Metadata(int width, int height, int rotationDegrees, long durationUsec, int sampleCount,
+            int[] syncSamples, String codecType, byte[] codecConfig) {
+        mWidth = width;
+        mHeight = height;
+        mRotationDegrees = rotationDegrees;
+        mDurationUsec = durationUsec;
+        mSampleCount = sampleCount;
+        mSyncSamples = syncSamples;
+        mCodecType = codecType;
+        mCodecConfig = codecConfig;
+    }
+
+    /**
+     * Reads the video track of the MP4 file stored in {@code length} bytes at {@code offset}
+     * of {@code fd}, e.g. an asset of an uncompressed APK.  The descriptor is not closed.
+     *
+     * @param cacheKey Identifies the file for the cache, or null to always read it.
+     * @throws IOException if the file can't be read or has no video track.
+     */
+    public static Mp4Metadata read(FileDescriptor fd, long offset, long length, String cacheKey)
+            throws IOException {
+        Mp4Metadata metadata = getCached(cacheKey);
+        if (metadata == null) {
+            // Not closed: closing the stream would close the caller's descriptor.
+            FileChannel channel = new FileInputStream(fd).getChannel();
+            metadata = new Mp4Parser(channel, offset, length).parse();
+            putCached(cacheKey, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads the video track of an MP4 file, cached by path, size and modification time.
+     *
+     * @throws IOException if the file can't be read or has no video track.
+     */
+    public static Mp4Metadata read(File file) throws IOException {
+        String cacheKey = file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+        Mp4Metadata metadata = getCached(cacheKey);
+        if (metadata == null) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                metadata = new Mp4Parser(in.getChannel(), 0, file.length()).parse();
+            } finally {
+                in.close();
+            }
+            putCached(cacheKey, metadata);
+        }
+        return metadata;
+    }
+
+    private static synchronized Mp4Metadata getCached(String key) {
+        return key != null ? sCache.get(key) : null;
+    }
+
+    private static synchronized void putCached(String key, Mp4Metadata metadata) {
+        if (key != null) {
+            sCache.put(key, metadata);
+        }
+    }
+
+    /**
+     * Width of the coded picture, before rotation.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Height of the coded picture, before rotation.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Clockwise rotation to apply for display: 0, 90, 180 or 270.
+     */
+    public int getRotationDegrees() {
+        return mRotationDegrees;
+    }
+
+    public long getDurationUsec() {
+        return mDurationUsec;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Average frames per second over the whole track.
+     */
+    public float getFrameRate() {
+        return mDurationUsec > 0 ? mSampleCount * 1000000f / mDurationUsec : 0f;
+    }
+
+    /**
+     * Returns the 1-based numbers of the sync samples, in decode order.
+     */
+    public int[] getSyncSamples() {
+        if (mSyncSamples == null) {
+            int[] all = new int[mSampleCount];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i + 1;
+            }
+            return all;
+        }
+        return mSyncSamples.clone();
+    }
+
+    /**
+     * Whether the 1-based sample {@code sample} can be decoded without earlier ones.
+     */
+    public boolean isSyncSample(int sample) {
+        if (mSyncSamples == null) {
+            return sample >= 1 && sample <= mSampleCount;
+        }
+        return Arrays.binarySearch(mSyncSamples, sample) >= 0;
+    }
+
+    /**
+     * Four-character code of the sample entry, e.g. {@code avc1}.
+     */
+    public String getCodecType() {
+        return mCodecType;
+    }
+
+    /**
+     * MIME type matching {@link #getCodecType()}, as used by {@code MediaFormat}, or null for
+     * codecs the player doesn't know.
+     */
+    public String getMimeType() {
+        switch (mCodecType) {
+            case "avc1":
+            case "avc3":
+                return "video/avc";
+            case "hvc1":
+            case "hev1":
+                return "video/hevc";
+            case "vp09":
+                return "video/x-vnd.on2.vp9";
+            case "av01":
+                return "video/av01";
+            case "mp4v":
+                return "video/mp4v-es";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the decoder configuration record of the sample entry, e.g. the contents of the
+     * {@code avcC} box, or an empty array if there is none.
+     */
+    public byte[] getCodecConfig() {
+        return mCodecConfig.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4Metadata{" + mCodecType + " " + mWidth + "x" + mHeight
+                + (mRotationDegrees != 0 ? " rotated " + mRotationDegrees : "")
+                + ", " + mSampleCount + " samples in " + mDurationUsec + " us"
+                + ", " + (mSyncSamples != null ? mSyncSamples.length : mSampleCount)
+                + " sync}";
+    }
+}
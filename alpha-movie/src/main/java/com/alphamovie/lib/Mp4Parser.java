@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming reader of the ISO base media file format (MP4), just enough to fill in
+ * {@link Mp4Metadata} for the first video track.
+ * <p>
+ * Only box headers are read on the way to {@code moov/trak/mdia/minf/stbl}, so {@code mdat}
+ * is skipped wherever it is; the leaf boxes used ({@code tkhd}, {@code mdhd}, {@code hdlr},
+ * {@code stsd}, {@code stts} and {@code stss}) are read whole, up to
+ * {@link #MAX_LEAF_BYTES} each.  Reads go through positional {@code FileChannel} calls, so a
+ * channel shared with a player is never moved.
+ * <p>
+ * This class has no Android dependencies.
+ */
+final class Mp4Parser {
+    /** Largest leaf box read; a sync-sample table this large has four million entries. */
+    static final int MAX_LEAF_BYTES = 16 * 1024 * 1024;
+
+    private static final int MOOV = fourcc("moov");
+    private static final int TRAK = fourcc("trak");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MINF = fourcc("minf");
+    private static final int STBL = fourcc("stbl");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int STSD = fourcc("stsd");
+    private static final int STTS = fourcc("stts");
+    private static final int STSS = fourcc("stss");
+    private static final int VIDE = fourcc("vide");
+
+    // Size of a VisualSampleEntry before its child boxes, after the box header.
+    private static final int VISUAL_SAMPLE_ENTRY_BYTES = 78;
+
+    private final FileChannel mChannel;
+    private final long mOffset;
+    private final long mLength;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+
+    // Boxes of the track being read.
+    private int mRotationDegrees;
+    private boolean mVideo;
+    private long mTimescale;
+    private long mMediaDuration;
+    private int mWidth;
+    private int mHeight;
+    private String mCodecType;
+    private byte[] mCodecConfig;
+    private int mSampleCount;
+    private long mSampleDurationSum;
+    private int[] mSyncSamples;
+
+    /**
+     * @param offset Where the file starts in {@code channel}.
+     * @param length Length of the file.
+     */
+    Mp4Parser(FileChannel channel, long offset, long length) {
+        mChannel = channel;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    /**
+     * @throws IOException if the file can't be read, is malformed or has no video track.
+     */
+    Mp4Metadata parse() throws IOException {
+        long moov = findBox(MOOV, 0, mLength);
+        if (moov < 0) {
+            throw new IOException("No moov box");
+        }
+        long moovEnd = moov + readBoxSize(moov);
+        long position = moov + headerSize();
+        while (position < moovEnd) {
+            long size = readBoxSize(position);
+            if (type() == TRAK) {
+                resetTrack();
+                readContainer(position + headerSize(), position + size);
+                if (mVideo && mCodecType != null) {
+                    return buildMetadata();
+                }
+            }
+            position += size;
+        }
+        throw new IOException("No video track");
+    }
+
+    private void resetTrack() {
+        mRotationDegrees = 0;
+        mVideo = false;
+        mTimescale = 0;
+        mMediaDuration = 0;
+        mWidth = 0;
+        mHeight = 0;
+        mCodecType = null;
+        mCodecConfig = new byte[0];
+        mSampleCount = 0;
+        mSampleDurationSum = 0;
+        mSyncSamples = null;
+    }
+
+    private Mp4Metadata buildMetadata() throws IOException {
+        if (mTimescale <= 0) {
+            throw new IOException("Video track has no timescale");
+        }
+        long duration = mMediaDuration > 0 ? mMediaDuration : mSampleDurationSum;
+        long durationUsec = duration * 1000000L / mTimescale;
+        return new Mp4Metadata(mWidth, mHeight, mRotationDegrees, durationUsec, mSampleCount,
+                mSyncSamples, mCodecType, mCodecConfig);
+    }
+
+    /**
+     * Walks the children of a container box inside a track, descending into the containers
+     * on the way to the sample table.
+     */
+    private void readContainer(long start, long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            long size = readBoxSize(position);
+            if (position + size > end) {
+                throw new IOException("Box at " + position + " overruns its parent");
+            }
+            int type = type();
+            int header = headerSize();
+            if (type == MDIA || type == MINF || type == STBL) {
+                readContainer(position + header, position + size);
+            } else if (type == TKHD) {
+                readTkhd(readLeaf(position + header, size - header));
+            } else if (type == MDHD) {
+                readMdhd(readLeaf(position + header, size - header));
+            } else if (type == HDLR) {
+                ByteBuffer hdlr = readLeaf(position + header, size - header);
+                mVideo = hdlr.getInt(8) == VIDE;
+            } else if (!mVideo) {
+                // The sample table of other tracks isn't needed; hdlr comes before it.
+            } else if (type == STSD) {
+                readStsd(readLeaf(position + header, size - header));
+            } else if (type == STTS) {
+                readStts(readLeaf(position + header, size - header));
+            } else if (type == STSS) {
+                readStss(readLeaf(position + header, size - header));
+            }
+            position += size;
+        }
+    }
+
+    private void readTkhd(ByteBuffer box) throws IOException {
+        int version = box.get(0);
+        // Skip version/flags, times, track id, reserved, duration, reserved, layer,
+        // alternate group, volume and reserved to the matrix.
+        int matrix = version == 1 ? 52 : 40;
+        require(box, matrix + 8);
+        int a = box.getInt(matrix);
+        int b = box.getInt(matrix + 4);
+        if (a == 0 && b == 0x10000) {
+            mRotationDegrees = 90;
+        } else if (a == -0x10000 && b == 0) {
+            mRotationDegrees = 180;
+        } else if (a == 0 && b == -0x10000) {
+            mRotationDegrees = 270;
+        }
+    }
+
+    private void readMdhd(ByteBuffer box) throws IOException {
+        require(box, box.get(0) == 1 ? 32 : 20);
+        if (box.get(0) == 1) {
+            mTimescale = box.getInt(20) & 0xffffffffL;
+            mMediaDuration = box.getLong(24);
+        } else {
+            mTimescale = box.getInt(12) & 0xffffffffL;
+            long duration = box.getInt(16) & 0xffffffffL;
+            // All ones means unknown.
+            mMediaDuration = duration == 0xffffffffL ? 0 : duration;
+        }
+    }
+
+    private void readStsd(ByteBuffer box) throws IOException {
+        if (box.getInt(4) < 1) {
+            return;
+        }
+        int entry = 8;
+        long entrySize = box.getInt(entry) & 0xffffffffL;
+        if (entrySize < 8 + VISUAL_SAMPLE_ENTRY_BYTES || entry + entrySize > box.limit()) {
+            throw new IOException("Malformed sample entry");
+        }
+        mCodecType = fourccString(box.getInt(entry + 4));
+        // Width and height follow reserved, data reference index and pre-defined fields.
+        mWidth = box.getShort(entry + 32) & 0xffff;
+        mHeight = box.getShort(entry + 34) & 0xffff;
+
+        int position = entry + 8 + VISUAL_SAMPLE_ENTRY_BYTES;
+        int end = (int) (entry + entrySize);
+        while (position + 8 <= end) {
+            int size = box.getInt(position);
+            if (size < 8 || position + size > end) {
+                break;
+            }
+            String type = fourccString(box.getInt(position + 4));
+            if (type.equals("avcC") || type.equals("hvcC") || type.equals("vpcC")
+                    || type.equals("av1C")) {
+                mCodecConfig = new byte[size - 8];
+                for (int i = 0; i < mCodecConfig.length; i++) {
+                    mCodecConfig[i] = box.get(position + 8 + i);
+                }
+                break;
+            }
+            position += size;
+        }
+    }
+
+    private void readStts(ByteBuffer box) throws IOException {
+        int entries = checkEntries(box, 8);
+        long samples = 0;
+        long durationSum = 0;
+        for (int i = 0; i < entries; i++) {
+            long count = box.getInt(8 + i * 8) & 0xffffffffL;
+            long delta = box.getInt(12 + i * 8) & 0xffffffffL;
+            samples += count;
+            durationSum += count * delta;
+        }
+        if (samples > Integer.MAX_VALUE) {
+            throw new IOException("Too many samples: " + samples);
+        }
+        mSampleCount = (int) samples;
+        mSampleDurationSum = durationSum;
+    }
+
+    private void readStss(ByteBuffer box) throws IOException {
+        int entries = checkEntries(box, 4);
+        int[] syncSamples = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            syncSamples[i] = box.getInt(8 + i * 4);
+        }
+        mSyncSamples = syncSamples;
+    }
+
+    private static void require(ByteBuffer box, int bytes) throws IOException {
+        if (box.limit() < bytes) {
+            throw new IOException("Box too short: " + box.limit() + " bytes");
+        }
+    }
+
+    /**
+     * Returns the entry count of a full box holding a table, checked against its size.
+     */
+    private static int checkEntries(ByteBuffer box, int entryBytes) throws IOException {
+        long entries = box.getInt(4) & 0xffffffffL;
+        if (8 + entries * entryBytes > box.limit()) {
+            throw new IOException("Table of " + entries + " entries doesn't fit its box");
+        }
+        return (int) entries;
+    }
+
+    /**
+     * Returns the position of the first top-level box of {@code type}, or -1.
+     */
+    private long findBox(int type, long start, long end) throws IOException {
+        long position = start;
+        while (position + 8 <= end) {
+            long size = readBoxSize(position);
+            if (type() == type) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the header of the box at {@code position} into {@link #mHeader} and returns the
+     * size of the box, header included.
+     */
+    private long readBoxSize(long position) throws IOException {
+        mHeader.clear();
+        mHeader.limit(8);
+        readFully(mHeader, position);
+        long size = mHeader.getInt(0) & 0xffffffffL;
+        if (size == 1) {
+            mHeader.limit(16);
+            readFully(mHeader, position + 8);
+            size = mHeader.getLong(8);
+        } else if (size == 0) {
+            // The box extends to the end of the file.
+            size = mLength - position;
+        }
+        if (size < headerSize() || position + size > mLength) {
+            throw new IOException("Malformed box at " + position + ", size " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Type of the box whose header was read last.
+     */
+    private int type() {
+        return mHeader.getInt(4);
+    }
+
+    /**
+     * Header size of the box whose header was read last.
+     */
+    private int headerSize() {
+        return mHeader.limit() == 16 ? 16 : 8;
+    }
+
+    private ByteBuffer readLeaf(long position, long size) throws IOException {
+        if (size > MAX_LEAF_BYTES) {
+            throw new IOException("Box at " + position + " too large: " + size);
+        }
+        ByteBuffer box = ByteBuffer.allocate((int) size);
+        readFully(box, position);
+        box.flip();
+        if (box.limit() < 12) {
+            // Every box read here is a full box with at least one field.
+            throw new IOException("Box at " + position + " too short: " + size);
+        }
+        return box;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long filePosition = mOffset + position;
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, filePosition);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + (filePosition - mOffset));
+            }
+            filePosition += read;
+        }
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+                | type.charAt(3);
+    }
+
+    private static String fourccString(int type) {
+        return new String(new char[] {
+                (char) ((type >>> 24) & 0xff), (char) ((type >>> 16) & 0xff),
+                (char) ((type >>> 8) & 0xff), (char) (type & 0xff)});
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gets overlays ready before their views exist, e.g. the next items of a list or carousel.
+ * <p>
+ * A view can't start its decoders before its surface exists, but most of the work before
+ * that doesn't need one: copying asset streams to files (see {@link AssetStore#getFile}),
+ * probing them (see {@link Mp4Metadata}), opening an extractor on each to build the index
+ * used for exact seeks, and reading the first key frame, the decoders' first input, into the
+ * page cache.  A prefetched overlay then gets from {@code setVideoFromFiles} to decoding
+ * without touching the file system, and only pays for its decoders.
+ * <p>
+ * Overlays are prefetched in the background, the one with the lowest priority value first,
+ * e.g. the distance in items from the visible range, so re-offering the neighborhood on
+ * scroll keeps the work focused where the list is heading.  How many are prefetched at once
+ * follows the device's decoder instance limit.  Results land in process-wide caches, so any
+ * view benefits, and prefetching an overlay twice costs little.
+ * <p>
+ * May be called from any thread.
+ */
+public final class OverlayPrefetcher {
+    private static final String TAG = "OverlayPrefetcher";
+
+    private static final int STREAMS_PER_OVERLAY = 3;
+    // Used until the decoder instance limit is known, and where it can't be (before API 23).
+    private static final int DEFAULT_MAX_CONCURRENT = 2;
+    private static final int MAX_CONCURRENT = 4;
+    private static final String LIMIT_MIME = "video/avc";
+    // Read buffer for the first key frame when the track doesn't give its largest sample.
+    private static final int DEFAULT_MAX_INPUT_SIZE = 1024 * 1024;
+
+    private static OverlayPrefetcher sInstance;
+
+    private final AssetStore mAssetStore;
+    private final ExecutorService mExecutor;
+
+    // Guarded by this.
+    private final PrefetchQueue mQueue = new PrefetchQueue(DEFAULT_MAX_CONCURRENT);
+    private final Map<String, Job> mJobs = new HashMap<String, Job>();
+    private boolean mMaxConcurrentSet;
+    private boolean mLimitChecked;
+
+    private OverlayPrefetcher(Context context) {
+        mAssetStore = AssetStore.get(context);
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "OverlayPrefetch-" + (++mCount));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized OverlayPrefetcher get(Context context) {
+        if (sInstance == null) {
+            sInstance = new OverlayPrefetcher(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Prefetches the files of an overlay played with {@link AlphaMovieView#setVideoFromFiles}.
+     * If it is already queued, only its priority changes.
+     *
+     * @param priority lower values are prefetched first.
+     */
+    public void prefetchFiles(String moviePath, String movieBgPath, String movieAlphaPath,
+            int priority) {
+        offer(new Job(false, moviePath, movieBgPath, movieAlphaPath), priority);
+    }
+
+    /**
+     * Prefetches the assets of an overlay: they are copied to files, to be played with
+     * {@link AlphaMovieView#setVideoFromFiles} using {@link AssetStore#getFile}, which then
+     * returns right away, and probed for {@link AlphaMovieView#setVideoFromAssets} too.  If it
+     * is already queued, only its priority changes.
+     *
+     * @param priority lower values are prefetched first.
+     */
+    public void prefetchAssets(String assetsFileName, String assetsFileNameBg,
+            String assetsFileNameAlpha, int priority) {
+        offer(new Job(true, assetsFileName, assetsFileNameBg, assetsFileNameAlpha), priority);
+    }
+
+    /**
+     * Drops a queued {@link #prefetchFiles} request.  One already running runs to the end.
+     */
+    public synchronized void cancelFiles(String moviePath, String movieBgPath,
+            String movieAlphaPath) {
+        cancel(new Job(false, moviePath, movieBgPath, movieAlphaPath).mKey);
+    }
+
+    /**
+     * Drops a queued {@link #prefetchAssets} request.  One already running runs to the end.
+     */
+    public synchronized void cancelAssets(String assetsFileName, String assetsFileNameBg,
+            String assetsFileNameAlpha) {
+        cancel(new Job(true, assetsFileName, assetsFileNameBg, assetsFileNameAlpha).mKey);
+    }
+
+    /**
+     * Drops all queued requests, e.g. when the list goes away.
+     */
+    public synchronized void cancelAll() {
+        mQueue.clear();
+        Iterator<Job> it = mJobs.values().iterator();
+        while (it.hasNext()) {
+            if (!it.next().mRunning) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sets how many overlays are prefetched at once, instead of following the decoder
+     * instance limit.
+     *
+     * @throws IllegalArgumentException if {@code maxConcurrent} is less than 1.
+     */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        mQueue.setMaxRunning(maxConcurrent);
+        mMaxConcurrentSet = true;
+        schedule();
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return mQueue.getMaxRunning();
+    }
+
+    private synchronized void offer(Job job, int priority) {
+        if (mQueue.offer(job.mKey, priority) && !mJobs.containsKey(job.mKey)) {
+            mJobs.put(job.mKey, job);
+        }
+        schedule();
+    }
+
+    // Called with the lock held.
+    private void cancel(String key) {
+        Job job = mJobs.get(key);
+        if (job != null && !job.mRunning) {
+            mQueue.cancel(key);
+            mJobs.remove(key);
+        }
+    }
+
+    // Called with the lock held.
+    private void schedule() {
+        String key;
+        while ((key = mQueue.poll()) != null) {
+            final Job job = mJobs.get(key);
+            job.mRunning = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkDecoderLimit();
+                        job.run();
+                    } finally {
+                        finish(job);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void finish(Job job) {
+        mQueue.finish(job.mKey);
+        mJobs.remove(job.mKey);
+        schedule();
+    }
+
+    /**
+     * Sizes the concurrency from the decoder instance limit, once.  Each overlay will want a
+     * decoder per stream, and half of the decoders are left to the overlays on screen.
+     */
+    // runs on a pool thread
+    private void checkDecoderLimit() {
+        synchronized (this) {
+            if (mLimitChecked) {
+                return;
+            }
+            mLimitChecked = true;
+        }
+        int instances = DecoderPool.getMaxDecoderInstances(LIMIT_MIME);
+        if (instances <= 0) {
+            return;
+        }
+        int maxConcurrent = Math.max(1, Math.min(MAX_CONCURRENT,
+                instances / 2 / STREAMS_PER_OVERLAY));
+        synchronized (this) {
+            if (!mMaxConcurrentSet) {
+                mQueue.setMaxRunning(maxConcurrent);
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata of a stream file, builds its seek index, and reads its first key
+     * frame.
+     */
+    private static void warmFile(File file) throws IOException {
+        Mp4Metadata.read(file);
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new IOException("No video track found in " + file);
+            }
+            extractor.selectTrack(trackIndex);
+            MoviePlayer.loadSeekIndex(file, extractor);
+
+            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            int maxInputSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_MAX_INPUT_SIZE;
+            extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            extractor.readSampleData(ByteBuffer.allocate(maxInputSize), 0);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private final class Job {
+        final String mKey;
+        final boolean mAssets;
+        final String[] mNames;
+        // Guarded by the prefetcher.
+        boolean mRunning;
+
+        Job(boolean assets, String... names) {
+            mAssets = assets;
+            mNames = names;
+            StringBuilder key = new StringBuilder(assets ? "asset:" : "file:");
+            for (String name : names) {
+                key.append(name).append('\n');
+            }
+            mKey = key.toString();
+        }
+
+        // runs on a pool thread
+        void run() {
+            for (String name : mNames) {
+                try {
+                    if (mAssets) {
+                        warmAsset(name);
+                    } else {
+                        warmFile(new File(name));
+                    }
+                } catch (IOException ioe) {
+                    Log.w(TAG, "can't prefetch " + name, ioe);
+                } catch (RuntimeException re) {
+                    // MediaExtractor throws these for files it can't parse.
+                    Log.w(TAG, "can't prefetch " + name, re);
+                }
+            }
+        }
+
+        private void warmAsset(String assetName) throws IOException {
+            AssetFileDescriptor range = mAssetStore.openRange(assetName);
+            if (range != null) {
+                try {
+                    Utils.readAssetMetadata(range, assetName);
+                } finally {
+                    range.close();
+                }
+            }
+            warmFile(mAssetStore.getFile(assetName));
+        }
+    }
+}
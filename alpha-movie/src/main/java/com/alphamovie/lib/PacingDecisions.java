@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+/**
+ * The recent pacing decisions of a group of streams, by presentation time.
+ * <p>
+ * Color, background and alpha are decoded on separate threads but must be shown and dropped
+ * together.  The first stream to reach a frame decides whether and when it is shown; the
+ * others find the decision here and do the same, so a late frame is dropped on every stream
+ * rather than on whichever happened to be late.  Streams are kept within a frame or two of
+ * each other by {@link FrameSynchronizer}, so a few slots are enough.
+ * <p>
+ * When a frame earlier than the last decided one is recorded (loop or seek), the older
+ * decisions are forgotten.
+ * <p>
+ * Not thread safe; {@link SpeedControlCallback} guards it.  Kept free of Android dependencies
+ * so it can be exercised on a plain JVM.
+ */
+final class PacingDecisions {
+    static final int SLOTS = 8;
+
+    private final long mToleranceUsec;
+    private final long[] mPtsUsec = new long[SLOTS];
+    private final boolean[] mRender = new boolean[SLOTS];
+    private final long[] mDesiredUsec = new long[SLOTS];
+    private final long[] mRenderTimeNanos = new long[SLOTS];
+    private final long[] mSpanUsec = new long[SLOTS];
+    private int mCount;
+    private int mLast = -1;
+
+    /**
+     * @param toleranceUsec frames this close are the same frame, as in
+     *     {@link FrameSynchronizer}.
+     */
+    PacingDecisions(long toleranceUsec) {
+        mToleranceUsec = toleranceUsec;
+    }
+
+    /**
+     * Returns the slot of the decision for the frame at {@code ptsUsec}, or -1 if no stream
+     * decided it yet.
+     */
+    int find(long ptsUsec) {
+        for (int i = 0; i < mCount; i++) {
+            if (Math.abs(mPtsUsec[i] - ptsUsec) <= mToleranceUsec) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records a decision, replacing the oldest one once all slots are used.
+     *
+     * @param desiredUsec when the frame is due, or 0 to release it right away.
+     * @param renderTimeNanos when it should be displayed, or 0 for as soon as possible.
+     * @param spanUsec the time the frame is due after the previous one; how late it may be
+     *     released before it counts as late.
+     * @return the slot.
+     */
+    int record(long ptsUsec, boolean render, long desiredUsec, long renderTimeNanos,
+            long spanUsec) {
+        if (mLast >= 0 && ptsUsec < mPtsUsec[mLast] - mToleranceUsec) {
+            clear();
+        }
+        int slot = (mLast + 1) % SLOTS;
+        mPtsUsec[slot] = ptsUsec;
+        mRender[slot] = render;
+        mDesiredUsec[slot] = desiredUsec;
+        mRenderTimeNanos[slot] = renderTimeNanos;
+        mSpanUsec[slot] = spanUsec;
+        mLast = slot;
+        mCount = Math.max(mCount, slot + 1);
+        return slot;
+    }
+
+    boolean isRender(int slot) {
+        return mRender[slot];
+    }
+
+    long getDesiredUsec(int slot) {
+        return mDesiredUsec[slot];
+    }
+
+    long getRenderTimeNanos(int slot) {
+        return mRenderTimeNanos[slot];
+    }
+
+    long getSpanUsec(int slot) {
+        return mSpanUsec[slot];
+    }
+
+    void clear() {
+        mCount = 0;
+        mLast = -1;
+    }
+}
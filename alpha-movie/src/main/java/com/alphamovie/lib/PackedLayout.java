@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Describes how color and alpha are packed into a single video frame.
+ * <p>
+ * With a packed layout one decoder feeds one external texture, and the shader samples the
+ * color half and the mask half of the same frame.  Regions are expressed in texture space
+ * before the SurfaceTexture transform is applied, as {offsetU, offsetV, scaleU, scaleV},
+ * where v = 1 is the top of the decoded frame.
+ */
+public enum PackedLayout {
+    /** Color and alpha come from separate videos. */
+    NONE(new float[]{0f, 0f, 1f, 1f}, new float[]{0f, 0f, 1f, 1f}, 1, 1),
+
+    /** Color in the top half of the frame, alpha mask in the bottom half. */
+    TOP_BOTTOM(new float[]{0f, 0.5f, 1f, 0.5f}, new float[]{0f, 0f, 1f, 0.5f}, 1, 2),
+
+    /** Color in the left half of the frame, alpha mask in the right half. */
+    LEFT_RIGHT(new float[]{0f, 0f, 0.5f, 1f}, new float[]{0.5f, 0f, 0.5f, 1f}, 2, 1);
+
+    private final float[] colorRegion;
+    private final float[] alphaRegion;
+    private final int widthDivisor;
+    private final int heightDivisor;
+
+    PackedLayout(float[] colorRegion, float[] alphaRegion, int widthDivisor, int heightDivisor) {
+        this.colorRegion = colorRegion;
+        this.alphaRegion = alphaRegion;
+        this.widthDivisor = widthDivisor;
+        this.heightDivisor = heightDivisor;
+    }
+
+    public boolean isPacked() {
+        return this != NONE;
+    }
+
+    /**
+     * Returns the color region as {offsetU, offsetV, scaleU, scaleV}.  Don't modify.
+     */
+    public float[] getColorRegion() {
+        return colorRegion;
+    }
+
+    /**
+     * Returns the alpha mask region as {offsetU, offsetV, scaleU, scaleV}.  Don't modify.
+     */
+    public float[] getAlphaRegion() {
+        return alphaRegion;
+    }
+
+    /**
+     * Returns the width of the visible picture for a packed frame of the given width.
+     */
+    public int getContentWidth(int frameWidth) {
+        return frameWidth / widthDivisor;
+    }
+
+    /**
+     * Returns the height of the visible picture for a packed frame of the given height.
+     */
+    public int getContentHeight(int frameHeight) {
+        return frameHeight / heightDivisor;
+    }
+
+    /**
+     * Maps the {@code packedLayout} xml attribute value to a layout.
+     */
+    static PackedLayout fromAttribute(int value) {
+        PackedLayout[] layouts = values();
+        if (value < 0 || value >= layouts.length) {
+            return NONE;
+        }
+        return layouts[value];
+    }
+}
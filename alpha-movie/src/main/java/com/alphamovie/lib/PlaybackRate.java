@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Playback rate arithmetic shared by {@link MoviePlayer} and {@link SpeedControlCallback}.
+ * <p>
+ * Slower than normal, frames are simply shown for longer.  Faster than normal, showing every
+ * frame would exceed the content's frame rate, so only the frame nearest to each
+ * {@code rate * frameDuration} step of content time is shown (see {@link #isShown}).  The
+ * choice depends only on a frame's presentation time, so streams that are played together
+ * skip the same frames, and the decoder can skip samples before they are decoded.
+ * <p>
+ * This class has no Android dependencies.
+ */
+public final class PlaybackRate {
+    public static final float MIN_RATE = 0.25f;
+    public static final float MAX_RATE = 4f;
+    public static final float NORMAL = 1f;
+
+    private PlaybackRate() {}
+
+    /**
+     * Returns the rate if it's within [{@link #MIN_RATE}, {@link #MAX_RATE}].
+     *
+     * @throws IllegalArgumentException otherwise.
+     */
+    public static float check(float rate) {
+        if (!(rate >= MIN_RATE && rate <= MAX_RATE)) {
+            throw new IllegalArgumentException("Playback rate must be between " + MIN_RATE
+                    + " and " + MAX_RATE + ": " + rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Converts a span of content time into the wall clock time it takes at {@code rate}.
+     */
+    static long scaleUsec(long contentUsec, float rate) {
+        if (rate == NORMAL) {
+            return contentUsec;
+        }
+        return (long) (contentUsec / (double) rate);
+    }
+
+    /**
+     * Returns whether the frame at {@code ptsUsec} is shown at {@code rate}.  Always true at
+     * or below the normal rate.
+     *
+     * @param frameDurationUsec The nominal frame duration of the content.
+     */
+    static boolean isShown(long ptsUsec, long frameDurationUsec, float rate) {
+        if (rate <= NORMAL || frameDurationUsec <= 0) {
+            return true;
+        }
+        long strideUsec = (long) (frameDurationUsec * (double) rate);
+        // The frame is shown if a step lies within half a frame of it, on either side.
+        long offsetUsec = (ptsUsec + frameDurationUsec / 2) % strideUsec;
+        if (offsetUsec < 0) {
+            offsetUsec += strideUsec;
+        }
+        return offsetUsec < frameDurationUsec;
+    }
+}
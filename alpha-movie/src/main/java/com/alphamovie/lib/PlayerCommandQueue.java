@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Pending commands of one player, in the order they were issued, used by
+ * {@link MediaPlayerController}.
+ * <p>
+ * Commands that a later one makes pointless are dropped when it is offered, so rapid toggling
+ * only runs the last intent:
+ * <ul>
+ *     <li>{@link #START} and {@link #PAUSE} replace any pending start or pause.</li>
+ *     <li>{@link #STOP} replaces any pending start, pause, seek or prepare, and a pending
+ *     stop.</li>
+ *     <li>{@link #SEEK} replaces a pending seek; the latest position wins.</li>
+ *     <li>{@link #PREPARE} is dropped if one is already pending with no stop after it.</li>
+ * </ul>
+ * Player events ({@link #PREPARED}, {@link #COMPLETED}) are never dropped.
+ * <p>
+ * The queue also tracks whether a drain is scheduled, so the owner schedules one drain task
+ * per burst of commands.  Not thread safe; the owner synchronizes.  This class has no Android
+ * dependencies.
+ */
+final class PlayerCommandQueue {
+    static final int START = 0;
+    static final int PAUSE = 1;
+    static final int STOP = 2;
+    static final int SEEK = 3;
+    static final int PREPARE = 4;
+    static final int PREPARED = 5;
+    static final int COMPLETED = 6;
+
+    /** Returned by {@link #poll()} when the queue is empty. */
+    static final long NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] mCommands = new int[INITIAL_CAPACITY];
+    private int[] mArgs = new int[INITIAL_CAPACITY];
+    private int mSize;
+    private boolean mDraining;
+
+    /**
+     * Adds a command, dropping the pending commands it makes redundant.
+     *
+     * @param arg Command argument, e.g. the seek position in milliseconds.
+     * @return true if the caller has to schedule a drain.
+     */
+    boolean offer(int command, int arg) {
+        switch (command) {
+            case START:
+            case PAUSE:
+                remove(START, PAUSE, PAUSE);
+                break;
+            case STOP:
+                remove(START, PAUSE, SEEK);
+                remove(STOP, PREPARE, PREPARE);
+                break;
+            case SEEK:
+                remove(SEEK, SEEK, SEEK);
+                break;
+            case PREPARE:
+                if (lastIndexOf(PREPARE) > lastIndexOf(STOP)) {
+                    // Prepare, stop, prepare has to end up prepared.
+                    return false;
+                }
+                break;
+            case PREPARED:
+            case COMPLETED:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+        if (mSize == mCommands.length) {
+            int[] commands = new int[mSize * 2];
+            int[] args = new int[mSize * 2];
+            System.arraycopy(mCommands, 0, commands, 0, mSize);
+            System.arraycopy(mArgs, 0, args, 0, mSize);
+            mCommands = commands;
+            mArgs = args;
+        }
+        mCommands[mSize] = command;
+        mArgs[mSize] = arg;
+        mSize++;
+        if (mDraining) {
+            return false;
+        }
+        mDraining = true;
+        return true;
+    }
+
+    /**
+     * Takes the oldest command.  When the queue is empty the drain is over, and the next
+     * {@link #offer} asks for a new one.
+     *
+     * @return the command and its argument, see {@link #commandOf} and {@link #argOf}, or
+     *     {@link #NONE}.
+     */
+    long poll() {
+        if (mSize == 0) {
+            mDraining = false;
+            return NONE;
+        }
+        long entry = ((long) mCommands[0] << 32) | (mArgs[0] & 0xffffffffL);
+        mSize--;
+        System.arraycopy(mCommands, 1, mCommands, 0, mSize);
+        System.arraycopy(mArgs, 1, mArgs, 0, mSize);
+        return entry;
+    }
+
+    static int commandOf(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    static int argOf(long entry) {
+        return (int) entry;
+    }
+
+    /**
+     * Drops every pending command.  A scheduled drain still runs, and finds nothing.
+     */
+    void clear() {
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private int lastIndexOf(int command) {
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mCommands[i] == command) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void remove(int a, int b, int c) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            int command = mCommands[i];
+            if (command != a && command != b && command != c) {
+                mCommands[kept] = command;
+                mArgs[kept] = mArgs[i];
+                kept++;
+            }
+        }
+        mSize = kept;
+    }
+}
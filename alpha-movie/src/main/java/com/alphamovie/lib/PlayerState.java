@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * States of a {@code MediaPlayer} driven by {@link MediaPlayerController}, following the
+ * {@code MediaPlayer} state diagram.
+ */
+public enum PlayerState {
+    NOT_PREPARED, PREPARING, PREPARED, STARTED, PAUSED, COMPLETED, STOPPED, RELEASE;
+
+    /**
+     * Whether {@code MediaPlayer.start()} may be called.
+     */
+    boolean canStart() {
+        return this == PREPARED || this == PAUSED || this == COMPLETED;
+    }
+
+    /**
+     * Whether {@code MediaPlayer.seekTo()} and {@code stop()} may be called.
+     */
+    boolean isPrepared() {
+        return this == PREPARED || this == STARTED || this == PAUSED || this == COMPLETED;
+    }
+
+    /**
+     * Whether {@code MediaPlayer.prepareAsync()} may be called.
+     */
+    boolean canPrepare() {
+        return this == NOT_PREPARED || this == STOPPED;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pending and running jobs of {@link OverlayPrefetcher}, keyed by overlay.
+ * <p>
+ * The pending job with the lowest priority value runs first, ties in the order they were
+ * offered, and at most {@code maxRunning} run at once.  Offering a pending job again only
+ * changes its priority, so a list can re-offer its neighborhood on every scroll step; a job
+ * that is running is left alone.  Pending jobs are few (a carousel offers tens), so the next
+ * one is found by a scan.
+ * <p>
+ * Not thread safe; the owner synchronizes.  This class has no Android dependencies.
+ */
+final class PrefetchQueue {
+    // Insertion ordered, which breaks ties between equal priorities.
+    private final LinkedHashMap<String, Integer> mPending = new LinkedHashMap<String, Integer>();
+    private final Set<String> mRunning = new HashSet<String>();
+    private int mMaxRunning;
+
+    PrefetchQueue(int maxRunning) {
+        setMaxRunning(maxRunning);
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code maxRunning} is less than 1.
+     */
+    void setMaxRunning(int maxRunning) {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("Need at least one running job: " + maxRunning);
+        }
+        mMaxRunning = maxRunning;
+    }
+
+    int getMaxRunning() {
+        return mMaxRunning;
+    }
+
+    /**
+     * Queues the job {@code key}, or moves it to {@code priority} if it is already pending.
+     *
+     * @return false if the job is running, in which case nothing changes.
+     */
+    boolean offer(String key, int priority) {
+        if (mRunning.contains(key)) {
+            return false;
+        }
+        mPending.put(key, priority);
+        return true;
+    }
+
+    /**
+     * Takes the most urgent pending job and counts it as running, if fewer than the maximum
+     * are running.
+     *
+     * @return the job, or null.
+     */
+    String poll() {
+        if (mRunning.size() >= mMaxRunning || mPending.isEmpty()) {
+            return null;
+        }
+        String best = null;
+        int bestPriority = 0;
+        for (Map.Entry<String, Integer> entry : mPending.entrySet()) {
+            if (best == null || entry.getValue() < bestPriority) {
+                best = entry.getKey();
+                bestPriority = entry.getValue();
+            }
+        }
+        mPending.remove(best);
+        mRunning.add(best);
+        return best;
+    }
+
+    /**
+     * Called when a job taken by {@link #poll()} is done, successfully or not.
+     */
+    void finish(String key) {
+        mRunning.remove(key);
+    }
+
+    /**
+     * Drops the job if it is pending.  A running job runs to the end.
+     */
+    void cancel(String key) {
+        mPending.remove(key);
+    }
+
+    void clear() {
+        mPending.clear();
+    }
+
+    int pendingCount() {
+        return mPending.size();
+    }
+
+    int runningCount() {
+        return mRunning.size();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells whether a compressed sample can be left out without affecting other frames.
+ * <p>
+ * {@code MediaExtractor} hands out H.264 and H.265 samples as Annex B byte streams.  A
+ * sample is disposable when its picture is not used as a reference: for H.264 its slice NAL
+ * units have {@code nal_ref_idc} 0, for H.265 it is a sub-layer non-reference picture (an even
+ * NAL unit type below 16).  Only the NAL units up to the first slice are read.  Anything else,
+ * including other codecs and samples without start codes, is reported as needed.
+ * <p>
+ * This class has no Android dependencies.
+ */
+final class SampleDependency {
+    static final String MIME_AVC = "video/avc";
+    static final String MIME_HEVC = "video/hevc";
+
+    private static final int AVC_NAL_SLICE = 1;
+    private static final int AVC_NAL_IDR_SLICE = 5;
+    private static final int HEVC_NAL_VCL_LAST = 31;
+    private static final int HEVC_NAL_RESERVED_NON_REFERENCE_LAST = 14;
+
+    private SampleDependency() {}
+
+    /**
+     * Returns whether the sample in {@code sample[0, size)} is not referenced by any other
+     * frame.  The buffer's position and limit are not used or changed.
+     */
+    static boolean isDisposable(ByteBuffer sample, int size, String mime) {
+        boolean avc = MIME_AVC.equals(mime);
+        if (!avc && !MIME_HEVC.equals(mime)) {
+            return false;
+        }
+        int zeros = 0;
+        for (int i = 0; i < size - 1; i++) {
+            int b = sample.get(i) & 0xff;
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                // Start code; the NAL unit header follows.  All slices of a picture agree
+                // on whether it is a reference, so the first one decides.
+                int header = sample.get(i + 1) & 0xff;
+                if (avc) {
+                    int type = header & 0x1f;
+                    if (type >= AVC_NAL_SLICE && type <= AVC_NAL_IDR_SLICE) {
+                        return (header & 0x60) == 0;
+                    }
+                } else {
+                    int type = (header >> 1) & 0x3f;
+                    if (type <= HEVC_NAL_VCL_LAST) {
+                        return type <= HEVC_NAL_RESERVED_NON_REFERENCE_LAST && (type & 1) == 0;
+                    }
+                }
+                i++;
+            }
+            zeros = 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Presentation times of every sample of a video track, and of its sync samples, for exact
+ * seeking: {@link MoviePlayer} seeks the extractor to the sync sample at or before the
+ * wanted frame and decodes forward from there without rendering.
+ * <p>
+ * An index is built once per asset by scanning the container, and kept in a small
+ * process-wide cache keyed by the caller (see {@link #getCached}), so later seeks and later
+ * players of the same file don't scan again.
+ * <p>
+ * This class has no Android dependencies.
+ */
+final class SeekIndex {
+    private static final int MAX_CACHED = 32;
+
+    private static final Map<String, SeekIndex> sCache =
+            new LinkedHashMap<String, SeekIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SeekIndex> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            };
+
+    // Both sorted by presentation time.
+    private final long[] mSamplePtsUsec;
+    private final long[] mSyncPtsUsec;
+
+    /**
+     * @param samplePtsUsec Presentation times of the first {@code sampleCount} entries are
+     *     the samples of the track, in any order.
+     * @param syncPtsUsec The same for the first {@code syncCount} entries, for sync samples.
+     * @throws IllegalArgumentException if there are no samples or no sync samples.
+     */
+    SeekIndex(long[] samplePtsUsec, int sampleCount, long[] syncPtsUsec, int syncCount) {
+        if (sampleCount <= 0 || syncCount <= 0) {
+            throw new IllegalArgumentException("Track has " + sampleCount + " samples, "
+                    + syncCount + " of them sync samples");
+        }
+        mSamplePtsUsec = Arrays.copyOf(samplePtsUsec, sampleCount);
+        mSyncPtsUsec = Arrays.copyOf(syncPtsUsec, syncCount);
+        Arrays.sort(mSamplePtsUsec);
+        Arrays.sort(mSyncPtsUsec);
+    }
+
+    static synchronized SeekIndex getCached(String key) {
+        return sCache.get(key);
+    }
+
+    static synchronized void putCached(String key, SeekIndex index) {
+        sCache.put(key, index);
+    }
+
+    int getSampleCount() {
+        return mSamplePtsUsec.length;
+    }
+
+    long getFirstPtsUsec() {
+        return mSamplePtsUsec[0];
+    }
+
+    long getLastPtsUsec() {
+        return mSamplePtsUsec[mSamplePtsUsec.length - 1];
+    }
+
+    /**
+     * Returns the frame on screen at {@code ptsUsec}: the last one presented at or before it,
+     * or the first frame for earlier times.
+     */
+    long frameAt(long ptsUsec) {
+        return floor(mSamplePtsUsec, ptsUsec);
+    }
+
+    /**
+     * Returns the sync sample to start decoding from to reach the frame at
+     * {@code framePtsUsec}: the last one presented at or before it, or the first one.
+     */
+    long syncSampleFor(long framePtsUsec) {
+        return floor(mSyncPtsUsec, framePtsUsec);
+    }
+
+    private static long floor(long[] sortedPtsUsec, long ptsUsec) {
+        int index = Arrays.binarySearch(sortedPtsUsec, ptsUsec);
+        if (index < 0) {
+            // Insertion point minus one is the last entry below ptsUsec.
+            index = Math.max(-index - 2, 0);
+        }
+        return sortedPtsUsec[index];
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Shader sources of {@link VideoRenderer} and of the overlay renderers in the
+ * {@code independent} package; the only copy of the built-in shaders.
+ * <p>
+ * Kept free of Android dependencies so shader generation can be exercised on a plain JVM.
+ */
+public final class ShaderSource {
+    public static final String VERTEX = "uniform mat4 uMVPMatrix;\n"
+            + "uniform mat4 uSTMatrix;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aTextureCoord;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "void main() {\n"
+            + "  gl_Position = uMVPMatrix * aPosition;\n"
+            + "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n"
+            + "}\n";
+
+    /**
+     * Maps the quad onto the color and mask regions given by {@code uColorRegion} and
+     * {@code uAlphaRegion} (offset in xy, size in zw) of a packed frame.
+     */
+    public static final String PACKED_VERTEX = "uniform mat4 uMVPMatrix;\n"
+            + "uniform mat4 uSTMatrix;\n"
+            + "uniform vec4 uColorRegion;\n"
+            + "uniform vec4 uAlphaRegion;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aTextureCoord;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "varying vec2 vAlphaCoord;\n"
+            + "void main() {\n"
+            + "  gl_Position = uMVPMatrix * aPosition;\n"
+            + "  vec2 colorCoord = uColorRegion.xy + aTextureCoord.xy * uColorRegion.zw;\n"
+            + "  vec2 alphaCoord = uAlphaRegion.xy + aTextureCoord.xy * uAlphaRegion.zw;\n"
+            + "  vTextureCoord = (uSTMatrix * vec4(colorCoord, 0., 1.)).xy;\n"
+            + "  vAlphaCoord = (uSTMatrix * vec4(alphaCoord, 0., 1.)).xy;\n"
+            + "}\n";
+
+    /**
+     * Composites color over background.  Opacity is the alpha video's green channel, or with
+     * {@code uBlendMode} 1, whether the color is further than {@code uKeyTolerance} from
+     * {@code uKeyColor} in any channel.
+     */
+    public static final String COMPOSITE_FRAGMENT = "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "uniform samplerExternalOES sTextureBg;\n"
+            + "uniform samplerExternalOES sTextureAlpha;\n"
+            + "uniform vec3 uKeyColor;\n"
+            + "uniform float uKeyTolerance;\n"
+            + "uniform float uBlendMode;\n"
+            + "void main() {\n"
+            + "  vec4 color = texture2D(sTexture, vTextureCoord);\n"
+            + "  vec4 colorBg = texture2D(sTextureBg, vTextureCoord);\n"
+            + "  vec4 colorAlpha = texture2D(sTextureAlpha, vTextureCoord);\n"
+            + "  vec3 keyDistance = abs(color.rgb - uKeyColor);\n"
+            + "  float keyAlpha = 1. - step(max(keyDistance.r, max(keyDistance.g, keyDistance.b)), uKeyTolerance);\n"
+            + "  gl_FragColor = mix(colorBg, color, mix(colorAlpha.g, keyAlpha, uBlendMode));\n"
+            + "}\n";
+
+    /**
+     * Variant of {@link #COMPOSITE_FRAGMENT} without a background, for overlays: color over
+     * transparency.  Used with {@link #VERTEX}.
+     */
+    public static final String OVERLAY_FRAGMENT = "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "uniform samplerExternalOES sTextureAlpha;\n"
+            + "uniform vec3 uKeyColor;\n"
+            + "uniform float uKeyTolerance;\n"
+            + "uniform float uBlendMode;\n"
+            + "void main() {\n"
+            + "  vec4 color = texture2D(sTexture, vTextureCoord);\n"
+            + "  vec4 colorAlpha = texture2D(sTextureAlpha, vTextureCoord);\n"
+            + "  vec4 colorTrans = vec4(0., 0., 0., 0.);\n"
+            + "  vec3 keyDistance = abs(color.rgb - uKeyColor);\n"
+            + "  float keyAlpha = 1. - step(max(keyDistance.r, max(keyDistance.g, keyDistance.b)), uKeyTolerance);\n"
+            + "  gl_FragColor = mix(colorTrans, color, mix(colorAlpha.g, keyAlpha, uBlendMode));\n"
+            + "}\n";
+
+    /**
+     * Packed-layout variant of {@link #COMPOSITE_FRAGMENT}: color and mask are two regions of
+     * one texture, and there is no background.
+     */
+    public static final String PACKED_FRAGMENT = "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "varying vec2 vAlphaCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "uniform vec3 uKeyColor;\n"
+            + "uniform float uKeyTolerance;\n"
+            + "uniform float uBlendMode;\n"
+            + "void main() {\n"
+            + "  vec4 color = texture2D(sTexture, vTextureCoord);\n"
+            + "  vec4 colorAlpha = texture2D(sTexture, vAlphaCoord);\n"
+            + "  vec4 colorTrans = vec4(0., 0., 0., 0.);\n"
+            + "  vec3 keyDistance = abs(color.rgb - uKeyColor);\n"
+            + "  float keyAlpha = 1. - step(max(keyDistance.r, max(keyDistance.g, keyDistance.b)), uKeyTolerance);\n"
+            + "  gl_FragColor = mix(colorTrans, color, mix(colorAlpha.g, keyAlpha, uBlendMode));\n"
+            + "}\n";
+
+    /**
+     * Copies an ordinary 2D texture, such as a frame cached by {@link FrameCache}.  Used with
+     * {@link #VERTEX}.
+     */
+    public static final String COPY_FRAGMENT = "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "uniform sampler2D sTexture;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+            + "}\n";
+
+    private ShaderSource() {
+    }
+}
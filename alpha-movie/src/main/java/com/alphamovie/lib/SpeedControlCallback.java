@@ -26,7 +26,19 @@ import android.util.Log;
  * <p>
  * This is not coordinated with VSYNC.  Since we can't control the display's refresh rate, and
  * the source material has time stamps that specify when each frame should be presented,
- * we will have to drop or repeat frames occasionally.
+ * we will have to drop or repeat frames occasionally.  {@link VsyncScheduler} builds on this
+ * class to put each frame on a chosen refresh.
+ * <p>
+ * Frames that are more than a frame late are dropped or the clock is re-anchored, depending
+ * on the catch-up strategy, so a decoder that fell behind doesn't keep every later frame late.
+ * The decisions are made by {@link FramePacing#pace}.
+ * <p>
+ * One callback can pace the decode threads of a group of streams that are shown together.
+ * The first stream to reach a frame decides whether and when it is shown, and the others
+ * follow that decision (see {@link PacingDecisions}), so the streams drop the same frames and
+ * release the ones they show at the same time.  A loop or seek starts a new round of
+ * decisions: the first stream to reset forgets the old ones, so frames that come around again
+ * are decided anew, and the streams resetting after it follow the new decisions.
  * <p>
  * Thread restrictions are noted in the method descriptions.  The FrameCallback overrides should
  * only be called from the MoviePlayer.
@@ -37,10 +49,48 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
 
     private static final long ONE_MILLION = 1000000L;
 
+    /**
+     * Drop late frames, keeping the original timeline, until playback is back on time or the
+     * maximum number of consecutive drops is reached.
+     */
+    public static final int CATCH_UP_DROP = FramePacing.CATCH_UP_DROP;
+
+    /**
+     * Show late frames, and continue the timeline from the late frame.  Playback falls behind
+     * the movie's clock instead of skipping content.
+     */
+    public static final int CATCH_UP_REANCHOR = FramePacing.CATCH_UP_REANCHOR;
+
+    private static final int DEFAULT_MAX_CONSECUTIVE_DROPS = 3;
+
+    // Guards the pacing state below, which the decode threads of a group share.
+    private final Object mLock = new Object();
+    private final PacingDecisions mDecisions =
+            new PacingDecisions(FrameSynchronizer.DEFAULT_TOLERANCE_USEC);
     private long mPrevPresentUsec;
     private long mPrevMonoUsec;
     private long mFixedFrameDurationUsec;
+    private volatile long mFrameDurationUsec = ONE_MILLION / 30;
+    private volatile float mPlaybackRate = PlaybackRate.NORMAL;
     private boolean mLoopReset;
+    // Bumped whenever a stream starts a new round of decisions.
+    private int mResetGeneration;
+    // The round each decode thread last joined.
+    private final ThreadLocal<int[]> mThreadGeneration = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private volatile boolean mReanchorRequested;
+    private FrameMetrics mFrameMetrics;
+    private int mCatchUpStrategy = CATCH_UP_DROP;
+    private int mMaxConsecutiveDrops = DEFAULT_MAX_CONSECUTIVE_DROPS;
+    private int mConsecutiveDrops;
+
+    // Written on the decode thread, read from anywhere.
+    private volatile int mDroppedFrameCount;
+    private volatile int mLateFrameCount;
 
     /**
      * Sets a fixed playback rate.  If set, this will ignore the presentation time stamp
@@ -50,9 +100,125 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         mFixedFrameDurationUsec = ONE_MILLION / fps;
     }
 
-    // runs on decode thread
+    /**
+     * Sets the frame duration of the stream, which is how long the last frame before a loop
+     * or seek is shown.  Defaults to that of 30 fps.
+     */
+    public void setFrameDurationUsec(long frameDurationUsec) {
+        if (frameDurationUsec > 0) {
+            mFrameDurationUsec = frameDurationUsec;
+        }
+    }
+
+    /**
+     * Plays content time at {@code rate} times the normal speed, from 0.25 to 4.  Frames
+     * further apart in content time than the source frame rate, because {@link MoviePlayer}
+     * skipped the ones in between, are simply spaced accordingly.  May be called from any
+     * thread during playback; the next frame is timed at the new rate.
+     */
+    public void setPlaybackRate(float rate) {
+        mPlaybackRate = PlaybackRate.check(rate);
+    }
+
+    public float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * Reports frames released more than half a frame after their target time.  Must be
+     * called before playback thread starts.
+     */
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    /**
+     * Sets what happens to frames that are more than a frame late: {@link #CATCH_UP_DROP}
+     * (the default) or {@link #CATCH_UP_REANCHOR}.  Must be called before playback thread
+     * starts.
+     */
+    public void setCatchUpStrategy(int catchUpStrategy) {
+        if (catchUpStrategy != CATCH_UP_DROP && catchUpStrategy != CATCH_UP_REANCHOR) {
+            throw new IllegalArgumentException("Unknown catch-up strategy: " + catchUpStrategy);
+        }
+        mCatchUpStrategy = catchUpStrategy;
+    }
+
+    /**
+     * Limits how many frames in a row {@link #CATCH_UP_DROP} may drop before it shows a late
+     * frame and re-anchors.  Defaults to 3.  Must be called before playback thread starts.
+     */
+    public void setMaxConsecutiveDrops(int maxConsecutiveDrops) {
+        if (maxConsecutiveDrops < 0) {
+            throw new IllegalArgumentException("maxConsecutiveDrops must not be negative");
+        }
+        mMaxConsecutiveDrops = maxConsecutiveDrops;
+    }
+
+    /**
+     * Times the next frame from when it arrives instead of from the previous frame, e.g.
+     * after playback was paused.  May be called from any thread.
+     */
+    public void reanchor() {
+        mReanchorRequested = true;
+    }
+
+    /**
+     * Returns the number of frames dropped for being late.
+     */
+    public int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Returns the number of frames shown more than half a frame after their time.
+     */
+    public int getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    // runs on decode thread; the threads of a group may call it concurrently
     @Override
-    public void preRender(long presentationTimeUsec) {
+    public boolean preRender(long presentationTimeUsec) {
+        boolean decider;
+        boolean render;
+        long desiredUsec;
+        long renderTimeNanos;
+        long spanUsec;
+        synchronized (mLock) {
+            int slot = mDecisions.find(presentationTimeUsec);
+            decider = slot < 0;
+            if (decider) {
+                slot = decide(presentationTimeUsec);
+            }
+            render = mDecisions.isRender(slot);
+            desiredUsec = mDecisions.getDesiredUsec(slot);
+            renderTimeNanos = mDecisions.getRenderTimeNanos(slot);
+            spanUsec = mDecisions.getSpanUsec(slot);
+        }
+        if (!render || desiredUsec == 0) {
+            return render;
+        }
+
+        // Every stream of the group sleeps to the same time, outside the lock.
+        awaitPresentation(desiredUsec, renderTimeNanos);
+
+        if (decider && spanUsec > 0) {
+            long latenessUsec = System.nanoTime() / 1000 - desiredUsec;
+            if (latenessUsec > spanUsec / 2) {
+                recordLateFrame(latenessUsec);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decides the fate of a frame no stream has reached yet, and records the decision.
+     * Called with mLock held.
+     *
+     * @return the slot of the decision.
+     */
+    private int decide(long presentationTimeUsec) {
         // For the first frame, we grab the presentation time from the video
         // and the current monotonic clock time.  For subsequent frames, we
         // sleep for a bit to try to ensure that we're rendering frames at the
@@ -61,77 +227,156 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         // If the frame rate is faster than vsync we should be dropping frames.  On
         // Android 4.4 this may not be happening.
 
+        long nowUsec = System.nanoTime() / 1000;
+        if (mReanchorRequested) {
+            mReanchorRequested = false;
+            mPrevMonoUsec = 0;
+        }
         if (mPrevMonoUsec == 0) {
-            // Latch current values, then return immediately.
-            mPrevMonoUsec = System.nanoTime() / 1000;
+            // Latch current values, then release right away.
+            mPrevMonoUsec = anchorUsec(nowUsec);
             mPrevPresentUsec = presentationTimeUsec;
-        } else {
-            // Compute the desired time delta between the previous frame and this frame.
-            long frameDelta;
-            if (mLoopReset) {
-                // We don't get an indication of how long the last frame should appear
-                // on-screen, so we just throw a reasonable value in.  We could probably
-                // do better by using a previous frame duration or some sort of average;
-                // for now we just use 30fps.
-                mPrevPresentUsec = presentationTimeUsec - ONE_MILLION / 30;
-                mLoopReset = false;
-            }
-            if (mFixedFrameDurationUsec != 0) {
-                // Caller requested a fixed frame rate.  Ignore PTS.
-                frameDelta = mFixedFrameDurationUsec;
-            } else {
-                frameDelta = presentationTimeUsec - mPrevPresentUsec;
-            }
-            if (frameDelta < 0) {
-                Log.w(TAG, "Weird, video times went backward");
-                frameDelta = 0;
-            } else if (frameDelta == 0) {
-                // This suggests a possible bug in movie generation.
-                Log.i(TAG, "Warning: current frame and previous frame had same timestamp");
-            } else if (frameDelta > 10 * ONE_MILLION) {
-                // Inter-frame times could be arbitrarily long.  For this player, we want
-                // to alert the developer that their movie might have issues (maybe they
-                // accidentally output timestamps in nsec rather than usec).
-                Log.i(TAG, "Inter-frame pause was " + (frameDelta / ONE_MILLION) +
-                        "sec, capping at 5 sec");
-                frameDelta = 5 * ONE_MILLION;
-            }
+            return mDecisions.record(presentationTimeUsec, true, 0,
+                    renderTimeNanos(mPrevMonoUsec), 0);
+        }
 
-            long desiredUsec = mPrevMonoUsec + frameDelta;  // when we want to wake up
-            long nowUsec = System.nanoTime() / 1000;
-            while (nowUsec < (desiredUsec - 100) /*&& mState == RUNNING*/) {
-                // Sleep until it's time to wake up.  To be responsive to "stop" commands
-                // we're going to wake up every half a second even if the sleep is supposed
-                // to be longer (which should be rare).  The alternative would be
-                // to interrupt the thread, but that requires more work.
-                //
-                // The precision of the sleep call varies widely from one device to another;
-                // we may wake early or late.  Different devices will have a minimum possible
-                // sleep time. If we're within 100us of the target time, we'll probably
-                // overshoot if we try to sleep, so just go ahead and continue on.
-                long sleepTimeUsec = desiredUsec - nowUsec;
-                if (sleepTimeUsec > 500000) {
-                    sleepTimeUsec = 500000;
-                }
-                try {
-                    if (CHECK_SLEEP_TIME) {
-                        long startNsec = System.nanoTime();
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                        long actualSleepNsec = System.nanoTime() - startNsec;
-                        Log.d(TAG, "sleep=" + sleepTimeUsec + " actual=" + (actualSleepNsec/1000) +
-                                " diff=" + (Math.abs(actualSleepNsec / 1000 - sleepTimeUsec)) +
-                                " (usec)");
-                    } else {
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                    }
-                } catch (InterruptedException ie) {}
-                nowUsec = System.nanoTime() / 1000;
-            }
+        if (mLoopReset) {
+            // We don't get an indication of how long the last frame should appear
+            // on-screen, so we use the frame duration of the stream.
+            mPrevPresentUsec = presentationTimeUsec - mFrameDurationUsec;
+            mLoopReset = false;
+        }
+        // Compute the desired time delta between the previous frame and this frame.
+        long frameDelta = FramePacing.frameDeltaUsec(presentationTimeUsec, mPrevPresentUsec,
+                mFixedFrameDurationUsec);
+        if (frameDelta < 0) {
+            Log.w(TAG, "Weird, video times went backward");
+        } else if (frameDelta == 0) {
+            // This suggests a possible bug in movie generation.
+            Log.i(TAG, "Warning: current frame and previous frame had same timestamp");
+        } else if (frameDelta > FramePacing.MAX_FRAME_DELTA_USEC) {
+            // Inter-frame times could be arbitrarily long.  For this player, we want
+            // to alert the developer that their movie might have issues (maybe they
+            // accidentally output timestamps in nsec rather than usec).
+            Log.i(TAG, "Inter-frame pause was " + (frameDelta / ONE_MILLION) +
+                    "sec, capping at 5 sec");
+        }
+        frameDelta = FramePacing.clampFrameDeltaUsec(frameDelta);
+        // The same span on the monotonic clock, at the current playback rate.
+        long monoDelta = PlaybackRate.scaleUsec(frameDelta, mPlaybackRate);
 
-            // Advance times using calculated time values, not the post-sleep monotonic
-            // clock time, to avoid drifting.
-            mPrevMonoUsec += frameDelta;
+        long desiredUsec = mPrevMonoUsec + monoDelta;  // when we want to wake up
+        int decision = FramePacing.pace(desiredUsec, nowUsec, monoDelta,
+                mConsecutiveDrops, mMaxConsecutiveDrops, mCatchUpStrategy);
+        if (decision == FramePacing.PACE_DROP) {
+            // The next frame is due already.  Skip this one; the timeline stays as is,
+            // so each drop brings playback closer to the clock.
+            mConsecutiveDrops++;
+            mDroppedFrameCount++;
+            mPrevMonoUsec += monoDelta;
+            mPrevPresentUsec += frameDelta;
+            return mDecisions.record(presentationTimeUsec, false, 0, 0, monoDelta);
+        }
+        mConsecutiveDrops = 0;
+        if (decision == FramePacing.PACE_RENDER_REANCHOR) {
+            // Show it right away and time the next frame from now, rather than rushing
+            // through frames that are all late.
+            recordLateFrame(nowUsec - desiredUsec);
+            mPrevMonoUsec = anchorUsec(nowUsec);
             mPrevPresentUsec += frameDelta;
+            return mDecisions.record(presentationTimeUsec, true, 0,
+                    renderTimeNanos(mPrevMonoUsec), monoDelta);
+        }
+
+        // Advance times using calculated time values, not the monotonic clock time after
+        // the sleep, to avoid drifting.
+        mPrevMonoUsec += monoDelta;
+        mPrevPresentUsec += frameDelta;
+        return mDecisions.record(presentationTimeUsec, true, desiredUsec,
+                renderTimeNanos(desiredUsec), monoDelta);
+    }
+
+    private void recordLateFrame(long latenessUsec) {
+        synchronized (mLock) {
+            mLateFrameCount++;
+        }
+        if (mFrameMetrics != null) {
+            mFrameMetrics.recordLateFrame(latenessUsec * 1000);
+        }
+    }
+
+    /**
+     * Returns the monotonic time, in microseconds, that the timeline should be anchored to
+     * when a frame is shown right away at {@code nowUsec}: on the first frame, and after a
+     * late frame re-anchors the clock.
+     * <p>
+     * Runs on a decode thread, with the pacing state locked.
+     */
+    protected long anchorUsec(long nowUsec) {
+        return nowUsec;
+    }
+
+    /**
+     * Returns when the frame due at {@code desiredUsec} (monotonic clock, in microseconds)
+     * should be displayed, in the {@code System.nanoTime()} timebase, or 0 to display it as
+     * soon as it is released.
+     * <p>
+     * Runs on a decode thread, with the pacing state locked.
+     */
+    protected long renderTimeNanos(long desiredUsec) {
+        return 0;
+    }
+
+    /**
+     * Blocks until the frame that is due at {@code desiredUsec}, and should be displayed at
+     * {@code renderTimeNanos} (see {@link #renderTimeNanos}), is to be released to the
+     * decoder's surface.
+     * <p>
+     * Runs on a decode thread.  The threads of a group wait concurrently.
+     */
+    protected void awaitPresentation(long desiredUsec, long renderTimeNanos) {
+        sleepUntil(desiredUsec);
+    }
+
+    /**
+     * Returns the display time decided for the frame at {@code presentationTimeUsec}, or 0
+     * if it has none.
+     */
+    protected final long getDecidedRenderTimeNanos(long presentationTimeUsec) {
+        synchronized (mLock) {
+            int slot = mDecisions.find(presentationTimeUsec);
+            return slot < 0 ? 0 : mDecisions.getRenderTimeNanos(slot);
+        }
+    }
+
+    /**
+     * Sleeps until the monotonic clock reaches {@code wakeUsec}.
+     */
+    protected final void sleepUntil(long wakeUsec) {
+        long sleepTimeUsec = FramePacing.sleepTimeUsec(wakeUsec, System.nanoTime() / 1000);
+        while (sleepTimeUsec > 0 /*&& mState == RUNNING*/) {
+            // Sleep until it's time to wake up.  To be responsive to "stop" commands
+            // we're going to wake up every half a second even if the sleep is supposed
+            // to be longer (which should be rare).  The alternative would be
+            // to interrupt the thread, but that requires more work.
+            //
+            // The precision of the sleep call varies widely from one device to another;
+            // we may wake early or late.  Different devices will have a minimum possible
+            // sleep time. If we're within 100us of the target time, we'll probably
+            // overshoot if we try to sleep, so just go ahead and continue on.
+            try {
+                if (CHECK_SLEEP_TIME) {
+                    long startNsec = System.nanoTime();
+                    Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
+                    long actualSleepNsec = System.nanoTime() - startNsec;
+                    Log.d(TAG, "sleep=" + sleepTimeUsec + " actual=" + (actualSleepNsec/1000) +
+                            " diff=" + (Math.abs(actualSleepNsec / 1000 - sleepTimeUsec)) +
+                            " (usec)");
+                } else {
+                    Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
+                }
+            } catch (InterruptedException ie) {}
+            sleepTimeUsec = FramePacing.sleepTimeUsec(wakeUsec, System.nanoTime() / 1000);
         }
     }
 
@@ -139,8 +384,21 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
     @Override
     public void postRender() {}
 
+    // runs on decode thread, after a loop or seek
     @Override
     public void loopReset() {
-        mLoopReset = true;
+        int[] threadGeneration = mThreadGeneration.get();
+        synchronized (mLock) {
+            if (threadGeneration[0] < mResetGeneration) {
+                // A peer stream already reset for this loop or seek; the decisions made since
+                // are for the new round.
+                threadGeneration[0] = mResetGeneration;
+                return;
+            }
+            mResetGeneration++;
+            threadGeneration[0] = mResetGeneration;
+            mDecisions.clear();
+            mLoopReset = true;
+        }
     }
 }
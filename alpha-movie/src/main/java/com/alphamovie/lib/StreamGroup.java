@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Readiness of the member streams of a {@link MediaPlayerGroup}: which ones are prepared,
+ * which ones finished a seek, and when each one rendered its first frame, from which the
+ * first-frame skew between the streams is computed.  {@link #spread} computes the skew of
+ * other per-stream measurements, such as playback positions.
+ * <p>
+ * Not thread safe.  This class has no Android dependencies.
+ */
+final class StreamGroup {
+    /** Returned by {@link #getFirstFrameSkewNanos()} until every stream rendered a frame. */
+    static final long NO_SKEW = -1;
+
+    private static final int MAX_STREAMS = 31;
+
+    private final int mSize;
+    private final int mAllMask;
+    private final long[] mFirstFrameNanos;
+
+    private int mPrepared;
+    private int mSeekPending;
+    private boolean mArmed;
+    private int mFirstFrames;
+
+    /**
+     * @throws IllegalArgumentException if {@code size} is not between 1 and 31.
+     */
+    StreamGroup(int size) {
+        if (size < 1 || size > MAX_STREAMS) {
+            throw new IllegalArgumentException("Stream group size must be between 1 and "
+                    + MAX_STREAMS + ", was " + size);
+        }
+        mSize = size;
+        mAllMask = (1 << size) - 1;
+        mFirstFrameNanos = new long[size];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Records that {@code stream} is prepared.
+     *
+     * @return true if this completed the group.
+     */
+    boolean markPrepared(int stream) {
+        if (isPrepared()) {
+            return false;
+        }
+        mPrepared |= bit(stream);
+        return isPrepared();
+    }
+
+    boolean isPrepared() {
+        return mPrepared == mAllMask;
+    }
+
+    /**
+     * Forgets that the streams were prepared, e.g. after they were stopped.  Pending seeks
+     * are forgotten too.
+     */
+    void clearPrepared() {
+        mPrepared = 0;
+        mSeekPending = 0;
+    }
+
+    /**
+     * Starts waiting for every stream to finish a seek.
+     */
+    void beginSeek() {
+        mSeekPending = mAllMask;
+    }
+
+    boolean isSeeking() {
+        return mSeekPending != 0;
+    }
+
+    /**
+     * Records that {@code stream} finished seeking.
+     *
+     * @return true if this was the last stream the group seek waited for.
+     */
+    boolean markSeekComplete(int stream) {
+        if (mSeekPending == 0) {
+            return false;
+        }
+        mSeekPending &= ~bit(stream);
+        return mSeekPending == 0;
+    }
+
+    /**
+     * Starts measuring the first-frame skew of a group start: the first frame each stream
+     * renders from now on is recorded.
+     */
+    void armFirstFrames() {
+        mArmed = true;
+        mFirstFrames = 0;
+    }
+
+    /**
+     * Records that {@code stream} rendered a frame at {@code nowNanos}.  Only the first frame
+     * of each stream after {@link #armFirstFrames()} counts.
+     *
+     * @return true if this was the last stream to render its first frame; the skew is then
+     *     available from {@link #getFirstFrameSkewNanos()}.
+     */
+    boolean markFirstFrame(int stream, long nowNanos) {
+        int bit = bit(stream);
+        if (!mArmed || (mFirstFrames & bit) != 0) {
+            return false;
+        }
+        mFirstFrameNanos[stream] = nowNanos;
+        mFirstFrames |= bit;
+        if (mFirstFrames != mAllMask) {
+            return false;
+        }
+        mArmed = false;
+        return true;
+    }
+
+    /**
+     * Returns the time between the earliest and the latest first frame of the last group
+     * start, or {@link #NO_SKEW} if not every stream has rendered one yet.
+     */
+    long getFirstFrameSkewNanos() {
+        if (mArmed || mFirstFrames != mAllMask) {
+            return NO_SKEW;
+        }
+        return spread(mFirstFrameNanos);
+    }
+
+    /**
+     * Returns the difference between the largest and the smallest of {@code values}, or 0 if
+     * there are none.
+     */
+    static long spread(long[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        long min = values[0];
+        long max = min;
+        for (int i = 1; i < values.length; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        return max - min;
+    }
+
+    private int bit(int stream) {
+        if (stream < 0 || stream >= mSize) {
+            throw new IllegalArgumentException("No stream " + stream + " in a group of " + mSize);
+        }
+        return 1 << stream;
+    }
+}
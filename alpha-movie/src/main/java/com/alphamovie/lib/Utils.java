@@ -2,14 +2,15 @@ package com.alphamovie.lib;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import com.alphamovie.lib.utils.FileUtils;
+
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 /**
  * Created by luotian on 2017/12/7.
@@ -17,37 +18,43 @@ import java.io.OutputStream;
 
 public class Utils {
 
+    /**
+     * @deprecated Keeps a stale or truncated copy forever and hides errors.  Play assets
+     * directly with {@code setVideoFromAssets}, or get a verified copy from
+     * {@link AssetStore#getFile}.
+     */
+    @Deprecated
     public static void copyAssetFileToPath(Context context, String filename, String desPath) {
         AssetManager assetManager = context.getAssets();
 
         InputStream in = null;
-        OutputStream out = null;
         try {
             in = assetManager.open(filename);
-            String newFileName = desPath + filename;
-            File desFile = new File(desPath);
-            desFile.mkdirs();
-
-            if (new File(newFileName).exists()) {
-                return;
-            }
-
-            out = new FileOutputStream(newFileName);
-            byte[] buffer = new byte[1024];
-            int read;
-            while ((read = in.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-            }
-            in.close();
-            in = null;
-            out.flush();
-            out.close();
-            out = null;
+            FileUtils.copyToPath(in, filename, desPath);
         } catch (Throwable e) {
             Log.e("", e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
     }
 
+    /**
+     * Reads the video metadata of an asset opened with {@code AssetManager.openFd}, cached by
+     * asset name.
+     */
+    public static Mp4Metadata readAssetMetadata(AssetFileDescriptor assetFileDescriptor, String assetName)
+            throws IOException {
+        return Mp4Metadata.read(assetFileDescriptor.getFileDescriptor(),
+                assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength(),
+                "asset:" + assetName);
+    }
+
     public static int getScreenWidth(Activity activity) {
         DisplayMetrics displayMetrics = new DisplayMetrics();
         activity.getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The encodings of one overlay at several resolutions, so a view can decode the smallest one
+ * that still covers its size on screen instead of always the full-resolution source.
+ * <p>
+ * A manifest is a text file with one variant per line: its size, then its color, background
+ * and alpha streams.  Blank lines and lines starting with {@code #} are skipped:
+ * <pre>
+ * # size     color              background            alpha
+ * 1920x1080  sticker_1080.mp4   sticker_bg_1080.mp4   sticker_alpha_1080.mp4
+ * 640x360    sticker_360.mp4    sticker_bg_360.mp4    sticker_alpha_360.mp4
+ * </pre>
+ * This class has no Android dependencies.
+ */
+public final class VariantManifest {
+    /**
+     * One encoding of the overlay.
+     */
+    public static final class Variant {
+        private final int mWidth;
+        private final int mHeight;
+        private final String mColor;
+        private final String mBackground;
+        private final String mAlpha;
+
+        /**
+         * @throws IllegalArgumentException if the size isn't positive.
+         */
+        public Variant(int width, int height, String color, String background, String alpha) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+            }
+            mWidth = width;
+            mHeight = height;
+            mColor = color;
+            mBackground = background;
+            mAlpha = alpha;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public String getColor() {
+            return mColor;
+        }
+
+        public String getBackground() {
+            return mBackground;
+        }
+
+        public String getAlpha() {
+            return mAlpha;
+        }
+
+        long getPixelCount() {
+            return (long) mWidth * mHeight;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " " + mColor;
+        }
+    }
+
+    private final List<Variant> mVariants;
+
+    /**
+     * @throws IllegalArgumentException if {@code variants} is empty.
+     */
+    public VariantManifest(List<Variant> variants) {
+        if (variants.isEmpty()) {
+            throw new IllegalArgumentException("No variants");
+        }
+        mVariants = Collections.unmodifiableList(new ArrayList<Variant>(variants));
+    }
+
+    /**
+     * Parses a manifest in the format described above.  {@code reader} is not closed.
+     *
+     * @throws IOException if it can't be read, a line is malformed, or it lists no variant.
+     */
+    public static VariantManifest read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Variant> variants = new ArrayList<Variant>();
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            int x = fields[0].indexOf('x');
+            if (fields.length != 4 || x < 0) {
+                throw new IOException("Line " + lineNumber + ": expected size, color, background"
+                        + " and alpha: " + line);
+            }
+            try {
+                variants.add(new Variant(Integer.parseInt(fields[0].substring(0, x)),
+                        Integer.parseInt(fields[0].substring(x + 1)),
+                        fields[1], fields[2], fields[3]));
+            } catch (IllegalArgumentException iae) {
+                // Also covers NumberFormatException.
+                throw new IOException("Line " + lineNumber + ": invalid size " + fields[0]);
+            }
+        }
+        if (variants.isEmpty()) {
+            throw new IOException("No variants");
+        }
+        return new VariantManifest(variants);
+    }
+
+    public List<Variant> getVariants() {
+        return mVariants;
+    }
+
+    /**
+     * Returns the variant with the most pixels, e.g. to size a view before it is laid out.
+     */
+    public Variant getLargest() {
+        Variant largest = mVariants.get(0);
+        for (Variant variant : mVariants) {
+            if (variant.getPixelCount() > largest.getPixelCount()) {
+                largest = variant;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Returns the smallest variant at least {@code width} by {@code height} pixels, or the
+     * largest one if none is that big.
+     *
+     * @throws IllegalArgumentException if the size isn't positive.
+     */
+    public Variant select(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        Variant best = null;
+        for (Variant variant : mVariants) {
+            if (variant.getWidth() >= width && variant.getHeight() >= height
+                    && (best == null || variant.getPixelCount() < best.getPixelCount())) {
+                best = variant;
+            }
+        }
+        return best != null ? best : getLargest();
+    }
+}
@@ -25,10 +25,14 @@ import android.opengl.Matrix;
 import android.util.Log;
 import android.view.Surface;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.Locale;
+import com.alphamovie.lib.utils.CompositeUniforms;
+import com.alphamovie.lib.utils.CountingGlApi;
+import com.alphamovie.lib.utils.GlApi;
+import com.alphamovie.lib.utils.Gles20Api;
+import com.alphamovie.lib.utils.GlesProgramCompiler;
+import com.alphamovie.lib.utils.ProgramBinaryStore;
+import com.alphamovie.lib.utils.ProgramCache;
+import com.alphamovie.lib.utils.QuadRenderState;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -38,124 +42,25 @@ class VideoRenderer implements GLSurfaceView.Renderer {
 
     private static final int COLOR_MAX_VALUE = 255;
 
-    private static final int FLOAT_SIZE_BYTES = 4;
-    private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
-    private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
-    private final float[] triangleVerticesData = {
-            // X, Y, Z, U, V
-            -1.0f, -1.0f, 0, 0.f, 0.f,
-            1.0f, -1.0f, 0, 1.f, 0.f,
-            -1.0f,  1.0f, 0, 0.f, 1.f,
-            1.0f,  1.0f, 0, 1.f, 1.f,
-    };
-
-    private FloatBuffer triangleVertices;
-
-    private final String vertexShader =
-            "uniform mat4 uMVPMatrix;\n" +
-                    "uniform mat4 uSTMatrix;\n" +
-                    "attribute vec4 aPosition;\n" +
-                    "attribute vec4 aTextureCoord;\n" +
-                    "varying vec2 vTextureCoord;\n" +
-                    "void main() {\n" +
-                    "  gl_Position = uMVPMatrix * aPosition;\n" +
-                    "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
-                    "}\n";
-
-    private final String alphaShader = "#extension GL_OES_EGL_image_external : require\n"
-            + "precision mediump float;\n"
-            + "varying vec2 vTextureCoord;\n"
-            + "uniform samplerExternalOES sTexture;\n"
-            + "uniform samplerExternalOES sTextureBg;\n"
-            + "uniform samplerExternalOES sTextureAlpha;\n"
-//            + "varying mediump float text_alpha_out;\n"
-
-//            + "vec3 rgb2hsv(vec3 rgb)\n" +
-//            "{\n" +
-//            "\tfloat Cmax = max(rgb.r, max(rgb.g, rgb.b));\n" +
-//            "\tfloat Cmin = min(rgb.r, min(rgb.g, rgb.b));\n" +
-//            "    float delta = Cmax - Cmin;\n" +
-//            "\n" +
-//            "\tvec3 hsv = vec3(0., 0., Cmax);\n" +
-//            "\t\n" +
-//            "\tif (Cmax > Cmin)\n" +
-//            "\t{\n" +
-//            "\t\thsv.y = delta / Cmax;\n" +
-//            "\n" +
-//            "\t\tif (rgb.r == Cmax)\n" +
-//            "\t\t\thsv.x = (rgb.g - rgb.b) / delta;\n" +
-//            "\t\telse\n" +
-//            "\t\t{\n" +
-//            "\t\t\tif (rgb.g == Cmax)\n" +
-//            "\t\t\t\thsv.x = 2. + (rgb.b - rgb.r) / delta;\n" +
-//            "\t\t\telse\n" +
-//            "\t\t\t\thsv.x = 4. + (rgb.r - rgb.g) / delta;\n" +
-//            "\t\t}\n" +
-//            "\t\thsv.x = fract(hsv.x / 6.);\n" +
-//            "\t}\n" +
-//            "\treturn hsv;\n" +
-//            "}\n" +
-//            "\n" +
-//            "float chromaKey(vec3 color, float bgr, float bgg, float bgb)\n" +
-//            "{\n" +
-//            "\tvec3 backgroundColor = vec3(bgr, bgg, bgb);\n" +
-//            "\tvec3 weights = vec3(4., 1., 2.);\n" +
-//            "\n" +
-//            "\tvec3 hsv = rgb2hsv(color);\n" +
-//            "\tvec3 target = rgb2hsv(backgroundColor);\n" +
-//            "\tfloat dist = length(weights * (target - hsv));\n" +
-//            "\treturn 1. - clamp(3. * dist - 1.5, 0., 1.);\n" +
-//            "}\n" +
-//            "\n" +
-//            "vec3 changeSaturation(vec3 color, float saturation)\n" +
-//            "{\n" +
-//            "\tfloat luma = dot(vec3(0.213, 0.715, 0.072) * color, vec3(1.));\n" +
-//            "\treturn mix(vec3(luma), color, saturation);\n" +
-//            "}"
-
-
-            + "void main() {\n"
-            + "  vec4 color = texture2D(sTexture, vTextureCoord);\n"
-            + "  vec4 colorBg = texture2D(sTextureBg, vTextureCoord);\n"
-            + "  vec4 colorAlpha = texture2D(sTextureAlpha, vTextureCoord);\n"
-            + "  float red = %f;\n"
-            + "  float green = %f;\n"
-            + "  float blue = %f;\n"
-            + "  float accuracy = %f;\n"
-//            + "  if (abs(color.r - red) <= accuracy && abs(color.g - green) <= accuracy && abs(color.b - blue) <= accuracy) {\n"
-//            + "      gl_FragColor = colorBg;\n"
-//            + "  } else {\n"
-//            + "      gl_FragColor = color;\n"
-//            + "  }\n"
-            + "   gl_FragColor = mix(colorBg, color, colorAlpha.g);\n"
-//            + "  }\n"
-
-//            + "vec3 color = texture2D(sTexture, vTextureCoord).rgb;\n" +
-//            "vec3 colorBg = texture2D(sTextureBg, vTextureCoord).rgb;\n" +
-//            "  float red = %f;\n"
-//            + "  float green = %f;\n"
-//            + "  float blue = %f;\n"
-//            + "  float accuracy = %f;\n" +
-//            "float incrustation = chromaKey(color, red, green, blue);\n" +
-//            "color = changeSaturation(color, 1.);\n" +
-//            "color = mix(color, colorBg, incrustation);\n" +
-//            "gl_FragColor = vec4(color, 1.);\n"
-
-            + "}\n";
+    static final int STREAM_COLOR = 0;
+    static final int STREAM_BG = 1;
+    static final int STREAM_ALPHA = 2;
+
+    private static final String[] SAMPLER_NAMES = {"sTexture", "sTextureBg", "sTextureAlpha"};
+    private static final String[] PACKED_SAMPLER_NAMES = {"sTexture"};
 
     private double accuracy = 0.95;
 
-    private String shader = alphaShader;
+    private String shader = ShaderSource.COMPOSITE_FRAGMENT;
 
-    private float[] mVPMatrix = new float[16];
     private float[] sTMatrix = new float[16];
 
     private int program;
-    private int uMVPMatrixHandle;
-    private int uSTMatrixHandle;
-    private int aPositionHandle;
-    private int aTextureHandle;
+    private ProgramCache programCache;
+    private ProgramBinaryStore programBinaryStore;
+    private GlApi glApi = new Gles20Api();
+    private QuadRenderState renderState;
+    private final CompositeUniforms compositeUniforms = new CompositeUniforms();
 
     private int textureID;
     private int textureBgID;
@@ -163,153 +68,232 @@ class VideoRenderer implements GLSurfaceView.Renderer {
     private SurfaceTexture surfaceTexture;
     private SurfaceTexture surfaceTextureBg;
     private SurfaceTexture surfaceTextureAlpha;
-    private volatile boolean updateSurface = false;
-    private volatile boolean updateSurfaceBg = false;
-    private volatile boolean updateSurfaceAlpha = false;
+    private volatile FrameGate frameGate = new FrameGate(3);
+    private volatile boolean frameSyncEnabled;
+
+    // A second set of textures the streams of the next video pre-roll into while the current
+    // one plays, swapped in at once; see prepareStandbySurfaces().  Guarded by surfaceLock,
+    // which the frame-available listeners take to tell the sets apart.
+    private final Object surfaceLock = new Object();
+    private final int[] standbyTextureIds = new int[3];
+    private final SurfaceTexture[] standbySurfaceTextures = new SurfaceTexture[3];
+    // Null while there is no standby set, or while the one there is waits to be released.
+    private FrameGate standbyGate;
+    private OnSurfacePrepareListener onStandbySurfacePrepareListener;
+
+    private volatile FrameMetrics frameMetrics;
+    private long lastFrameStartNanos;
 
     private OnSurfacePrepareListener onSurfacePrepareListener;
+    private volatile OnFrameReadyListener onFrameReadyListener;
 
-    private boolean isCustom;
+    private volatile PackedLayout packedLayout = PackedLayout.NONE;
+    // Layout the current GL surfaces were built for.
+    private volatile PackedLayout surfaceLayout = PackedLayout.NONE;
 
-    private float redParam = 0.0f;
-    private float greenParam = 1.0f;
-    private float blueParam = 0.0f;
+    private int surfaceWidth;
+    private int surfaceHeight;
+    // GL thread only.
+    private FrameCache frameCache;
+    private int copyProgram;
+    private volatile OnFrameCacheListener onFrameCacheListener;
 
     VideoRenderer() {
-        triangleVertices = ByteBuffer.allocateDirect(
-                triangleVerticesData.length * FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        triangleVertices.put(triangleVerticesData).position(0);
-
         Matrix.setIdentityM(sTMatrix, 0);
     }
 
     @Override
     public void onDrawFrame(GL10 glUnused) {
-//        Log.d("onDrawFrame", "onDrawFrame called");
-//        synchronized(this) {
-//            if (updateSurface && updateSurfaceBg && updateSurfaceAlpha) {
-                Log.d("onDrawFrame", "updateTexImage called");
-                surfaceTexture.updateTexImage();
-                surfaceTexture.getTransformMatrix(sTMatrix);
-                updateSurface = false;
-
-                surfaceTextureBg.updateTexImage();
-                surfaceTextureBg.getTransformMatrix(sTMatrix);
-                updateSurfaceBg = false;
-
-                surfaceTextureAlpha.updateTexImage();
-                surfaceTextureAlpha.getTransformMatrix(sTMatrix);
-                updateSurfaceAlpha = false;
-
-//            }
-//        }
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
-
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-
-        GLES20.glUseProgram(program);
-        checkGlError("glUseProgram");
+        if (renderState == null) {
+            // The program failed to build; there is nothing to draw with.
+            return;
+        }
+        // In frame sync mode the textures are only latched once every stream has a new
+        // frame, so color, background and alpha always come from the same PTS.  Otherwise
+        // whatever is new gets latched.
+        FrameMetrics metrics = frameMetrics;
+        long frameStartNanos = 0;
+        if (metrics != null) {
+            frameStartNanos = System.nanoTime();
+            if (lastFrameStartNanos != 0) {
+                metrics.recordDuration(FrameMetrics.STAGE_FRAME, frameStartNanos - lastFrameStartNanos);
+            }
+            lastFrameStartNanos = frameStartNanos;
+        }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTexture"), 0);
-        checkGlError("glBindTexture textureID");
+        FrameCache cache = frameCache;
+        if (cache != null && cache.isReplaying()) {
+            // Nothing to latch: the decoders are stopped, or about to be.
+            drawReplay(cache, metrics);
+            return;
+        }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureBgID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTextureBg"), 1);
-        checkGlError("glBindTexture textureBgID");
+        FrameGate gate = frameGate;
+        int pending = 0;
+        if (!frameSyncEnabled || gate.isReady()) {
+            pending = gate.consume();
+            if (FrameGate.isSet(pending, STREAM_COLOR)) {
+                renderState.beginTextureUpdate(STREAM_COLOR);
+                surfaceTexture.updateTexImage();
+                surfaceTexture.getTransformMatrix(sTMatrix);
+            }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureAlphaID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTextureAlpha"), 2);
-        checkGlError("glBindTexture textureAlphaID");
+            if (!surfaceLayout.isPacked()) {
+                if (FrameGate.isSet(pending, STREAM_BG)) {
+                    renderState.beginTextureUpdate(STREAM_BG);
+                    surfaceTextureBg.updateTexImage();
+                    surfaceTextureBg.getTransformMatrix(sTMatrix);
+                }
+
+                if (FrameGate.isSet(pending, STREAM_ALPHA)) {
+                    renderState.beginTextureUpdate(STREAM_ALPHA);
+                    surfaceTextureAlpha.updateTexImage();
+                    surfaceTextureAlpha.getTransformMatrix(sTMatrix);
+                }
+            }
+        }
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(aPositionHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        checkGlError("glEnableVertexAttribArray aPositionHandle");
+        long drawStartNanos = 0;
+        if (metrics != null) {
+            drawStartNanos = System.nanoTime();
+            if (pending != 0) {
+                metrics.recordDuration(FrameMetrics.STAGE_TEXTURE_UPDATE, drawStartNanos - frameStartNanos);
+            }
+        }
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(aTextureHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer aTextureHandle");
-        GLES20.glEnableVertexAttribArray(aTextureHandle);
-        checkGlError("glEnableVertexAttribArray aTextureHandle");
+        compositeUniforms.apply();
+        if (cache != null && FrameGate.isSet(pending, STREAM_COLOR)) {
+            captureFrame(cache);
+        } else {
+            renderState.draw(sTMatrix);
+        }
 
-        Matrix.setIdentityM(mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uMVPMatrixHandle, 1, false, mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uSTMatrixHandle, 1, false, sTMatrix, 0);
+        if (metrics != null) {
+            metrics.recordDuration(FrameMetrics.STAGE_DRAW, System.nanoTime() - drawStartNanos);
+        }
+    }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        checkGlError("glDrawArrays");
+    private void captureFrame(FrameCache cache) {
+        if (!cache.capture(renderState, sTMatrix, surfaceTexture.getTimestamp(), surfaceWidth,
+                surfaceHeight)) {
+            FrameRing ring = cache.getRing();
+            releaseFrameCache();
+            renderState.draw(sTMatrix);
+            OnFrameCacheListener listener = onFrameCacheListener;
+            if (listener != null) {
+                listener.onFrameCacheDropped(ring);
+            }
+            return;
+        }
+        if (cache.isReplaying()) {
+            OnFrameCacheListener listener = onFrameCacheListener;
+            if (listener != null) {
+                listener.onFrameCacheComplete(cache.getRing());
+                listener.onReplayFrameDrawn(cache.getRing().nanosUntilNextSlot(System.nanoTime()));
+            }
+        }
+    }
 
-        GLES20.glFinish();
+    private void drawReplay(FrameCache cache, FrameMetrics metrics) {
+        long drawStartNanos = System.nanoTime();
+        long nanosUntilNextFrame = cache.drawReplay(drawStartNanos);
+        if (metrics != null) {
+            metrics.recordDuration(FrameMetrics.STAGE_DRAW, System.nanoTime() - drawStartNanos);
+        }
+        OnFrameCacheListener listener = onFrameCacheListener;
+        if (nanosUntilNextFrame > 0 && listener != null) {
+            listener.onReplayFrameDrawn(nanosUntilNextFrame);
+        }
     }
 
     @Override
     public void onSurfaceChanged(GL10 glUnused, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
+        surfaceWidth = width;
+        surfaceHeight = height;
     }
 
     @Override
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
-        program = createProgram(vertexShader, this.resolveShader());
-        if (program == 0) {
-            return;
+        // A new context, so programs of the previous one are gone.
+        programCache = new ProgramCache(new GlesProgramCompiler(), programBinaryStore);
+        renderState = null;
+        if (frameCache != null) {
+            // Its textures went with the old context.
+            FrameRing ring = frameCache.getRing();
+            frameCache = null;
+            copyProgram = 0;
+            OnFrameCacheListener listener = onFrameCacheListener;
+            if (listener != null) {
+                listener.onFrameCacheDropped(ring);
+            }
         }
-        aPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
-        if (aPositionHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aPosition");
+        synchronized (surfaceLock) {
+            // Its textures went with the old context too.
+            for (int i = 0; i < standbySurfaceTextures.length; i++) {
+                if (standbySurfaceTextures[i] != null) {
+                    standbySurfaceTextures[i].release();
+                    standbySurfaceTextures[i] = null;
+                }
+            }
+            standbyGate = null;
         }
-        aTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
-        checkGlError("glGetAttribLocation aTextureCoord");
-        if (aTextureHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aTextureCoord");
+        surfaceLayout = packedLayout;
+        if (surfaceLayout.isPacked()) {
+            program = programCache.acquire(ShaderSource.PACKED_VERTEX, ShaderSource.PACKED_FRAGMENT);
+        } else {
+            program = programCache.acquire(ShaderSource.VERTEX, shader);
         }
-
-        uMVPMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (uMVPMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
-        }
-
-        uSTMatrixHandle = GLES20.glGetUniformLocation(program, "uSTMatrix");
-        checkGlError("glGetUniformLocation uSTMatrix");
-        if (uSTMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uSTMatrix");
+        if (program == 0) {
+            return;
         }
-
         prepareSurface();
     }
 
     private void prepareSurface() {
-        int[] textures = new int[3];
-        GLES20.glGenTextures(3, textures, 0);
-
-        GLES20.glUseProgram(program);
-        checkGlError("glUseProgram");
+        boolean packed = surfaceLayout.isPacked();
+        int textureCount = packed ? 1 : 3;
+        frameGate = new FrameGate(textureCount);
+        int[] textures = new int[textureCount];
+        GLES20.glGenTextures(textureCount, textures, 0);
 
         textureID = textures[0];
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTexture"), 0);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         checkGlError("glBindTexture textureID");
 
+        surfaceTexture = new SurfaceTexture(textureID);
+        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                onStreamFrameAvailable(surfaceTexture, STREAM_COLOR);
+            }
+        });
+        Surface surface = new Surface(this.surfaceTexture);
+
+        if (packed) {
+            renderState = new QuadRenderState(glApi, program, GlApi.GL_TEXTURE_EXTERNAL_OES,
+                    textures, PACKED_SAMPLER_NAMES);
+            renderState.setUniform(renderState.requireUniform("uColorRegion"),
+                    surfaceLayout.getColorRegion());
+            renderState.setUniform(renderState.requireUniform("uAlphaRegion"),
+                    surfaceLayout.getAlphaRegion());
+            compositeUniforms.attach(renderState);
+
+            // Color and mask share one frame, so a single decoder feeds a single texture.
+            onSurfacePrepareListener.surfacePrepared(surface, null, null);
+
+            frameGate.reset();
+            return;
+        }
+
         textureBgID = textures[1];
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureBgID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTextureBg"), 1);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
@@ -319,29 +303,17 @@ class VideoRenderer implements GLSurfaceView.Renderer {
         textureAlphaID = textures[2];
         GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureAlphaID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTextureAlpha"), 2);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         checkGlError("glBindTexture textureAlphaID");
 
-        surfaceTexture = new SurfaceTexture(textureID);
-        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
-            @Override
-            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                Log.d("onDrawFrame", "surfaceTexture onFrameAvailable ==");
-                updateSurface = true;
-            }
-        });
-        Surface surface = new Surface(this.surfaceTexture);
-
         surfaceTextureBg = new SurfaceTexture(textureBgID);
         surfaceTextureBg.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
             @Override
             public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                Log.d("onDrawFrame", "surfaceTextureBg onFrameAvailable ==bg");
-                updateSurfaceBg = true;
+                onStreamFrameAvailable(surfaceTexture, STREAM_BG);
             }
         });
         Surface surfaceBg = new Surface(this.surfaceTextureBg);
@@ -350,75 +322,58 @@ class VideoRenderer implements GLSurfaceView.Renderer {
         surfaceTextureAlpha.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
             @Override
             public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                Log.d("onDrawFrame", "surfaceTextureAlpha onFrameAvailable ==alpha");
-                updateSurfaceAlpha = true;
+                onStreamFrameAvailable(surfaceTexture, STREAM_ALPHA);
             }
         });
         Surface surfaceAlpha = new Surface(this.surfaceTextureAlpha);
 
+        renderState = new QuadRenderState(glApi, program, GlApi.GL_TEXTURE_EXTERNAL_OES,
+                textures, SAMPLER_NAMES);
+        compositeUniforms.attach(renderState);
+
         onSurfacePrepareListener.surfacePrepared(surface, surfaceBg, surfaceAlpha);
 
-        synchronized(this) {
-            updateSurface = false;
-            updateSurfaceBg = false;
-            updateSurfaceAlpha = false;
-        }
+        frameGate.reset();
     }
 
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        if (shader != 0) {
-            GLES20.glShaderSource(shader, source);
-            GLES20.glCompileShader(shader);
-            int[] compiled = new int[1];
-            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-            if (compiled[0] == 0) {
-                Log.e(TAG, "Could not compile shader " + shaderType + ":");
-                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
-                GLES20.glDeleteShader(shader);
-                shader = 0;
+    /**
+     * Called from the frame-available listeners.  A frame is only requested once the gate has
+     * a matched set, so streams arriving one after another cause a single draw.  Frames of the
+     * standby set are only counted until it is swapped in.
+     */
+    private void onStreamFrameAvailable(SurfaceTexture source, int stream) {
+        FrameGate gate;
+        synchronized (surfaceLock) {
+            if (source == standbySurfaceTextures[stream]) {
+                if (standbyGate != null) {
+                    standbyGate.onFrameAvailable(stream);
+                }
+                return;
             }
+            gate = frameGate;
         }
-        return shader;
-    }
-
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
-        }
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
-        }
-
-        int program = GLES20.glCreateProgram();
-        if (program != 0) {
-            GLES20.glAttachShader(program, vertexShader);
-            checkGlError("glAttachShader");
-            GLES20.glAttachShader(program, pixelShader);
-            checkGlError("glAttachShader");
-            GLES20.glLinkProgram(program);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] != GLES20.GL_TRUE) {
-                Log.e(TAG, "Could not link program: ");
-                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-                GLES20.glDeleteProgram(program);
-                program = 0;
+        if (gate.onFrameAvailable(stream)) {
+            OnFrameReadyListener listener = onFrameReadyListener;
+            if (listener != null) {
+                listener.onFrameReady();
             }
         }
-        return program;
     }
 
+    /**
+     * Sets the key color of {@link BlendMode#CHROMA_KEY}.  Takes effect on the next frame.
+     */
     void setAlphaColor(int color) {
-        redParam = (float) Color.red(color) / COLOR_MAX_VALUE;
-        greenParam = (float) Color.green(color) / COLOR_MAX_VALUE;
-        blueParam = (float) Color.blue(color) / COLOR_MAX_VALUE;
+        compositeUniforms.setKeyColor((float) Color.red(color) / COLOR_MAX_VALUE,
+                (float) Color.green(color) / COLOR_MAX_VALUE,
+                (float) Color.blue(color) / COLOR_MAX_VALUE);
+    }
+
+    void setBlendMode(BlendMode blendMode) {
+        compositeUniforms.setBlendMode(blendMode);
     }
 
     void setCustomShader(String customShader) {
-        isCustom = true;
         shader = customShader;
     }
 
@@ -429,15 +384,30 @@ class VideoRenderer implements GLSurfaceView.Renderer {
             accuracy = 0.0;
         }
         this.accuracy = accuracy;
+        compositeUniforms.setAccuracy(accuracy);
     }
 
     public double getAccuracy() {
         return accuracy;
     }
 
-    private String resolveShader() {
-        return isCustom ? shader : String.format(Locale.ENGLISH, alphaShader,
-                redParam, greenParam, blueParam, 1 - accuracy);
+    /**
+     * Selects single-decoder playback where color and alpha are packed into one frame.
+     * Takes effect the next time the GL surface is created.
+     */
+    void setPackedLayout(PackedLayout packedLayout) {
+        this.packedLayout = packedLayout;
+    }
+
+    PackedLayout getPackedLayout() {
+        return packedLayout;
+    }
+
+    /**
+     * Returns the layout the current GL surfaces were built for.
+     */
+    PackedLayout getSurfaceLayout() {
+        return surfaceLayout;
     }
 
     private void checkGlError(String op) {
@@ -448,12 +418,246 @@ class VideoRenderer implements GLSurfaceView.Renderer {
         }
     }
 
+    /**
+     * When enabled, textures are only latched as a complete set, one new frame per stream.
+     * Used together with {@link FrameSynchronizer} on the decoder side.
+     */
+    void setFrameSyncEnabled(boolean frameSyncEnabled) {
+        this.frameSyncEnabled = frameSyncEnabled;
+    }
+
+    /**
+     * Reports texture update, draw and frame-to-frame times.  Swap time isn't reported, since
+     * GLSurfaceView swaps buffers itself.
+     */
+    void setFrameMetrics(FrameMetrics frameMetrics) {
+        this.frameMetrics = frameMetrics;
+        lastFrameStartNanos = 0;
+    }
+
+    /**
+     * Routes the draw path's GL calls through {@code glApi}, e.g. a {@link CountingGlApi}.
+     * Takes effect the next time the GL surface is created.
+     */
+    void setGlApi(GlApi glApi) {
+        this.glApi = glApi;
+    }
+
+    /**
+     * Sets where compiled programs are cached across launches.  Takes effect with the next
+     * surface.
+     */
+    void setProgramBinaryStore(ProgramBinaryStore programBinaryStore) {
+        this.programBinaryStore = programBinaryStore;
+    }
+
+    /**
+     * Creates the standby set of surfaces and hands them to the standby surface listener, so
+     * the streams of the next video can show their first frames there while the current one
+     * plays.  Does nothing in packed mode, or if a standby set exists.  Call on the GL thread.
+     */
+    void prepareStandbySurfaces() {
+        if (renderState == null || surfaceLayout.isPacked() || standbySurfaceTextures[0] != null) {
+            return;
+        }
+        GLES20.glGenTextures(standbyTextureIds.length, standbyTextureIds, 0);
+        Surface[] surfaces = new Surface[standbyTextureIds.length];
+        synchronized (surfaceLock) {
+            standbyGate = new FrameGate(standbyTextureIds.length);
+            for (int i = 0; i < standbyTextureIds.length; i++) {
+                GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, standbyTextureIds[i]);
+                GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+                GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+                final int stream = i;
+                standbySurfaceTextures[i] = new SurfaceTexture(standbyTextureIds[i]);
+                standbySurfaceTextures[i].setOnFrameAvailableListener(
+                        new SurfaceTexture.OnFrameAvailableListener() {
+                            @Override
+                            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                                onStreamFrameAvailable(surfaceTexture, stream);
+                            }
+                        });
+                surfaces[i] = new Surface(standbySurfaceTextures[i]);
+            }
+        }
+        checkGlError("standby textures");
+        // The listener takes over the surfaces, as with the regular ones.
+        onStandbySurfacePrepareListener.surfacePrepared(surfaces[STREAM_COLOR],
+                surfaces[STREAM_BG], surfaces[STREAM_ALPHA]);
+    }
+
+    /**
+     * Returns true once every stream of the standby set has a frame to show.  May be called
+     * from any thread.
+     */
+    boolean isStandbyReady() {
+        synchronized (surfaceLock) {
+            return standbyGate != null && standbyGate.isReady();
+        }
+    }
+
+    /**
+     * Makes the standby set the one that is drawn, with the frames pre-rolled into it, and
+     * the set drawn so far the standby one.  Its decoders may still be finishing; the frames
+     * they send are ignored, and {@link #releaseStandbySurfaces()} deletes it once they
+     * stopped.  Call on the GL thread.
+     */
+    void swapStandbySurfaces() {
+        if (renderState == null || standbySurfaceTextures[0] == null) {
+            return;
+        }
+        synchronized (surfaceLock) {
+            SurfaceTexture color = surfaceTexture;
+            SurfaceTexture bg = surfaceTextureBg;
+            SurfaceTexture alpha = surfaceTextureAlpha;
+            surfaceTexture = standbySurfaceTextures[STREAM_COLOR];
+            surfaceTextureBg = standbySurfaceTextures[STREAM_BG];
+            surfaceTextureAlpha = standbySurfaceTextures[STREAM_ALPHA];
+            standbySurfaceTextures[STREAM_COLOR] = color;
+            standbySurfaceTextures[STREAM_BG] = bg;
+            standbySurfaceTextures[STREAM_ALPHA] = alpha;
+
+            int colorId = textureID;
+            int bgId = textureBgID;
+            int alphaId = textureAlphaID;
+            textureID = standbyTextureIds[STREAM_COLOR];
+            textureBgID = standbyTextureIds[STREAM_BG];
+            textureAlphaID = standbyTextureIds[STREAM_ALPHA];
+            standbyTextureIds[STREAM_COLOR] = colorId;
+            standbyTextureIds[STREAM_BG] = bgId;
+            standbyTextureIds[STREAM_ALPHA] = alphaId;
+
+            frameGate = standbyGate;
+            standbyGate = null;
+        }
+        renderState.setTexture(STREAM_COLOR, textureID);
+        renderState.setTexture(STREAM_BG, textureBgID);
+        renderState.setTexture(STREAM_ALPHA, textureAlphaID);
+    }
+
+    /**
+     * Deletes the standby set, once nothing renders into it any more.  Call on the GL thread.
+     */
+    void releaseStandbySurfaces() {
+        synchronized (surfaceLock) {
+            if (standbySurfaceTextures[0] == null) {
+                return;
+            }
+            for (int i = 0; i < standbySurfaceTextures.length; i++) {
+                standbySurfaceTextures[i].release();
+                standbySurfaceTextures[i] = null;
+            }
+            standbyGate = null;
+        }
+        GLES20.glDeleteTextures(standbyTextureIds.length, standbyTextureIds, 0);
+    }
+
+    /**
+     * Starts capturing the composited frames into a {@link FrameCache} of {@code width} by
+     * {@code height} slots; once {@code ring} is complete, they are replayed instead of
+     * latching decoded frames.  Only works in frame sync mode, where every latch is a complete
+     * set.  Call on the GL thread.
+     */
+    void startFrameCache(int width, int height, FrameRing ring) {
+        releaseFrameCache();
+        if (renderState != null) {
+            copyProgram = programCache.acquire(ShaderSource.VERTEX, ShaderSource.COPY_FRAGMENT);
+        }
+        if (copyProgram == 0) {
+            OnFrameCacheListener listener = onFrameCacheListener;
+            if (listener != null) {
+                listener.onFrameCacheDropped(ring);
+            }
+            return;
+        }
+        frameCache = new FrameCache(glApi, copyProgram, width, height, ring);
+    }
+
+    /**
+     * Deletes the frame cache, if any; drawing goes back to the decoded frames.  Call on the
+     * GL thread.
+     */
+    void releaseFrameCache() {
+        if (frameCache == null) {
+            return;
+        }
+        frameCache.release();
+        frameCache = null;
+        programCache.release(copyProgram);
+        copyProgram = 0;
+    }
+
+    /**
+     * Holds the replayed frame on screen.  Call on the GL thread.
+     */
+    void pauseReplay() {
+        if (frameCache != null) {
+            frameCache.pauseReplay();
+        }
+    }
+
+    /**
+     * Continues replay where {@link #pauseReplay()} held it.  Call on the GL thread.
+     */
+    void resumeReplay() {
+        if (frameCache != null) {
+            frameCache.resumeReplay();
+        }
+    }
+
+    void setOnFrameCacheListener(OnFrameCacheListener onFrameCacheListener) {
+        this.onFrameCacheListener = onFrameCacheListener;
+    }
+
     void setOnSurfacePrepareListener(OnSurfacePrepareListener onSurfacePrepareListener) {
         this.onSurfacePrepareListener = onSurfacePrepareListener;
     }
 
+    void setOnStandbySurfacePrepareListener(OnSurfacePrepareListener listener) {
+        this.onStandbySurfacePrepareListener = listener;
+    }
+
+    void setOnFrameReadyListener(OnFrameReadyListener onFrameReadyListener) {
+        this.onFrameReadyListener = onFrameReadyListener;
+    }
+
     interface OnSurfacePrepareListener {
+        /**
+         * Called on the GL thread once the decoder surfaces exist.  In packed mode only
+         * {@code surface} is created and the other two are null.
+         */
         void surfacePrepared(Surface surface, Surface bgSurface, Surface alphaSurface);
     }
 
+    interface OnFrameReadyListener {
+        /**
+         * Called on an arbitrary thread when a new set of frames is ready to be drawn.
+         */
+        void onFrameReady();
+    }
+
+    /**
+     * Frame cache events, called on the GL thread.  {@code ring} identifies the cache, as
+     * passed to {@link #startFrameCache}.
+     */
+    interface OnFrameCacheListener {
+        /**
+         * A whole loop was captured and replay has started; the decoders can be stopped.
+         */
+        void onFrameCacheComplete(FrameRing ring);
+
+        /**
+         * The cache was deleted or couldn't be made, e.g. because GPU memory ran out or the
+         * GL context was lost.  Drawing went back to the decoded frames.
+         */
+        void onFrameCacheDropped(FrameRing ring);
+
+        /**
+         * A replayed frame was drawn, and the next one is due in {@code nanosUntilNextFrame}.
+         */
+        void onReplayFrameDrawn(long nanosUntilNextFrame);
+    }
+
 }
\ No newline at end of file
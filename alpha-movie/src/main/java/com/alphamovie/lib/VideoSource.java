@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes one video stream into a Surface, frame by frame.
+ * <p>
+ * Unlike MediaPlayer, a source exposes its buffering: how many samples are queued ahead of
+ * the decoder output, and how long the decode thread blocks waiting for output before it
+ * feeds more input.  Every frame is reported to a {@link FrameListener}.
+ * <p>
+ * {@link MoviePlayer} is the MediaCodec implementation.  Setters must be called before
+ * {@link #play()}.
+ */
+public interface VideoSource {
+    /**
+     * Frame-level events.  Called on the decode thread; keep them short.
+     */
+    interface FrameListener {
+        /**
+         * The frame was released to the output surface.
+         */
+        void onFrameRendered(long presentationTimeUsec);
+
+        /**
+         * The frame was decoded but discarded, e.g. because it was too late.
+         */
+        void onFrameDropped(long presentationTimeUsec);
+
+        /**
+         * The last frame was decoded.  If {@code looping}, playback continues from the start.
+         */
+        void onEndOfStream(boolean looping);
+    }
+
+    /**
+     * Creates the sources {@link AlphaMovieView} decodes its streams with.
+     */
+    interface Factory {
+        /**
+         * @param frameCallback paces frame release; see {@link MoviePlayer.FrameCallback}.  One
+         *     callback is shared by the sources of a group, so they drop the same frames.
+         */
+        VideoSource create(File file, Surface outputSurface, MoviePlayer.FrameCallback frameCallback)
+                throws IOException;
+    }
+
+    int getVideoWidth();
+
+    int getVideoHeight();
+
+    /**
+     * Sets the loop mode.  If true, playback will loop forever.
+     */
+    void setLoopMode(boolean loopMode);
+
+    /**
+     * Loops without a gap: the last frame of a pass is followed by the first frame of the next
+     * after one frame duration, with presentation times that keep increasing.  Only has an
+     * effect with loop mode on.
+     */
+    void setSeamlessLoop(boolean seamlessLoop);
+
+    /**
+     * Sets how many samples may be queued to the decoder without having come out as frames.
+     * Deeper prefetch rides out decoder hiccups at the cost of decoder memory and startup
+     * work.
+     */
+    void setInputPrefetchDepth(int depth);
+
+    /**
+     * Plays at {@code rate} times the normal speed, from {@link PlaybackRate#MIN_RATE} to
+     * {@link PlaybackRate#MAX_RATE}.  May be called during playback.
+     *
+     * @throws IllegalArgumentException if the rate is out of range.
+     */
+    void setPlaybackRate(float rate);
+
+    float getPlaybackRate();
+
+    /**
+     * Sets how long the decode thread waits for a frame before it goes back to feeding
+     * input.  While the prefetch window is full it only feeds more after such a timeout.
+     */
+    void setOutputTimeoutUsec(long timeoutUsec);
+
+    /**
+     * Seeks to the frame on screen at {@code positionUsec}, exactly rather than to the
+     * nearest key frame.  May be called from any thread, also while the source holds before
+     * {@link #start()}, in which case the frame is shown.
+     */
+    void seekTo(long positionUsec);
+
+    void setFrameListener(FrameListener frameListener);
+
+    /**
+     * Ties this source to the other streams of a group; see {@link FrameSynchronizer}.
+     */
+    void setFrameSynchronizer(FrameSynchronizer synchronizer, int stream);
+
+    void setFrameMetrics(FrameMetrics frameMetrics);
+
+    /**
+     * Sets up decoding and shows the first frame, then holds until {@link #start()}.  Blocks
+     * the calling thread, which must then call {@link #play()}.  Optional; without it
+     * {@link #play()} starts right away.
+     */
+    void prepare() throws IOException;
+
+    /**
+     * Releases a prepared source into playback.  Called from arbitrary thread.
+     */
+    void start();
+
+    /**
+     * Holds playback on the frame on screen, keeping the decoder, until {@link #start()}.
+     * Called from arbitrary thread.
+     */
+    void pause();
+
+    /**
+     * Decodes on the calling thread until the stream ends or {@link #requestStop()} is
+     * called.
+     */
+    void play() throws IOException;
+
+    /**
+     * Asks {@link #play()} to return.  Called from arbitrary thread.
+     */
+    void requestStop();
+}
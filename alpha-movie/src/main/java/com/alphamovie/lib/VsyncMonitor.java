@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tracks display vsync timing with {@link Choreographer}.
+ * <p>
+ * Vsync callbacks are taken on a background thread, so a busy UI thread doesn't delay them.
+ * They only run while someone is asking for the timing: after {@link #IDLE_TIMEOUT_NANOS}
+ * without a query the monitor stops, and the next query restarts it.  Until the monitor has
+ * seen two recent vsyncs it reports no timing, and callers should fall back to plain pacing.
+ * <p>
+ * The getters may be called from any thread.  The monitor is public for the overlay renderers
+ * of the {@code independent} package, which pace their draws with it too.
+ */
+public final class VsyncMonitor implements Choreographer.FrameCallback {
+    private static final long IDLE_TIMEOUT_NANOS = 1000000000L;
+
+    /** A vsync older than this is too old to extrapolate from. */
+    private static final long STALE_NANOS = 100000000L;
+
+    private static VsyncMonitor sInstance;
+
+    private final Handler mHandler;
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            mPrevVsyncNanos = 0;
+            Choreographer.getInstance().postFrameCallback(VsyncMonitor.this);
+        }
+    };
+
+    private volatile long mLastVsyncNanos;
+    private volatile long mPeriodNanos;
+    private volatile long mLastQueryNanos;
+
+    // monitor thread only
+    private long mPrevVsyncNanos;
+
+    /**
+     * Returns the process-wide monitor, starting its thread on first use.
+     */
+    public static synchronized VsyncMonitor getInstance() {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread("VsyncMonitor");
+            thread.setDaemon(true);
+            thread.start();
+            sInstance = new VsyncMonitor(new Handler(thread.getLooper()));
+        }
+        return sInstance;
+    }
+
+    private VsyncMonitor(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Returns the time of a recent vsync, in the {@code System.nanoTime()} timebase, or 0 if
+     * the timing isn't known yet.
+     */
+    public long getVsyncNanos() {
+        long nowNanos = System.nanoTime();
+        query(nowNanos);
+        long vsyncNanos = mLastVsyncNanos;
+        if (vsyncNanos == 0 || mPeriodNanos == 0 || nowNanos - vsyncNanos > STALE_NANOS) {
+            return 0;
+        }
+        return vsyncNanos;
+    }
+
+    /**
+     * Returns the estimated refresh period, or 0 if it isn't known yet.
+     */
+    public long getPeriodNanos() {
+        query(System.nanoTime());
+        return mPeriodNanos;
+    }
+
+    // runs on monitor thread
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mPrevVsyncNanos != 0) {
+            mPeriodNanos = VsyncTiming.refinePeriodNanos(mPeriodNanos,
+                    frameTimeNanos - mPrevVsyncNanos);
+        }
+        mPrevVsyncNanos = frameTimeNanos;
+        mLastVsyncNanos = frameTimeNanos;
+
+        if (System.nanoTime() - mLastQueryNanos < IDLE_TIMEOUT_NANOS) {
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+        mRunning.set(false);
+        // A query may have slipped in after the check; it saw us running and didn't restart.
+        if (System.nanoTime() - mLastQueryNanos < IDLE_TIMEOUT_NANOS
+                && mRunning.compareAndSet(false, true)) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void query(long nowNanos) {
+        mLastQueryNanos = nowNanos;
+        if (mRunning.compareAndSet(false, true)) {
+            mHandler.post(mStart);
+        }
+    }
+}
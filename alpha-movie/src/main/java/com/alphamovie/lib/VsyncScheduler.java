@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Movie player callback that presents frames on display refreshes.
+ * <p>
+ * {@link SpeedControlCallback} releases each frame when its time comes, as well as
+ * {@code Thread.sleep} allows, and the frame shows on whichever refresh follows.  With 30 fps
+ * content on a 60 or 90 Hz display, small timing errors move frames between neighbouring
+ * refreshes and the motion judders.  This callback takes the vsync timing from
+ * {@code Choreographer} (see {@link VsyncMonitor}) and gives each frame a target vsync:
+ * the timeline is anchored on a vsync, and every frame goes to the refresh its presentation
+ * time falls on (see {@link VsyncTiming#targetVsyncNanos}).  The frame is released at that
+ * vsync, so every frame takes the same path to the screen: latched by the renderer's
+ * {@code SurfaceTexture} and composited a fixed number of refreshes later.  Sleep precision
+ * only needs to be within a refresh.
+ * <p>
+ * Releasing earlier doesn't help here: a {@code SurfaceTexture} hands a buffer to its
+ * consumer as soon as it is queued, whatever its timestamp, so an early release is just drawn
+ * early.  On API 21 and later {@link MoviePlayer} still passes the target to
+ * {@code MediaCodec.releaseOutputBuffer(int, long)}, which becomes the texture's timestamp.
+ * Until the monitor has the display timing, frames are paced like
+ * {@link SpeedControlCallback} does.
+ * <p>
+ * Late frames are handled by the same catch-up strategies as in {@link SpeedControlCallback}.
+ */
+public class VsyncScheduler extends SpeedControlCallback implements MoviePlayer.TimedFrameCallback {
+    private final VsyncMonitor mVsyncMonitor;
+
+    public VsyncScheduler() {
+        mVsyncMonitor = VsyncMonitor.getInstance();
+    }
+
+    // runs on decode thread
+    @Override
+    public long getRenderTimeNanos(long presentationTimeUsec) {
+        return getDecidedRenderTimeNanos(presentationTimeUsec);
+    }
+
+    @Override
+    protected long anchorUsec(long nowUsec) {
+        long vsyncNanos = mVsyncMonitor.getVsyncNanos();
+        long periodNanos = mVsyncMonitor.getPeriodNanos();
+        if (vsyncNanos == 0 || periodNanos == 0) {
+            return nowUsec;
+        }
+        // Anchor on a vsync, so frames at whole multiples of the refresh period land exactly
+        // on refreshes rather than wherever the first frame happened to arrive.
+        return VsyncTiming.targetVsyncNanos(nowUsec * 1000, vsyncNanos, periodNanos) / 1000;
+    }
+
+    @Override
+    protected long renderTimeNanos(long desiredUsec) {
+        long vsyncNanos = mVsyncMonitor.getVsyncNanos();
+        long periodNanos = mVsyncMonitor.getPeriodNanos();
+        if (vsyncNanos == 0 || periodNanos == 0) {
+            return 0;
+        }
+        return VsyncTiming.targetVsyncNanos(desiredUsec * 1000, vsyncNanos, periodNanos);
+    }
+
+    @Override
+    protected void awaitPresentation(long desiredUsec, long renderTimeNanos) {
+        if (renderTimeNanos == 0) {
+            super.awaitPresentation(desiredUsec, renderTimeNanos);
+            return;
+        }
+        sleepUntil(renderTimeNanos / 1000);
+    }
+}
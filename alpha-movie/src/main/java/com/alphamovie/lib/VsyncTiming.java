@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Vsync arithmetic used by {@link VsyncScheduler} and {@link VsyncMonitor}.
+ * <p>
+ * All times are {@code System.nanoTime()} values, the clock used by both {@code Choreographer}
+ * and {@code MediaCodec.releaseOutputBuffer(int, long)}.  Kept free of Android dependencies so
+ * it can be exercised on a plain JVM.
+ */
+final class VsyncTiming {
+    /**
+     * A frame goes to the first vsync that is no earlier than this fraction of a period before
+     * its desired time.  Rounding to the nearest vsync would put 24 fps content on 60 Hz, whose
+     * frames fall exactly halfway between refreshes every other frame, at the mercy of clock
+     * jitter; with the boundary at 30% no common frame rate / refresh rate pair has frames near
+     * it, so every frame maps to the same refresh every time and the cadence stays even.
+     */
+    static final int ROUNDING_PERCENT = 30;
+
+    /** Vsync intervals longer than this many periods are not used to refine the period. */
+    static final int MAX_SKIPPED_VSYNCS = 4;
+
+    /** Weight of a new observation in the period estimate is 1 / PERIOD_SMOOTHING. */
+    static final int PERIOD_SMOOTHING = 16;
+
+    private VsyncTiming() {}
+
+    /**
+     * Returns the vsync a frame wanted at {@code desiredNanos} should be shown on.
+     *
+     * @param vsyncNanos Time of any known vsync, earlier or later than the desired time.
+     * @param periodNanos The refresh period; must be positive.
+     */
+    static long targetVsyncNanos(long desiredNanos, long vsyncNanos, long periodNanos) {
+        long offset = desiredNanos - vsyncNanos - periodNanos * ROUNDING_PERCENT / 100;
+        // Ceiling division that also works for frames before the known vsync.
+        long periods = offset / periodNanos;
+        if (offset > periods * periodNanos) {
+            periods++;
+        }
+        return vsyncNanos + periods * periodNanos;
+    }
+
+    /**
+     * Folds the time between two vsync callbacks into the period estimate.  Callbacks that
+     * skipped a few refreshes still count, divided by the number of periods they span.  An
+     * interval well under the estimate means the estimate started from a skipped refresh, so
+     * it is replaced.
+     *
+     * @param periodNanos The current estimate, or 0 if there is none yet.
+     * @return The new estimate.
+     */
+    static long refinePeriodNanos(long periodNanos, long intervalNanos) {
+        if (intervalNanos <= 0) {
+            return periodNanos;
+        }
+        if (periodNanos <= 0) {
+            return intervalNanos;
+        }
+        if (intervalNanos < periodNanos * 3 / 4) {
+            return intervalNanos;
+        }
+        long periods = (intervalNanos + periodNanos / 2) / periodNanos;
+        if (periods > MAX_SKIPPED_VSYNCS) {
+            return periodNanos;
+        }
+        long observedNanos = intervalNanos / periods;
+        return periodNanos + (observedNanos - periodNanos) / PERIOD_SMOOTHING;
+    }
+}
@@ -3,14 +3,18 @@ package com.alphamovie.lib.independent;
 import android.app.Activity;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.SurfaceTexture;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.util.Log;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.ViewGroup;
 
+import com.alphamovie.lib.FrameMetrics;
 import com.alphamovie.lib.MediaPlayerBlob;
+import com.alphamovie.lib.MediaPlayerGroup;
+import com.alphamovie.lib.MediaPlayerPool;
+import com.alphamovie.lib.Mp4Metadata;
+import com.alphamovie.lib.PackedLayout;
 import com.alphamovie.lib.Utils;
 
 import java.io.IOException;
@@ -35,11 +39,10 @@ public class AlphaMoviePlayer {
 
     private boolean isSurfaceCreated = false;
     private boolean isDataSourceSet = false;
-    private boolean isMediaPlayerBlobPrepared = false;
-    private boolean isMediaPlayerBlobAlphaPrepared = false;
 
     private MediaPlayerBlob mMediaPlayerBlob;
     private MediaPlayerBlob mMediaPlayerBlobAlpha;
+    private MediaPlayerGroup mPlayerGroup;
 
     private VideoPlayer mVideoPlayer;
 
@@ -48,6 +51,10 @@ public class AlphaMoviePlayer {
     private TextureView mTextureView;
     private AlphaMovieTextureRender mRenderer;
 
+    private PackedLayout mPackedLayout = PackedLayout.NONE;
+
+    private FrameMetrics mFrameMetrics;
+
     public void init(TextureView textureView, VideoPlayer videoPlayer) {
         this.mVideoPlayer = videoPlayer;
 
@@ -55,7 +62,9 @@ public class AlphaMoviePlayer {
         mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-                mRenderer = new AlphaMovieTextureRender(mTextureView.getContext(), surface, width, height);
+                mRenderer = new AlphaMovieTextureRender(mTextureView.getContext(), surface, width, height,
+                        mPackedLayout);
+                mRenderer.setFrameMetrics(mFrameMetrics);
                 mRenderer.setOnSurfacePrepareListener(new AlphaMovieTextureRender.OnSurfacePrepareListener() {
                     @Override
                     public void surfacePrepared(Surface surface, Surface alphaSurface) {
@@ -64,15 +73,17 @@ public class AlphaMoviePlayer {
                         mMediaPlayerBlob.getMediaPlayer().setSurface(surface);
                         surface.release();
 
-                        mMediaPlayerBlobAlpha.getMediaPlayer().setSurface(alphaSurface);
-                        alphaSurface.release();
+                        if (alphaSurface != null) {
+                            mMediaPlayerBlobAlpha.getMediaPlayer().setSurface(alphaSurface);
+                            alphaSurface.release();
+                        }
 
                         if (isDataSourceSet) {
                             prepareAndStartMediaPlayer();
                         }
                     }
                 });
-
+                mRenderer.start();
             }
 
             @Override
@@ -113,11 +124,63 @@ public class AlphaMoviePlayer {
     }
 
     private void initMediaPlayer() {
-        MediaPlayer mediaPlayer = new MediaPlayer();
-        MediaPlayer mediaPlayerAlpha = new MediaPlayer();
+        MediaPlayer mediaPlayer = MediaPlayerPool.getInstance().acquire();
+        MediaPlayer mediaPlayerAlpha = MediaPlayerPool.getInstance().acquire();
 
         mMediaPlayerBlob = new MediaPlayerBlob(mediaPlayer);
         mMediaPlayerBlobAlpha = new MediaPlayerBlob(mediaPlayerAlpha);
+
+        mPlayerGroup = new MediaPlayerGroup();
+        mPlayerGroup.setListener(new MediaPlayerGroup.Listener() {
+            @Override
+            public void onGroupPrepared() {
+                if (mOnPrepareFinishListener != null) {
+                    mOnPrepareFinishListener.OnPrepareFinish();
+                }
+            }
+
+            @Override
+            public void onGroupPrepareTimedOut() {
+            }
+
+            @Override
+            public void onFirstFrameSkew(long skewNanos) {
+            }
+
+            @Override
+            public void onPositionSkew(long skewMs) {
+            }
+        });
+        updatePlayerGroup();
+    }
+
+    private void updatePlayerGroup() {
+        if (mMediaPlayerBlobAlpha != null) {
+            mPlayerGroup.setMembers(mMediaPlayerBlob, mMediaPlayerBlobAlpha);
+        } else {
+            mPlayerGroup.setMembers(mMediaPlayerBlob);
+        }
+    }
+
+    private boolean isPacked() {
+        return mPackedLayout.isPacked();
+    }
+
+    private void setPackedLayout(PackedLayout packedLayout) {
+        if (mRenderer != null && mPackedLayout != packedLayout) {
+            throw new IllegalStateException("Packed layout must be set before the surface is available");
+        }
+        mPackedLayout = packedLayout;
+        if (packedLayout.isPacked()) {
+            // A packed video needs a single decoder, so the alpha player is not kept around.
+            if (mMediaPlayerBlobAlpha != null) {
+                mMediaPlayerBlobAlpha.release();
+                mMediaPlayerBlobAlpha = null;
+            }
+        } else if (mMediaPlayerBlobAlpha == null) {
+            mMediaPlayerBlobAlpha = new MediaPlayerBlob(MediaPlayerPool.getInstance().acquire());
+        }
+        updatePlayerGroup();
     }
 
 //    private void addOnSurfacePrepareListener() {
@@ -144,29 +207,7 @@ public class AlphaMoviePlayer {
     public void prepareAndStartMediaPlayer() {
         if (!isDataSourceSet || !isSurfaceCreated) return;
 
-        mMediaPlayerBlob.prepareAsync(new MediaPlayer.OnPreparedListener() {
-            @Override
-            public void onPrepared(MediaPlayer mp) {
-                isMediaPlayerBlobPrepared = true;
-                if (isMediaPlayerBlobAlphaPrepared) {
-                    if (mOnPrepareFinishListener != null) {
-                        mOnPrepareFinishListener.OnPrepareFinish();
-                    }
-                }
-            }
-        });
-        mMediaPlayerBlobAlpha.prepareAsync(new MediaPlayer.OnPreparedListener() {
-            @Override
-            public void onPrepared(MediaPlayer mp) {
-                isMediaPlayerBlobAlphaPrepared = true;
-                if (isMediaPlayerBlobPrepared) {
-                    if (mOnPrepareFinishListener != null) {
-                        mOnPrepareFinishListener.OnPrepareFinish();
-                    }
-                }
-            }
-        });
-
+        mPlayerGroup.prepare(false);
     }
 
     private void calculateVideoAspectRatio(int videoWidth, int videoHeight) {
@@ -180,11 +221,12 @@ public class AlphaMoviePlayer {
         mTextureView.setLayoutParams(layoutParams);
     }
 
-    private void onDataSourceSet(MediaMetadataRetriever retriever) {
-        int videoWidth = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int videoHeight = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+    private void onDataSourceSet(Mp4Metadata metadata) {
+        int videoWidth = metadata.getWidth();
+        int videoHeight = metadata.getHeight();
 
-        calculateVideoAspectRatio(videoWidth, videoHeight);
+        calculateVideoAspectRatio(mPackedLayout.getContentWidth(videoWidth),
+                mPackedLayout.getContentHeight(videoHeight));
         isDataSourceSet = true;
 
         if (isSurfaceCreated) {
@@ -192,66 +234,80 @@ public class AlphaMoviePlayer {
         }
     }
 
-    public void setVideoFromAssets(String assetsFileName, String assetsFileNameAlpha) {
+    /**
+     * Plays a single video whose frames carry both the color picture and the alpha mask,
+     * arranged as described by {@code packedLayout}.  Only one decoder is used.
+     * <p>
+     * Must be called before the TextureView's surface becomes available.
+     */
+    public void setPackedVideoFromAssets(String assetsFileName, PackedLayout packedLayout) {
         reset();
+        setPackedLayout(packedLayout);
 
         try {
             AssetFileDescriptor assetFileDescriptor = mTextureView.getContext().getAssets().openFd(assetsFileName);
             mMediaPlayerBlob.getMediaPlayer().setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
 
-            MediaMetadataRetriever retrieverBg = new MediaMetadataRetriever();
-            retrieverBg.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+            onDataSourceSet(Utils.readAssetMetadata(assetFileDescriptor, assetsFileName));
+
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    public void setVideoFromAssets(String assetsFileName, String assetsFileNameAlpha) {
+        reset();
+        setPackedLayout(PackedLayout.NONE);
+
+        try {
+            AssetFileDescriptor assetFileDescriptor = mTextureView.getContext().getAssets().openFd(assetsFileName);
+            mMediaPlayerBlob.getMediaPlayer().setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
 
             AssetFileDescriptor assetFileDescriptorAlpha = mTextureView.getContext().getAssets().openFd(assetsFileNameAlpha);
             mMediaPlayerBlobAlpha.getMediaPlayer().setDataSource(assetFileDescriptorAlpha.getFileDescriptor(), assetFileDescriptorAlpha.getStartOffset(), assetFileDescriptorAlpha.getLength());
 
-            onDataSourceSet(retrieverBg);
+            onDataSourceSet(Utils.readAssetMetadata(assetFileDescriptor, assetsFileName));
 
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
         }
     }
 
-    public void start() {
-        if (isMediaPlayerBlobAlphaPrepared && isMediaPlayerBlobPrepared) {
-            mMediaPlayerBlob.start();
-            mMediaPlayerBlobAlpha.start();
-            mMediaPlayerBlob.setOnVideoStartedListener(new MediaPlayerBlob.OnVideoStartedListener() {
-                @Override
-                public void onVideoStarted() {
-
-                }
-            });
-            mMediaPlayerBlobAlpha.setOnVideoStartedListener(new MediaPlayerBlob.OnVideoStartedListener() {
-                @Override
-                public void onVideoStarted() {
-
-                }
-            });
+    /**
+     * Reports texture update, draw, swap and frame-to-frame times of this overlay to
+     * {@code frameMetrics}, or stops reporting if null.
+     */
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+        if (mRenderer != null) {
+            mRenderer.setFrameMetrics(frameMetrics);
         }
     }
 
+    /**
+     * Starts both streams at the same time, once both are prepared.
+     */
+    public void start() {
+        mPlayerGroup.start();
+    }
+
     public void pause() {
-        mMediaPlayerBlob.pause();
-        mMediaPlayerBlobAlpha.pause();
+        mPlayerGroup.pause();
     }
 
     public void stop() {
-        mMediaPlayerBlob.stop();
-        mMediaPlayerBlobAlpha.stop();
+        mPlayerGroup.stop();
     }
 
     public void release() {
-        mMediaPlayerBlob.release();
-        mMediaPlayerBlobAlpha.release();
+        mPlayerGroup.release();
 //        mRenderer.halt();
         mRenderer.onPause();
         mRenderer = null;
     }
 
     public void reset() {
-        mMediaPlayerBlob.reset();
-        mMediaPlayerBlobAlpha.reset();
+        mPlayerGroup.reset();
     }
 
     private OnPrepareFinishListener mOnPrepareFinishListener;
@@ -9,13 +9,16 @@ import android.opengl.Matrix;
 import android.util.Log;
 import android.view.Surface;
 
-import com.alphamovie.lib.R;
-import com.alphamovie.lib.utils.RawResourceReader;
+import com.alphamovie.lib.BlendMode;
+import com.alphamovie.lib.FrameGate;
+import com.alphamovie.lib.FrameMetrics;
+import com.alphamovie.lib.PackedLayout;
+import com.alphamovie.lib.ShaderSource;
+import com.alphamovie.lib.utils.CompositeUniforms;
+import com.alphamovie.lib.utils.GlApi;
+import com.alphamovie.lib.utils.QuadRenderState;
+import com.alphamovie.lib.utils.ShaderCache;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.Locale;
 
 /**
  * Created by luotian on 2018/1/9.
@@ -27,145 +30,96 @@ public class AlphaMovieTextureRender extends TextureSurfaceRenderer {
 
     private static final int COLOR_MAX_VALUE = 255;
 
-    private static final int FLOAT_SIZE_BYTES = 4;
-    private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
-    private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
-    private final float[] triangleVerticesData = {
-            // X, Y, Z, U, V
-            -1.0f, -1.0f, 0, 0.f, 0.f,
-            1.0f, -1.0f, 0, 1.f, 0.f,
-            -1.0f,  1.0f, 0, 0.f, 1.f,
-            1.0f,  1.0f, 0, 1.f, 1.f,
-    };
+    private static final int STREAM_COLOR = 0;
+    private static final int STREAM_ALPHA = 1;
 
-    private FloatBuffer triangleVertices;
+    private static final String[] SAMPLER_NAMES = {"sTexture", "sTextureAlpha"};
+    private static final String[] PACKED_SAMPLER_NAMES = {"sTexture"};
 
     private double accuracy = 0.95;
 
-    private float[] mVPMatrix = new float[16];
     private float[] sTMatrix = new float[16];
 
     private Context context;
 
     private int program;
-    private int uMVPMatrixHandle;
-    private int uSTMatrixHandle;
-    private int aPositionHandle;
-    private int aTextureHandle;
+    private QuadRenderState renderState;
 
     private int[] textures;
     private int textureID;
     private int textureAlphaID;
     private SurfaceTexture surfaceTexture;
     private SurfaceTexture surfaceTextureAlpha;
-    private volatile boolean updateSurface = false;
-    private volatile boolean updateSurfaceAlpha = false;
 
     private OnSurfacePrepareListener onSurfacePrepareListener;
 
     private boolean isCustom;
 
-    private float redParam = 0.0f;
-    private float greenParam = 1.0f;
-    private float blueParam = 0.0f;
+    private PackedLayout packedLayout;
+
+    private final CompositeUniforms compositeUniforms = new CompositeUniforms();
 
     public AlphaMovieTextureRender(Context context, SurfaceTexture surfaceTexture, int width, int height) {
+        this(context, surfaceTexture, width, height, PackedLayout.NONE);
+    }
+
+    public AlphaMovieTextureRender(Context context, SurfaceTexture surfaceTexture, int width, int height,
+                                   PackedLayout packedLayout) {
         super(surfaceTexture, width, height);
         this.context = context;
-        triangleVertices = ByteBuffer.allocateDirect(
-                triangleVerticesData.length * FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        triangleVertices.put(triangleVerticesData).position(0);
+        this.packedLayout = packedLayout;
         Matrix.setIdentityM(sTMatrix, 0);
     }
 
     @Override
     protected boolean draw() {
-        Log.d("onDrawFrame", "updateTexImage called");
-        surfaceTexture.updateTexImage();
-        surfaceTexture.getTransformMatrix(sTMatrix);
-        updateSurface = false;
-
-        surfaceTextureAlpha.updateTexImage();
-        surfaceTextureAlpha.getTransformMatrix(sTMatrix);
-        updateSurfaceAlpha = false;
-
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
-
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-
-        GLES20.glUseProgram(program);
-        checkGlError("glUseProgram");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTexture"), 0);
-        checkGlError("glBindTexture textureID");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureAlphaID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTextureAlpha"), 1);
-        checkGlError("glBindTexture textureAlphaID");
-
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(aPositionHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        checkGlError("glEnableVertexAttribArray aPositionHandle");
+        if (renderState == null) {
+            return false;
+        }
+        FrameMetrics metrics = getFrameMetrics();
+        long updateStartNanos = metrics != null ? System.nanoTime() : 0;
+
+        int pending = consumeFrames();
+        if (FrameGate.isSet(pending, STREAM_COLOR)) {
+            renderState.beginTextureUpdate(STREAM_COLOR);
+            surfaceTexture.updateTexImage();
+            surfaceTexture.getTransformMatrix(sTMatrix);
+        }
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(aTextureHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer aTextureHandle");
-        GLES20.glEnableVertexAttribArray(aTextureHandle);
-        checkGlError("glEnableVertexAttribArray aTextureHandle");
+        if (!packedLayout.isPacked() && FrameGate.isSet(pending, STREAM_ALPHA)) {
+            renderState.beginTextureUpdate(STREAM_ALPHA);
+            surfaceTextureAlpha.updateTexImage();
+            surfaceTextureAlpha.getTransformMatrix(sTMatrix);
+        }
 
-        Matrix.setIdentityM(mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uMVPMatrixHandle, 1, false, mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uSTMatrixHandle, 1, false, sTMatrix, 0);
+        long drawStartNanos = 0;
+        if (metrics != null) {
+            drawStartNanos = System.nanoTime();
+            if (pending != 0) {
+                metrics.recordDuration(FrameMetrics.STAGE_TEXTURE_UPDATE, drawStartNanos - updateStartNanos);
+            }
+        }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        checkGlError("glDrawArrays");
+        compositeUniforms.apply();
+        renderState.draw(sTMatrix);
 
-        GLES20.glFinish();
+        if (metrics != null) {
+            metrics.recordDuration(FrameMetrics.STAGE_DRAW, System.nanoTime() - drawStartNanos);
+        }
         return true;
     }
 
     @Override
     protected void initGLComponents() {
-        final String vertexShader = RawResourceReader.readTextFileFromRawResource(context, R.raw.vetext_sharder);
-//        final String fragmentShader = RawResourceReader.readTextFileFromRawResource(context, R.raw.fragment_sharder);
-        program = createProgram(vertexShader, this.resolveShader());
+        getProgramCache().setBinaryStore(ShaderCache.getBinaryStore(context));
+        if (packedLayout.isPacked()) {
+            program = getProgramCache().acquire(ShaderSource.PACKED_VERTEX, ShaderSource.PACKED_FRAGMENT);
+        } else {
+            program = getProgramCache().acquire(ShaderSource.VERTEX, ShaderSource.OVERLAY_FRAGMENT);
+        }
         if (program == 0) {
             return;
         }
-        aPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
-        if (aPositionHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aPosition");
-        }
-        aTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
-        checkGlError("glGetAttribLocation aTextureCoord");
-        if (aTextureHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aTextureCoord");
-        }
-
-        uMVPMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (uMVPMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
-        }
-
-        uSTMatrixHandle = GLES20.glGetUniformLocation(program, "uSTMatrix");
-        checkGlError("glGetUniformLocation uSTMatrix");
-        if (uSTMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uSTMatrix");
-        }
-
         prepareSurface();
 
         GLES20.glViewport(0, 0, width, height);
@@ -173,12 +127,18 @@ public class AlphaMovieTextureRender extends TextureSurfaceRenderer {
 
     @Override
     protected void deinitGLComponents() {
+        if (renderState != null) {
+            renderState.release();
+            renderState = null;
+        }
         GLES20.glDeleteTextures(textures.length, textures, 0);
-        GLES20.glDeleteProgram(program);
+        getProgramCache().release(program);
         surfaceTexture.release();
         surfaceTexture.setOnFrameAvailableListener(null);
-        surfaceTextureAlpha.release();
-        surfaceTextureAlpha.setOnFrameAvailableListener(null);
+        if (surfaceTextureAlpha != null) {
+            surfaceTextureAlpha.release();
+            surfaceTextureAlpha.setOnFrameAvailableListener(null);
+        }
         context = null;
     }
 
@@ -188,110 +148,76 @@ public class AlphaMovieTextureRender extends TextureSurfaceRenderer {
     }
 
     private void prepareSurface() {
-        textures = new int[2];
-        GLES20.glGenTextures(2, textures, 0);
-
-        GLES20.glUseProgram(program);
-        checkGlError("glUseProgram");
+        boolean packed = packedLayout.isPacked();
+        textures = new int[packed ? 1 : 2];
+        setFrameGate(new FrameGate(textures.length));
+        GLES20.glGenTextures(textures.length, textures, 0);
 
         textureID = textures[0];
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTexture"), 0);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         checkGlError("glBindTexture textureID");
 
+        surfaceTexture = new SurfaceTexture(textureID);
+        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                notifyFrameAvailable(STREAM_COLOR);
+            }
+        });
+        Surface surface = new Surface(this.surfaceTexture);
+
+        if (packed) {
+            renderState = new QuadRenderState(getGlApi(), program, GlApi.GL_TEXTURE_EXTERNAL_OES,
+                    textures, PACKED_SAMPLER_NAMES);
+            renderState.setUniform(renderState.requireUniform("uColorRegion"),
+                    packedLayout.getColorRegion());
+            renderState.setUniform(renderState.requireUniform("uAlphaRegion"),
+                    packedLayout.getAlphaRegion());
+            compositeUniforms.attach(renderState);
+
+            // Color and mask share one frame, so a single decoder feeds a single texture.
+            onSurfacePrepareListener.surfacePrepared(surface, null);
+            return;
+        }
+
         textureAlphaID = textures[1];
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureAlphaID);
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTextureAlpha"), 1);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         checkGlError("glBindTexture textureAlphaID");
 
-        surfaceTexture = new SurfaceTexture(textureID);
-        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
-            @Override
-            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                Log.d("onDrawFrame", "surfaceTexture onFrameAvailable ==");
-                updateSurface = true;
-            }
-        });
-        Surface surface = new Surface(this.surfaceTexture);
-
         surfaceTextureAlpha = new SurfaceTexture(textureAlphaID);
         surfaceTextureAlpha.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
             @Override
             public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                Log.d("onDrawFrame", "surfaceTextureAlpha onFrameAvailable ==alpha");
-                updateSurfaceAlpha = true;
+                notifyFrameAvailable(STREAM_ALPHA);
             }
         });
         Surface surfaceAlpha = new Surface(this.surfaceTextureAlpha);
 
-        onSurfacePrepareListener.surfacePrepared(surface, surfaceAlpha);
-
-        synchronized(this) {
-            updateSurface = false;
-            updateSurfaceAlpha = false;
-        }
-    }
+        renderState = new QuadRenderState(getGlApi(), program, GlApi.GL_TEXTURE_EXTERNAL_OES,
+                textures, SAMPLER_NAMES);
+        compositeUniforms.attach(renderState);
 
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        if (shader != 0) {
-            GLES20.glShaderSource(shader, source);
-            GLES20.glCompileShader(shader);
-            int[] compiled = new int[1];
-            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-            if (compiled[0] == 0) {
-                Log.e(TAG, "Could not compile shader " + shaderType + ":");
-                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
-                GLES20.glDeleteShader(shader);
-                shader = 0;
-            }
-        }
-        return shader;
+        onSurfacePrepareListener.surfacePrepared(surface, surfaceAlpha);
     }
 
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
-        }
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
-        }
-
-        int program = GLES20.glCreateProgram();
-        if (program != 0) {
-            GLES20.glAttachShader(program, vertexShader);
-            checkGlError("glAttachShader");
-            GLES20.glAttachShader(program, pixelShader);
-            checkGlError("glAttachShader");
-            GLES20.glLinkProgram(program);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] != GLES20.GL_TRUE) {
-                Log.e(TAG, "Could not link program: ");
-                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-                GLES20.glDeleteProgram(program);
-                program = 0;
-            }
-        }
-        return program;
+    void setAlphaColor(int color) {
+        compositeUniforms.setKeyColor((float) Color.red(color) / COLOR_MAX_VALUE,
+                (float) Color.green(color) / COLOR_MAX_VALUE,
+                (float) Color.blue(color) / COLOR_MAX_VALUE);
     }
 
-    void setAlphaColor(int color) {
-        redParam = (float) Color.red(color) / COLOR_MAX_VALUE;
-        greenParam = (float) Color.green(color) / COLOR_MAX_VALUE;
-        blueParam = (float) Color.blue(color) / COLOR_MAX_VALUE;
+    void setBlendMode(BlendMode blendMode) {
+        compositeUniforms.setBlendMode(blendMode);
     }
 
 //    void setCustomShader(String customShader) {
@@ -306,18 +232,13 @@ public class AlphaMovieTextureRender extends TextureSurfaceRenderer {
             accuracy = 0.0;
         }
         this.accuracy = accuracy;
+        compositeUniforms.setAccuracy(accuracy);
     }
 
     public double getAccuracy() {
         return accuracy;
     }
 
-    private String resolveShader() {
-        String alphaShader = RawResourceReader.readTextFileFromRawResource(context, R.raw.fragment_sharder);
-        return String.format(Locale.ENGLISH, alphaShader,
-                redParam, greenParam, blueParam, 1 - accuracy);
-    }
-
     private void checkGlError(String op) {
         int error;
         if ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
@@ -331,6 +252,10 @@ public class AlphaMovieTextureRender extends TextureSurfaceRenderer {
     }
 
     interface OnSurfacePrepareListener {
+        /**
+         * Called on the render thread once the decoder surfaces exist.  In packed mode
+         * {@code alphaSurface} is null.
+         */
         void surfacePrepared(Surface surface, Surface alphaSurface);
     }
 }
@@ -21,7 +21,6 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.TypedArray;
 import android.graphics.PixelFormat;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.opengl.GLSurfaceView;
 import android.util.AttributeSet;
@@ -29,7 +28,11 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.alphamovie.lib.MediaPlayerBlob;
+import com.alphamovie.lib.MediaPlayerPool;
+import com.alphamovie.lib.Mp4Metadata;
 import com.alphamovie.lib.R;
+import com.alphamovie.lib.Utils;
+import com.alphamovie.lib.utils.ShaderCache;
 
 import java.io.IOException;
 
@@ -76,6 +79,7 @@ public class AlphaMovieView extends GLSurfaceView {
         initMediaPlayer();
 
         renderer = new VideoRenderer();
+        renderer.setProgramBinaryStore(ShaderCache.getBinaryStore(getContext()));
 
         this.addOnSurfacePrepareListener();
         setRenderer(renderer);
@@ -103,8 +107,8 @@ public class AlphaMovieView extends GLSurfaceView {
     }
 
     private void initMediaPlayer() {
-        MediaPlayer mediaPlayer = new MediaPlayer();
-        MediaPlayer mediaPlayerAlpha = new MediaPlayer();
+        MediaPlayer mediaPlayer = MediaPlayerPool.getInstance().acquire();
+        MediaPlayer mediaPlayerAlpha = MediaPlayerPool.getInstance().acquire();
 
         mMediaPlayerBlob = new MediaPlayerBlob(mediaPlayer);
         mMediaPlayerBlobAlpha = new MediaPlayerBlob(mediaPlayerAlpha);
@@ -206,9 +210,9 @@ public class AlphaMovieView extends GLSurfaceView {
                 MeasureSpec.makeMeasureSpec(heightSize, heightMode));
     }
 
-    private void onDataSourceSet(MediaMetadataRetriever retriever) {
-        int videoWidth = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int videoHeight = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+    private void onDataSourceSet(Mp4Metadata metadata) {
+        int videoWidth = metadata.getWidth();
+        int videoHeight = metadata.getHeight();
 
         calculateVideoAspectRatio(videoWidth, videoHeight);
         isDataSourceSet = true;
@@ -225,13 +229,10 @@ public class AlphaMovieView extends GLSurfaceView {
             AssetFileDescriptor assetFileDescriptor = getContext().getAssets().openFd(assetsFileName);
             mMediaPlayerBlob.getMediaPlayer().setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
 
-            MediaMetadataRetriever retrieverBg = new MediaMetadataRetriever();
-            retrieverBg.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
-
             AssetFileDescriptor assetFileDescriptorAlpha = getContext().getAssets().openFd(assetsFileNameAlpha);
             mMediaPlayerBlobAlpha.getMediaPlayer().setDataSource(assetFileDescriptorAlpha.getFileDescriptor(), assetFileDescriptorAlpha.getStartOffset(), assetFileDescriptorAlpha.getLength());
 
-            onDataSourceSet(retrieverBg);
+            onDataSourceSet(Utils.readAssetMetadata(assetFileDescriptor, assetsFileName));
 
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
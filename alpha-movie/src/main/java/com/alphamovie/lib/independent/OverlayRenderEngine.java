@@ -0,0 +1,425 @@
+package com.alphamovie.lib.independent;
+
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import com.alphamovie.lib.FrameMetrics;
+import com.alphamovie.lib.VsyncMonitor;
+import com.alphamovie.lib.utils.GlesProgramCompiler;
+import com.alphamovie.lib.utils.ProgramCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Draws any number of {@link TextureSurfaceRenderer} overlays on a fixed set of GL threads.
+ * <p>
+ * Each worker thread owns one EGL context, and all contexts are created in one share group.
+ * A renderer is assigned to the least loaded worker, which keeps a window surface for it and
+ * switches to it with eglMakeCurrent.  A worker sleeps until one of its renderers has a new
+ * frame, then draws every renderer that is due in a single pass.  Adding overlays adds window
+ * surfaces, not threads or contexts.
+ */
+public class OverlayRenderEngine {
+    private static final String TAG = "OverlayRenderEngine";
+
+    /** One 60Hz vsync, the frame interval until the display's is measured. */
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 16666667L;
+
+    private static OverlayRenderEngine sInstance;
+
+    private final Worker[] mWorkers;
+
+    private EGL10 mEgl;
+    private EGLDisplay mEglDisplay;
+    private EGLConfig mEglConfig;
+    private EGLContext mSharedContext;
+
+    /**
+     * Returns the display's refresh period as measured by {@link VsyncMonitor}, or one 60Hz
+     * vsync until it is known.
+     */
+    static long getFrameIntervalNanos() {
+        long periodNanos = VsyncMonitor.getInstance().getPeriodNanos();
+        return periodNanos > 0 ? periodNanos : DEFAULT_FRAME_INTERVAL_NANOS;
+    }
+
+    /**
+     * Returns the first vsync at least half a refresh period after {@code sinceNanos}: the one
+     * a draw of something that became ready at {@code sinceNanos} should go out on.  Until the
+     * vsync timing is known, one 60Hz vsync after {@code sinceNanos}.
+     */
+    static long getNextVsyncNanos(long sinceNanos) {
+        VsyncMonitor monitor = VsyncMonitor.getInstance();
+        long vsyncNanos = monitor.getVsyncNanos();
+        long periodNanos = monitor.getPeriodNanos();
+        if (vsyncNanos == 0 || periodNanos <= 0) {
+            return sinceNanos + DEFAULT_FRAME_INTERVAL_NANOS;
+        }
+        long offset = sinceNanos + periodNanos / 2 - vsyncNanos;
+        // Ceiling division that also works for times before the known vsync.
+        long periods = offset / periodNanos;
+        if (offset > periods * periodNanos) {
+            periods++;
+        }
+        return vsyncNanos + periods * periodNanos;
+    }
+
+    /**
+     * Returns the engine used by {@link TextureSurfaceRenderer#start()}, with a single GL
+     * thread.
+     */
+    public static synchronized OverlayRenderEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new OverlayRenderEngine(1);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates an engine with its own GL threads, e.g. one per core for many heavy overlays.
+     */
+    public OverlayRenderEngine(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+        }
+        mWorkers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Worker("OverlayRender-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Returns the number of renderers currently registered with the engine.
+     */
+    public int getRendererCount() {
+        int count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.getRendererCount();
+        }
+        return count;
+    }
+
+    void register(TextureSurfaceRenderer renderer) {
+        Worker target = mWorkers[0];
+        for (Worker worker : mWorkers) {
+            if (worker.getRendererCount() < target.getRendererCount()) {
+                target = worker;
+            }
+        }
+        target.add(renderer);
+    }
+
+    /**
+     * Creates a context for a worker thread, sharing objects with the contexts created before.
+     */
+    private synchronized EGLContext createContext() {
+        if (mEgl == null) {
+            mEgl = (EGL10) EGLContext.getEGL();
+            //获取显示设备
+            mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+            //version中存放EGL 版本号，int[0]为主版本号，int[1]为子版本号
+            int version[] = new int[2];
+            if (!mEgl.eglInitialize(mEglDisplay, version)) {
+                throw new RuntimeException("eglInitialize failed: " + GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            }
+            mEglConfig = chooseEglConfig();
+        }
+
+        int[] attrs = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL10.EGL_NONE
+        };
+        EGLContext shareContext = mSharedContext != null ? mSharedContext : EGL10.EGL_NO_CONTEXT;
+        EGLContext context = mEgl.eglCreateContext(mEglDisplay, mEglConfig, shareContext, attrs);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            throw new RuntimeException("eglCreateContext failed: " + GLUtils.getEGLErrorString(mEgl.eglGetError()));
+        }
+        if (mSharedContext == null) {
+            mSharedContext = context;
+        }
+        return context;
+    }
+
+    /***
+     *  refer to https://www.khronos.org/registry/egl/sdk/docs/man/
+     * @return a EGL frame buffer configurations that match specified attributes
+     */
+    private EGLConfig chooseEglConfig() {
+        int[] configsCount = new int[1];
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] attributes = getAttributes();
+        int confSize = 1;
+
+        if (!mEgl.eglChooseConfig(mEglDisplay, attributes, configs, confSize, configsCount)) {    //获取满足attributes的config个数
+            throw new IllegalArgumentException("Failed to choose config:" + GLUtils.getEGLErrorString(mEgl.eglGetError()));
+        } else if (configsCount[0] > 0) {
+            return configs[0];
+        }
+
+        return null;
+    }
+
+    /**
+     * 构造绘制需要的特性列表,ARGB,DEPTH...
+     */
+    private int[] getAttributes() {
+        return new int[]{
+                EGL10.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,  //指定渲染api类别
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_ALPHA_SIZE, 8,
+                EGL10.EGL_DEPTH_SIZE, 16,			/*default depth buffer 16 choose a RGB_888 surface */
+                EGL10.EGL_STENCIL_SIZE, 0,
+                EGL10.EGL_NONE      //总是以EGL10.EGL_NONE结尾
+        };
+    }
+
+    /**
+     * A GL thread with one context that draws all of its renderers.
+     */
+    class Worker extends Thread {
+        private final Object mLock = new Object();
+
+        // Guarded by mLock.
+        private final List<TextureSurfaceRenderer> mRenderers = new ArrayList<TextureSurfaceRenderer>();
+        private final List<TextureSurfaceRenderer> mAdded = new ArrayList<TextureSurfaceRenderer>();
+        private final List<TextureSurfaceRenderer> mRemoved = new ArrayList<TextureSurfaceRenderer>();
+
+        // Render thread only.
+        private final List<TextureSurfaceRenderer> mAttached = new ArrayList<TextureSurfaceRenderer>();
+        private final List<TextureSurfaceRenderer> mScratch = new ArrayList<TextureSurfaceRenderer>();
+        private final ProgramCache mProgramCache = new ProgramCache(new GlesProgramCompiler());
+        private EGLContext mContext;
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        int getRendererCount() {
+            synchronized (mLock) {
+                return mRenderers.size();
+            }
+        }
+
+        /**
+         * Returns the programs of this worker's context.  Render thread only; overlays on other
+         * workers compile their own, so uniform values never change under another thread.
+         */
+        ProgramCache getProgramCache() {
+            return mProgramCache;
+        }
+
+        void add(TextureSurfaceRenderer renderer) {
+            synchronized (mLock) {
+                renderer.worker = this;
+                mRenderers.add(renderer);
+                mAdded.add(renderer);
+                mLock.notifyAll();
+            }
+        }
+
+        void remove(TextureSurfaceRenderer renderer) {
+            synchronized (mLock) {
+                if (!mRenderers.remove(renderer)) {
+                    return;
+                }
+                if (!mAdded.remove(renderer)) {
+                    // Already attached; the render thread has to release its GL objects.
+                    mRemoved.add(renderer);
+                } else {
+                    renderer.worker = null;
+                }
+                mLock.notifyAll();
+            }
+        }
+
+        void onFrameAvailable(TextureSurfaceRenderer renderer, int stream) {
+            synchronized (mLock) {
+                renderer.recordFrameLocked(stream, System.nanoTime());
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            mContext = createContext();
+            Log.d(TAG, getName() + " OpenGL init OK. start draw...");
+
+            while (!isInterrupted()) {
+                synchronized (mLock) {
+                    try {
+                        awaitWorkLocked();
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    mScratch.clear();
+                    mScratch.addAll(mRemoved);
+                    mRemoved.clear();
+                }
+                for (int i = 0; i < mScratch.size(); i++) {
+                    detach(mScratch.get(i));
+                }
+
+                synchronized (mLock) {
+                    mScratch.clear();
+                    mScratch.addAll(mAdded);
+                    mAdded.clear();
+                }
+                for (int i = 0; i < mScratch.size(); i++) {
+                    attach(mScratch.get(i));
+                }
+
+                long now = System.nanoTime();
+                for (int i = mAttached.size() - 1; i >= 0; i--) {
+                    TextureSurfaceRenderer renderer = mAttached.get(i);
+                    if (renderer.isDue(now)) {
+                        render(renderer, now);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sleeps until a renderer is added, removed or due, or until the earliest deadline.
+         */
+        private void awaitWorkLocked() throws InterruptedException {
+            while (mAdded.isEmpty() && mRemoved.isEmpty()) {
+                long now = System.nanoTime();
+                long deadline = Long.MAX_VALUE;
+                for (int i = 0; i < mAttached.size(); i++) {
+                    TextureSurfaceRenderer renderer = mAttached.get(i);
+                    if (renderer.isDue(now)) {
+                        return;
+                    }
+                    deadline = Math.min(deadline, renderer.getDeadlineNanos());
+                }
+                if (deadline == Long.MAX_VALUE) {
+                    mLock.wait();
+                } else {
+                    long remainingNanos = deadline - now;
+                    mLock.wait(remainingNanos / 1000000L, (int) (remainingNanos % 1000000L));
+                }
+            }
+        }
+
+        private void attach(TextureSurfaceRenderer renderer) {
+            //创建EGL 的window surface 并且返回它的handles(eslSurface)
+            EGLSurface surface = mEgl.eglCreateWindowSurface(mEglDisplay, mEglConfig, renderer.surfaceTexture, null);
+            if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
+                Log.e(TAG, "GL error:" + GLUtils.getEGLErrorString(mEgl.eglGetError()));
+                abandon(renderer, false);
+                return;
+            }
+            renderer.eglSurface = surface;
+            if (!makeCurrent(surface)) {
+                abandon(renderer, false);
+                return;
+            }
+            try {
+                renderer.initGLComponents();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "renderer init failed", e);
+                // Free whatever it created before failing.
+                abandon(renderer, true);
+                return;
+            }
+            mAttached.add(renderer);
+        }
+
+        private void detach(TextureSurfaceRenderer renderer) {
+            if (!mAttached.remove(renderer)) {
+                renderer.worker = null;
+                return;
+            }
+            if (makeCurrent(renderer.eglSurface)) {
+                try {
+                    renderer.deinitGLComponents();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "renderer deinit failed", e);
+                }
+            }
+            dropSurface(renderer);
+        }
+
+        private void render(TextureSurfaceRenderer renderer, long now) {
+            if (!makeCurrent(renderer.eglSurface)) {
+                // The window is gone, e.g. the view was destroyed without onPause().
+                abandon(renderer, false);
+                return;
+            }
+            FrameMetrics metrics = renderer.getFrameMetrics();
+            if (metrics != null && renderer.lastDrawNanos != 0) {
+                metrics.recordDuration(FrameMetrics.STAGE_FRAME, now - renderer.lastDrawNanos);
+            }
+            try {
+                GLES20.glViewport(0, 0, renderer.width, renderer.height);
+                if (renderer.draw()) {
+                    long swapStartNanos = metrics != null ? System.nanoTime() : 0;
+                    mEgl.eglSwapBuffers(mEglDisplay, renderer.eglSurface);
+                    if (metrics != null) {
+                        metrics.recordDuration(FrameMetrics.STAGE_SWAP, System.nanoTime() - swapStartNanos);
+                    }
+                }
+                renderer.lastDrawNanos = now;
+            } catch (RuntimeException e) {
+                // Keep the other overlays alive.
+                Log.e(TAG, "renderer draw failed", e);
+                abandon(renderer, true);
+            }
+        }
+
+        /**
+         * Drops a renderer that failed and marks it stopped, so that it can be started again.
+         * With {@code deinit} its GL components are deinitialized first, which needs its
+         * window surface to be current.
+         */
+        private void abandon(TextureSurfaceRenderer renderer, boolean deinit) {
+            mAttached.remove(renderer);
+            if (deinit) {
+                try {
+                    renderer.deinitGLComponents();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "renderer deinit failed", e);
+                }
+            }
+            dropSurface(renderer);
+            renderer.onAbandoned();
+        }
+
+        private boolean makeCurrent(EGLSurface surface) {
+            if (!mEgl.eglMakeCurrent(mEglDisplay, surface, surface, mContext)) {
+                Log.e(TAG, "GL Make current Error" + GLUtils.getEGLErrorString(mEgl.eglGetError()));
+                return false;
+            }
+            return true;
+        }
+
+        private void dropSurface(TextureSurfaceRenderer renderer) {
+            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            if (renderer.eglSurface != null) {
+                mEgl.eglDestroySurface(mEglDisplay, renderer.eglSurface);
+                renderer.eglSurface = null;
+            }
+            synchronized (mLock) {
+                mRenderers.remove(renderer);
+                renderer.worker = null;
+            }
+        }
+    }
+}
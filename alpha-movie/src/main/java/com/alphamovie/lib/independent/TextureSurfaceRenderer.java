@@ -1,101 +1,76 @@
 package com.alphamovie.lib.independent;
 
 import android.graphics.SurfaceTexture;
-import android.opengl.EGL14;
-import android.opengl.GLUtils;
 import android.util.Log;
 
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
+import com.alphamovie.lib.FrameGate;
+import com.alphamovie.lib.FrameMetrics;
+import com.alphamovie.lib.utils.CountingGlApi;
+import com.alphamovie.lib.utils.GlApi;
+import com.alphamovie.lib.utils.Gles20Api;
+import com.alphamovie.lib.utils.ProgramCache;
+import com.alphamovie.lib.utils.QuadRenderState;
+
 import javax.microedition.khronos.egl.EGLSurface;
 
 
 /**
- * 绘制前，renderer的配置，初始化EGL，开始一个绘制线程.
+ * 一个绘制目标(overlay)，由{@link OverlayRenderEngine}在共享的GL线程上绘制.
  * 这个类需要子类去实现相应的绘制工作.
  * <p>
+ * The renderer doesn't own a thread or an EGL context.  {@link #start()} registers it with a
+ * render engine, which creates a window surface for it and calls {@link #initGLComponents()},
+ * {@link #draw()} and {@link #deinitGLComponents()} on one of the engine's GL threads.  All
+ * renderers of an engine share GL contexts, so GL state must be set up in {@link #draw()}
+ * rather than assumed to survive between frames; {@link QuadRenderState} only re-binds when
+ * another renderer drew in between.
+ * <p>
  * 具体流程可以参考http://www.cnblogs.com/kiffa/archive/2013/02/21/2921123.html
  * 相应的函数可以查看： https://www.khronos.org/registry/egl/sdk/docs/man/
  */
-public abstract class TextureSurfaceRenderer implements Runnable {
+public abstract class TextureSurfaceRenderer {
     public static String LOG_TAG = TextureSurfaceRenderer.class.getSimpleName();
 
     protected final SurfaceTexture surfaceTexture;
     protected int width;
     protected int height;
 
-    private EGL10 egl;
-    private EGLContext eglContext;
-    private EGLDisplay eglDisplay;
-    private EGLSurface eglSurface;
-
-
     /***
      * 是否正在绘制(draw)
      */
-    private boolean running = false;
+    private volatile boolean running = false;
+
+    private volatile FrameGate frameGate;
+    private volatile long skippedDrawCount;
+    private volatile FrameMetrics frameMetrics;
+    private volatile GlApi glApi = new Gles20Api();
+
+    // Owned by the render engine; guarded by the worker's lock or touched on its GL thread.
+    OverlayRenderEngine.Worker worker;
+    EGLSurface eglSurface;
+    long pendingSinceNanos;
+    long lastDrawNanos;
 
     public TextureSurfaceRenderer(SurfaceTexture surfaceTexture, int width, int height) {
         this.surfaceTexture = surfaceTexture;
-        Log.e("TAG", "surfaceTexture obj=" + surfaceTexture.toString());
+        Log.d(LOG_TAG, "surfaceTexture obj=" + surfaceTexture.toString());
         this.width = width;
         this.height = height;
-        this.running = true;
-        Thread thread = new Thread(this);
-        thread.start();
     }
 
-    @Override
-    public void run() {
-        initEGL();
-        initGLComponents();
-        Log.d(LOG_TAG, "OpenGL init OK. start draw...");
-
-        while (running) {
-            if (draw()) {
-                egl.eglSwapBuffers(eglDisplay, eglSurface);
-            }
-        }
-
-        deinitGLComponents();
-        deinitEGL();
+    /**
+     * Starts drawing on the default render engine.  Call once the subclass is fully set up.
+     */
+    public void start() {
+        start(OverlayRenderEngine.getInstance());
     }
 
-    private void initEGL() {
-        egl = (EGL10) EGLContext.getEGL();
-        //获取显示设备
-        eglDisplay = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-        //version中存放EGL 版本号，int[0]为主版本号，int[1]为子版本号
-        int version[] = new int[2];
-        egl.eglInitialize(eglDisplay, version);
-
-        EGLConfig eglConfig = chooseEglConfig();
-        //创建EGL 的window surface 并且返回它的handles(eslSurface)
-        eglSurface = egl.eglCreateWindowSurface(eglDisplay, eglConfig, surfaceTexture, null);
-
-        eglContext = createContext(egl, eglDisplay, eglConfig);
-
-        //设置当前的渲染环境
-        try {
-            if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
-                throw new RuntimeException("GL error:" + GLUtils.getEGLErrorString(egl.eglGetError()));
-            }
-            if (!egl.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
-                throw new RuntimeException("GL Make current Error" + GLUtils.getEGLErrorString(egl.eglGetError()));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    public void start(OverlayRenderEngine engine) {
+        if (running) {
+            return;
         }
-    }
-
-    private void deinitEGL() {
-        egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-        egl.eglDestroySurface(eglDisplay, eglSurface);
-        egl.eglDestroyContext(eglDisplay, eglContext);
-        egl.eglTerminate(eglDisplay);
-        Log.d(LOG_TAG, "OpenGL deinit OK.");
+        running = true;
+        engine.register(this);
     }
 
     /**
@@ -114,63 +89,144 @@ public abstract class TextureSurfaceRenderer implements Runnable {
     public abstract SurfaceTexture getVideoTexture();
 
     /**
-     * 为当前渲染的API创建一个渲染上下文
-     *
-     * @return a handle to the context
+     * Switches the renderer from drawing every vsync to drawing on new frames only.
+     * Called by subclasses once they know how many decoder streams feed them.
      */
-    private EGLContext createContext(EGL10 egl, EGLDisplay eglDisplay, EGLConfig eglConfig) {
-        int[] attrs = {
-                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-                EGL10.EGL_NONE
-        };
-        return egl.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attrs);
+    protected void setFrameGate(FrameGate frameGate) {
+        this.frameGate = frameGate;
     }
 
-    /***
-     *  refer to https://www.khronos.org/registry/egl/sdk/docs/man/
-     * @return a EGL frame buffer configurations that match specified attributes
-     */
-    private EGLConfig chooseEglConfig() {
-        int[] configsCount = new int[1];
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] attributes = getAttributes();
-        int confSize = 1;
-
-        if (!egl.eglChooseConfig(eglDisplay, attributes, configs, confSize, configsCount)) {    //获取满足attributes的config个数
-            throw new IllegalArgumentException("Failed to choose config:" + GLUtils.getEGLErrorString(egl.eglGetError()));
-        } else if (configsCount[0] > 0) {
-            return configs[0];
+    /**
+     * Records a new frame for a stream and wakes the render thread.  Safe to call from a
+     * SurfaceTexture frame-available listener.
+     */
+    protected void notifyFrameAvailable(int stream) {
+        OverlayRenderEngine.Worker w = worker;
+        if (w != null) {
+            w.onFrameAvailable(this, stream);
+        } else if (frameGate != null) {
+            frameGate.onFrameAvailable(stream);
+        }
+    }
+
+    /**
+     * Returns the bit mask of streams with a new frame since the last call, see
+     * {@link FrameGate#isSet}.  Call from {@link #draw()}.
+     */
+    protected int consumeFrames() {
+        FrameGate gate = frameGate;
+        return gate != null ? gate.consume() : -1;
+    }
+
+    /**
+     * Reports per-frame timings of this renderer.  The engine records swap and frame-to-frame
+     * times; subclasses record texture update and draw times from {@link #draw()}.
+     */
+    public void setFrameMetrics(FrameMetrics frameMetrics) {
+        this.frameMetrics = frameMetrics;
+    }
+
+    protected FrameMetrics getFrameMetrics() {
+        return frameMetrics;
+    }
+
+    /**
+     * Routes the draw path's GL calls through {@code glApi}, e.g. a {@link CountingGlApi} to
+     * count calls per frame.  Takes effect when the GL components are next initialized.
+     */
+    public void setGlApi(GlApi glApi) {
+        this.glApi = glApi;
+    }
+
+    protected GlApi getGlApi() {
+        return glApi;
+    }
+
+    /**
+     * Returns the program cache of the context this renderer draws with.  Renderers with the
+     * same shaders on the same render thread share one program.  Only valid from
+     * {@link #initGLComponents()}, {@link #draw()} and {@link #deinitGLComponents()}.
+     */
+    protected ProgramCache getProgramCache() {
+        return worker.getProgramCache();
+    }
+
+    /**
+     * Returns how many vsync intervals passed without a new frame, i.e. the draws a
+     * continuous render loop would have spent re-drawing an unchanged picture.
+     */
+    public long getSkippedDrawCount() {
+        return skippedDrawCount;
+    }
+
+    /**
+     * Called with the worker's lock held.
+     */
+    void recordFrameLocked(int stream, long nowNanos) {
+        FrameGate gate = frameGate;
+        if (gate == null) {
+            return;
+        }
+        if (!gate.hasPending()) {
+            pendingSinceNanos = nowNanos;
+            if (lastDrawNanos != 0) {
+                skippedDrawCount += (nowNanos - lastDrawNanos) / OverlayRenderEngine.getFrameIntervalNanos();
+            }
         }
+        gate.onFrameAvailable(stream);
+    }
 
-        return null;
+    /**
+     * True if the renderer should draw now: every stream has a new frame, or some stream
+     * has one and the rest missed the vsync deadline.  Without a frame gate the renderer
+     * draws once per vsync.  Vsyncs are those of the display, as measured by
+     * {@code VsyncMonitor}.
+     */
+    boolean isDue(long nowNanos) {
+        long deadline = getDeadlineNanos();
+        FrameGate gate = frameGate;
+        return (gate != null && gate.isReady()) || (deadline != Long.MAX_VALUE && nowNanos >= deadline);
     }
 
     /**
-     * 构造绘制需要的特性列表,ARGB,DEPTH...
+     * Returns the time by which the renderer has to draw, or Long.MAX_VALUE if it is idle.
      */
-    private int[] getAttributes() {
-        return new int[]{
-                EGL10.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,  //指定渲染api类别
-                EGL10.EGL_RED_SIZE, 8,
-                EGL10.EGL_GREEN_SIZE, 8,
-                EGL10.EGL_BLUE_SIZE, 8,
-                EGL10.EGL_ALPHA_SIZE, 8,
-                EGL10.EGL_DEPTH_SIZE, 16,			/*default depth buffer 16 choose a RGB_888 surface */
-                EGL10.EGL_STENCIL_SIZE, 0,
-                EGL10.EGL_NONE      //总是以EGL10.EGL_NONE结尾
-        };
+    long getDeadlineNanos() {
+        FrameGate gate = frameGate;
+        if (gate == null) {
+            return OverlayRenderEngine.getNextVsyncNanos(lastDrawNanos);
+        }
+        if (gate.hasPending()) {
+            return OverlayRenderEngine.getNextVsyncNanos(pendingSinceNanos);
+        }
+        return Long.MAX_VALUE;
     }
 
     /**
-     * Call when activity pauses. This stops the rendering thread and deinitializes OpenGL.
+     * Call when activity pauses. This stops drawing and deinitializes the renderer's GL
+     * components on the render thread.
      */
     public void onPause() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        OverlayRenderEngine.Worker w = worker;
+        if (w != null) {
+            w.remove(this);
+        }
+    }
+
+    /**
+     * Called on the render thread when the engine dropped this renderer after a failure.
+     */
+    void onAbandoned() {
         running = false;
     }
 
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
-        running = false;
+        onPause();
     }
 }
@@ -2,13 +2,14 @@ package com.alphamovie.lib.independent;
 
 import android.app.Activity;
 import android.content.res.AssetFileDescriptor;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.ViewGroup;
 
 import com.alphamovie.lib.MediaPlayerBlob;
+import com.alphamovie.lib.MediaPlayerPool;
+import com.alphamovie.lib.Mp4Metadata;
 import com.alphamovie.lib.Utils;
 
 import java.io.IOException;
@@ -34,7 +35,7 @@ public class VideoPlayer {
         surfaceHolder.addCallback(new SurfaceHolder.Callback() {
             @Override
             public void surfaceCreated(SurfaceHolder holder) {
-                MediaPlayer mediaPlayer = new MediaPlayer();
+                MediaPlayer mediaPlayer = MediaPlayerPool.getInstance().acquire();
                 mediaPlayer.setDisplay(holder);
 
                 mediaPlayerBlob = new MediaPlayerBlob(mediaPlayer);
@@ -44,11 +45,9 @@ public class VideoPlayer {
                     assetFileDescriptor = glSurfaceView.getContext().getAssets().openFd(assetFileName);
                     mediaPlayerBlob.getMediaPlayer().setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
 
-                    MediaMetadataRetriever retrieverBg = new MediaMetadataRetriever();
-                    retrieverBg.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
-
-                    int videoWidth = Integer.parseInt(retrieverBg.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-                    int videoHeight = Integer.parseInt(retrieverBg.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+                    Mp4Metadata metadata = Utils.readAssetMetadata(assetFileDescriptor, assetFileName);
+                    int videoWidth = metadata.getWidth();
+                    int videoHeight = metadata.getHeight();
 
                     float videoAspectRatio = 1.0f;
                     if (videoWidth > 0 && videoHeight > 0) {
@@ -0,0 +1,318 @@
+package com.alphamovie.lib.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Assets materialized as plain files, for decoders that need a path, in one directory of
+ * bounded size.
+ * <p>
+ * An entry is addressed by a hash of its content key: the asset name plus whatever changes
+ * when its bytes do, such as the APK's modification time.  So an updated asset gets a new
+ * entry and the old one ages out.  Each entry is a data file and a descriptor holding the
+ * key, the length and a CRC32 of the data.  Both are written to temporary names and renamed,
+ * the descriptor last, so a crash mid-copy never leaves an entry that looks complete.  The
+ * first time an entry is used in a process its data is checked against the descriptor, and a
+ * truncated or corrupt one is copied again.
+ * <p>
+ * When the directory grows past its limit the least recently used entries are deleted.
+ * <p>
+ * Safe for concurrent use; copies run outside the lock, so different assets are copied in
+ * parallel.
+ */
+public class AssetFileCache {
+    private static final int MAGIC = 0x414d4146; // "AMAF"
+    private static final int FORMAT_VERSION = 1;
+    private static final String DATA_SUFFIX = ".asset";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int CHECK_BUFFER_SIZE = 64 * 1024;
+    // Temporary files older than this are left over from a crashed copy.
+    private static final long STALE_TMP_MS = 60 * 1000;
+
+    /**
+     * Writes the content of an entry.
+     */
+    public interface Source {
+        /**
+         * Writes the whole content to {@code channel}, which is empty and positioned at 0.
+         */
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // Entries checked against their descriptor in this process.
+    private final Set<String> mVerified = new HashSet<String>();
+
+    public AssetFileCache(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the file holding the content of {@code contentKey}, copying it from
+     * {@code source} first if it isn't cached or the cached copy is damaged.
+     *
+     * @param length Expected length of the content, or -1 if unknown.
+     * @throws IOException if the content can't be copied, or isn't {@code length} bytes.
+     */
+    public File get(String contentKey, long length, Source source) throws IOException {
+        String name = entryName(contentKey);
+        File data = new File(mDirectory, name + DATA_SUFFIX);
+        File meta = new File(mDirectory, name + META_SUFFIX);
+        synchronized (this) {
+            if (isValid(name, contentKey, length, data, meta)) {
+                // The modification time orders entries for eviction.
+                data.setLastModified(System.currentTimeMillis());
+                return data;
+            }
+        }
+        materialize(name, contentKey, length, source, data, meta);
+        synchronized (this) {
+            mVerified.add(name);
+            evict(data);
+        }
+        return data;
+    }
+
+    /**
+     * Deletes all entries.
+     */
+    public synchronized void clear() {
+        mVerified.clear();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the total size of the cached data.
+     */
+    public synchronized long size() {
+        long total = 0;
+        for (File file : listData()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    static String entryName(String contentKey) {
+        String hex = Long.toHexString(ProgramKey.hashString(contentKey));
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    private boolean isValid(String name, String contentKey, long length, File data, File meta) {
+        if (!meta.isFile() || !data.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        long checksum;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !in.readUTF().equals(contentKey)) {
+                // Damaged, or a different key with the same hash; replaced below.
+                return false;
+            }
+            long storedLength = in.readLong();
+            checksum = in.readLong();
+            if (storedLength != data.length() || (length >= 0 && storedLength != length)) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+        if (mVerified.contains(name)) {
+            return true;
+        }
+        try {
+            if (checksum(data) != checksum) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        mVerified.add(name);
+        return true;
+    }
+
+    /**
+     * Copies the content to a temporary file and renames it into place, then does the same
+     * for the descriptor.
+     */
+    private void materialize(String name, String contentKey, long length, Source source,
+            File data, File meta) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        File tmpData = null;
+        File tmpMeta = null;
+        FileOutputStream out = null;
+        DataOutputStream metaOut = null;
+        try {
+            tmpData = File.createTempFile(name, TMP_SUFFIX, mDirectory);
+            out = new FileOutputStream(tmpData);
+            FileChannel channel = out.getChannel();
+            source.writeTo(channel);
+            long written = channel.size();
+            if (length >= 0 && written != length) {
+                throw new IOException("Copied " + written + " of " + length + " bytes of "
+                        + contentKey);
+            }
+            out.getFD().sync();
+            out.close();
+            out = null;
+            long checksum = checksum(tmpData);
+
+            tmpMeta = File.createTempFile(name, TMP_SUFFIX, mDirectory);
+            FileOutputStream metaFile = new FileOutputStream(tmpMeta);
+            metaOut = new DataOutputStream(new BufferedOutputStream(metaFile));
+            metaOut.writeInt(MAGIC);
+            metaOut.writeInt(FORMAT_VERSION);
+            metaOut.writeUTF(contentKey);
+            metaOut.writeLong(written);
+            metaOut.writeLong(checksum);
+            metaOut.flush();
+            metaFile.getFD().sync();
+            metaOut.close();
+            metaOut = null;
+
+            // The descriptor goes last: an entry without one is never used.
+            meta.delete();
+            if (!tmpData.renameTo(data) || !tmpMeta.renameTo(meta)) {
+                throw new IOException("Can't rename into " + data);
+            }
+            tmpData = null;
+            tmpMeta = null;
+        } finally {
+            closeQuietly(out);
+            closeQuietly(metaOut);
+            if (tmpData != null) {
+                tmpData.delete();
+            }
+            if (tmpMeta != null) {
+                tmpMeta.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries, other than {@code keep}, until the cache fits
+     * its limit, and temporary files left by crashed copies.
+     */
+    private void evict(File keep) {
+        File[] files = listData();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total > mMaxBytes) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long ta = a.lastModified();
+                    long tb = b.lastModified();
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                if (total <= mMaxBytes) {
+                    break;
+                }
+                if (file.equals(keep)) {
+                    continue;
+                }
+                String name = file.getName();
+                name = name.substring(0, name.length() - DATA_SUFFIX.length());
+                long size = file.length();
+                // Descriptor first, so a reader never sees an entry without its data.
+                new File(mDirectory, name + META_SUFFIX).delete();
+                if (file.delete()) {
+                    total -= size;
+                }
+                mVerified.remove(name);
+            }
+        }
+        File[] all = mDirectory.listFiles();
+        if (all == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TMP_MS;
+        for (File file : all) {
+            if (file.getName().endsWith(TMP_SUFFIX) && file.lastModified() < staleBefore) {
+                file.delete();
+            }
+        }
+    }
+
+    private File[] listData() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(DATA_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private static long checksum(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(CHECK_BUFFER_SIZE);
+            CRC32 crc = new CRC32();
+            while (channel.read(buffer) >= 0) {
+                crc.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            return crc.getValue();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
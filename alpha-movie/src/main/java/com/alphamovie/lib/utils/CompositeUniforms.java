@@ -0,0 +1,84 @@
+package com.alphamovie.lib.utils;
+
+import com.alphamovie.lib.BlendMode;
+
+/**
+ * Key color, key tolerance and blend mode of the composite shaders.
+ * <p>
+ * The values are shader uniforms ({@code uKeyColor}, {@code uKeyTolerance},
+ * {@code uBlendMode}), so they can change while a video plays without building a new
+ * program.  Setters may be called from any thread; the GL thread calls {@link #apply} before
+ * each draw, which only issues GL calls if something changed.  Shaders that don't declare a
+ * uniform, e.g. custom shaders, are left alone.
+ */
+public class CompositeUniforms {
+    public static final String KEY_COLOR = "uKeyColor";
+    public static final String KEY_TOLERANCE = "uKeyTolerance";
+    public static final String BLEND_MODE = "uBlendMode";
+
+    private volatile float[] mKeyColor = {0.0f, 1.0f, 0.0f};
+    private volatile float[] mKeyTolerance = {0.05f};
+    private volatile float[] mBlendMode = {BlendMode.ALPHA_MASK.getUniformValue()};
+    private volatile int mVersion;
+
+    // GL thread only.
+    private QuadRenderState mState;
+    private int mKeyColorHandle = -1;
+    private int mKeyToleranceHandle = -1;
+    private int mBlendModeHandle = -1;
+    private int mAppliedVersion;
+
+    public synchronized void setKeyColor(float red, float green, float blue) {
+        mKeyColor = new float[]{red, green, blue};
+        mVersion++;
+    }
+
+    /**
+     * Sets how close, from 0 to 1, a pixel has to be to the key color to be keyed out.  The
+     * per-channel tolerance is {@code 1 - accuracy}.
+     */
+    public synchronized void setAccuracy(double accuracy) {
+        mKeyTolerance = new float[]{(float) (1 - accuracy)};
+        mVersion++;
+    }
+
+    public synchronized void setBlendMode(BlendMode blendMode) {
+        mBlendMode = new float[]{blendMode.getUniformValue()};
+        mVersion++;
+    }
+
+    /**
+     * Looks up the uniforms in a new render state and uploads the current values.  Call on
+     * the GL thread after the render state was created.
+     */
+    public void attach(QuadRenderState state) {
+        mState = state;
+        mKeyColorHandle = state.findUniform(KEY_COLOR);
+        mKeyToleranceHandle = state.findUniform(KEY_TOLERANCE);
+        mBlendModeHandle = state.findUniform(BLEND_MODE);
+        upload(mVersion);
+    }
+
+    /**
+     * Uploads values changed since the last call.  Call on the GL thread before drawing.
+     */
+    public void apply() {
+        int version = mVersion;
+        if (version != mAppliedVersion && mState != null) {
+            upload(version);
+        }
+    }
+
+    private void upload(int version) {
+        if (mKeyColorHandle != -1) {
+            mState.setUniform(mKeyColorHandle, mKeyColor);
+        }
+        if (mKeyToleranceHandle != -1) {
+            mState.setUniform(mKeyToleranceHandle, mKeyTolerance);
+        }
+        if (mBlendModeHandle != -1) {
+            mState.setUniform(mBlendModeHandle, mBlendMode);
+        }
+        mAppliedVersion = version;
+    }
+}
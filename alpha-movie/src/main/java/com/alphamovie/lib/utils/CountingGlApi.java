@@ -0,0 +1,220 @@
+package com.alphamovie.lib.utils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * {@link GlApi} decorator that counts the calls made through it, e.g. to check how many GL
+ * calls a renderer issues per frame:
+ * <pre>
+ *     CountingGlApi gl = new CountingGlApi(new Gles20Api());
+ *     renderer.setGlApi(gl);
+ *     ...
+ *     gl.resetCallCount();
+ *     // draw one frame
+ *     int callsPerFrame = gl.getCallCount();
+ * </pre>
+ * Counts are kept in plain fields; read them on the GL thread or after it has stopped.
+ */
+public class CountingGlApi implements GlApi {
+    private final GlApi mDelegate;
+    private int mCallCount;
+    private int mDrawCount;
+
+    public CountingGlApi(GlApi delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Returns the number of calls since construction or the last {@link #resetCallCount()}.
+     */
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * Returns the number of {@link #drawArrays} calls among them.
+     */
+    public int getDrawCount() {
+        return mDrawCount;
+    }
+
+    public void resetCallCount() {
+        mCallCount = 0;
+        mDrawCount = 0;
+    }
+
+    @Override
+    public int getAttribLocation(int program, String name) {
+        mCallCount++;
+        return mDelegate.getAttribLocation(program, name);
+    }
+
+    @Override
+    public int getUniformLocation(int program, String name) {
+        mCallCount++;
+        return mDelegate.getUniformLocation(program, name);
+    }
+
+    @Override
+    public void useProgram(int program) {
+        mCallCount++;
+        mDelegate.useProgram(program);
+    }
+
+    @Override
+    public int genBuffer() {
+        mCallCount++;
+        return mDelegate.genBuffer();
+    }
+
+    @Override
+    public void deleteBuffer(int buffer) {
+        mCallCount++;
+        mDelegate.deleteBuffer(buffer);
+    }
+
+    @Override
+    public void bindBuffer(int target, int buffer) {
+        mCallCount++;
+        mDelegate.bindBuffer(target, buffer);
+    }
+
+    @Override
+    public void bufferData(int target, FloatBuffer data, int usage) {
+        mCallCount++;
+        mDelegate.bufferData(target, data, usage);
+    }
+
+    @Override
+    public void vertexAttribPointer(int index, int size, int strideBytes, int offsetBytes) {
+        mCallCount++;
+        mDelegate.vertexAttribPointer(index, size, strideBytes, offsetBytes);
+    }
+
+    @Override
+    public void enableVertexAttribArray(int index) {
+        mCallCount++;
+        mDelegate.enableVertexAttribArray(index);
+    }
+
+    @Override
+    public void activeTexture(int unit) {
+        mCallCount++;
+        mDelegate.activeTexture(unit);
+    }
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        mCallCount++;
+        mDelegate.bindTexture(target, texture);
+    }
+
+    @Override
+    public void bindFramebuffer(int framebuffer) {
+        mCallCount++;
+        mDelegate.bindFramebuffer(framebuffer);
+    }
+
+    @Override
+    public void viewport(int x, int y, int width, int height) {
+        mCallCount++;
+        mDelegate.viewport(x, y, width, height);
+    }
+
+    @Override
+    public void uniform1i(int location, int value) {
+        mCallCount++;
+        mDelegate.uniform1i(location, value);
+    }
+
+    @Override
+    public void uniform1f(int location, float x) {
+        mCallCount++;
+        mDelegate.uniform1f(location, x);
+    }
+
+    @Override
+    public void uniform3f(int location, float x, float y, float z) {
+        mCallCount++;
+        mDelegate.uniform3f(location, x, y, z);
+    }
+
+    @Override
+    public void uniform4fv(int location, float[] value) {
+        mCallCount++;
+        mDelegate.uniform4fv(location, value);
+    }
+
+    @Override
+    public void uniformMatrix4fv(int location, float[] value) {
+        mCallCount++;
+        mDelegate.uniformMatrix4fv(location, value);
+    }
+
+    @Override
+    public void enable(int cap) {
+        mCallCount++;
+        mDelegate.enable(cap);
+    }
+
+    @Override
+    public void disable(int cap) {
+        mCallCount++;
+        mDelegate.disable(cap);
+    }
+
+    @Override
+    public void blendFunc(int sfactor, int dfactor) {
+        mCallCount++;
+        mDelegate.blendFunc(sfactor, dfactor);
+    }
+
+    @Override
+    public void clearColor(float red, float green, float blue, float alpha) {
+        mCallCount++;
+        mDelegate.clearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void clear(int mask) {
+        mCallCount++;
+        mDelegate.clear(mask);
+    }
+
+    @Override
+    public void drawArrays(int mode, int first, int count) {
+        mCallCount++;
+        mDrawCount++;
+        mDelegate.drawArrays(mode, first, count);
+    }
+
+    @Override
+    public int getError() {
+        mCallCount++;
+        return mDelegate.getError();
+    }
+
+    @Override
+    public boolean hasFenceSync() {
+        // Answered from a cached capability check, not a GL call.
+        return mDelegate.hasFenceSync();
+    }
+
+    @Override
+    public long fenceSync() {
+        mCallCount++;
+        return mDelegate.fenceSync();
+    }
+
+    @Override
+    public void clientWaitSync(long sync, long timeoutNanos) {
+        mCallCount++;
+        mDelegate.clientWaitSync(sync, timeoutNanos);
+    }
+
+    @Override
+    public void deleteSync(long sync) {
+        mCallCount++;
+        mDelegate.deleteSync(sync);
+    }
+}
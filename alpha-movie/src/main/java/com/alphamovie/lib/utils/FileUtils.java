@@ -0,0 +1,40 @@
+package com.alphamovie.lib.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * File helpers with no Android dependencies.
+ */
+public class FileUtils {
+    private static final int COPY_BUFFER_SIZE = 1024;
+
+    /**
+     * Copies a stream to {@code desPath + filename}, creating {@code desPath} if needed.
+     * Does nothing if the target already exists.  The input stream is not closed.
+     */
+    public static void copyToPath(InputStream in, String filename, String desPath) throws IOException {
+        String newFileName = desPath + filename;
+        File desFile = new File(desPath);
+        desFile.mkdirs();
+
+        if (new File(newFileName).exists()) {
+            return;
+        }
+
+        OutputStream out = new FileOutputStream(newFileName);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
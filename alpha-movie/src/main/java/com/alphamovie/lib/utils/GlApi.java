@@ -0,0 +1,102 @@
+package com.alphamovie.lib.utils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The GL calls made on the per-frame draw path.
+ * <p>
+ * Renderers go through this interface instead of calling GLES20 directly, so the draw path
+ * can be wrapped (see {@link CountingGlApi}) or replaced by a fake on a host JVM.  The
+ * Android implementation is {@link Gles20Api}.  Constants are copied from the GL headers so
+ * code using them doesn't depend on android.opengl.
+ */
+public interface GlApi {
+    int GL_NO_ERROR = 0;
+    int GL_TRIANGLE_STRIP = 0x0005;
+    int GL_SRC_ALPHA = 0x0302;
+    int GL_ONE_MINUS_SRC_ALPHA = 0x0303;
+    int GL_BLEND = 0x0BE2;
+    int GL_TEXTURE_2D = 0x0DE1;
+    int GL_FLOAT = 0x1406;
+    int GL_DEPTH_BUFFER_BIT = 0x0100;
+    int GL_COLOR_BUFFER_BIT = 0x4000;
+    int GL_TEXTURE0 = 0x84C0;
+    int GL_ARRAY_BUFFER = 0x8892;
+    int GL_STATIC_DRAW = 0x88E4;
+    int GL_FRAMEBUFFER = 0x8D40;
+    int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+
+    int getAttribLocation(int program, String name);
+
+    int getUniformLocation(int program, String name);
+
+    void useProgram(int program);
+
+    int genBuffer();
+
+    void deleteBuffer(int buffer);
+
+    void bindBuffer(int target, int buffer);
+
+    void bufferData(int target, FloatBuffer data, int usage);
+
+    /**
+     * Points a float attribute at the bound array buffer.
+     */
+    void vertexAttribPointer(int index, int size, int strideBytes, int offsetBytes);
+
+    void enableVertexAttribArray(int index);
+
+    void activeTexture(int unit);
+
+    void bindTexture(int target, int texture);
+
+    /**
+     * Binds {@code framebuffer} to {@link #GL_FRAMEBUFFER}; 0 is the window surface.
+     */
+    void bindFramebuffer(int framebuffer);
+
+    void viewport(int x, int y, int width, int height);
+
+    void uniform1i(int location, int value);
+
+    void uniform1f(int location, float x);
+
+    void uniform3f(int location, float x, float y, float z);
+
+    void uniform4fv(int location, float[] value);
+
+    void uniformMatrix4fv(int location, float[] value);
+
+    void enable(int cap);
+
+    void disable(int cap);
+
+    void blendFunc(int sfactor, int dfactor);
+
+    void clearColor(float red, float green, float blue, float alpha);
+
+    void clear(int mask);
+
+    void drawArrays(int mode, int first, int count);
+
+    int getError();
+
+    /**
+     * Returns true if the current context supports fence syncs (OpenGL ES 3.0).
+     */
+    boolean hasFenceSync();
+
+    /**
+     * Inserts a fence after the commands issued so far.  Only valid if
+     * {@link #hasFenceSync()} is true.
+     */
+    long fenceSync();
+
+    /**
+     * Blocks until the fence is signaled or the timeout expires.
+     */
+    void clientWaitSync(long sync, long timeoutNanos);
+
+    void deleteSync(long sync);
+}
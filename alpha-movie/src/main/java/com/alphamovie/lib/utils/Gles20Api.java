@@ -0,0 +1,185 @@
+package com.alphamovie.lib.utils;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.FloatBuffer;
+
+/**
+ * {@link GlApi} backed by the static GLES20 bindings, with fences from GLES30 when the
+ * context is OpenGL ES 3.0 or newer.
+ */
+public class Gles20Api implements GlApi {
+    private final int[] mScratch = new int[1];
+
+    // -1 until the first call on the GL thread, since it needs a current context.
+    private int mFenceSupport = -1;
+
+    @Override
+    public int getAttribLocation(int program, String name) {
+        return GLES20.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public int getUniformLocation(int program, String name) {
+        return GLES20.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void useProgram(int program) {
+        GLES20.glUseProgram(program);
+    }
+
+    @Override
+    public int genBuffer() {
+        GLES20.glGenBuffers(1, mScratch, 0);
+        return mScratch[0];
+    }
+
+    @Override
+    public void deleteBuffer(int buffer) {
+        mScratch[0] = buffer;
+        GLES20.glDeleteBuffers(1, mScratch, 0);
+    }
+
+    @Override
+    public void bindBuffer(int target, int buffer) {
+        GLES20.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void bufferData(int target, FloatBuffer data, int usage) {
+        GLES20.glBufferData(target, data.remaining() * BufferUtils.SIZEOF_FLOAT, data, usage);
+    }
+
+    @Override
+    public void vertexAttribPointer(int index, int size, int strideBytes, int offsetBytes) {
+        GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false, strideBytes, offsetBytes);
+    }
+
+    @Override
+    public void enableVertexAttribArray(int index) {
+        GLES20.glEnableVertexAttribArray(index);
+    }
+
+    @Override
+    public void activeTexture(int unit) {
+        GLES20.glActiveTexture(unit);
+    }
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        GLES20.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void bindFramebuffer(int framebuffer) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+    }
+
+    @Override
+    public void viewport(int x, int y, int width, int height) {
+        GLES20.glViewport(x, y, width, height);
+    }
+
+    @Override
+    public void uniform1i(int location, int value) {
+        GLES20.glUniform1i(location, value);
+    }
+
+    @Override
+    public void uniform1f(int location, float x) {
+        GLES20.glUniform1f(location, x);
+    }
+
+    @Override
+    public void uniform3f(int location, float x, float y, float z) {
+        GLES20.glUniform3f(location, x, y, z);
+    }
+
+    @Override
+    public void uniform4fv(int location, float[] value) {
+        GLES20.glUniform4fv(location, 1, value, 0);
+    }
+
+    @Override
+    public void uniformMatrix4fv(int location, float[] value) {
+        GLES20.glUniformMatrix4fv(location, 1, false, value, 0);
+    }
+
+    @Override
+    public void enable(int cap) {
+        GLES20.glEnable(cap);
+    }
+
+    @Override
+    public void disable(int cap) {
+        GLES20.glDisable(cap);
+    }
+
+    @Override
+    public void blendFunc(int sfactor, int dfactor) {
+        GLES20.glBlendFunc(sfactor, dfactor);
+    }
+
+    @Override
+    public void clearColor(float red, float green, float blue, float alpha) {
+        GLES20.glClearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void clear(int mask) {
+        GLES20.glClear(mask);
+    }
+
+    @Override
+    public void drawArrays(int mode, int first, int count) {
+        GLES20.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public int getError() {
+        return GLES20.glGetError();
+    }
+
+    @Override
+    public boolean hasFenceSync() {
+        if (mFenceSupport < 0) {
+            mFenceSupport = isEs3Context() ? 1 : 0;
+        }
+        return mFenceSupport == 1;
+    }
+
+    /**
+     * Returns true if the current context is OpenGL ES 3.0 or newer and the GLES30 bindings
+     * exist.  Contexts requested as ES 2.0 are often ES 3.x in practice.
+     */
+    static boolean isEs3Context() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public long fenceSync() {
+        return GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void clientWaitSync(long sync, long timeoutNanos) {
+        GLES30.glClientWaitSync(sync, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, timeoutNanos);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void deleteSync(long sync) {
+        GLES30.glDeleteSync(sync);
+    }
+}
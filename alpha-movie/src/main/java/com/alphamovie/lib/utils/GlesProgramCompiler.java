@@ -0,0 +1,152 @@
+package com.alphamovie.lib.utils;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link ProgramCompiler} for the current GL context.
+ * <p>
+ * Binaries use the OpenGL ES 3.0 core API, which is what GL_OES_get_program_binary became;
+ * Android has no Java binding for the OES entry points.  On ES 2.0 contexts, or if the driver
+ * reports no binary formats, programs are always compiled from source.
+ */
+public class GlesProgramCompiler implements ProgramCompiler {
+    private static final String TAG = "GlesProgramCompiler";
+
+    // -1 until the first call on the GL thread, since it needs a current context.
+    private int mBinarySupport = -1;
+
+    @Override
+    public int compile(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program != 0) {
+            GLES20.glAttachShader(program, vertexShader);
+            GLES20.glAttachShader(program, pixelShader);
+            if (supportsBinaries()) {
+                setBinaryRetrievable(program);
+            }
+            GLES20.glLinkProgram(program);
+            if (!isLinked(program)) {
+                Log.e(TAG, "Could not link program: ");
+                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+                GLES20.glDeleteProgram(program);
+                program = 0;
+            } else {
+                // The linked program keeps the code; the shader objects are no longer needed.
+                GLES20.glDetachShader(program, vertexShader);
+                GLES20.glDetachShader(program, pixelShader);
+            }
+        }
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(pixelShader);
+        return program;
+    }
+
+    @Override
+    public boolean supportsBinaries() {
+        if (mBinarySupport < 0) {
+            mBinarySupport = Gles20Api.isEs3Context() && countBinaryFormats() > 0 ? 1 : 0;
+        }
+        return mBinarySupport == 1;
+    }
+
+    @Override
+    public String getRendererId() {
+        return GLES20.glGetString(GLES20.GL_RENDERER) + " / " + GLES20.glGetString(GLES20.GL_VERSION);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public ProgramBinary getBinary(int program) {
+        int[] values = new int[2];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        GLES30.glGetProgramBinary(program, length, values, 0, values, 1, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || values[0] <= 0) {
+            return null;
+        }
+        byte[] data = new byte[values[0]];
+        buffer.get(data);
+        return new ProgramBinary(values[1], data);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public int loadBinary(ProgramBinary binary) {
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        byte[] data = binary.getData();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+        buffer.put(data).position(0);
+        GLES30.glProgramBinary(program, binary.getFormat(), buffer, data.length);
+        // A driver update can invalidate binaries; that shows up as a link failure here.
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || !isLinked(program)) {
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    @Override
+    public void deleteProgram(int program) {
+        GLES20.glDeleteProgram(program);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static int countBinaryFormats() {
+        int[] count = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, count, 0);
+        GLES20.glGetError();
+        return count[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void setBinaryRetrievable(int program) {
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
+    private static boolean isLinked(int program) {
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        return linkStatus[0] == GLES20.GL_TRUE;
+    }
+
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        if (shader != 0) {
+            GLES20.glShaderSource(shader, source);
+            GLES20.glCompileShader(shader);
+            int[] compiled = new int[1];
+            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+            if (compiled[0] == 0) {
+                Log.e(TAG, "Could not compile shader " + shaderType + ":");
+                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
+                GLES20.glDeleteShader(shader);
+                shader = 0;
+            }
+        }
+        return shader;
+    }
+}
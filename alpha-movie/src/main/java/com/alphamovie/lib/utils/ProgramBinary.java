@@ -0,0 +1,29 @@
+package com.alphamovie.lib.utils;
+
+/**
+ * A linked program as returned by the driver: an implementation-defined format and the
+ * binary itself.
+ */
+public final class ProgramBinary {
+    private final int mFormat;
+    private final byte[] mData;
+
+    public ProgramBinary(int format, byte[] data) {
+        if (data == null) {
+            throw new NullPointerException("data is null");
+        }
+        mFormat = format;
+        mData = data;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Returns the binary.  Don't modify.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+}
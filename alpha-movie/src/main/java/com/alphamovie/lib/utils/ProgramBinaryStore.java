@@ -0,0 +1,181 @@
+package com.alphamovie.lib.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Program binaries on disk, one file per program and driver.
+ * <p>
+ * A file is named after the source hash of its {@link ProgramKey} and a hash of the renderer
+ * id, and its header repeats both, so a binary is never handed to a program it wasn't built
+ * from or a driver that didn't build it.  The data is checksummed; truncated or corrupt files
+ * read as a miss.  Files are written to a temporary name and renamed, so readers on other
+ * threads or processes never see a partial file.
+ * <p>
+ * Safe for concurrent use.  I/O errors are not reported: a failed load is a miss, and a
+ * failed save just means the next run compiles again.
+ */
+public class ProgramBinaryStore {
+    private static final int MAGIC = 0x414d5042; // "AMPB"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".bin";
+    // Real program binaries are a few kB to a few hundred kB.
+    static final int MAX_BINARY_SIZE = 4 * 1024 * 1024;
+
+    private final File mDirectory;
+
+    public ProgramBinaryStore(File directory) {
+        mDirectory = directory;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the stored binary of a program for the given driver, or null.
+     */
+    public ProgramBinary load(ProgramKey key, String rendererId) {
+        File file = getFile(key, rendererId);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readLong() != key.getSourceHash()
+                    || in.readInt() != sourceLength(key)
+                    || !in.readUTF().equals(rendererId)) {
+                return null;
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_BINARY_SIZE) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            long checksum = in.readLong();
+            if (checksum != checksum(data) || in.read() != -1) {
+                return null;
+            }
+            return new ProgramBinary(format, data);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores a binary, replacing any previous one for the same program and driver.
+     *
+     * @return true if the binary was written.
+     */
+    public boolean save(ProgramKey key, String rendererId, ProgramBinary binary) {
+        byte[] data = binary.getData();
+        if (data.length == 0 || data.length > MAX_BINARY_SIZE) {
+            return false;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory()) {
+            return false;
+        }
+        File file = getFile(key, rendererId);
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", mDirectory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(key.getSourceHash());
+            out.writeInt(sourceLength(key));
+            out.writeUTF(rendererId);
+            out.writeInt(binary.getFormat());
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeLong(checksum(data));
+            out.close();
+            out = null;
+            if (tmp.renameTo(file)) {
+                tmp = null;
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(out);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the binary of a program, e.g. after the driver rejected it.
+     */
+    public void remove(ProgramKey key, String rendererId) {
+        getFile(key, rendererId).delete();
+    }
+
+    /**
+     * Deletes all stored binaries.
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    File getFile(ProgramKey key, String rendererId) {
+        return new File(mDirectory, fileName(key.getSourceHash(), rendererId));
+    }
+
+    static String fileName(long sourceHash, String rendererId) {
+        return toHex(sourceHash) + "-" + toHex(ProgramKey.hashString(rendererId)) + SUFFIX;
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    private static int sourceLength(ProgramKey key) {
+        return key.getVertexSource().length() + key.getFragmentSource().length();
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
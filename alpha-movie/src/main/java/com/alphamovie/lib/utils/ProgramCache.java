@@ -0,0 +1,152 @@
+package com.alphamovie.lib.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compiled shader programs of one GL context, keyed by their sources.
+ * <p>
+ * Renderers acquire a program when their GL components are set up and release it when they
+ * are torn down.  Renderers drawing with the same sources get the same program, so another
+ * view only costs a compile if its shaders differ.  Per-view parameters such as the key color
+ * are uniforms (see {@link CompositeUniforms}) and never change the sources.
+ * <p>
+ * With a {@link ProgramBinaryStore} set, programs are also kept across processes: a miss
+ * first tries the binary saved for the same sources and GL renderer, and only compiles from
+ * source if there is none or the driver rejects it.  Freshly compiled programs are saved.
+ * <p>
+ * Not thread safe: use a cache on the thread its context is current on, and drop it with the
+ * context.
+ */
+public class ProgramCache {
+    private final HashMap<ProgramKey, Entry> mPrograms = new HashMap<ProgramKey, Entry>();
+    private final ProgramCompiler mCompiler;
+    private ProgramBinaryStore mBinaryStore;
+    private String mRendererId;
+
+    private int mCompileCount;
+    private int mBinaryLoadCount;
+
+    public ProgramCache(ProgramCompiler compiler) {
+        this(compiler, null);
+    }
+
+    public ProgramCache(ProgramCompiler compiler, ProgramBinaryStore binaryStore) {
+        mCompiler = compiler;
+        mBinaryStore = binaryStore;
+    }
+
+    /**
+     * Sets the store binaries are loaded from and saved to, or null to always compile.
+     * Programs already held are unaffected.
+     */
+    public void setBinaryStore(ProgramBinaryStore binaryStore) {
+        mBinaryStore = binaryStore;
+    }
+
+    /**
+     * Returns a program built from the sources, compiling it if no renderer holds one yet.
+     *
+     * @return the program, or 0 if the shaders failed to compile or link.
+     */
+    public int acquire(String vertexSource, String fragmentSource) {
+        ProgramKey key = new ProgramKey(vertexSource, fragmentSource);
+        Entry entry = mPrograms.get(key);
+        if (entry == null) {
+            int program = createProgram(key);
+            if (program == 0) {
+                return 0;
+            }
+            entry = new Entry(program);
+            mPrograms.put(key, entry);
+        }
+        entry.refCount++;
+        return entry.program;
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire}.  The program is deleted once unused.
+     */
+    public void release(int program) {
+        Iterator<Map.Entry<ProgramKey, Entry>> it = mPrograms.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.program == program) {
+                if (--entry.refCount == 0) {
+                    mCompiler.deleteProgram(program);
+                    it.remove();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of programs held.
+     */
+    public int size() {
+        return mPrograms.size();
+    }
+
+    /**
+     * Returns the number of programs compiled from source.
+     */
+    public int getCompileCount() {
+        return mCompileCount;
+    }
+
+    /**
+     * Returns the number of programs created from a stored binary.
+     */
+    public int getBinaryLoadCount() {
+        return mBinaryLoadCount;
+    }
+
+    private int createProgram(ProgramKey key) {
+        ProgramBinaryStore store = mBinaryStore;
+        boolean useBinaries = store != null && mCompiler.supportsBinaries();
+        if (useBinaries) {
+            String rendererId = getRendererId();
+            ProgramBinary binary = store.load(key, rendererId);
+            if (binary != null) {
+                int program = mCompiler.loadBinary(binary);
+                if (program != 0) {
+                    mBinaryLoadCount++;
+                    return program;
+                }
+                // Stale after a driver update; replace it with a fresh one below.
+                store.remove(key, rendererId);
+            }
+        }
+
+        int program = mCompiler.compile(key.getVertexSource(), key.getFragmentSource());
+        if (program == 0) {
+            return 0;
+        }
+        mCompileCount++;
+        if (useBinaries) {
+            ProgramBinary binary = mCompiler.getBinary(program);
+            if (binary != null) {
+                store.save(key, getRendererId(), binary);
+            }
+        }
+        return program;
+    }
+
+    private String getRendererId() {
+        if (mRendererId == null) {
+            mRendererId = mCompiler.getRendererId();
+        }
+        return mRendererId;
+    }
+
+    private static class Entry {
+        final int program;
+        int refCount;
+
+        Entry(int program) {
+            this.program = program;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.alphamovie.lib.utils;
+
+/**
+ * Builds programs for {@link ProgramCache}.  Calls are made on the GL thread with the cache's
+ * context current.  The Android implementation is {@link GlesProgramCompiler}; tests and
+ * benchmarks can use a fake, which makes the cache and its binary store usable on a host JVM.
+ */
+public interface ProgramCompiler {
+    /**
+     * Compiles and links a program.
+     *
+     * @return the program, or 0 on failure.
+     */
+    int compile(String vertexSource, String fragmentSource);
+
+    /**
+     * Returns true if programs can be saved and loaded as binaries on this context.
+     */
+    boolean supportsBinaries();
+
+    /**
+     * Identifies the driver that produces and accepts the binaries, e.g. the GL renderer and
+     * version strings.  A binary is only loaded by the driver it was saved from.
+     */
+    String getRendererId();
+
+    /**
+     * Returns the binary of a linked program, or null if the driver can't provide one.
+     */
+    ProgramBinary getBinary(int program);
+
+    /**
+     * Creates a program from a binary.
+     *
+     * @return the program, or 0 if the driver rejected the binary.
+     */
+    int loadBinary(ProgramBinary binary);
+
+    void deleteProgram(int program);
+}
@@ -0,0 +1,92 @@
+package com.alphamovie.lib.utils;
+
+/**
+ * Identifies a shader program by its sources.
+ * <p>
+ * The 64-bit source hash is computed once, so map lookups don't rehash the shader text;
+ * {@link #equals} still compares the sources, so a hash collision can't hand out the wrong
+ * program.
+ */
+public final class ProgramKey {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String mVertexSource;
+    private final String mFragmentSource;
+    private final long mSourceHash;
+
+    public ProgramKey(String vertexSource, String fragmentSource) {
+        if (vertexSource == null || fragmentSource == null) {
+            throw new NullPointerException("Shader source is null");
+        }
+        mVertexSource = vertexSource;
+        mFragmentSource = fragmentSource;
+        mSourceHash = sourceHash(vertexSource, fragmentSource);
+    }
+
+    public String getVertexSource() {
+        return mVertexSource;
+    }
+
+    public String getFragmentSource() {
+        return mFragmentSource;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of both sources.  Stable across processes and devices.
+     */
+    public long getSourceHash() {
+        return mSourceHash;
+    }
+
+    /**
+     * Hashes the UTF-16 code units of both sources, with a separator so moving text from one
+     * source to the other changes the hash.
+     */
+    public static long sourceHash(String vertexSource, String fragmentSource) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, vertexSource);
+        hash = (hash ^ 0xffff) * FNV_PRIME;
+        return hash(hash, fragmentSource);
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of a single string.
+     */
+    static long hashString(String s) {
+        return hash(FNV_OFFSET_BASIS, s);
+    }
+
+    private static long hash(long hash, String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ProgramKey)) {
+            return false;
+        }
+        ProgramKey other = (ProgramKey) o;
+        return mSourceHash == other.mSourceHash
+                && mVertexSource.equals(other.mVertexSource)
+                && mFragmentSource.equals(other.mFragmentSource);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mSourceHash ^ (mSourceHash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramKey{" + Long.toHexString(mSourceHash) + "}";
+    }
+}
@@ -0,0 +1,323 @@
+package com.alphamovie.lib.utils;
+
+import java.util.Arrays;
+
+/**
+ * GL state for drawing a full-screen textured quad with one program.
+ * <p>
+ * Everything that doesn't change between frames is set up once: attribute and uniform
+ * locations are looked up in the constructor, the quad lives in a vertex buffer object, and
+ * sampler units, the MVP matrix and uniforms set through {@link #setUniform} are stored in
+ * the program.  The remaining bindings (program, VBO, attribute pointers, textures, blending)
+ * are context state.  They are only re-issued when another QuadRenderState drew on this thread
+ * in between, which happens when several overlays share a GL context.  Since programs are
+ * shared through {@link ProgramCache}, uniforms set through {@link #setUniform} are re-issued
+ * at that point as well.
+ * <p>
+ * A frame then costs one matrix upload, a clear and a draw call.  Instead of glFinish() after
+ * the draw, which stalls the CPU until the GPU is idle, a fence is inserted when the context
+ * supports it and waited for one frame later, keeping at most one frame in flight.
+ * <p>
+ * Not thread safe; create, use and release it on the GL thread.
+ */
+public class QuadRenderState {
+    private static final int FLOAT_SIZE_BYTES = BufferUtils.SIZEOF_FLOAT;
+    private static final int VERTEX_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
+    private static final int VERTEX_POS_OFFSET_BYTES = 0;
+    private static final int VERTEX_UV_OFFSET_BYTES = 3 * FLOAT_SIZE_BYTES;
+    private static final int VERTEX_COUNT = 4;
+
+    // Longer than any sane frame; after that the wait gives up rather than hang the thread.
+    private static final long FENCE_TIMEOUT_NANOS = 100000000L;
+
+    /**
+     * Full-screen quad as a triangle strip: X, Y, Z, U, V per vertex.
+     */
+    public static final float[] FULL_RECT = {
+            -1.0f, -1.0f, 0, 0.f, 0.f,
+            1.0f, -1.0f, 0, 1.f, 0.f,
+            -1.0f,  1.0f, 0, 0.f, 1.f,
+            1.0f,  1.0f, 0, 1.f, 1.f,
+    };
+
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1,
+    };
+
+    // glGetError() can stall the pipeline, so calls made every frame only check in debug.
+    private static volatile boolean sDebugGlErrors;
+
+    // The state whose bindings are current on this thread's context.
+    private static final ThreadLocal<QuadRenderState> sBound = new ThreadLocal<QuadRenderState>();
+
+    private final GlApi mGl;
+    private final int mProgram;
+    private final int mTextureTarget;
+    private final int[] mTextureIds;
+
+    private final int mPositionHandle;
+    private final int mTextureCoordHandle;
+    private final int mSTMatrixHandle;
+
+    private int mVertexBuffer;
+    private long mPendingFence;
+    private boolean mBlendEnabled = true;
+
+    // Uniform values this state owns in a possibly shared program.
+    private int[] mUniformLocations = new int[0];
+    private float[][] mUniformValues = new float[0][];
+
+    /**
+     * Makes the calls of every frame (binding, uniforms, the draw) check glGetError() too and
+     * throw on an error, e.g. while writing a shader.  Off by default; the one-time setup in
+     * the constructor is always checked.
+     */
+    public static void setDebugGlErrors(boolean debugGlErrors) {
+        sDebugGlErrors = debugGlErrors;
+    }
+
+    /**
+     * Resolves the locations of {@code aPosition}, {@code aTextureCoord}, {@code uMVPMatrix},
+     * {@code uSTMatrix} and the samplers, and uploads the quad.  Sampler {@code i} reads
+     * {@code textureIds[i]} from texture unit {@code i}.  Samplers a shader doesn't use are
+     * skipped, since custom shaders may ignore some of the textures.
+     *
+     * @throws RuntimeException if the program lacks one of the attributes or matrices.
+     */
+    public QuadRenderState(GlApi gl, int program, int textureTarget, int[] textureIds,
+                           String[] samplerNames) {
+        if (textureIds.length != samplerNames.length) {
+            throw new IllegalArgumentException("Need one sampler per texture");
+        }
+        mGl = gl;
+        mProgram = program;
+        mTextureTarget = textureTarget;
+        mTextureIds = textureIds.clone();
+
+        mPositionHandle = requireAttrib("aPosition");
+        mTextureCoordHandle = requireAttrib("aTextureCoord");
+        int mvpMatrixHandle = requireUniform("uMVPMatrix");
+        mSTMatrixHandle = requireUniform("uSTMatrix");
+        int[] samplerHandles = new int[samplerNames.length];
+        for (int i = 0; i < samplerNames.length; i++) {
+            samplerHandles[i] = gl.getUniformLocation(program, samplerNames[i]);
+        }
+
+        mVertexBuffer = gl.genBuffer();
+        gl.bindBuffer(GlApi.GL_ARRAY_BUFFER, mVertexBuffer);
+        gl.bufferData(GlApi.GL_ARRAY_BUFFER, BufferUtils.createFloatBuffer(FULL_RECT), GlApi.GL_STATIC_DRAW);
+        checkGlError("glBufferData");
+
+        gl.useProgram(program);
+        for (int i = 0; i < samplerHandles.length; i++) {
+            if (samplerHandles[i] != -1) {
+                gl.uniform1i(samplerHandles[i], i);
+            }
+        }
+        gl.uniformMatrix4fv(mvpMatrixHandle, IDENTITY);
+        checkGlError("set static uniforms");
+        bind();
+    }
+
+    /**
+     * Returns the location of a uniform.  Call at setup time, not per frame.
+     *
+     * @throws RuntimeException if the program has no such uniform.
+     */
+    public int requireUniform(String name) {
+        int location = mGl.getUniformLocation(mProgram, name);
+        checkGlError("glGetUniformLocation " + name);
+        if (location == -1) {
+            throw new RuntimeException("Could not get attrib location for " + name);
+        }
+        return location;
+    }
+
+    /**
+     * Returns the location of a uniform, or -1 if the program doesn't use it.
+     */
+    public int findUniform(String name) {
+        return mGl.getUniformLocation(mProgram, name);
+    }
+
+    /**
+     * Sets a float, vec3 or vec4 uniform.  The value is kept in the program, so uniforms
+     * that don't change per frame only need to be set when they change.
+     */
+    public void setUniform(int location, float[] value) {
+        if (value.length != 1 && value.length != 3 && value.length != 4) {
+            throw new IllegalArgumentException("Unsupported uniform size: " + value.length);
+        }
+        int index = indexOfUniform(location);
+        if (index < 0) {
+            index = mUniformLocations.length;
+            mUniformLocations = Arrays.copyOf(mUniformLocations, index + 1);
+            mUniformValues = Arrays.copyOf(mUniformValues, index + 1);
+            mUniformLocations[index] = location;
+        }
+        mUniformValues[index] = value.clone();
+        if (sBound.get() == this) {
+            issueUniform(location, mUniformValues[index]);
+        } else {
+            bind();
+        }
+        debugCheckGlError("glUniform");
+    }
+
+    /**
+     * Makes sampler {@code index} read {@code textureId} from now on, e.g. to cycle through
+     * a set of textures with one state.
+     */
+    public void setTexture(int index, int textureId) {
+        mTextureIds[index] = textureId;
+        if (sBound.get() == this) {
+            mGl.activeTexture(GlApi.GL_TEXTURE0 + index);
+            mGl.bindTexture(mTextureTarget, textureId);
+        }
+    }
+
+    /**
+     * Turns alpha blending off to copy texels as they are, e.g. a frame that was already
+     * blended once.  On by default.
+     */
+    public void setBlendEnabled(boolean blendEnabled) {
+        mBlendEnabled = blendEnabled;
+        if (sBound.get() == this) {
+            bind();
+        }
+    }
+
+    /**
+     * Call before {@code SurfaceTexture.updateTexImage()} for texture {@code index}.
+     * updateTexImage() binds the texture to the active unit; making that the texture's own
+     * unit keeps the bindings set up by this state valid.
+     */
+    public void beginTextureUpdate(int index) {
+        mGl.activeTexture(GlApi.GL_TEXTURE0 + index);
+    }
+
+    /**
+     * Clears the surface and draws the quad with the given texture transform.
+     */
+    public void draw(float[] stMatrix) {
+        bindIfNeeded();
+        mGl.uniformMatrix4fv(mSTMatrixHandle, stMatrix);
+        mGl.clear(GlApi.GL_DEPTH_BUFFER_BIT | GlApi.GL_COLOR_BUFFER_BIT);
+        mGl.drawArrays(GlApi.GL_TRIANGLE_STRIP, 0, VERTEX_COUNT);
+        debugCheckGlError("glDrawArrays");
+        throttle();
+    }
+
+    /**
+     * Deletes the vertex buffer and any pending fence.  The program and textures belong to
+     * the caller.
+     */
+    public void release() {
+        if (mPendingFence != 0) {
+            mGl.deleteSync(mPendingFence);
+            mPendingFence = 0;
+        }
+        if (mVertexBuffer != 0) {
+            mGl.deleteBuffer(mVertexBuffer);
+            mVertexBuffer = 0;
+        }
+        if (sBound.get() == this) {
+            sBound.remove();
+        }
+    }
+
+    private void bindIfNeeded() {
+        if (sBound.get() != this) {
+            bind();
+        }
+    }
+
+    private void bind() {
+        GlApi gl = mGl;
+        gl.useProgram(mProgram);
+        gl.bindBuffer(GlApi.GL_ARRAY_BUFFER, mVertexBuffer);
+        gl.vertexAttribPointer(mPositionHandle, 3, VERTEX_STRIDE_BYTES, VERTEX_POS_OFFSET_BYTES);
+        gl.enableVertexAttribArray(mPositionHandle);
+        gl.vertexAttribPointer(mTextureCoordHandle, 2, VERTEX_STRIDE_BYTES, VERTEX_UV_OFFSET_BYTES);
+        gl.enableVertexAttribArray(mTextureCoordHandle);
+        for (int i = 0; i < mTextureIds.length; i++) {
+            gl.activeTexture(GlApi.GL_TEXTURE0 + i);
+            gl.bindTexture(mTextureTarget, mTextureIds[i]);
+        }
+        if (mBlendEnabled) {
+            gl.enable(GlApi.GL_BLEND);
+            gl.blendFunc(GlApi.GL_SRC_ALPHA, GlApi.GL_ONE_MINUS_SRC_ALPHA);
+        } else {
+            gl.disable(GlApi.GL_BLEND);
+        }
+        gl.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        for (int i = 0; i < mUniformLocations.length; i++) {
+            issueUniform(mUniformLocations[i], mUniformValues[i]);
+        }
+        debugCheckGlError("bind render state");
+        sBound.set(this);
+    }
+
+    /**
+     * Waits for the previous frame's fence, then fences this one.  Without fence support
+     * eglSwapBuffers() is left to throttle the producer.
+     */
+    private void throttle() {
+        if (!mGl.hasFenceSync()) {
+            return;
+        }
+        if (mPendingFence != 0) {
+            mGl.clientWaitSync(mPendingFence, FENCE_TIMEOUT_NANOS);
+            mGl.deleteSync(mPendingFence);
+        }
+        mPendingFence = mGl.fenceSync();
+    }
+
+    private int indexOfUniform(int location) {
+        for (int i = 0; i < mUniformLocations.length; i++) {
+            if (mUniformLocations[i] == location) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void issueUniform(int location, float[] value) {
+        switch (value.length) {
+            case 1:
+                mGl.uniform1f(location, value[0]);
+                break;
+            case 3:
+                mGl.uniform3f(location, value[0], value[1], value[2]);
+                break;
+            default:
+                mGl.uniform4fv(location, value);
+                break;
+        }
+    }
+
+    private int requireAttrib(String name) {
+        int location = mGl.getAttribLocation(mProgram, name);
+        checkGlError("glGetAttribLocation " + name);
+        if (location == -1) {
+            throw new RuntimeException("Could not get attrib location for " + name);
+        }
+        return location;
+    }
+
+    private void debugCheckGlError(String op) {
+        if (sDebugGlErrors) {
+            checkGlError(op);
+        }
+    }
+
+    private void checkGlError(String op) {
+        int error = mGl.getError();
+        if (error != GlApi.GL_NO_ERROR) {
+            throw new RuntimeException(op + ": glError " + error);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.alphamovie.lib.utils;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Process-wide access to the program binary cache.
+ * <p>
+ * {@link #getBinaryStore} is the store renderers hand to their {@link ProgramCache}, and
+ * {@link #warmUp} fills it in the background, e.g. from {@code Application.onCreate()}, so
+ * the first overlay loads its programs instead of compiling them.
+ */
+public final class ShaderCache {
+    private static final String TAG = "ShaderCache";
+    private static final String DIRECTORY = "alpha-movie-programs";
+
+    private static ProgramBinaryStore sBinaryStore;
+
+    private ShaderCache() {
+    }
+
+    /**
+     * Returns the store in the app's cache directory.
+     */
+    public static synchronized ProgramBinaryStore getBinaryStore(Context context) {
+        if (sBinaryStore == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+            sBinaryStore = new ProgramBinaryStore(dir);
+        }
+        return sBinaryStore;
+    }
+
+    /**
+     * Compiles the given programs on a background thread with its own offscreen context and
+     * saves their binaries, skipping programs that are stored already.  Does nothing useful
+     * where the driver doesn't support program binaries.
+     *
+     * @param programs pairs of vertex and fragment source.
+     * @return the started thread.
+     */
+    public static Thread warmUp(Context context, final String[]... programs) {
+        final ProgramBinaryStore store = getBinaryStore(context);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compileOffscreen(store, programs);
+            }
+        }, "ShaderWarmUp");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    private static void compileOffscreen(ProgramBinaryStore store, String[][] programs) {
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+            Log.w(TAG, "eglInitialize failed: " + EGL14.eglGetError());
+            return;
+        }
+        int[] configAttribs = {
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(display, configAttribs, 0, configs, 0, 1, configCount, 0)
+                || configCount[0] == 0) {
+            Log.w(TAG, "No pbuffer config: " + EGL14.eglGetError());
+            return;
+        }
+        // Same client version as the render contexts, so the driver produces binaries they accept.
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        EGLContext context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        if (context == null || context == EGL14.EGL_NO_CONTEXT) {
+            Log.w(TAG, "eglCreateContext failed: " + EGL14.eglGetError());
+            return;
+        }
+        int[] surfaceAttribs = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+        EGLSurface surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttribs, 0);
+        try {
+            if (surface == null || surface == EGL14.EGL_NO_SURFACE
+                    || !EGL14.eglMakeCurrent(display, surface, surface, context)) {
+                Log.w(TAG, "Could not make pbuffer current: " + EGL14.eglGetError());
+                return;
+            }
+            ProgramCache cache = new ProgramCache(new GlesProgramCompiler(), store);
+            for (String[] sources : programs) {
+                int program = cache.acquire(sources[0], sources[1]);
+                if (program != 0) {
+                    cache.release(program);
+                }
+            }
+            Log.d(TAG, "Warmed up " + programs.length + " programs, compiled " + cache.getCompileCount());
+        } finally {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (surface != null && surface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(display, surface);
+            }
+            EGL14.eglDestroyContext(display, context);
+        }
+    }
+}
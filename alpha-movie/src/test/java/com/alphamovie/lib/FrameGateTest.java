@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameGateTest {
+    @Test
+    public void opensOnceEveryStreamHasAFrame() {
+        FrameGate gate = new FrameGate(3);
+        assertFalse(gate.onFrameAvailable(2));
+        assertFalse(gate.onFrameAvailable(0));
+        assertTrue(gate.hasPending());
+        assertFalse(gate.isReady());
+        assertTrue(gate.onFrameAvailable(1));
+        assertEquals(7, gate.consume());
+        assertFalse(gate.hasPending());
+        assertFalse(gate.isReady());
+    }
+
+    @Test
+    public void opensWhenAStreamOverruns() {
+        FrameGate gate = new FrameGate(3);
+        gate.onFrameAvailable(0);
+        gate.onFrameAvailable(1);
+        // Stream 0 is a frame ahead while stream 2 stalls.
+        assertTrue(gate.onFrameAvailable(0));
+        int mask = gate.consume();
+        assertTrue(FrameGate.isSet(mask, 0));
+        assertTrue(FrameGate.isSet(mask, 1));
+        assertFalse(FrameGate.isSet(mask, 2));
+        assertFalse(gate.isReady());
+    }
+
+    @Test
+    public void jitteredArrivalLatchesEachFrameSetOnce() {
+        Random random = new Random(7);
+        FrameGate gate = new FrameGate(3);
+        int[] order = {0, 1, 2};
+        for (int frame = 0; frame < 500; frame++) {
+            shuffle(order, random);
+            for (int i = 0; i < order.length; i++) {
+                boolean ready = gate.onFrameAvailable(order[i]);
+                assertEquals(i == order.length - 1, ready);
+            }
+            assertEquals(7, gate.consume());
+        }
+    }
+
+    @Test
+    public void resetForgetsPendingFrames() {
+        FrameGate gate = new FrameGate(2);
+        gate.onFrameAvailable(0);
+        gate.onFrameAvailable(0);
+        assertTrue(gate.isReady());
+        gate.reset();
+        assertFalse(gate.hasPending());
+        assertFalse(gate.onFrameAvailable(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyGroup() {
+        new FrameGate(0);
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FramePacingTest {
+    private static final long FRAME_USEC = 33333;
+
+    @Test
+    public void paceFuzz() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long desiredUsec = random.nextLong() >> 20;
+            long nowUsec = desiredUsec + (random.nextLong() >> 40);
+            long frameDeltaUsec = random.nextInt(200000) - 10000;
+            int maxDrops = random.nextInt(5);
+            int drops = random.nextInt(6);
+            int strategy = random.nextBoolean()
+                    ? FramePacing.CATCH_UP_DROP : FramePacing.CATCH_UP_REANCHOR;
+            int decision = FramePacing.pace(desiredUsec, nowUsec, frameDeltaUsec, drops,
+                    maxDrops, strategy);
+
+            boolean late = nowUsec - desiredUsec > Math.max(frameDeltaUsec, 0);
+            if (!late) {
+                assertEquals(FramePacing.PACE_RENDER, decision);
+            } else if (strategy == FramePacing.CATCH_UP_DROP && drops < maxDrops) {
+                assertEquals(FramePacing.PACE_DROP, decision);
+            } else {
+                assertEquals(FramePacing.PACE_RENDER_REANCHOR, decision);
+            }
+        }
+    }
+
+    @Test
+    public void clampAndSleepFuzz() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100000; i++) {
+            long delta = random.nextLong() >> random.nextInt(64);
+            long clamped = FramePacing.clampFrameDeltaUsec(delta);
+            assertTrue(clamped >= 0 && clamped <= FramePacing.MAX_FRAME_DELTA_USEC);
+            if (delta >= 0 && delta <= FramePacing.MAX_FRAME_DELTA_USEC) {
+                assertEquals(delta, clamped);
+            }
+
+            long desiredUsec = random.nextLong() >> 20;
+            long nowUsec = desiredUsec + (random.nextLong() >> 36);
+            long sleepUsec = FramePacing.sleepTimeUsec(desiredUsec, nowUsec);
+            assertTrue(sleepUsec >= 0 && sleepUsec <= FramePacing.MAX_SLEEP_USEC);
+            assertEquals(nowUsec < desiredUsec - FramePacing.SLEEP_SLACK_USEC, sleepUsec > 0);
+            assertTrue(nowUsec + sleepUsec <= Math.max(desiredUsec, nowUsec));
+        }
+    }
+
+    /**
+     * Replays the pacing loop of {@link SpeedControlCallback} against a simulated clock and a
+     * decoder that randomly stalls, and checks that playback never falls further behind than
+     * the catch-up strategies allow.
+     */
+    @Test
+    public void playbackWithRandomStallsCatchesUp() {
+        Random random = new Random(3);
+        for (int run = 0; run < 200; run++) {
+            int strategy = run % 2 == 0
+                    ? FramePacing.CATCH_UP_DROP : FramePacing.CATCH_UP_REANCHOR;
+            int maxDrops = 1 + random.nextInt(4);
+            long nowUsec = 1000000;
+            long prevMonoUsec = nowUsec;
+            long prevPresentUsec = 0;
+            int drops = 0;
+            int rendered = 0;
+            for (int frame = 1; frame < 600; frame++) {
+                // Decode time: usually well under a frame, sometimes a stall of many frames.
+                long decodeUsec = random.nextInt(100) == 0
+                        ? random.nextInt(10 * (int) FRAME_USEC) : random.nextInt(20000);
+                nowUsec += decodeUsec;
+
+                long ptsUsec = frame * FRAME_USEC;
+                long frameDelta = FramePacing.clampFrameDeltaUsec(
+                        FramePacing.frameDeltaUsec(ptsUsec, prevPresentUsec, 0));
+                long desiredUsec = prevMonoUsec + frameDelta;
+                int decision = FramePacing.pace(desiredUsec, nowUsec, frameDelta, drops,
+                        maxDrops, strategy);
+                if (decision == FramePacing.PACE_DROP) {
+                    assertEquals(FramePacing.CATCH_UP_DROP, strategy);
+                    drops++;
+                    assertTrue(drops <= maxDrops);
+                    prevMonoUsec += frameDelta;
+                } else if (decision == FramePacing.PACE_RENDER_REANCHOR) {
+                    drops = 0;
+                    rendered++;
+                    prevMonoUsec = nowUsec;
+                } else {
+                    drops = 0;
+                    rendered++;
+                    // Released no later than one frame after its time.
+                    assertTrue(nowUsec - desiredUsec <= frameDelta);
+                    nowUsec += FramePacing.sleepTimeUsec(desiredUsec, nowUsec);
+                    prevMonoUsec += frameDelta;
+                }
+                prevPresentUsec += frameDelta;
+                assertEquals(ptsUsec, prevPresentUsec);
+                // The timeline never runs ahead of the clock by more than the next frame.
+                assertTrue(prevMonoUsec - nowUsec <= FRAME_USEC);
+            }
+            assertTrue(rendered > 0);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSynchronizerTest {
+    private static final int STREAMS = 3;
+    private static final long FRAME_USEC = 33333;
+    // Each stream rounds its timestamps differently, well inside the tolerance.
+    private static final long PTS_JITTER_USEC = 1000;
+
+    @Test
+    public void jitteredStreamsPresentEveryFrameInLockstep() {
+        Random random = new Random(42);
+        for (int run = 0; run < 20; run++) {
+            FrameSynchronizer synchronizer = new FrameSynchronizer(STREAMS);
+            int frames = 200;
+            int[] next = new int[STREAMS];
+            long[] jitter = new long[STREAMS];
+            for (int i = 0; i < STREAMS; i++) {
+                jitter[i] = random.nextInt((int) PTS_JITTER_USEC);
+            }
+            long nowUsec = 0;
+            int done = 0;
+            while (done < STREAMS) {
+                // Decoders deliver in any order; a stream offers its next frame when it runs.
+                int stream = random.nextInt(STREAMS);
+                if (next[stream] == frames) {
+                    continue;
+                }
+                nowUsec += random.nextInt(2000);
+                long pts = next[stream] * FRAME_USEC + jitter[stream];
+                int decision = synchronizer.offer(stream, pts, nowUsec);
+                assertTrue("dropped frame " + next[stream] + " of stream " + stream,
+                        decision != FrameSynchronizer.DROP);
+                if (decision == FrameSynchronizer.RENDER) {
+                    next[stream]++;
+                    if (next[stream] == frames) {
+                        done++;
+                    }
+                    assertAtMostOneFrameApart(synchronizer);
+                }
+            }
+            assertEquals(STREAMS * frames, synchronizer.getRenderedFrameCount());
+            assertEquals(0, synchronizer.getDroppedFrameCount());
+            assertEquals(0, synchronizer.getForcedFrameCount());
+            assertTrue(synchronizer.isMatched());
+        }
+    }
+
+    @Test
+    public void streamAheadHoldsUntilPeersCatchUp() {
+        FrameSynchronizer synchronizer = new FrameSynchronizer(2);
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(0, 0, 0));
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, FRAME_USEC, 1000));
+        assertFalse(synchronizer.isMatched());
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(1, 400, 2000));
+        assertTrue(synchronizer.isMatched());
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(0, FRAME_USEC, 3000));
+    }
+
+    @Test
+    public void stalledPeerIsLetThroughAfterHoldLimit() {
+        FrameSynchronizer synchronizer = new FrameSynchronizer(2);
+        synchronizer.offer(0, 0, 0);
+        synchronizer.offer(1, 0, 0);
+        synchronizer.offer(0, FRAME_USEC, 0);
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, 2 * FRAME_USEC, 1000));
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, 2 * FRAME_USEC,
+                FrameSynchronizer.DEFAULT_MAX_HOLD_USEC));
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(0, 2 * FRAME_USEC,
+                1000 + FrameSynchronizer.DEFAULT_MAX_HOLD_USEC));
+        assertEquals(1, synchronizer.getForcedFrameCount());
+        // The stalled stream is now behind and drops to catch up.
+        assertEquals(FrameSynchronizer.DROP, synchronizer.offer(1, FRAME_USEC, 200000));
+    }
+
+    @Test
+    public void clearHoldRestartsHoldLimit() {
+        FrameSynchronizer synchronizer = new FrameSynchronizer(2);
+        synchronizer.offer(0, 0, 0);
+        synchronizer.offer(1, 0, 0);
+        synchronizer.offer(0, FRAME_USEC, 0);
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, 2 * FRAME_USEC, 0));
+        // Paused for ten seconds while holding.
+        synchronizer.clearHold(0);
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, 2 * FRAME_USEC, 10000000));
+        assertEquals(0, synchronizer.getForcedFrameCount());
+    }
+
+    @Test
+    public void loopStartsNewEpochAndDropsStaleFrames() {
+        FrameSynchronizer synchronizer = new FrameSynchronizer(2);
+        long lastUsec = 10 * FRAME_USEC;
+        synchronizer.offer(0, lastUsec - FRAME_USEC, 0);
+        synchronizer.offer(1, lastUsec - FRAME_USEC, 0);
+        synchronizer.offer(0, lastUsec, 0);
+        synchronizer.offer(1, lastUsec, 0);
+        // Stream 0 wraps to the start; stream 1 is let through the hold limit meanwhile
+        // and then offers a frame of the old pass.
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(0, 0, 0));
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, FRAME_USEC, 0));
+        assertEquals(FrameSynchronizer.DROP, synchronizer.offer(1, lastUsec + FRAME_USEC, 0));
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(1, 0, 0));
+        assertTrue(synchronizer.isMatched());
+    }
+
+    @Test
+    public void finishedStreamNoLongerHoldsPeers() {
+        FrameSynchronizer synchronizer = new FrameSynchronizer(2);
+        synchronizer.offer(0, 0, 0);
+        assertEquals(FrameSynchronizer.HOLD, synchronizer.offer(0, FRAME_USEC, 0));
+        synchronizer.finish(1);
+        assertEquals(FrameSynchronizer.RENDER, synchronizer.offer(0, FRAME_USEC, 0));
+        assertTrue(synchronizer.isMatched());
+    }
+
+    private static void assertAtMostOneFrameApart(FrameSynchronizer synchronizer) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < synchronizer.getStreamCount(); i++) {
+            long pts = synchronizer.getPresentedPtsUsec(i);
+            min = Math.min(min, pts);
+            max = Math.max(max, pts);
+        }
+        assertTrue("streams " + (max - min) + "us apart",
+                max - min <= FRAME_USEC + FrameSynchronizer.DEFAULT_TOLERANCE_USEC);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InstancePoolTest {
+    private static final String AVC = "video/avc 960x540";
+    private static final String HEVC = "video/hevc 960x540";
+    private static final String PLAYER = "player";
+
+    @Test
+    public void reusesInstanceOfSameKey() {
+        InstancePool<String> pool = new InstancePool<String>(2, new InstanceBudget(4));
+        List<Object> evicted = new ArrayList<Object>();
+        assertNull(pool.acquire(AVC, evicted));
+        pool.recycle(AVC, "codec", evicted);
+        assertSame("codec", pool.acquire(AVC, evicted));
+        assertEquals(1, pool.leasedCount());
+        assertEquals(0, pool.idleCount());
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void keepsAtMostMaxIdle() {
+        InstancePool<String> pool = new InstancePool<String>(1, new InstanceBudget(4));
+        List<Object> evicted = new ArrayList<Object>();
+        pool.acquire(AVC, evicted);
+        pool.acquire(AVC, evicted);
+        pool.recycle(AVC, "first", evicted);
+        pool.recycle(AVC, "second", evicted);
+        assertEquals(1, pool.idleCount());
+        assertEquals(list("first"), evicted);
+    }
+
+    @Test
+    public void leasesOfOtherPoolCountAgainstLimit() {
+        InstanceBudget budget = new InstanceBudget(2);
+        InstancePool<String> codecs = new InstancePool<String>(2, budget);
+        InstancePool<String> players = new InstancePool<String>(2, budget);
+        List<Object> evicted = new ArrayList<Object>();
+        codecs.acquire(AVC, evicted);
+        codecs.recycle(AVC, "codec", evicted);
+        players.acquire(PLAYER, evicted);
+        assertTrue(evicted.isEmpty());
+
+        // A second player in use leaves no room for the idle codec.
+        players.acquire(PLAYER, evicted);
+        assertEquals(list("codec"), evicted);
+        assertEquals(2, budget.instanceCount());
+    }
+
+    @Test
+    public void evictsOwnIdleBeforeOtherPools() {
+        InstanceBudget budget = new InstanceBudget(2);
+        InstancePool<String> codecs = new InstancePool<String>(2, budget);
+        InstancePool<String> players = new InstancePool<String>(2, budget);
+        List<Object> evicted = new ArrayList<Object>();
+        players.acquire(PLAYER, evicted);
+        players.recycle(PLAYER, "player", evicted);
+        codecs.acquire(AVC, evicted);
+        codecs.recycle(AVC, "codec", evicted);
+        assertTrue(evicted.isEmpty());
+
+        codecs.acquire(HEVC, evicted);
+        assertEquals(list("codec"), evicted);
+        assertEquals(1, players.idleCount());
+    }
+
+    @Test
+    public void discardFreesRoom() {
+        InstanceBudget budget = new InstanceBudget(1);
+        InstancePool<String> pool = new InstancePool<String>(1, budget);
+        List<Object> evicted = new ArrayList<Object>();
+        pool.acquire(AVC, evicted);
+        pool.discard();
+        assertEquals(0, budget.instanceCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeIdleLimit() {
+        new InstancePool<String>(-1, new InstanceBudget(1));
+    }
+
+    private static List<Object> list(Object... instances) {
+        List<Object> list = new ArrayList<Object>();
+        for (Object instance : instances) {
+            list.add(instance);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoopTimelineTest {
+    private static final long FRAME_USEC = 33333;
+
+    @Test
+    public void passesFollowOneFrameAfterTheLastFrame() {
+        int frames = 10;
+        LoopTimeline timeline = new LoopTimeline(frames * FRAME_USEC);
+        long previous = -1;
+        for (int pass = 0; pass < 4; pass++) {
+            for (int i = 0; i < frames; i++) {
+                long pts = timeline.onSample(i * FRAME_USEC);
+                if (previous >= 0) {
+                    assertEquals(FRAME_USEC, pts - previous);
+                }
+                assertEquals(pass, timeline.passOf(pts));
+                previous = pts;
+            }
+            assertTrue(timeline.onEndOfInput());
+        }
+        assertEquals(frames * FRAME_USEC, timeline.getLoopDurationUsec());
+    }
+
+    @Test
+    public void withoutTrackDurationLoopIsSpanPlusAverageFrame() {
+        LoopTimeline timeline = new LoopTimeline(0);
+        // Decode order differs from presentation order.
+        long[] samples = {0, 3 * FRAME_USEC, FRAME_USEC, 2 * FRAME_USEC};
+        for (long sample : samples) {
+            timeline.onSample(sample);
+        }
+        assertTrue(timeline.onEndOfInput());
+        assertEquals(4 * FRAME_USEC, timeline.getLoopDurationUsec());
+        assertEquals(4 * FRAME_USEC, timeline.onSample(0));
+    }
+
+    @Test
+    public void singleFrameWithoutDurationCannotLoop() {
+        LoopTimeline timeline = new LoopTimeline(0);
+        timeline.onSample(0);
+        assertFalse(timeline.onEndOfInput());
+        assertEquals(0, timeline.getOffsetUsec());
+    }
+
+    @Test
+    public void firstPassFromIndexIgnoresSamplesReadAfterASeek() {
+        LoopTimeline timeline = new LoopTimeline(0);
+        timeline.setFirstPass(0, 9 * FRAME_USEC, 10);
+        // Seeked to the middle; only the second half of the first pass is read.
+        for (int i = 5; i < 10; i++) {
+            timeline.onSample(i * FRAME_USEC);
+        }
+        assertTrue(timeline.onEndOfInput());
+        assertEquals(10 * FRAME_USEC, timeline.getLoopDurationUsec());
+    }
+
+    @Test
+    public void streamsOfDifferentLengthWrapTogether() {
+        // Color, background and alpha encoded with 10, 12 and 11 frames.
+        int[] frames = {10, 12, 11};
+        FrameSynchronizer synchronizer = new FrameSynchronizer(frames.length);
+        LoopTimeline[] timelines = new LoopTimeline[frames.length];
+        for (int s = 0; s < frames.length; s++) {
+            timelines[s] = new LoopTimeline(frames[s] * FRAME_USEC);
+            timelines[s].setFirstPass(0, (frames[s] - 1) * FRAME_USEC, frames[s]);
+            synchronizer.setLoopDurationUsec(s, timelines[s].getLoopDurationUsec());
+        }
+        assertEquals(12 * FRAME_USEC, synchronizer.getLoopDurationUsec());
+
+        for (int pass = 1; pass <= 5; pass++) {
+            long firstOfPass = -1;
+            for (int s = 0; s < frames.length; s++) {
+                timelines[s].setLoopDurationUsec(synchronizer.getLoopDurationUsec());
+                assertTrue(timelines[s].onEndOfInput());
+                long pts = timelines[s].onSample(0);
+                if (firstOfPass < 0) {
+                    firstOfPass = pts;
+                }
+                assertEquals("stream " + s + " pass " + pass, firstOfPass, pts);
+                assertEquals(pass, timelines[s].passOf(pts));
+            }
+            assertEquals(pass * 12 * FRAME_USEC, firstOfPass);
+        }
+    }
+
+    @Test
+    public void shorterGroupLoopDoesNotShortenOwnLoop() {
+        LoopTimeline timeline = new LoopTimeline(10 * FRAME_USEC);
+        timeline.setFirstPass(0, 9 * FRAME_USEC, 10);
+        timeline.setLoopDurationUsec(8 * FRAME_USEC);
+        timeline.setLoopDurationUsec(0);
+        assertEquals(10 * FRAME_USEC, timeline.getLoopDurationUsec());
+    }
+
+    @Test
+    public void resetStartsOverAtPassZero() {
+        LoopTimeline timeline = new LoopTimeline(10 * FRAME_USEC);
+        timeline.onSample(0);
+        timeline.onSample(9 * FRAME_USEC);
+        timeline.onEndOfInput();
+        timeline.reset();
+        assertEquals(0, timeline.getOffsetUsec());
+        assertEquals(0, timeline.getLoopDurationUsec());
+        assertEquals(5 * FRAME_USEC, timeline.onSample(5 * FRAME_USEC));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads the movies the example app ships with.  The expected values were taken from the
+ * files' sample tables.
+ */
+public class Mp4ParserTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsColorAndAlphaStreams() throws IOException {
+        for (String name : new String[]{"color.mp4", "alpha.mp4"}) {
+            Mp4Metadata metadata = parse(asset(name));
+            assertEquals(name, 960, metadata.getWidth());
+            assertEquals(name, 540, metadata.getHeight());
+            assertEquals(name, 0, metadata.getRotationDegrees());
+            assertEquals(name, 216, metadata.getSampleCount());
+            assertEquals(name, 8640000, metadata.getDurationUsec());
+            assertEquals(name, 25.0f, metadata.getFrameRate(), 0.01f);
+            assertArrayEquals(name, new int[]{1}, metadata.getSyncSamples());
+        }
+    }
+
+    @Test
+    public void readsFrameRateFromSampleDurations() throws IOException {
+        Mp4Metadata metadata = parse(asset("base.mp4"));
+        assertEquals(216, metadata.getSampleCount());
+        assertEquals(7200000, metadata.getDurationUsec());
+        assertEquals(30.0f, metadata.getFrameRate(), 0.01f);
+    }
+
+    @Test
+    public void readsSyncSampleTable() throws IOException {
+        Mp4Metadata metadata = parse(asset("ball.mp4"));
+        assertEquals(1280, metadata.getWidth());
+        assertEquals(720, metadata.getHeight());
+        assertEquals(500, metadata.getSampleCount());
+        assertEquals(20000000, metadata.getDurationUsec());
+        assertArrayEquals(new int[]{1, 61, 121, 181, 241, 301, 361, 391, 451},
+                metadata.getSyncSamples());
+        assertTrue(metadata.isSyncSample(391));
+        assertFalse(metadata.isSyncSample(392));
+        assertFalse(metadata.isSyncSample(0));
+
+        metadata = parse(asset("alpha1.mp4"));
+        assertEquals(629, metadata.getSampleCount());
+        assertArrayEquals(new int[]{1, 251, 501}, metadata.getSyncSamples());
+    }
+
+    @Test
+    public void readsAvcConfig() throws IOException {
+        Mp4Metadata metadata = parse(asset("color1.mp4"));
+        assertEquals("avc1", metadata.getCodecType());
+        assertEquals("video/avc", metadata.getMimeType());
+        byte[] config = metadata.getCodecConfig();
+        assertEquals(37, config.length);
+        // AVCDecoderConfigurationRecord version.
+        assertEquals(1, config[0]);
+    }
+
+    @Test
+    public void readsFileAtAnOffset() throws IOException {
+        // Like an asset stored uncompressed inside an APK.
+        File movie = asset("alpha1.mp4");
+        File packed = folder.newFile("packed.bin");
+        byte[] padding = new byte[4096];
+        FileOutputStream out = new FileOutputStream(packed);
+        try {
+            out.write(padding);
+            out.write(readAll(movie));
+            out.write(padding);
+        } finally {
+            out.close();
+        }
+        FileInputStream in = new FileInputStream(packed);
+        try {
+            Mp4Metadata metadata = new Mp4Parser(in.getChannel(), padding.length,
+                    movie.length()).parse();
+            assertEquals(629, metadata.getSampleCount());
+            assertEquals(25160000, metadata.getDurationUsec());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void truncatedFileFails() throws IOException {
+        File movie = asset("color.mp4");
+        byte[] data = readAll(movie);
+        File truncated = folder.newFile("truncated.mp4");
+        FileOutputStream out = new FileOutputStream(truncated);
+        try {
+            // The movie box is at the end of these files.
+            out.write(data, 0, data.length - 1000);
+        } finally {
+            out.close();
+        }
+        try {
+            parse(truncated);
+            fail("parsed a truncated file");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static Mp4Metadata parse(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new Mp4Parser(channel, 0, channel.size()).parse();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds an example asset, whether the tests run from the module or the project directory.
+     */
+    private static File asset(String name) {
+        File file = new File("../example/src/main/assets", name);
+        if (!file.isFile()) {
+            file = new File("example/src/main/assets", name);
+        }
+        return file;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Short read");
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
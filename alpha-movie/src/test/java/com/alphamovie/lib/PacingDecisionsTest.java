@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacingDecisionsTest {
+    private static final long FRAME_USEC = 33333;
+    private static final long TOLERANCE_USEC = FrameSynchronizer.DEFAULT_TOLERANCE_USEC;
+
+    @Test
+    public void otherStreamsFollowTheFirstDecision() {
+        PacingDecisions decisions = new PacingDecisions(TOLERANCE_USEC);
+        int slot = decisions.record(FRAME_USEC, false, 0, 0, FRAME_USEC);
+        // Another stream's timestamps are rounded differently.
+        int found = decisions.find(FRAME_USEC + 1000);
+        assertEquals(slot, found);
+        assertFalse(decisions.isRender(found));
+        assertEquals(-1, decisions.find(2 * FRAME_USEC));
+    }
+
+    @Test
+    public void keepsTheLastSlotsDecisions() {
+        PacingDecisions decisions = new PacingDecisions(TOLERANCE_USEC);
+        int frames = 3 * PacingDecisions.SLOTS;
+        for (int i = 0; i < frames; i++) {
+            decisions.record(i * FRAME_USEC, true, i * 1000, i * 1000000L, FRAME_USEC);
+        }
+        for (int i = 0; i < frames; i++) {
+            int slot = decisions.find(i * FRAME_USEC);
+            if (i < frames - PacingDecisions.SLOTS) {
+                assertEquals(-1, slot);
+            } else {
+                assertEquals(i * 1000, decisions.getDesiredUsec(slot));
+                assertEquals(i * 1000000L, decisions.getRenderTimeNanos(slot));
+            }
+        }
+    }
+
+    @Test
+    public void goingBackwardsForgetsOlderDecisions() {
+        PacingDecisions decisions = new PacingDecisions(TOLERANCE_USEC);
+        decisions.record(9 * FRAME_USEC, false, 0, 0, FRAME_USEC);
+        decisions.record(10 * FRAME_USEC, true, 1, 0, FRAME_USEC);
+        // Seeked back to the start.
+        decisions.record(0, true, 2, 0, FRAME_USEC);
+        assertEquals(-1, decisions.find(9 * FRAME_USEC));
+        assertEquals(-1, decisions.find(10 * FRAME_USEC));
+        assertEquals(2, decisions.getDesiredUsec(decisions.find(0)));
+    }
+
+    /**
+     * Three streams within a frame of each other, reaching frames in random order: each
+     * frame is decided once, and every stream sees the same decision.
+     */
+    @Test
+    public void streamsInterleavedAtRandomShareEveryDecision() {
+        Random random = new Random(5);
+        PacingDecisions decisions = new PacingDecisions(TOLERANCE_USEC);
+        int streams = 3;
+        int frames = 1000;
+        int[] next = new int[streams];
+        boolean[] firstDecision = new boolean[frames];
+        int decided = 0;
+        while (true) {
+            int slowest = Math.min(next[0], Math.min(next[1], next[2]));
+            if (slowest == frames) {
+                break;
+            }
+            int stream = random.nextInt(streams);
+            // The synchronizer keeps a stream at most a frame ahead of the slowest one.
+            if (next[stream] == frames || next[stream] > slowest + 1) {
+                continue;
+            }
+            int frame = next[stream]++;
+            long ptsUsec = frame * FRAME_USEC + stream * 700;
+            int slot = decisions.find(ptsUsec);
+            if (slot < 0) {
+                firstDecision[frame] = random.nextInt(4) != 0;
+                decisions.record(ptsUsec, firstDecision[frame], 0, 0, FRAME_USEC);
+                decided++;
+            } else {
+                assertEquals(firstDecision[frame], decisions.isRender(slot));
+            }
+        }
+        assertEquals(frames, decided);
+        assertTrue(decisions.find((frames - 1) * FRAME_USEC) >= 0);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlayerCommandQueueTest {
+    private static final int START = PlayerCommandQueue.START;
+    private static final int PAUSE = PlayerCommandQueue.PAUSE;
+    private static final int STOP = PlayerCommandQueue.STOP;
+    private static final int SEEK = PlayerCommandQueue.SEEK;
+    private static final int PREPARE = PlayerCommandQueue.PREPARE;
+    private static final int PREPARED = PlayerCommandQueue.PREPARED;
+
+    @Test
+    public void prepareStopPrepareEndsPrepared() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        queue.offer(PREPARE, 0);
+        queue.offer(STOP, 0);
+        queue.offer(PREPARE, 0);
+        assertEquals(list(STOP, PREPARE), drain(queue));
+    }
+
+    @Test
+    public void stopDropsPendingPrepare() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        queue.offer(PREPARE, 0);
+        queue.offer(START, 0);
+        queue.offer(STOP, 0);
+        assertEquals(list(STOP), drain(queue));
+    }
+
+    @Test
+    public void repeatedPrepareIsCoalesced() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        queue.offer(STOP, 0);
+        queue.offer(PREPARE, 0);
+        queue.offer(PREPARE, 0);
+        queue.offer(SEEK, 100);
+        queue.offer(PREPARE, 0);
+        assertEquals(list(STOP, PREPARE, SEEK), drain(queue));
+    }
+
+    @Test
+    public void toggleBurstRunsOnlyTheLastIntent() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i % 2 == 0 ? START : PAUSE, 0);
+        }
+        assertEquals(list(PAUSE), drain(queue));
+    }
+
+    @Test
+    public void latestSeekWinsAndEventsAreKept() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        queue.offer(SEEK, 100);
+        queue.offer(PREPARED, 0);
+        queue.offer(SEEK, 200);
+        queue.offer(STOP, 0);
+        queue.offer(SEEK, 300);
+        queue.offer(STOP, 0);
+        assertEquals(list(PREPARED, STOP), drain(queue));
+    }
+
+    @Test
+    public void oneDrainPerBurst() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        assertTrue(queue.offer(START, 0));
+        assertFalse(queue.offer(SEEK, 5));
+        drain(queue);
+        assertTrue(queue.offer(PAUSE, 0));
+    }
+
+    @Test
+    public void seekArgumentRoundTrips() {
+        PlayerCommandQueue queue = new PlayerCommandQueue();
+        queue.offer(SEEK, Integer.MAX_VALUE);
+        long entry = queue.poll();
+        assertEquals(SEEK, PlayerCommandQueue.commandOf(entry));
+        assertEquals(Integer.MAX_VALUE, PlayerCommandQueue.argOf(entry));
+    }
+
+    private static List<Integer> drain(PlayerCommandQueue queue) {
+        List<Integer> commands = new ArrayList<Integer>();
+        long entry;
+        while ((entry = queue.poll()) != PlayerCommandQueue.NONE) {
+            commands.add(PlayerCommandQueue.commandOf(entry));
+        }
+        return commands;
+    }
+
+    private static List<Integer> list(int... commands) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int command : commands) {
+            list.add(command);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpeedControlCallbackTest {
+    private static final long FRAME_USEC = 33333;
+
+    @Test
+    public void backwardSeekDecidesFramesAgain() throws InterruptedException {
+        RecordingCallback callback = new RecordingCallback();
+        Stream color = new Stream(callback);
+        Stream alpha = new Stream(callback);
+        for (int i = 0; i <= 5; i++) {
+            color.render(i * FRAME_USEC);
+            alpha.render(i * FRAME_USEC);
+        }
+        long staleUsec = callback.awaited.get(2 * FRAME_USEC);
+
+        // Back across frames that were decided before the seek.
+        color.seek();
+        color.render(2 * FRAME_USEC);
+        long seekedUsec = callback.awaited.get(2 * FRAME_USEC);
+        assertTrue(seekedUsec > staleUsec);
+        // Paced one frame after the last frame before the seek.
+        assertEquals(callback.awaited.get(5 * FRAME_USEC) + FRAME_USEC, seekedUsec);
+
+        // The other stream resets later and follows the new decision instead of making its own.
+        callback.awaitCount.clear();
+        alpha.seek();
+        alpha.render(2 * FRAME_USEC);
+        assertEquals(seekedUsec, (long) callback.awaited.get(2 * FRAME_USEC));
+        color.render(3 * FRAME_USEC);
+        alpha.render(3 * FRAME_USEC);
+        assertEquals(seekedUsec + FRAME_USEC, (long) callback.awaited.get(3 * FRAME_USEC));
+        assertEquals(2, callback.awaitCount.get(3 * FRAME_USEC).intValue());
+    }
+
+    @Test
+    public void everyLoopStartsNewRound() throws InterruptedException {
+        RecordingCallback callback = new RecordingCallback();
+        Stream color = new Stream(callback);
+        Stream alpha = new Stream(callback);
+        long lastUsec = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < 3; i++) {
+                color.render(i * FRAME_USEC);
+                alpha.render(i * FRAME_USEC);
+                if (pass == 0 && i == 0) {
+                    // Shown right away.
+                    continue;
+                }
+                long awaitedUsec = callback.awaited.get(i * FRAME_USEC);
+                if (lastUsec != 0) {
+                    assertEquals(lastUsec + FRAME_USEC, awaitedUsec);
+                }
+                lastUsec = awaitedUsec;
+            }
+            alpha.seek();
+            color.seek();
+        }
+    }
+
+    /**
+     * Records when each frame is due instead of sleeping until then.
+     */
+    private static final class RecordingCallback extends SpeedControlCallback {
+        final Map<Long, Long> awaited = new HashMap<Long, Long>();
+        final Map<Long, Integer> awaitCount = new HashMap<Long, Integer>();
+        private long mPresentationTimeUsec;
+
+        RecordingCallback() {
+            setFrameDurationUsec(FRAME_USEC);
+        }
+
+        @Override
+        public boolean preRender(long presentationTimeUsec) {
+            synchronized (this) {
+                mPresentationTimeUsec = presentationTimeUsec;
+            }
+            return super.preRender(presentationTimeUsec);
+        }
+
+        @Override
+        protected synchronized void awaitPresentation(long desiredUsec, long renderTimeNanos) {
+            awaited.put(mPresentationTimeUsec, desiredUsec);
+            Integer count = awaitCount.get(mPresentationTimeUsec);
+            awaitCount.put(mPresentationTimeUsec, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * A decode thread of the group.  Each call runs on the stream's own thread, as the
+     * callback tells the streams apart by thread.
+     */
+    private static final class Stream {
+        private final SpeedControlCallback mCallback;
+        private final Object mLock = new Object();
+        private Runnable mTask;
+        private boolean mDone;
+
+        Stream(SpeedControlCallback callback) {
+            mCallback = callback;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void render(final long ptsUsec) throws InterruptedException {
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    assertTrue(mCallback.preRender(ptsUsec));
+                }
+            });
+        }
+
+        void seek() throws InterruptedException {
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.loopReset();
+                }
+            });
+        }
+
+        private void run(Runnable task) throws InterruptedException {
+            synchronized (mLock) {
+                mTask = task;
+                mDone = false;
+                mLock.notifyAll();
+                while (!mDone) {
+                    mLock.wait();
+                }
+            }
+        }
+
+        private void loop() {
+            while (true) {
+                Runnable task;
+                synchronized (mLock) {
+                    while (mTask == null) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                    task = mTask;
+                    mTask = null;
+                }
+                task.run();
+                synchronized (mLock) {
+                    mDone = true;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamGroupTest {
+    @Test
+    public void preparedOnceEveryStreamIs() {
+        StreamGroup group = new StreamGroup(3);
+        assertFalse(group.markPrepared(0));
+        assertFalse(group.markPrepared(2));
+        assertFalse(group.markPrepared(2));
+        assertFalse(group.isPrepared());
+        assertTrue(group.markPrepared(1));
+        assertTrue(group.isPrepared());
+        // Already complete.
+        assertFalse(group.markPrepared(1));
+    }
+
+    @Test
+    public void clearPreparedForgetsSeek() {
+        StreamGroup group = new StreamGroup(2);
+        group.markPrepared(0);
+        group.markPrepared(1);
+        group.beginSeek();
+        group.clearPrepared();
+        assertFalse(group.isPrepared());
+        assertFalse(group.isSeeking());
+    }
+
+    @Test
+    public void seekCompletesWithLastStream() {
+        StreamGroup group = new StreamGroup(3);
+        assertFalse(group.markSeekComplete(0));
+        group.beginSeek();
+        assertTrue(group.isSeeking());
+        assertFalse(group.markSeekComplete(1));
+        assertFalse(group.markSeekComplete(1));
+        assertFalse(group.markSeekComplete(0));
+        assertTrue(group.markSeekComplete(2));
+        assertFalse(group.isSeeking());
+        assertFalse(group.markSeekComplete(2));
+    }
+
+    @Test
+    public void firstFrameSkewCountsFirstFrameOfEachStream() {
+        StreamGroup group = new StreamGroup(3);
+        assertFalse(group.markFirstFrame(0, 100));
+        group.armFirstFrames();
+        assertFalse(group.markFirstFrame(1, 1000));
+        assertEquals(StreamGroup.NO_SKEW, group.getFirstFrameSkewNanos());
+        assertFalse(group.markFirstFrame(0, 1200));
+        // Later frames don't count.
+        assertFalse(group.markFirstFrame(1, 5000));
+        assertTrue(group.markFirstFrame(2, 1500));
+        assertEquals(500, group.getFirstFrameSkewNanos());
+
+        // Not armed until the next start.
+        assertFalse(group.markFirstFrame(2, 9000));
+        assertEquals(500, group.getFirstFrameSkewNanos());
+    }
+
+    @Test
+    public void rearmingResetsSkew() {
+        StreamGroup group = new StreamGroup(2);
+        group.armFirstFrames();
+        group.markFirstFrame(0, 0);
+        group.markFirstFrame(1, 700);
+        group.armFirstFrames();
+        assertEquals(StreamGroup.NO_SKEW, group.getFirstFrameSkewNanos());
+        group.markFirstFrame(1, 2000);
+        assertTrue(group.markFirstFrame(0, 2100));
+        assertEquals(100, group.getFirstFrameSkewNanos());
+    }
+
+    @Test
+    public void spreadOfPositions() {
+        assertEquals(0, StreamGroup.spread(new long[0]));
+        assertEquals(0, StreamGroup.spread(new long[]{40}));
+        assertEquals(33, StreamGroup.spread(new long[]{1033, 1000, 1020}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownStream() {
+        new StreamGroup(2).markPrepared(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyGroup() {
+        new StreamGroup(0);
+    }
+}
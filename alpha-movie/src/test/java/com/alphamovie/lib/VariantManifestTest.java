@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class VariantManifestTest {
+    private static final String MANIFEST = ""
+            + "# size     color              background            alpha\n"
+            + "1920x1080  sticker_1080.mp4   sticker_bg_1080.mp4   sticker_alpha_1080.mp4\n"
+            + "\n"
+            + "  640x360  sticker_360.mp4    sticker_bg_360.mp4    sticker_alpha_360.mp4\n"
+            + "1280x720\tsticker_720.mp4\tsticker_bg_720.mp4\tsticker_alpha_720.mp4\n";
+
+    @Test
+    public void readsVariantsInOrder() throws IOException {
+        VariantManifest manifest = read(MANIFEST);
+        assertEquals(3, manifest.getVariants().size());
+        VariantManifest.Variant variant = manifest.getVariants().get(1);
+        assertEquals(640, variant.getWidth());
+        assertEquals(360, variant.getHeight());
+        assertEquals("sticker_360.mp4", variant.getColor());
+        assertEquals("sticker_bg_360.mp4", variant.getBackground());
+        assertEquals("sticker_alpha_360.mp4", variant.getAlpha());
+        assertEquals("sticker_720.mp4", manifest.getVariants().get(2).getColor());
+    }
+
+    @Test
+    public void selectsSmallestVariantCoveringSize() throws IOException {
+        VariantManifest manifest = read(MANIFEST);
+        assertEquals("sticker_360.mp4", manifest.select(320, 180).getColor());
+        assertEquals("sticker_360.mp4", manifest.select(640, 360).getColor());
+        assertEquals("sticker_720.mp4", manifest.select(641, 360).getColor());
+        assertEquals("sticker_720.mp4", manifest.select(640, 361).getColor());
+        assertEquals("sticker_1080.mp4", manifest.select(1281, 720).getColor());
+    }
+
+    @Test
+    public void selectsVariantCoveringBothDimensions() {
+        VariantManifest.Variant wide = new VariantManifest.Variant(1000, 100, "wide", "", "");
+        VariantManifest.Variant tall = new VariantManifest.Variant(100, 1000, "tall", "", "");
+        VariantManifest.Variant square = new VariantManifest.Variant(500, 500, "square", "", "");
+        VariantManifest manifest = new VariantManifest(Arrays.asList(wide, tall, square));
+        assertSame(square, manifest.select(400, 400));
+        assertSame(wide, manifest.select(600, 50));
+        assertSame(tall, manifest.select(50, 600));
+    }
+
+    @Test
+    public void selectsLargestWhenNoneCoversSize() throws IOException {
+        VariantManifest manifest = read(MANIFEST);
+        assertSame(manifest.getLargest(), manifest.select(3840, 2160));
+        assertEquals("sticker_1080.mp4", manifest.getLargest().getColor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void selectRejectsEmptySize() throws IOException {
+        read(MANIFEST).select(0, 360);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingStream() throws IOException {
+        read("640x360 sticker_360.mp4 sticker_bg_360.mp4\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedSize() throws IOException {
+        read("640by360 sticker_360.mp4 sticker_bg_360.mp4 sticker_alpha_360.mp4\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsZeroSize() throws IOException {
+        read("0x360 sticker_360.mp4 sticker_bg_360.mp4 sticker_alpha_360.mp4\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsManifestWithoutVariants() throws IOException {
+        read("# nothing here\n\n");
+    }
+
+    private static VariantManifest read(String manifest) throws IOException {
+        return VariantManifest.read(new StringReader(manifest));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VsyncTimingTest {
+    private static final long PERIOD_NANOS = 16666667;
+
+    @Test
+    public void firstIntervalIsTheEstimate() {
+        assertEquals(PERIOD_NANOS, VsyncTiming.refinePeriodNanos(0, PERIOD_NANOS));
+    }
+
+    @Test
+    public void estimateFromSkippedRefreshIsReplaced() {
+        long periodNanos = VsyncTiming.refinePeriodNanos(0, 2 * PERIOD_NANOS);
+        assertEquals(PERIOD_NANOS, VsyncTiming.refinePeriodNanos(periodNanos, PERIOD_NANOS));
+    }
+
+    @Test
+    public void missedVsyncsCountAsWholePeriods() {
+        for (int missed = 1; missed < VsyncTiming.MAX_SKIPPED_VSYNCS; missed++) {
+            assertEquals(PERIOD_NANOS,
+                    VsyncTiming.refinePeriodNanos(PERIOD_NANOS, (missed + 1) * PERIOD_NANOS));
+        }
+    }
+
+    @Test
+    public void longGapsAreIgnored() {
+        long periodNanos = PERIOD_NANOS + 1000;
+        long gapNanos = (VsyncTiming.MAX_SKIPPED_VSYNCS + 1) * PERIOD_NANOS;
+        assertEquals(periodNanos, VsyncTiming.refinePeriodNanos(periodNanos, gapNanos));
+        assertEquals(periodNanos, VsyncTiming.refinePeriodNanos(periodNanos, 1000000000L));
+        assertEquals(periodNanos, VsyncTiming.refinePeriodNanos(periodNanos, 0));
+        assertEquals(periodNanos, VsyncTiming.refinePeriodNanos(periodNanos, -1));
+    }
+
+    @Test
+    public void jitteredAndMissedVsyncsConverge() {
+        Random random = new Random(1);
+        long periodNanos = 0;
+        long prevVsyncNanos = 0;
+        int vsync = 0;
+        for (int i = 0; i < 2000; i++) {
+            // Every so often a callback misses a few refreshes.
+            vsync += i % 37 == 0 ? 2 + random.nextInt(3) : 1;
+            long vsyncNanos = vsync * PERIOD_NANOS + random.nextInt(1000000) - 500000;
+            if (prevVsyncNanos != 0) {
+                periodNanos = VsyncTiming.refinePeriodNanos(periodNanos,
+                        vsyncNanos - prevVsyncNanos);
+            }
+            prevVsyncNanos = vsyncNanos;
+        }
+        assertTrue("estimate " + periodNanos, Math.abs(periodNanos - PERIOD_NANOS) < 200000);
+    }
+
+    @Test
+    public void estimateFollowsSlowDrift() {
+        long periodNanos = PERIOD_NANOS;
+        long actualNanos = PERIOD_NANOS + 100000;
+        for (int i = 0; i < 200; i++) {
+            periodNanos = VsyncTiming.refinePeriodNanos(periodNanos, actualNanos);
+        }
+        assertTrue("estimate " + periodNanos, Math.abs(periodNanos - actualNanos) < 1000);
+    }
+
+    @Test
+    public void roundingBoundaryIsThirtyPercentOfAPeriod() {
+        long vsyncNanos = 1000 * PERIOD_NANOS;
+        long boundaryNanos = vsyncNanos + PERIOD_NANOS * VsyncTiming.ROUNDING_PERCENT / 100;
+        assertEquals(vsyncNanos,
+                VsyncTiming.targetVsyncNanos(boundaryNanos, vsyncNanos, PERIOD_NANOS));
+        assertEquals(vsyncNanos + PERIOD_NANOS,
+                VsyncTiming.targetVsyncNanos(boundaryNanos + 1, vsyncNanos, PERIOD_NANOS));
+    }
+
+    @Test
+    public void framesBeforeTheKnownVsyncMapToEarlierOnes() {
+        long vsyncNanos = 10 * PERIOD_NANOS;
+        assertEquals(0, VsyncTiming.targetVsyncNanos(0, vsyncNanos, PERIOD_NANOS));
+        assertEquals(PERIOD_NANOS,
+                VsyncTiming.targetVsyncNanos(PERIOD_NANOS / 2, vsyncNanos, PERIOD_NANOS));
+    }
+
+    @Test
+    public void filmOnSixtyHertzHasEvenCadence() {
+        long frameNanos = 41666667;
+        long prevTargetNanos = VsyncTiming.targetVsyncNanos(0, 0, PERIOD_NANOS);
+        for (int i = 1; i < 100; i++) {
+            long targetNanos = VsyncTiming.targetVsyncNanos(i * frameNanos, 0, PERIOD_NANOS);
+            long vsyncs = (targetNanos - prevTargetNanos) / PERIOD_NANOS;
+            // 3:2 pulldown.
+            assertEquals(i % 2 == 1 ? 3 : 2, vsyncs);
+            prevTargetNanos = targetNanos;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib.utils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A {@link GlApi} without a context: every name resolves, every call succeeds.  Counts the
+ * calls the counting wrapper doesn't tell apart.
+ */
+class FakeGlApi implements GlApi {
+    private final boolean mFenceSync;
+    private int mNextName = 1;
+    private long mNextSync = 1;
+
+    int locationLookups;
+    int useProgramCalls;
+    int bindTextureCalls;
+    int fenceWaits;
+
+    FakeGlApi(boolean fenceSync) {
+        mFenceSync = fenceSync;
+    }
+
+    @Override
+    public int getAttribLocation(int program, String name) {
+        locationLookups++;
+        return mNextName++;
+    }
+
+    @Override
+    public int getUniformLocation(int program, String name) {
+        locationLookups++;
+        return mNextName++;
+    }
+
+    @Override
+    public void useProgram(int program) {
+        useProgramCalls++;
+    }
+
+    @Override
+    public int genBuffer() {
+        return mNextName++;
+    }
+
+    @Override
+    public void deleteBuffer(int buffer) {}
+
+    @Override
+    public void bindBuffer(int target, int buffer) {}
+
+    @Override
+    public void bufferData(int target, FloatBuffer data, int usage) {}
+
+    @Override
+    public void vertexAttribPointer(int index, int size, int strideBytes, int offsetBytes) {}
+
+    @Override
+    public void enableVertexAttribArray(int index) {}
+
+    @Override
+    public void activeTexture(int unit) {}
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        bindTextureCalls++;
+    }
+
+    @Override
+    public void bindFramebuffer(int framebuffer) {}
+
+    @Override
+    public void viewport(int x, int y, int width, int height) {}
+
+    @Override
+    public void uniform1i(int location, int value) {}
+
+    @Override
+    public void uniform1f(int location, float x) {}
+
+    @Override
+    public void uniform3f(int location, float x, float y, float z) {}
+
+    @Override
+    public void uniform4fv(int location, float[] value) {}
+
+    @Override
+    public void uniformMatrix4fv(int location, float[] value) {}
+
+    @Override
+    public void enable(int cap) {}
+
+    @Override
+    public void disable(int cap) {}
+
+    @Override
+    public void blendFunc(int sfactor, int dfactor) {}
+
+    @Override
+    public void clearColor(float red, float green, float blue, float alpha) {}
+
+    @Override
+    public void clear(int mask) {}
+
+    @Override
+    public void drawArrays(int mode, int first, int count) {}
+
+    @Override
+    public int getError() {
+        return GL_NO_ERROR;
+    }
+
+    @Override
+    public boolean hasFenceSync() {
+        return mFenceSync;
+    }
+
+    @Override
+    public long fenceSync() {
+        return mNextSync++;
+    }
+
+    @Override
+    public void clientWaitSync(long sync, long timeoutNanos) {
+        fenceWaits++;
+    }
+
+    @Override
+    public void deleteSync(long sync) {}
+}
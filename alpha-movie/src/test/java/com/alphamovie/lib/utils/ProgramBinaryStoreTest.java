@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramBinaryStoreTest {
+    private static final String RENDERER = "FakeGPU OpenGL ES 3.2 v1";
+    private static final ProgramKey KEY = new ProgramKey("void main() {}", "void main() { }");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ProgramBinaryStore store;
+
+    @Before
+    public void setUp() {
+        store = new ProgramBinaryStore(new File(folder.getRoot(), "programs"));
+    }
+
+    @Test
+    public void savedBinaryLoadsBack() {
+        ProgramBinary binary = new ProgramBinary(0x8740, new byte[]{1, 2, 3, 4, 5});
+        assertTrue(store.save(KEY, RENDERER, binary));
+        ProgramBinary loaded = store.load(KEY, RENDERER);
+        assertNotNull(loaded);
+        assertEquals(0x8740, loaded.getFormat());
+        assertArrayEquals(binary.getData(), loaded.getData());
+    }
+
+    @Test
+    public void otherDriverOrSourceMisses() {
+        store.save(KEY, RENDERER, new ProgramBinary(1, new byte[]{1}));
+        assertNull(store.load(KEY, "FakeGPU OpenGL ES 3.2 v2"));
+        assertNull(store.load(new ProgramKey("void main() {}", "void main() {  }"), RENDERER));
+    }
+
+    @Test
+    public void corruptOrTruncatedFileMisses() throws IOException {
+        store.save(KEY, RENDERER, new ProgramBinary(1, new byte[64]));
+        File file = store.getFile(KEY, RENDERER);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 20);
+            raf.write(0x7f);
+        } finally {
+            raf.close();
+        }
+        assertNull(store.load(KEY, RENDERER));
+
+        store.save(KEY, RENDERER, new ProgramBinary(1, new byte[64]));
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        assertNull(store.load(KEY, RENDERER));
+    }
+
+    @Test
+    public void emptyOrOversizedBinaryIsNotSaved() {
+        assertFalse(store.save(KEY, RENDERER, new ProgramBinary(1, new byte[0])));
+        assertFalse(store.save(KEY, RENDERER,
+                new ProgramBinary(1, new byte[ProgramBinaryStore.MAX_BINARY_SIZE + 1])));
+        assertFalse(store.getFile(KEY, RENDERER).exists());
+    }
+
+    @Test
+    public void clearDeletesOnlyBinaries() throws IOException {
+        store.save(KEY, RENDERER, new ProgramBinary(1, new byte[]{1}));
+        File other = new File(store.getDirectory(), "notes.txt");
+        assertTrue(other.createNewFile());
+        store.clear();
+        assertNull(store.load(KEY, RENDERER));
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void secondRunLoadsInsteadOfCompiling() {
+        FakeCompiler compiler = new FakeCompiler();
+        ProgramCache firstRun = new ProgramCache(compiler, store);
+        assertTrue(firstRun.acquire(KEY.getVertexSource(), KEY.getFragmentSource()) != 0);
+        assertEquals(1, firstRun.getCompileCount());
+
+        ProgramCache secondRun = new ProgramCache(compiler, store);
+        assertTrue(secondRun.acquire(KEY.getVertexSource(), KEY.getFragmentSource()) != 0);
+        assertEquals(0, secondRun.getCompileCount());
+        assertEquals(1, secondRun.getBinaryLoadCount());
+    }
+
+    @Test
+    public void rejectedBinaryIsReplaced() {
+        FakeCompiler compiler = new FakeCompiler();
+        store.save(KEY, RENDERER, new ProgramBinary(1, new byte[]{9, 9}));
+        compiler.rejectBinaries = true;
+
+        ProgramCache cache = new ProgramCache(compiler, store);
+        assertTrue(cache.acquire(KEY.getVertexSource(), KEY.getFragmentSource()) != 0);
+        assertEquals(1, cache.getCompileCount());
+        assertEquals(0, cache.getBinaryLoadCount());
+        // The fresh binary replaced the stale one.
+        assertArrayEquals(FakeCompiler.BINARY, store.load(KEY, RENDERER).getData());
+    }
+
+    @Test
+    public void withoutBinarySupportNothingIsStored() {
+        FakeCompiler compiler = new FakeCompiler();
+        compiler.supportsBinaries = false;
+        ProgramCache cache = new ProgramCache(compiler, store);
+        cache.acquire(KEY.getVertexSource(), KEY.getFragmentSource());
+        assertNull(store.load(KEY, RENDERER));
+    }
+
+    /**
+     * Hands out program names and a fixed binary for every program.
+     */
+    private static class FakeCompiler implements ProgramCompiler {
+        static final byte[] BINARY = {42, 43, 44};
+
+        boolean supportsBinaries = true;
+        boolean rejectBinaries;
+        private int mNextProgram = 1;
+
+        @Override
+        public int compile(String vertexSource, String fragmentSource) {
+            return mNextProgram++;
+        }
+
+        @Override
+        public boolean supportsBinaries() {
+            return supportsBinaries;
+        }
+
+        @Override
+        public String getRendererId() {
+            return RENDERER;
+        }
+
+        @Override
+        public ProgramBinary getBinary(int program) {
+            return new ProgramBinary(1, BINARY);
+        }
+
+        @Override
+        public int loadBinary(ProgramBinary binary) {
+            return rejectBinaries ? 0 : mNextProgram++;
+        }
+
+        @Override
+        public void deleteProgram(int program) {}
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.alphamovie.lib.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuadRenderStateTest {
+    private static final String[] SAMPLERS = {"sTexture", "sTextureBg", "sTextureAlpha"};
+    private static final float[] ST_MATRIX = new float[16];
+
+    @Test
+    public void steadyStateFrameIsMatrixClearAndDraw() {
+        FakeGlApi fake = new FakeGlApi(false);
+        CountingGlApi gl = new CountingGlApi(fake);
+        QuadRenderState state = newState(gl);
+        state.draw(ST_MATRIX);
+        int lookups = fake.locationLookups;
+        gl.resetCallCount();
+
+        for (int i = 0; i < 10; i++) {
+            state.draw(ST_MATRIX);
+        }
+        // uniformMatrix4fv, clear and drawArrays; no glGetError() outside debug.
+        assertEquals(10 * 3, gl.getCallCount());
+        assertEquals(10, gl.getDrawCount());
+        assertEquals(lookups, fake.locationLookups);
+        state.release();
+    }
+
+    @Test
+    public void fenceIsWaitedForOneFrameLater() {
+        FakeGlApi fake = new FakeGlApi(true);
+        CountingGlApi gl = new CountingGlApi(fake);
+        QuadRenderState state = newState(gl);
+        gl.resetCallCount();
+
+        state.draw(ST_MATRIX);
+        // No previous frame to wait for: only the new fence.
+        assertEquals(3 + 1, gl.getCallCount());
+        assertEquals(0, fake.fenceWaits);
+        gl.resetCallCount();
+
+        state.draw(ST_MATRIX);
+        // Wait for and delete the previous fence, then fence this frame.
+        assertEquals(3 + 3, gl.getCallCount());
+        assertEquals(1, fake.fenceWaits);
+        state.release();
+    }
+
+    @Test
+    public void bindingsAreOnlyReissuedAfterAnotherStateDrew() {
+        FakeGlApi fake = new FakeGlApi(false);
+        CountingGlApi gl = new CountingGlApi(fake);
+        QuadRenderState first = newState(gl);
+        QuadRenderState second = newState(gl);
+        first.draw(ST_MATRIX);
+        second.draw(ST_MATRIX);
+        fake.useProgramCalls = 0;
+        fake.bindTextureCalls = 0;
+
+        second.draw(ST_MATRIX);
+        assertEquals(0, fake.useProgramCalls);
+        assertEquals(0, fake.bindTextureCalls);
+
+        first.draw(ST_MATRIX);
+        assertEquals(1, fake.useProgramCalls);
+        assertEquals(SAMPLERS.length, fake.bindTextureCalls);
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void uniformOfBoundStateIsOneCall() {
+        FakeGlApi fake = new FakeGlApi(false);
+        CountingGlApi gl = new CountingGlApi(fake);
+        QuadRenderState state = newState(gl);
+        int location = state.findUniform("uAlphaScale");
+        gl.resetCallCount();
+
+        state.setUniform(location, new float[]{0.5f});
+        // Just uniform1f; no rebinding.
+        assertEquals(1, gl.getCallCount());
+        assertEquals(0, gl.getDrawCount());
+        state.release();
+    }
+
+    @Test
+    public void debugGlErrorsCheckEveryDraw() {
+        FakeGlApi fake = new FakeGlApi(false);
+        CountingGlApi gl = new CountingGlApi(fake);
+        QuadRenderState state = newState(gl);
+        state.draw(ST_MATRIX);
+        gl.resetCallCount();
+
+        QuadRenderState.setDebugGlErrors(true);
+        try {
+            state.draw(ST_MATRIX);
+        } finally {
+            QuadRenderState.setDebugGlErrors(false);
+        }
+        // uniformMatrix4fv, clear, drawArrays and the error check.
+        assertEquals(4, gl.getCallCount());
+        state.release();
+    }
+
+    private static QuadRenderState newState(GlApi gl) {
+        return new QuadRenderState(gl, 1, GlApi.GL_TEXTURE_EXTERNAL_OES, new int[]{10, 11, 12},
+                SAMPLERS);
+    }
+}
@@ -9,12 +9,9 @@ import android.view.View;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
-import com.alphamovie.lib.Utils;
 import com.alphamovie.lib.independent.AlphaMoviePlayer;
 import com.alphamovie.lib.independent.VideoPlayer;
 
-import java.io.File;
-
 /**
  * Created by luotian on 2018/1/5.
  */
@@ -65,11 +62,6 @@ public class IndependentActivity extends Activity {
             }
         });
 
-        String desPath = getFilesDir().getAbsolutePath() + File.separator;
-        Utils.copyAssetFileToPath(this, FILENAME, desPath);
-        Utils.copyAssetFileToPath(this, FILENAMEBG, desPath);
-        Utils.copyAssetFileToPath(this, FILENAMEALPHA, desPath);
-
         glSurfaceView = (SurfaceView) findViewById(R.id.video_player);
 
         videoPlayer = new VideoPlayer(glSurfaceView);
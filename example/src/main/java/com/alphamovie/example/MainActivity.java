@@ -23,9 +23,6 @@ import android.view.View;
 import android.widget.ImageView;
 
 import com.alphamovie.lib.AlphaMovieView;
-import com.alphamovie.lib.Utils;
-
-import java.io.File;
 
 public class MainActivity extends AppCompatActivity {
     public static final String FILENAME = "color1.mp4";
@@ -50,11 +47,6 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
 
-        String desPath = getFilesDir().getAbsolutePath() + File.separator;
-        Utils.copyAssetFileToPath(this, FILENAME, desPath);
-        Utils.copyAssetFileToPath(this, FILENAMEBG, desPath);
-        Utils.copyAssetFileToPath(this, FILENAMEALPHA, desPath);
-
         imageViewBackground = (ImageView) findViewById(R.id.image_background);
 
         alphaMovieView = (AlphaMovieView) findViewById(R.id.video_player);